@@ -0,0 +1,23 @@
+/*  Durability.java
+ *
+ *  This class is used by the server to decide how
+ *  far an upload (a WRQ) has to be on disk before its
+ *  last block is acknowledged. With NONE the file is
+ *  closed and renamed into place, and the operating
+ *  system writes it out when it sees fit. With
+ *  PER_FILE every upload fsyncs its file and the
+ *  directory on its own before the final ACK. With
+ *  GROUP_COMMIT uploads that finish at about the
+ *  same time are handed to the shared TFTPCommitter
+ *  thread, which fsyncs them as one batch and then
+ *  releases all of their final ACKs together.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+public enum Durability {
+
+    NONE, PER_FILE, GROUP_COMMIT
+
+}
@@ -0,0 +1,21 @@
+/*  ServerMode.java
+ *
+ *  This class is used by the server dispatcher to
+ *  decide how each new connection is handled. In
+ *  THREAD mode every connection gets its own
+ *  TFTPClientConnection platform thread. In
+ *  VIRTUAL_THREAD mode the same TFTPClientConnection
+ *  code runs on a virtual thread instead, which needs
+ *  Java 21 or later. In EVENT_LOOP mode connections
+ *  are multiplexed onto a small set of TFTPEventLoop
+ *  threads (one per core).
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+public enum ServerMode {
+
+    THREAD, VIRTUAL_THREAD, EVENT_LOOP
+
+}
@@ -0,0 +1,1062 @@
+/*  TFTPAsyncClient.java
+ *
+ *  This class is the client side of a TFTP system as a
+ *  library, for programs that move many files at once
+ *  rather than a user at the console. get() reads a
+ *  file from a server and put() writes one to it. Both
+ *  return straight away with a Transfer, a
+ *  CompletableFuture that completes with the transfer's
+ *  statistics once the last block is acknowledged, or
+ *  exceptionally if the transfer fails:
+ *
+ *  TransferError       an ERROR packet was received
+ *                      from the server, or sent to it
+ *                      (the code says which error)
+ *  SocketTimeoutException  the server stopped answering
+ *  IOException         the local file or stream failed
+ *
+ *  Any number of transfers can run at the same time.
+ *  They share a few threads (DEFAULT_THREADS unless
+ *  the client is given another number), each running
+ *  a loop like the server's TFTPEventLoop: every
+ *  transfer has a non-blocking DatagramChannel of its
+ *  own on an ephemeral port (its TransferID) registered
+ *  with the Selector of one of the loops, and advances
+ *  its DATA/ACK state machine whenever a packet
+ *  arrives. Retransmission deadlines come from a
+ *  TFTPRetransmitTimer and are kept on the shared
+ *  TFTPTimerWheel, which hands an expired one back to
+ *  the transfer's loop.
+ *
+ *  Each request carries the options the client is set
+ *  to ask for (blksize, windowsize and timeout, RFC
+ *  2348, 7440 and 2349) and tsize: 0 in an RRQ to ask
+ *  for the size of the file, which is then allocated
+ *  before the first block if it is written to a File,
+ *  and the size of the file in a WRQ. The server's
+ *  OACK is checked as the interactive client always
+ *  has: an option that was not asked for, or a larger
+ *  value than asked for, is refused with an Error
+ *  Code 8.
+ *
+ *  Errors are handled the same way as the interactive
+ *  client's. A packet from anyone but the server gets
+ *  an Error Code 5 and the transfer carries on. An
+ *  Error Code 5 from the server is ignored, as it was
+ *  meant for a packet from some other port. Any other
+ *  ERROR packet ends the transfer, and a packet with
+ *  the wrong opcode or block number ends it with an
+ *  Error Code 4. A file read into a File is deleted if
+ *  the transfer fails.
+ *
+ *  Cancelling a Transfer sends the server an Error
+ *  Code 0 and releases the transfer. The sink of a
+ *  get() is written on a loop thread, so it should not
+ *  block; a file or a buffer in memory is fine. It is
+ *  not closed by the client.
+ *
+ *  Given a TFTPMetrics (see setMetrics()), the
+ *  transfers record in it what the server's record in
+ *  its own: transfers started and ended, bytes,
+ *  retransmissions, round trip times, the time to the
+ *  first DATA and the errors. Each transfer's stats
+ *  also count the packets it sent and received.
+ *
+ *  TFTPClient, the interactive client, runs its
+ *  transfers through an instance of this class, and
+ *  so do TFTPLoadGenerator and TFTPThroughputBench.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TFTPAsyncClient {
+	/* Port servers listen on unless told otherwise. */
+	public static final int DEFAULT_PORT = TFTPServer.DEFAULT_PORT;
+
+	/* Threads the transfers share unless told otherwise. */
+	public static final int DEFAULT_THREADS = 2;
+
+	/* Options asked for unless told otherwise: blocks that fit a 1500 byte Ethernet MTU, in windows of 16. */
+	public static final int DEFAULT_BLOCK_SIZE = 1428;
+	public static final int DEFAULT_WINDOW_SIZE = 16;
+
+	/* Retransmissions of the same packet before a transfer is given up, as in the interactive client. */
+	private static final int ATTEMPTS = 10;
+
+	/* States a transfer moves through. */
+	private static enum State {RECEIVING, SENDING, DONE};
+
+	private final Loop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final AtomicInteger nextTransfer = new AtomicInteger(1);
+	private volatile boolean closed;
+
+	/* Options asked for with each request, and the bounds of the RTO. */
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+	private int windowSize = DEFAULT_WINDOW_SIZE;
+	private int timeout = 0;
+	private int minTimeout = TFTPRetransmitTimer.DEFAULT_MIN_TIMEOUT;
+	private int maxTimeout = TFTPRetransmitTimer.DEFAULT_MAX_TIMEOUT;
+	private int initialTimeout = TFTPRetransmitTimer.DEFAULT_INITIAL_TIMEOUT;
+
+	/* Where transfers started from now on record what they do, or null. */
+	private TFTPMetrics metrics;
+
+	/* Records every packet in the shared TFTPEventLog when on. */
+	private volatile boolean verbose;
+
+	/**
+	 * Creates a client whose transfers share DEFAULT_THREADS threads.
+	 *
+	 * @throws IOException if a Selector can't be opened.
+	 */
+	public TFTPAsyncClient() throws IOException {
+		this(DEFAULT_THREADS);
+	}
+
+	/**
+	 * @param threads the transfers share, at least 1.
+	 * @throws IOException if a Selector can't be opened.
+	 */
+	public TFTPAsyncClient(int threads) throws IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed.");
+		}
+		loops = new Loop[threads];
+		try {
+			for (int i = 0; i < threads; i++) {
+				loops[i] = new Loop(i);
+			}
+		} catch (IOException e) {
+			for (Loop loop : loops) {
+				if (loop != null) { loop.selector.close(); }
+			}
+			throw e;
+		}
+		for (Loop loop : loops) {
+			loop.start();
+		}
+	}
+
+	/**
+	 * Sets the options asked for with transfers started from now on. The
+	 * defaults are not negotiated at all.
+	 *
+	 * @param blockSize between TFTPOptions.MIN_BLOCK_SIZE and MAX_BLOCK_SIZE.
+	 * @param windowSize between 1 and TFTPOptions.MAX_WINDOW_SIZE.
+	 * @param timeout in seconds between TFTPOptions.MIN_TIMEOUT and MAX_TIMEOUT, or 0 to adapt it instead.
+	 */
+	public synchronized void setOptions(int blockSize, int windowSize, int timeout) {
+		if (blockSize < TFTPOptions.MIN_BLOCK_SIZE || blockSize > TFTPOptions.MAX_BLOCK_SIZE
+				|| windowSize < 1 || windowSize > TFTPOptions.MAX_WINDOW_SIZE
+				|| (timeout != 0 && (timeout < TFTPOptions.MIN_TIMEOUT || timeout > TFTPOptions.MAX_TIMEOUT))) {
+			throw new IllegalArgumentException("Option out of range.");
+		}
+		this.blockSize = blockSize;
+		this.windowSize = windowSize;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Sets the bounds of the RTO of transfers started from now on.
+	 *
+	 * @param min smallest RTO in milliseconds, at least 1.
+	 * @param max largest RTO in milliseconds, at least min.
+	 * @param initial RTO in milliseconds, until there is a measurement.
+	 */
+	public synchronized void setTimeouts(int min, int max, int initial) {
+		if (min < 1 || max < min || max > TFTPRetransmitTimer.TIMEOUT_LIMIT || initial < min || initial > max) {
+			throw new IllegalArgumentException("Timeouts must satisfy 1 <= min <= initial <= max <= " + TFTPRetransmitTimer.TIMEOUT_LIMIT + ".");
+		}
+		minTimeout = min;
+		maxTimeout = max;
+		initialTimeout = initial;
+	}
+
+	/**
+	 * Has transfers started from now on record what they do in the given
+	 * metrics too, as the server's transfers do in its own, so a program
+	 * running many of them can add them up. Transfers already started keep
+	 * the metrics they had.
+	 *
+	 * @param metrics to record in, or null to stop recording.
+	 */
+	public synchronized void setMetrics(TFTPMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	public boolean isVerbose() {
+		return verbose;
+	}
+
+	/**
+	 * Reads a file from a server listening on DEFAULT_PORT into a local file.
+	 */
+	public Transfer get(String host, String remote, File local) {
+		return get(new InetSocketAddress(host, DEFAULT_PORT), remote, local);
+	}
+
+	/**
+	 * Reads a file from a server into a local file, which is created or
+	 * emptied, allocated at the size the server gives, and deleted if the
+	 * transfer fails.
+	 *
+	 * @param server to read from.
+	 * @param remote name of the file on the server.
+	 * @param local file to write.
+	 * @return the transfer, which completes once the file has been written.
+	 */
+	public Transfer get(InetSocketAddress server, String remote, File local) {
+		Transfer transfer = new Transfer("RRQ " + remote);
+		TFTPFileWriter writer;
+		try {
+			writer = new TFTPFileWriter(local);
+		} catch (IOException | SecurityException e) {
+			transfer.completeExceptionally(e);
+			return transfer;
+		}
+		Session session = new Session(transfer, server, remote);
+		session.local = local;
+		session.writer = writer;
+		return submit(session);
+	}
+
+	/**
+	 * Reads a file from a server listening on DEFAULT_PORT into a stream.
+	 */
+	public Transfer get(String host, String remote, OutputStream sink) {
+		return get(new InetSocketAddress(host, DEFAULT_PORT), remote, sink);
+	}
+
+	/**
+	 * Reads a file from a server into a stream.
+	 *
+	 * @param server to read from.
+	 * @param remote name of the file on the server.
+	 * @param sink the file's bytes are written to, in order, on a loop thread. Not closed.
+	 * @return the transfer, which completes once the last block has been written to the sink.
+	 */
+	public Transfer get(InetSocketAddress server, String remote, OutputStream sink) {
+		Session session = new Session(new Transfer("RRQ " + remote), server, remote);
+		session.sink = sink;
+		return submit(session);
+	}
+
+	/**
+	 * Writes a local file to a server listening on DEFAULT_PORT.
+	 */
+	public Transfer put(String host, File source, String remote) {
+		return put(new InetSocketAddress(host, DEFAULT_PORT), source, remote);
+	}
+
+	/**
+	 * Writes a local file to a server.
+	 *
+	 * @param server to write to.
+	 * @param source file to send.
+	 * @param remote name to give the file on the server.
+	 * @return the transfer, which completes once the server has acknowledged the last block.
+	 */
+	public Transfer put(InetSocketAddress server, File source, String remote) {
+		Transfer transfer = new Transfer("WRQ " + remote);
+		TFTPFileReader reader;
+		try {
+			reader = new TFTPFileReader(source);
+		} catch (IOException | SecurityException e) {
+			transfer.completeExceptionally(e);
+			return transfer;
+		}
+		Session session = new Session(transfer, server, remote);
+		session.reader = reader;
+		transfer.getStats().setExpectedBytes(reader.size());
+		return submit(session);
+	}
+
+	/**
+	 * Hands a transfer to the next loop, or fails it if the client is closed.
+	 */
+	private Transfer submit(Session session) {
+		if (closed) {
+			session.release();
+			session.transfer.completeExceptionally(new IllegalStateException("Client closed."));
+			return session.transfer;
+		}
+		synchronized (this) {
+			session.requested = requestOptions(session.reader);
+			session.timer = new TFTPRetransmitTimer(session.transfer.getStats(), minTimeout, maxTimeout, initialTimeout);
+			session.metrics = metrics;
+		}
+		int index = (nextLoop.getAndIncrement() & 0x7FFFFFFF) % loops.length;
+		loops[index].add(session);
+		return session.transfer;
+	}
+
+	/**
+	 * Picks the options sent with a request. tsize asks for the size of a
+	 * file being read, and declares the size of a file being written.
+	 *
+	 * @param reader of the file being written, or null for a read.
+	 */
+	private TFTPOptions requestOptions(TFTPFileReader reader) {
+		TFTPOptions options = new TFTPOptions();
+		options.setBlockSize(blockSize);
+		options.setWindowSize(windowSize);
+		options.setTimeout(timeout);
+		options.setTransferSize(reader == null ? 0 : reader.size());
+		return options;
+	}
+
+	/**
+	 * Stops taking new transfers. The threads end once the transfers
+	 * already started have completed.
+	 */
+	public void close() {
+		closed = true;
+		for (Loop loop : loops) {
+			loop.killThread();
+		}
+	}
+
+	/**
+	 * A transfer started by get() or put(). Completes with the transfer's
+	 * statistics, which can be followed with getStats() while it runs.
+	 */
+	public static class Transfer extends CompletableFuture<TFTPTransferStats> {
+		private final TFTPTransferStats stats;
+		private volatile Session session;
+
+		private Transfer(String name) {
+			stats = new TFTPTransferStats(name);
+		}
+
+		/**
+		 * Returns the statistics of the transfer so far.
+		 */
+		public TFTPTransferStats getStats() {
+			return stats;
+		}
+
+		/**
+		 * Cancels the transfer, telling the server with an Error Code 0.
+		 */
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			final Session session = this.session;
+			if (cancelled && session != null) {
+				session.loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						session.abort();
+					}
+				});
+			}
+			return cancelled;
+		}
+	}
+
+	/**
+	 * An ERROR packet that ended a transfer.
+	 */
+	public static class TransferError extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private final int code;
+		private final boolean received;
+
+		/**
+		 * @param code of the ERROR packet.
+		 * @param message of the ERROR packet.
+		 * @param received true if the server sent it, false if the client did.
+		 */
+		public TransferError(int code, String message, boolean received) {
+			super("Error Code " + code + (received ? " received: " : " sent: ") + message);
+			this.code = code;
+			this.received = received;
+		}
+
+		public int getErrorCode() {
+			return code;
+		}
+
+		/**
+		 * Returns true if the server sent the ERROR packet, false if the
+		 * client sent it because of something the server did.
+		 */
+		public boolean isReceived() {
+			return received;
+		}
+	}
+
+	/**
+	 * A thread that runs transfers, like TFTPEventLoop does for the server.
+	 */
+	private class Loop extends Thread {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Session> pending = new ConcurrentLinkedQueue<Session>();
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final HashSet<Session> sessions = new HashSet<Session>();
+
+		/* Shared by every transfer on this loop, as only one runs at a time. Sized for the largest blksize. */
+		private final ByteBuffer receiveBuffer = ByteBuffer.allocate(TFTPOptions.MAX_PACKET_SIZE);
+
+		private volatile boolean running = true;
+
+		private Loop(int number) throws IOException {
+			super("TFTPAsyncClient-" + number);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		/**
+		 * Hands a new transfer to this loop. Safe to call from any thread.
+		 */
+		private void add(Session session) {
+			session.loop = this;
+			session.transfer.session = session;
+			pending.add(session);
+			selector.wakeup();
+		}
+
+		/**
+		 * Runs a task on the loop thread. Safe to call from any thread.
+		 */
+		private void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (running || !sessions.isEmpty() || !pending.isEmpty()) {
+				/* Start transfers handed to us since the last pass. */
+				Session session;
+				while ((session = pending.poll()) != null) {
+					if (session.open(selector)) {
+						sessions.add(session);
+					}
+				}
+
+				/* Run tasks handed back by other threads and the timer wheel. */
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+
+				/* A task may have ended the last transfer after stopping was asked for, and used up the wakeup. */
+				if (!running && sessions.isEmpty() && pending.isEmpty()) {
+					break;
+				}
+
+				/* Sleep until a packet arrives or a task is handed to us. */
+				try {
+					selector.select();
+				} catch (IOException e) {
+					e.printStackTrace();
+					break;
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid() && key.isReadable()) {
+						((Session) key.attachment()).handleReadable(receiveBuffer);
+					}
+				}
+			}
+
+			/* Transfers still here when the loop broke can't be driven any more. */
+			for (Session session : new HashSet<Session>(sessions)) {
+				session.finish(new IOException("Client thread stopped."));
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Stops the loop once its current transfers have completed.
+		 */
+		private void killThread() {
+			running = false;
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * The state of one RRQ or WRQ, driven by its loop.
+	 */
+	private class Session {
+		private final Transfer transfer;
+		private final int number = nextTransfer.getAndIncrement();
+		private final InetSocketAddress server;
+		private final String remote;
+		private Loop loop;
+		private DatagramChannel channel;
+		private SelectionKey key;
+		private State state;
+
+		/* Port the server answered from, its TransferID, once it has. */
+		private InetSocketAddress peer;
+
+		/* View the packets are read through. */
+		private final TFTPPacket view = new TFTPPacket();
+
+		/* Where the verbose printouts are recorded. */
+		private final TFTPEventLog log = TFTPEventLog.getShared();
+
+		/* Options sent with the request, and those in effect (the defaults unless the server sends an OACK). */
+		private TFTPOptions requested;
+		private TFTPOptions options = new TFTPOptions();
+		private boolean negotiated;
+
+		/* Where a read goes: a File through a writer, or a stream. */
+		private File local;
+		private TFTPFileWriter writer;
+		private OutputStream sink;
+		private long written;
+
+		/* Where a write comes from. */
+		private TFTPFileReader reader;
+
+		private TFTPSendWindow sendWindow;
+		private TFTPReceiveWindow receiveWindow;
+
+		/* The request, or the last ACK sent, for the receiver's timeouts. */
+		private ByteBuffer sendBuffer;
+		private int attempts;
+		private TFTPRetransmitTimer timer;
+		private TFTPTimerWheel.Timeout retransmission;
+
+		/* Where the transfer records what it does, or null, and when the request went out, for the time to the first DATA. */
+		private TFTPMetrics metrics;
+		private long requestedAt;
+		private boolean firstData;
+
+		private Session(Transfer transfer, InetSocketAddress server, String remote) {
+			this.transfer = transfer;
+			this.server = server;
+			this.remote = remote;
+		}
+
+		/**
+		 * Opens the transfer's channel and sends the request. Must be called
+		 * on the loop thread that owns the selector.
+		 *
+		 * @return false if the transfer finished straight away.
+		 */
+		private boolean open(Selector selector) {
+			if (transfer.isDone()) {
+				/* Cancelled before it got here; nothing to abort. */
+				state = State.DONE;
+				release();
+				return false;
+			}
+			boolean read = (reader == null);
+			if (metrics != null) {
+				transfer.getStats().setMetrics(metrics, !read);
+			}
+
+			/* The wheel only hands an expired deadline to the loop; the transfer deals with it there. */
+			final Runnable expired = new Runnable() {
+				@Override
+				public void run() {
+					/* Armed again since it expired, by a packet that got here first. */
+					if (!retransmission.isArmed()) {
+						handleTimeout();
+					}
+				}
+			};
+			retransmission = TFTPTimerWheel.getShared().newTimeout(new Runnable() {
+				@Override
+				public void run() {
+					loop.execute(expired);
+				}
+			});
+
+			if (server.isUnresolved()) {
+				finish(new IOException("Unknown host " + server.getHostString() + "."));
+				return false;
+			}
+			try {
+				channel = DatagramChannel.open();
+				channel.bind(null);
+				channel.configureBlocking(false);
+				key = channel.register(selector, SelectionKey.OP_READ, this);
+			} catch (IOException e) {
+				finish(e);
+				return false;
+			}
+
+			byte[] request = new byte[2 + remote.length() + 1 + "octet".length() + 1 + requested.length()];
+			request[0] = 0;
+			request[1] = (byte) (read ? TFTPPacket.OPCODE.RRQ : TFTPPacket.OPCODE.WRQ).value();
+			int length = TFTPPacket.putString(request, 2, remote);
+			length = TFTPPacket.putString(request, length, "octet");
+			length = requested.write(request, length); // Options follow the mode (RFC 2347)
+			sendBuffer = ByteBuffer.wrap(request, 0, length);
+			if (read) {
+				/* Replaced once an OACK tells us the negotiated sizes. */
+				receiveWindow = new TFTPReceiveWindow(options.getPacketSize(), options.getWindowSize(), transfer.getStats());
+				state = State.RECEIVING;
+			} else {
+				state = State.SENDING;
+			}
+			if (verbose) { log.message(number, "Client: " + (read ? "RRQ " : "WRQ ") + remote + " to " + server + ", options " + requested); }
+			requestedAt = System.nanoTime();
+			transmit();
+			timer.start();
+			return state != State.DONE;
+		}
+
+		/**
+		 * Drains every datagram waiting on the transfer's channel.
+		 *
+		 * @param buffer scratch receive buffer owned by the loop.
+		 */
+		private void handleReadable(ByteBuffer buffer) {
+			while (state != State.DONE) {
+				buffer.clear();
+				InetSocketAddress source;
+				try {
+					source = (InetSocketAddress) channel.receive(buffer);
+				} catch (IOException e) {
+					finish(e);
+					return;
+				}
+				if (source == null) { return; }
+				buffer.flip();
+				handlePacket(buffer, source);
+			}
+		}
+
+		private void handlePacket(ByteBuffer buffer, InetSocketAddress source) {
+			if (verbose) {
+				log.packet(number, false, buffer, source.getPort());
+			}
+			transfer.getStats().addPacket();
+
+			/* The server answers from a port of its own for the transfer; the first packet from its host tells us which. */
+			if (peer == null && source.getAddress().equals(server.getAddress())) {
+				peer = source;
+			}
+			/* A packet from anyone but the server gets an Error Code 5, and the transfer carries on. */
+			if (!source.equals(peer)) {
+				sendErrorPacket(5, "The TransferID is different", source);
+				return;
+			}
+
+			if (buffer.limit() < 4) {
+				fail(4, "Invalid packet.");
+				return;
+			}
+
+			view.wrap(buffer);
+			if (view.is(TFTPPacket.OPCODE.ERROR)) {
+				if (metrics != null) { metrics.addErrorReceived(view.getErrorCode()); }
+				if (view.getErrorCode() == 5) {
+					/* Meant for a packet that wasn't ours; nothing to recover. */
+					return;
+				}
+				finish(new TransferError(view.getErrorCode(), view.getErrorMessage(), true));
+				return;
+			}
+
+			if (view.is(TFTPPacket.OPCODE.OACK)) {
+				handleOack(buffer);
+			} else if (state == State.SENDING) {
+				handleAck();
+			} else {
+				handleData(buffer);
+			}
+		}
+
+		/**
+		 * An OACK takes the place of ACK 0 for a write, and is answered with
+		 * ACK 0 for a read. A repeated one means our ACK 0 was lost.
+		 */
+		private void handleOack(ByteBuffer buffer) {
+			if ((state == State.SENDING && sendWindow != null) || (state == State.RECEIVING && receiveWindow.isStarted())) {
+				/* A late copy of the OACK, once blocks are moving. */
+				return;
+			}
+			if (negotiated) {
+				if (state == State.RECEIVING) {
+					sendBuffer.rewind();
+					transmit();
+					timer.resend();
+				}
+				return;
+			}
+			options = TFTPOptions.accept(TFTPOptions.parse(buffer.array(), 2, buffer.limit()), requested);
+			if (options == null) {
+				fail(TFTPOptions.ERROR_CODE, "Invalid OACK.");
+				return;
+			}
+			negotiated = true;
+			timer.stop();
+			if (verbose) { log.message(number, "Client: Options accepted: " + options); }
+			if (options.getTimeout() > 0) {
+				timer.fix(options.getTimeout() * 1000);
+			}
+			if (state == State.SENDING) {
+				startSending();
+				return;
+			}
+
+			/* With the size known, check for room and allocate the whole file now. */
+			long size = options.getTransferSize();
+			if (size >= 0) {
+				transfer.getStats().setExpectedBytes(size);
+				if (writer != null) {
+					try {
+						if (!TFTPFileWriter.hasSpace(local, size)) {
+							throw new IOException("Not enough space for " + size + " bytes.");
+						}
+						writer.allocate(size);
+					} catch (IOException e) {
+						fail(3, "Disk full.");
+						return;
+					}
+				}
+			}
+			receiveWindow = new TFTPReceiveWindow(options.getPacketSize(), options.getWindowSize(), transfer.getStats());
+			sendAck(0);
+			timer.start();
+		}
+
+		/**
+		 * Processes an ACK of a write.
+		 */
+		private void handleAck() {
+			int block = view.getBlock();
+			if (!view.is(TFTPPacket.OPCODE.ACK)) {
+				fail(4, "Invalid packet type.");
+				return;
+			}
+			if (sendWindow == null) {
+				/* A server that doesn't take options answers the WRQ with ACK 0. */
+				if (block != 0) {
+					fail(4, "Expected ACK 0 for WRQ.");
+					return;
+				}
+				timer.stop();
+				startSending();
+				return;
+			}
+
+			int acknowledged = sendWindow.acknowledge(block);
+			if (acknowledged < 0) {
+				if (sendWindow.isStale(block)) {
+					/* Duplicate ACK, ignore it. */
+					return;
+				}
+				fail(4, "Invalid block number.");
+				return;
+			}
+			if (acknowledged == 0 && sendWindow.getWindowSize() == 1) {
+				/* A repeat of the previous ACK; the lock-step transfer ignores it. */
+				return;
+			}
+			if (acknowledged > 0) {
+				timer.stop();
+			}
+			if (sendWindow.isComplete()) {
+				finish(null);
+			} else {
+				/* Slides the window on, or resends the rest of it after a block the server missed. */
+				sendNextWindow();
+			}
+		}
+
+		/**
+		 * Processes a DATA packet of a read.
+		 */
+		private void handleData(ByteBuffer buffer) {
+			int block = view.getBlock();
+			if (!view.is(TFTPPacket.OPCODE.DATA)) {
+				fail(4, "Invalid opcode.");
+				return;
+			}
+			if (buffer.limit() > options.getPacketSize()) {
+				fail(4, "DATA packet larger than the negotiated block size.");
+				return;
+			}
+			TFTPReceiveWindow.Block kind = receiveWindow.classify(block);
+			if (kind == TFTPReceiveWindow.Block.OUT_OF_ORDER) {
+				/* Duplicate or out of order DATA, ACK the last block received in order. */
+				if (receiveWindow.acknowledgeGap()) {
+					sendAck(receiveWindow.getLastInOrder());
+					timer.resend();
+				}
+				return;
+			}
+			if (kind == TFTPReceiveWindow.Block.INVALID) {
+				fail(4, "Invalid block number.");
+				return;
+			}
+
+			int length = buffer.limit() - 4;
+			long expected = options.getTransferSize();
+			if ((writer != null && !writer.fits(length)) || (writer == null && expected >= 0 && written + length > expected)) {
+				fail(3, "Allocation exceeded.");
+				return;
+			}
+
+			/* The first new DATA packet answers our last ACK (or the RRQ). */
+			timer.stop();
+			recordFirstData();
+			try {
+				if (writer != null) {
+					writer.write(buffer.array(), 4, length);
+				} else {
+					sink.write(buffer.array(), 4, length);
+				}
+				written += length;
+			} catch (IOException e) {
+				sendErrorPacket(3, "Disk full.", peer);
+				finish(e);
+				return;
+			}
+
+			if (receiveWindow.accept(buffer.limit())) {
+				sendAck(block);
+				timer.start();
+			} else {
+				/* Mid-window; the server is still sending, so push the timeout back. */
+				attempts = 0;
+				retransmission.arm(timer.getReceiveTimeout());
+			}
+
+			/* This means it's the last packet. */
+			if (receiveWindow.isComplete()) {
+				finish(null);
+			}
+		}
+
+		/**
+		 * Starts sending blocks once the server has answered the WRQ.
+		 */
+		private void startSending() {
+			sendWindow = new TFTPSendWindow(reader, options.getBlockSize(), options.getWindowSize(), transfer.getStats());
+			recordFirstData();
+			sendNextWindow();
+		}
+
+		/**
+		 * Records the time from the request to the first DATA packet, received
+		 * for a read or sent for a write, as the server does from its side.
+		 */
+		private void recordFirstData() {
+			if (!firstData && metrics != null) {
+				firstData = true;
+				metrics.addFirstData(System.nanoTime() - requestedAt);
+			}
+		}
+
+		/**
+		 * Called on the loop once the transfer's deadline has passed.
+		 * Retransmits the last packet or gives up on the transfer.
+		 */
+		private void handleTimeout() {
+			if (state == State.DONE) { return; }
+			attempts++;
+			if (attempts == ATTEMPTS) {
+				if (metrics != null) { metrics.addTimedOut(); }
+				finish(new SocketTimeoutException("No answer from " + (peer != null ? peer : server) + " after " + ATTEMPTS + " attempts."));
+				return;
+			}
+			if (verbose) { log.message(number, "Client: Timeout. Attempting packet Retransmission.\n"); }
+			timer.retransmit();
+			if (state == State.SENDING && sendWindow != null) {
+				sendWindow();
+			} else if (state == State.RECEIVING && receiveWindow.isStarted()) {
+				/* ACK the last block received in order; the server resends the window from there. */
+				receiveWindow.acknowledgeTimeout();
+				putAck(receiveWindow.getLastInOrder());
+				transmit();
+			} else {
+				/* The request, or the ACK 0 of an OACK. */
+				sendBuffer.rewind();
+				transmit();
+			}
+		}
+
+		/**
+		 * Fills the send window from the file and sends every block in it.
+		 */
+		private void sendNextWindow() {
+			/* Blocks still in the window are being sent again. */
+			boolean resend = sendWindow.size() > 0;
+			try {
+				sendWindow.fill();
+			} catch (IOException e) {
+				sendErrorPacket(0, "Can't read file.", peer);
+				finish(e);
+				return;
+			}
+			attempts = 0;
+			sendWindow();
+			if (resend) {
+				timer.resend();
+			} else {
+				timer.start();
+			}
+		}
+
+		/**
+		 * Sends every block in the send window and arms the retransmission deadline.
+		 */
+		private void sendWindow() {
+			for (int i = 0; i < sendWindow.size() && state != State.DONE; i++) {
+				send(sendWindow.getBuffer(i), peer);
+			}
+			retransmission.arm(timer.getTimeout());
+		}
+
+		private void sendAck(int block) {
+			putAck(block);
+			attempts = 0;
+			transmit();
+		}
+
+		private void putAck(int block) {
+			if (sendBuffer.capacity() < TFTPPacket.HEADER_SIZE) {
+				sendBuffer = ByteBuffer.allocate(TFTPPacket.HEADER_SIZE);
+			}
+			sendBuffer.clear();
+			TFTPPacket.putAck(sendBuffer, block);
+			sendBuffer.flip();
+		}
+
+		/**
+		 * Sends the send buffer (the request or an ACK) and arms the
+		 * retransmission deadline.
+		 */
+		private void transmit() {
+			send(sendBuffer, peer != null ? peer : server);
+			retransmission.arm((state == State.SENDING) ? timer.getTimeout() : timer.getReceiveTimeout());
+		}
+
+		private void send(ByteBuffer packet, InetSocketAddress destination) {
+			if (verbose) {
+				log.packet(number, true, packet, destination.getPort());
+			}
+			try {
+				channel.send(packet, destination);
+				transfer.getStats().addPacket();
+			} catch (IOException e) {
+				finish(e);
+			}
+		}
+
+		/**
+		 * Sends an ERROR packet to the server and fails the transfer with it.
+		 */
+		private void fail(int code, String message) {
+			sendErrorPacket(code, message, peer);
+			finish(new TransferError(code, message, false));
+		}
+
+		private void sendErrorPacket(int code, String message, InetSocketAddress address) {
+			byte[] errorData = new byte[TFTPPacket.errorLength(message)];
+			TFTPPacket.putError(errorData, 0, code, message);
+			if (verbose) {
+				log.message(number, "Formulating error packet: " + message + ", with error code: " + code);
+				log.packet(number, true, new DatagramPacket(errorData, errorData.length, address));
+			}
+			if (metrics != null) { metrics.addErrorSent(code); }
+			try {
+				channel.send(ByteBuffer.wrap(errorData), address);
+			} catch (IOException e) {
+				/* The transfer is failing anyway. */
+			}
+		}
+
+		/**
+		 * Ends a cancelled transfer, telling the server.
+		 */
+		private void abort() {
+			if (state == State.DONE) { return; }
+			if (peer != null) {
+				sendErrorPacket(0, "Transfer cancelled.", peer);
+			}
+			finish(new IOException("Transfer cancelled."));
+		}
+
+		/**
+		 * Releases the transfer and completes its future.
+		 *
+		 * @param error that ended the transfer, or null if it completed.
+		 */
+		private void finish(Throwable error) {
+			if (state == State.DONE) { return; }
+			state = State.DONE;
+			if (retransmission != null) { retransmission.cancel(); }
+			loop.sessions.remove(this);
+			if (key != null) { key.cancel(); }
+			try {
+				if (channel != null) { channel.close(); }
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if (error == null) {
+				try {
+					if (writer != null) { writer.close(); writer = null; }
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+			release();
+			if (error != null && local != null) {
+				local.delete();
+			}
+
+			TFTPTransferStats stats = transfer.getStats();
+			stats.finish();
+			if (metrics != null) { metrics.endTransfer(stats, error == null); }
+			if (verbose) { log.message(number, "Client: " + stats); }
+			if (error == null) {
+				transfer.complete(stats);
+			} else {
+				transfer.completeExceptionally(error);
+			}
+		}
+
+		/**
+		 * Closes the transfer's file. Safe to call more than once.
+		 */
+		private void release() {
+			try {
+				if (reader != null) { reader.close(); reader = null; }
+				if (writer != null) { writer.close(); writer = null; }
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
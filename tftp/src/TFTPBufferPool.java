@@ -0,0 +1,77 @@
+/*  TFTPBufferPool.java
+ *
+ *  This class is a bounded pool of direct ByteBuffers
+ *  for the requests received on the server port. The
+ *  dispatcher receives each request into a buffer
+ *  borrowed from the pool and hands the buffer to the
+ *  connection or session that serves the request. The
+ *  session copies the request out on its own thread
+ *  and gives the buffer back, so the dispatcher's
+ *  receive loop doesn't allocate a buffer (or a
+ *  DatagramPacket) per request.
+ *
+ *  If every buffer is out, a new one is allocated and
+ *  counted; it joins the pool when it is given back,
+ *  as long as the pool isn't full.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TFTPBufferPool {
+	private final ArrayBlockingQueue<ByteBuffer> free;
+	private final int bufferSize;
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param buffers most buffers kept in the pool; all are allocated up front.
+	 * @param bufferSize of each buffer in bytes.
+	 */
+	public TFTPBufferPool(int buffers, int bufferSize) {
+		this.bufferSize = bufferSize;
+		free = new ArrayBlockingQueue<ByteBuffer>(buffers);
+		for (int i = 0; i < buffers; i++) {
+			free.add(ByteBuffer.allocateDirect(bufferSize));
+		}
+	}
+
+	/**
+	 * Borrows a cleared buffer, allocating one if the pool is empty.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			misses.incrementAndGet();
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back. Safe to call from any thread.
+	 *
+	 * @param buffer borrowed with acquire().
+	 */
+	public void release(ByteBuffer buffer) {
+		free.offer(buffer);
+	}
+
+	/**
+	 * Returns the number of buffers in the pool right now.
+	 */
+	public int available() {
+		return free.size();
+	}
+
+	/**
+	 * Returns the number of times the pool was empty and a buffer had to be allocated.
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+}
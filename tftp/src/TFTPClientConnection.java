@@ -32,23 +32,29 @@
  *  3 - Using the error code, we respond to the client 
  *  with an error packet and, depending on the error 
  *  code, terminate the connection.
+ *  
+ *  The deadlines of the transfer, for retransmitting
+ *  and for giving up on a client that has stopped
+ *  making progress, are kept on the TFTPTimerWheel
+ *  rather than as a timeout on the socket. A transfer
+ *  that times out ends on its own; the server and its
+ *  other transfers carry on.
  *
  *  Author:         Team 12 (Group Project - SYSC3303)
  *  Date:           5/19/2017
  */
 
-import java.io.ByteArrayOutputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedInputStream;
-import java.io.FileOutputStream;
-import java.io.FileInputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.File;
-import java.util.ArrayList;
+import java.util.Map;
 import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
 
 
 
@@ -61,36 +67,161 @@ public class TFTPClientConnection extends Thread {
 	public static final byte[] READ_RESP = {0, 3, 0, 1};
 
 	/* Constants for packet type sizes. */
-	private static final int TFTP_DATA_PACKET_SIZE = 516;
 	private static final int TFTP_ACK_PACKET_SIZE = 4;
 
+	/* How long a transfer may go without progress before it is given up, in milliseconds. */
+	public static final int IDLE_LIMIT = 120000;
+
 	/* Creates verbose initialized to 'OFF'. */
 	private static Verbose verbose = Verbose.ON;
 
 	/*Client connection attributes*/
 	private DatagramPacket receivedPacket, sendPacket, errorPacket;
-	private TFTPSocket sendSocket;
+	/* Socket of the transfer once it has started, and the shared socket to open it on, if any. */
+	private TFTPSocket transferSocket;
+	private TFTPSharedSocket sharedSocket;
 	private int packetNumber;
 	private int threadNumber;
 	private byte[] data;
 	private InetAddress clientAddress;
+	private TFTPOptions options;
+
+	/* View the packets are read through. */
+	private final TFTPPacket view = new TFTPPacket();
+
+	/* Where the verbose printouts are recorded. */
+	private final TFTPEventLog log = TFTPEventLog.getShared();
+
+	/* Server-wide metrics, when the request arrived, and how the transfer is going. */
+	private final TFTPMetrics metrics = TFTPMetrics.getShared();
+	private long requestTime;
+	private boolean firstData;
+	private boolean completed;
+	private TFTPTransferStats stats;
+	private TFTPRetransmitTimer timer;
+
+	/* Retransmission and idle deadlines of the transfer, on the shared timer wheel. */
+	private TFTPTimerWheel.Timeout retransmission;
+	private TFTPTimerWheel.Timeout reaper;
+	private volatile boolean reaped;
+
+
+	/* Where the last packet accepted from the client came from, for the TransferID check. */
+	private InetAddress lastAddress;
+	private int lastPort;
 
+	/* Where DATA packets are sent. */
+	private InetSocketAddress dataDestination;
 
-	ArrayList<DatagramPacket> requests = new  ArrayList<DatagramPacket>();
+	/* Run once the connection is over, or null. */
+	private Runnable onFinish;
 
-	public TFTPClientConnection(int number, DatagramPacket packet, byte[] packetData, Verbose verb) {
+	/* Directory the files are served from and written to, and the bounds of the RTO. */
+	private File directory = new File(TFTPServer.DEFAULT_DIRECTORY);
+	private int minTimeout = TFTPRetransmitTimer.DEFAULT_MIN_TIMEOUT;
+	private int maxTimeout = TFTPRetransmitTimer.DEFAULT_MAX_TIMEOUT;
+	private int initialTimeout = TFTPRetransmitTimer.DEFAULT_INITIAL_TIMEOUT;
+
+	/* The request, in a buffer borrowed from the dispatcher until the connection starts. */
+	private ByteBuffer request;
+	private InetSocketAddress requestSource;
+	private TFTPBufferPool requestBuffers;
+
+	/**
+	 * @param number of the connection.
+	 * @param request received on the server port, from its position to its limit.
+	 * @param source the request came from.
+	 * @param pool the request buffer is given back to once it has been copied.
+	 * @param verb verbosity.
+	 */
+	public TFTPClientConnection(int number, ByteBuffer request, InetSocketAddress source, TFTPBufferPool pool, Verbose verb) {
 		threadNumber = number;
-		receivedPacket = packet;
-		data = packetData;
+		this.request = request;
+		requestSource = source;
+		requestBuffers = pool;
 		verbose = verb;
 	}
 
+	/**
+	 * Sets something to run once the connection is over, however it ends.
+	 *
+	 * @param task to run on the connection's thread.
+	 */
+	public void setOnFinish(Runnable task) {
+		onFinish = task;
+	}
+
+	/**
+	 * Sets the directory the connection's file is read from or written to.
+	 *
+	 * @param directory of the server.
+	 */
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Sets the bounds of the connection's RTO, those of its server.
+	 *
+	 * @param min smallest RTO in milliseconds.
+	 * @param max largest RTO in milliseconds.
+	 * @param initial RTO in milliseconds, until there is a measurement.
+	 */
+	public void setTimeouts(int min, int max, int initial) {
+		minTimeout = min;
+		maxTimeout = max;
+		initialTimeout = initial;
+	}
+
+	/**
+	 * Has the transfer run on a shared socket rather than a socket of its own.
+	 *
+	 * @param socket to open the transfer on, or null for a socket of its own.
+	 */
+	public void setSharedSocket(TFTPSharedSocket socket) {
+		sharedSocket = socket;
+	}
+
 	@Override
 	public void run() {
+		try {
+			serve();
+		} catch (UncheckedIOException e) {
+			/* A socket failed under the transfer; only this transfer ends. */
+			log.message(threadNumber, "Error with transfer: " + e.getCause().getMessage());
+		} finally {
+			if (reaper != null) {
+				retransmission.cancel();
+				reaper.cancel();
+			}
+			if (transferSocket != null) {
+				transferSocket.close();
+			}
+			if (stats != null) {
+				stats.finish();
+				metrics.endTransfer(stats, completed);
+			}
+			if (onFinish != null) {
+				onFinish.run();
+			}
+		}
+	}
+
+	private void serve() {
+
+		requestTime = System.nanoTime();
+
+		/* Copy the request out on our own thread and give the dispatcher its buffer back. */
+		int length = request.remaining();
+		data = new byte[request.capacity()];
+		request.get(data, 0, length);
+		requestBuffers.release(request);
+		request = null;
+		receivedPacket = new DatagramPacket(data, length, requestSource);
 
 		clientAddress = receivedPacket.getAddress();
 
-		if (isVerbose()) { System.out.println("ClientConnectionThread number: " + threadNumber + " processing request."); }
+		if (isVerbose()) { log.message(threadNumber, "ClientConnectionThread number: " + threadNumber + " processing request."); }
 
 		/*
 
@@ -145,15 +276,16 @@ public class TFTPClientConnection extends Thread {
 		int error_code = -1; /* Default value. -1 means no error so far. */
 		String errorMessage = ""; /* Default, empty error message. */
 
-		if (!(isOpcodeValid(data, TFTPServerDispatcher.OPCODE.RRQ.value())) && !(isOpcodeValid(data, TFTPServerDispatcher.OPCODE.WRQ.value()))) {
+		view.wrap(receivedPacket);
+		if (!view.isRequest()) {
 			error_code = 4;
 			errorMessage = "Invalid opcode.";
 		}
-		if (!(isModeValid(data, receivedPacket.getLength()))) {
+		if (!view.isModeValid()) {
 			error_code = 4;
 			errorMessage = "Invalid mode.";
 		}
-		if (!(isFilenameValid(data, receivedPacket.getLength()))) {
+		if (!view.isFilenameValid()) {
 			error_code = 4;
 			errorMessage = "Invalid filename.";
 		}
@@ -161,6 +293,7 @@ public class TFTPClientConnection extends Thread {
 		if (error_code != -1) {
 			if (error_code == 4) {
 				/* We need to send the error packet, and terminate communication in the case of Error Code 4. */
+				metrics.addInvalidRequest();
 				sendErrorPacket(error_code, errorMessage, receivedPacket.getAddress(), receivedPacket.getPort());
 				return;
 			} else {
@@ -176,34 +309,38 @@ public class TFTPClientConnection extends Thread {
 		 */
 
 
-		requests.add(receivedPacket);
+		remember(receivedPacket);
 		Request req = getRequest(data);
 		String filename = "";
 		int len = receivedPacket.getLength();
-		int j = 0, k = 0;
+		int optionsOffset = -1;
 
 		if (!isError(req)) {
-			for(j = 2; j < len; j++) {
-				if (data[j] == 0) break;
-			}
-
-			filename = new String(data, 2, j-2);
-
-			for(k = j+1; k < len; k++) {
-				if (data[k] == 0) break;
-			}
+			view.wrap(receivedPacket);
+			filename = view.getFilename();
+			optionsOffset = view.getOptionsOffset();
 		}
 
-		if (k != len - 1) { req = Request.ERROR; }
+		/* Anything after the mode must be option / value pairs (RFC 2347). */
+		Map<String, String> requested = (optionsOffset >= 0) ? TFTPOptions.parse(data, optionsOffset, len) : null;
+		if (requested == null) {
+			req = Request.ERROR;
+		} else {
+			options = TFTPOptions.negotiate(requested);
+			if (isVerbose() && options.hasOptions()) { log.message(threadNumber, "ClientConnection: Options accepted: " + options); }
+		}
 
 
 
 		if (req == Request.READ) {
-			if (isVerbose()) { System.out.println(req + " request received."); }
+			if (isVerbose()) { log.message(threadNumber, req + " request received."); }
+			metrics.addRequest(true);
 		} else if (req == Request.WRITE) {
-			if (isVerbose()) { System.out.println(req + " request received."); }
+			if (isVerbose()) { log.message(threadNumber, req + " request received."); }
+			metrics.addRequest(false);
 		} else {
-			if (isVerbose()) { System.out.println(req + " request received."); }
+			if (isVerbose()) { log.message(threadNumber, req + " request received."); }
+			metrics.addInvalidRequest();
 			sendErrorPacket(4, "Invalid filename", receivedPacket.getAddress(), receivedPacket.getPort());
 			return;
 		}
@@ -215,109 +352,136 @@ public class TFTPClientConnection extends Thread {
 
 		File file;
 		try {
-			file = new File(TFTPServer.getDirectory(), filename);
+			file = new File(directory, filename);
 		} catch (SecurityException ace) {
-			System.out.println("Error Code 2 - Access Violation.");
+			log.message(threadNumber, "Error Code 2 - Access Violation.");
 			sendErrorPacket(2, "Access Violation.", receivedPacket.getAddress(), receivedPacket.getPort());
 			return;
 		}
 		if(file.exists() && (req == Request.WRITE)) {
-			System.out.println("ClientConnection: Error Code 6 - File already exists.");
+			log.message(threadNumber, "ClientConnection: Error Code 6 - File already exists.");
 			sendErrorPacket(6, "File already exists", receivedPacket.getAddress(), receivedPacket.getPort());
 			return;
 		}
 		// END OF ERROR CODE 6 & 2
 
 		if(isVerbose()){
-			System.out.println();
-			TFTPServer.printPacketData(false, receivedPacket, false);
+			log.packet(threadNumber, false, receivedPacket);
 		}
 
 		if (req == Request.READ) {
-			if (isVerbose()) { System.out.println("\nClientConnection: Read Request."); }
+			if (isVerbose()) { log.message(threadNumber, "\nClientConnection: Read Request."); }
 			if(file.exists() && !file.isDirectory()) {
 				sendFile(receivedPacket.getAddress(), file, receivedPacket.getPort());
 			} else {
-				System.out.println("Error Code 1: Can't read file. Does not exist on server.");
+				log.message(threadNumber, "Error Code 1: Can't read file. Does not exist on server.");
 				sendErrorPacket(1, "Can't read file. Does not exist on server.", receivedPacket.getAddress(), receivedPacket.getPort());
-				sendSocket.close();
 				return;
 			}
 		} else if (req == Request.WRITE) {
-			if (isVerbose()) { System.out.println("\nClientConnection: Write Request."); }
+			if (isVerbose()) { log.message(threadNumber, "\nClientConnection: Write Request."); }
 			receiveFile(receivedPacket.getAddress(), filename, receivedPacket.getPort());
 		}
 	}
 
 	private void receiveFile(InetAddress address, String filename, int sendPort) {
-		TFTPSocket socket = new TFTPSocket();
-		if (isVerbose()) { System.out.println("ClientConnection: Commencing file transfer...\n" ); }
-		byte[] writeResp = new byte[]{0, 4, 0, 0};
-		DatagramPacket sendPacket = new DatagramPacket(writeResp, 4, address, sendPort);
+		TFTPSocket socket = openSocket(sendPort);
+		startTimers(socket);
+		if (isVerbose()) { log.message(threadNumber, "ClientConnection: Commencing file transfer...\n" ); }
+
+		/* Refuse an upload the disk can't hold before it starts. */
+		File file = new File(directory, filename);
+		long transferSize = options.getTransferSize();
+		if (transferSize > 0 && !TFTPFileWriter.hasSpace(file, transferSize)) {
+			log.message(threadNumber, "Error Code 3 Occurred: There is not enough space on the disk.");
+			sendErrorPacket(3, "Disk full.", address, sendPort);
+			return;
+		}
+
+		/* Options are acknowledged with an OACK in place of ACK 0. */
+		byte[] writeResp = options.hasOptions() ? options.toOACK() : new byte[]{0, 4, 0, 0};
+		DatagramPacket sendPacket = new DatagramPacket(writeResp, writeResp.length, address, sendPort);
+		int packetSize = options.getPacketSize();
+		stats = new TFTPTransferStats("WRQ " + filename);
+		stats.setMetrics(metrics, false);
+		timer = new TFTPRetransmitTimer(stats, minTimeout, maxTimeout, initialTimeout);
+		if (options.getTimeout() > 0) {
+			timer.fix(options.getTimeout() * 1000);
+		}
 		if (isVerbose()) {
-			TFTPServer.printPacketData(true, sendPacket, false);
+			log.packet(threadNumber, true, sendPacket);
 		}
 		socket.sendPacket(sendPacket);
+		timer.start();
 
-		if (isVerbose()) { System.out.println("Server: Packet sent.\n"); }
+		if (isVerbose()) { log.message(threadNumber, "Server: Packet sent.\n"); }
 
-		/* Throw error if file already exists. */
-		File file = new File(TFTPServer.getDirectory(), filename);
-		int blockNumber = 1;
+		TFTPReceiveWindow window = new TFTPReceiveWindow(packetSize, options.getWindowSize(), stats);
+		TFTPWriteBehind out = null;
 		try {
-			BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+			/* The file is allocated at its declared size up front, and written behind the transfer. */
+			out = new TFTPWriteBehind(file, options.getBlockSize());
+			if (transferSize >= 0) {
+				out.allocate(transferSize);
+			}
 			while(true) {
 
 
-				byte[] fileData = new byte[TFTP_DATA_PACKET_SIZE];
-				receivedPacket = new DatagramPacket(fileData, 516);
+				byte[] fileData = new byte[packetSize];
+				receivedPacket = new DatagramPacket(fileData, packetSize);
 
 
 				// Server ACK retransmission here
 				int attempts = 0;
 				while(true){
 					if(isVerbose()){
-						System.out.println("Server: Waiting for packet");
+						log.message(threadNumber, "Server: Waiting for packet");
 					}
-					socket.getDatagramSocket().setSoTimeout(3000);	
+					retransmission.arm(timer.getReceiveTimeout());
 					try{
-						socket.getDatagramSocket().receive(receivedPacket);
-						// If duplicate data, resend ACK
-						if(getPacketNum(receivedPacket) < blockNumber){
-							socket.sendPacket(sendPacket);
-							if(isVerbose()){
-								System.out.println("\n Duplicate DATA Packet Received. Sending ACK\n");
-								TFTPServer.printPacketData(true, sendPacket, false);
-							}
-							continue;
-						} else if ((blockNumber == 0) && (getPacketNum(receivedPacket) == 65535)){
-							socket.sendPacket(sendPacket);
-							if(isVerbose()){
-								System.out.println("\n Duplicate DATA Packet Received. Sending ACK\n");
-								TFTPServer.printPacketData(true, sendPacket, false);
+						socket.receivePacket(receivedPacket, retransmission);
+						// If duplicate or out of order data, ACK the last block received in order
+						if((getRequest(fileData) == Request.DATA) && (window.classify(view.wrap(receivedPacket).getBlock()) == TFTPReceiveWindow.Block.OUT_OF_ORDER)){
+							if(window.acknowledgeGap()){
+								sendPacket = createAckPacket(window.getLastInOrder(), sendPort);
+								socket.sendPacket(sendPacket);
+								timer.resend();
+								if(isVerbose()){
+									log.message(threadNumber, "\n Duplicate or out of order DATA Packet Received. Sending ACK\n");
+									log.packet(threadNumber, true, sendPacket);
+								}
 							}
 							continue;
 						}
 
 					} catch(SocketTimeoutException e){
 						// Send the ACK packet via send/receive socket.
+						if(window.isStarted()){
+							window.acknowledgeTimeout();
+							sendPacket = createAckPacket(window.getLastInOrder(), sendPort);
+						}
+						timer.retransmit();
 						socket.sendPacket(sendPacket);
 						if(isVerbose()){
-							System.out.println("Server: Timeout. Attempting packet Retransmission.\n");
-							TFTPServer.printPacketData(true, sendPacket, false);
+							log.message(threadNumber, "Server: Timeout. Attempting packet Retransmission.\n");
+							log.packet(threadNumber, true, sendPacket);
 						}
 						attempts++;
 						if(attempts == 10){
-							System.out.println("Error with transfer: Time out" );
-							System.exit(0);
+							/* Only this transfer ends; the finally below deletes the partial upload. */
+							metrics.addTimedOut();
+							log.message(threadNumber, "Error with transfer: Time out" );
+							printStats();
+							return;
 						}
 						continue;
 					}
 					break;
 				}
+				long arrived = System.nanoTime();
 
 				if(isVerbose()){
-					TFTPServer.printPacketData(false, receivedPacket, false);
+					log.packet(threadNumber, false, receivedPacket);
 				}
 
 
@@ -325,11 +489,11 @@ public class TFTPClientConnection extends Thread {
 
 				if(code5(receivedPacket)){
 
-					System.out.println("This is an error code 5");
+					log.message(threadNumber, "This is an error code 5");
 					error_code  = 5;		
 				}
 				else{
-					requests.add(receivedPacket);
+					remember(receivedPacket);
 				}	
 
 				/*
@@ -369,7 +533,7 @@ public class TFTPClientConnection extends Thread {
 
 				if (isErrorPacket(receivedPacket)) {
 
-					System.out.println("\n\n Error packet received\n\n ");
+					log.message(threadNumber, "\n\n Error packet received\n\n ");
 					int code = parseErrorPacket(receivedPacket);
 					out.close();
 					if (code == 4) { /* Signals that the the transfer should end. */
@@ -391,23 +555,11 @@ public class TFTPClientConnection extends Thread {
 
 
 
-				//				if (!(isOpcodeValid(data, TFTPServerDispatcher.OPCODE.DATA.value()))) {
-				//					error_code = 4;
-				//					errorMessage = "Invalid opcode.";
-				//				}
-				//				
-				if (!(isOpcodeValid(data, TFTPServerDispatcher.OPCODE.DATA.value())) && !(isOpcodeValid(data, TFTPServerDispatcher.OPCODE.WRQ.value()))) {
-					error_code = 4;
-					errorMessage = "Invalid opcode.";
-				}
-
-
-
 				if (getRequest(fileData) != Request.DATA ) {
 					error_code = 4;
 					errorMessage = "Invalid opCode.";
 				}
-				if (getPacketNum(receivedPacket) != blockNumber ) {
+				if (view.wrap(receivedPacket).getBlock() != window.getExpected() ) {
 					error_code = 4;
 					errorMessage = "Invalid block number.";
 				}
@@ -431,162 +583,178 @@ public class TFTPClientConnection extends Thread {
 				 */
 
 
-				try {
-					out.write(receivedPacket.getData(), 4, receivedPacket.getLength()-4);
-				} catch (IOException ioe) {
-
-					System.out.println("Error Code 3 Occurred: There is not enough space on the disk.");
-					sendErrorPacket(3, "Disk full.", receivedPacket.getAddress(), receivedPacket.getPort());
+				if (!out.fits(receivedPacket.getLength()-4)) {
+					log.message(threadNumber, "Error Code 3 Occurred: The file is larger than its declared size.");
+					sendErrorPacket(3, "Allocation exceeded.", receivedPacket.getAddress(), receivedPacket.getPort());
 					out.close();
 					return;
-
 				}
 
+				/* The first new DATA packet answers our last ACK. */
+				timer.stop();
+				markFirstData();
 
-				packetNumber = ((receivedPacket.getData()[2] & 0xFF) << 8) + receivedPacket.getData()[3];
+				try {
+					/* Waits while the staging buffer is full, which holds our ACK back until the disk catches up. */
+					out.write(receivedPacket.getData(), 4, receivedPacket.getLength()-4);
+					if (receivedPacket.getLength() < packetSize) {
+						/* The upload is committed, as durably as the server is set to, before the last block is acknowledged. */
+						TFTPCommitter.commitAndWait(out);
+					}
+				} catch (FileAlreadyExistsException faee) {
 
-				/* Our response. */
-				byte dataACKPacket[] = {0, 4, receivedPacket.getData()[2], receivedPacket.getData()[3]};
+					log.message(threadNumber, "ClientConnection: Error Code 6 - File already exists.");
+					sendErrorPacket(6, "File already exists", receivedPacket.getAddress(), receivedPacket.getPort());
+					out.close();
+					return;
 
-				sendPacket = new DatagramPacket(dataACKPacket, dataACKPacket.length, clientAddress, sendPort);
+				} catch (IOException ioe) {
 
-				if(blockNumber == 65535){
-					blockNumber = 0;
-				} else{
-					blockNumber++;
+					log.message(threadNumber, "Error Code 3 Occurred: There is not enough space on the disk.");
+					sendErrorPacket(3, "Disk full.", receivedPacket.getAddress(), receivedPacket.getPort());
+					out.close();
+					return;
 
 				}
 
 
-				if (isVerbose()) {
-					TFTPServer.printPacketData(true, sendPacket, false);
-				}
-
-				socket.sendPacket(sendPacket);
+				packetNumber = view.wrap(receivedPacket).getBlock();
+				reaper.arm(IDLE_LIMIT);
 
+				/* Our response, once per window and for the last packet. */
+				if (window.accept(receivedPacket.getLength())) {
+					sendPacket = createAckPacket(packetNumber, sendPort);
 
+					if (isVerbose()) {
+						log.packet(threadNumber, true, sendPacket);
+					}
 
+					socket.sendPacket(sendPacket);
+					timer.start();
 
-				if (isVerbose()) { System.out.println("Server: Packet sent.\n"); }
+					if (isVerbose()) { log.message(threadNumber, "Server: Packet sent.\n"); }
+				}
+				metrics.addBlockService(System.nanoTime() - arrived);
 
 				/* This means it's the last packet. */
-				if(receivedPacket.getLength() < TFTP_DATA_PACKET_SIZE) { break; }
+				if(window.isComplete()) { break; }
 
 			}
 
 			out.close();
 		} catch (SecurityException ace) {
-			System.out.println("Error Code 2 - Access Violation.");
+			log.message(threadNumber, "Error Code 2 - Access Violation.");
 			sendErrorPacket(2, "Access Violation.", receivedPacket.getAddress(), receivedPacket.getPort());
 			return;
 		} catch (FileNotFoundException ioe) {
-			System.out.println("Error Code 2 - Access Violation");
+			log.message(threadNumber, "Error Code 2 - Access Violation");
 			sendErrorPacket(2, "Access Violation", receivedPacket.getAddress(), receivedPacket.getPort());
 			return;
 		} catch(IOException ioe) {
-			System.out.println("ClientConnection: Issue with transfer. File transfer could not be completed.");
+			if (reaped) {
+				metrics.addTimedOut();
+				log.message(threadNumber, "Error with transfer: No progress in " + (IDLE_LIMIT / 1000) + " seconds.");
+			} else {
+				log.message(threadNumber, "ClientConnection: Issue with transfer. File transfer could not be completed.");
+			}
 			// ioe.printStackTrace();
-			file.delete();
 			return;
+		} finally {
+			/* Deletes an upload that wasn't committed. */
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException ioe) {
+					ioe.printStackTrace();
+				}
+			}
 		}
-		System.out.println("File transfer completed successfully");
+		completed = true;
+		log.message(threadNumber, "File transfer completed successfully");
+		printStats();
 	}
 
 	private void sendFile(InetAddress address, File file, int sendPort) {
-		TFTPSocket socket = new TFTPSocket();
-		if (isVerbose()) { System.out.println("\nCommencing file transfer...\n" ); }
-		byte[] fileData = new byte[512];
-		boolean empty = true;
-		int blockNumber;
+		TFTPSocket socket = openSocket(sendPort);
+		startTimers(socket);
+		if (isVerbose()) { log.message(threadNumber, "\nCommencing file transfer...\n" ); }
 		try {
-			BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
-			int n;
-			packetNumber = 1;
-			blockNumber = 0;
-
-
-			while ((n = in.read(fileData,0,512)) != -1) {
-
-
-				empty = false;
-				/* Build a byte array to properly format packets. */
-				ByteArrayOutputStream stream = new ByteArrayOutputStream();
-				stream.reset();
-
-				/* Packet number is an int, need to turn into 2 bytes. Shift first one 8 bits right. */
-				byte byteA = (byte) (packetNumber >>> 8);
-				byte byteB = (byte) (packetNumber);
-				try {
-					stream.write(0);
-					stream.write(3);
-					stream.write(byteA);
-					stream.write(byteB);
-					stream.write(fileData);
-				} catch (IOException e) {
-					System.out.println("Problem with output stream");
-					e.printStackTrace();
-				}
+			/* Blocks are read by offset, from the shared image, cache or mapping when the file has one. */
+			TFTPFileReader reader = new TFTPFileReader(file, TFTPFileCache.getShared(), TFTPPacketImages.getShared(), options.getBlockSize());
+			if (isVerbose()) {
+				log.message(threadNumber, "ClientConnection: Reading " + file.getName() + " " + reader.describeSource() + ".");
+			}
+			stats = new TFTPTransferStats("RRQ " + file.getName());
+			stats.setMetrics(metrics, true);
+			timer = new TFTPRetransmitTimer(stats, minTimeout, maxTimeout, initialTimeout);
+			if (options.getTimeout() > 0) {
+				timer.fix(options.getTimeout() * 1000);
+			}
 
-				/* Create byte array to send in packet from stream. */
-				byte packetData[] = stream.toByteArray();
-				stream.close();
+			/* The client asks for the file's size with tsize 0. */
+			if (options.getTransferSize() >= 0) {
+				options.setTransferSize(reader.size());
+			}
 
-				if(n < 512) { /* Last block of data. */
-					sendPacket = new DatagramPacket(packetData, n+4, clientAddress, sendPort);
-				} else {
-					sendPacket = new DatagramPacket(packetData, TFTP_DATA_PACKET_SIZE, clientAddress, sendPort);
-				}
-				if(isVerbose()) {
-					TFTPServer.printPacketData(true, sendPacket, false);
-				}
+			/* Options are acknowledged with an OACK, which the client answers with ACK 0. */
+			if (options.hasOptions() && !sendOACK(socket, sendPort)) {
+				reader.close();
+				return;
+			}
 
-				/* Send the datagram packet to the client via the send/receive socket. */
-				socket.sendPacket(sendPacket);
-				if(blockNumber == 65535){
-					blockNumber = 0;
-				} else{
-					blockNumber++;
-				}
+			/* Blocks stay in the window until the client acknowledges them. */
+			TFTPSendWindow window = new TFTPSendWindow(reader, options.getBlockSize(), options.getWindowSize(), stats);
+			dataDestination = new InetSocketAddress(clientAddress, sendPort);
+			window.fill();
+			sendWindow(socket, window);
+			timer.start();
 
-				if (isVerbose()) { System.out.println("Server: Packet sent.\n"); }
+			/*
+                Construct a DatagramPacket for receiving packets up
+                to 4 bytes long (the length of the byte array). Both are
+                reused for every ACK, so the steady state allocates nothing.
+			 */
 
-				/*
-                    Construct a DatagramPacket for receiving packets up
-                    to 4 bytes long (the length of the byte array).
-				 */
+			byte[] data = new byte[TFTP_ACK_PACKET_SIZE];
+			receivedPacket = new DatagramPacket(data, data.length);
 
-				byte[] data = new byte[TFTP_ACK_PACKET_SIZE];
-				receivedPacket = new DatagramPacket(data, data.length);
+			while (!window.isComplete()) {
 
 				int attempts = 0;
 				while(true){
-					if (isVerbose()) { System.out.println("Server: Waiting for packet."); }
-					socket.getDatagramSocket().setSoTimeout(1500);
+					if (isVerbose()) { log.message(threadNumber, "Server: Waiting for packet."); }
+					retransmission.arm(timer.getTimeout());
+					receivedPacket.setLength(data.length);
 					try{
-						socket.getDatagramSocket().receive(receivedPacket);
+						socket.receivePacket(receivedPacket, retransmission);
 						// Ignore duplicate ACKs
-						if((getRequest(receivedPacket.getData()) == Request.ACK) && (getPacketNum(receivedPacket) < blockNumber)){
+						if((getRequest(receivedPacket.getData()) == Request.ACK) && window.isStale(view.wrap(receivedPacket).getBlock())){
 							if(isVerbose()){
-								System.out.println("\n Duplicate ACK Packet Received.");
+								log.message(threadNumber, "\n Duplicate ACK Packet Received.");
 							}
 							continue;
 						}
 					} catch(SocketTimeoutException e){
-						// Send the Data packet via send/receive socket.
-						socket.sendPacket(sendPacket);
+						// Send the window of Data packets via send/receive socket.
 						if(isVerbose()){
-							System.out.println("Server: Timeout. Attempting packet Retransmission.\n");
-							TFTPServer.printPacketData(true, sendPacket, false);
+							log.message(threadNumber, "Server: Timeout. Attempting packet Retransmission.\n");
 						}
+						timer.retransmit();
+						sendWindow(socket, window);
 						attempts++;
 						if(attempts == 20){
-							System.out.println("Error with transfer: Time out" );
-							System.exit(0);
+							/* Only this transfer ends. */
+							metrics.addTimedOut();
+							log.message(threadNumber, "Error with transfer: Time out" );
+							printStats();
+							reader.close();
+							return;
 						}
 						continue;
 					}
 					break;
 				}
+				long arrived = System.nanoTime();
 
 
 				int error_code = -1;
@@ -594,12 +762,12 @@ public class TFTPClientConnection extends Thread {
 					error_code  = 5;	      	
 				}
 				else{  
-					requests.add(receivedPacket); 
+					remember(receivedPacket); 
 
 				}
 
 				if (isVerbose()) {
-					TFTPServer.printPacketData(false, receivedPacket, false);
+					log.packet(threadNumber, false, receivedPacket);
 				}
 
 
@@ -640,6 +808,7 @@ public class TFTPClientConnection extends Thread {
 
 				if (isErrorPacket(receivedPacket)) {
 					int code = parseErrorPacket(receivedPacket);
+					reader.close();
 					if (code == 4) { /* Signals that the the transfer should end. */
 						return;
 					} else if (code == 5) { /* Signals that we need to resend our last packet. (or something similar) */
@@ -661,19 +830,25 @@ public class TFTPClientConnection extends Thread {
 					errorMessage = "Invalid packet type.";
 				}
 
-				if (getPacketNum(receivedPacket) != blockNumber) {
-					error_code = 4;
-					errorMessage = "Invalid block number.";
-					System.out.println("wrong block number" + data[3] + ", right block number: " + blockNumber);
+				int acknowledged = -1;
+				if (error_code == -1) {
+					acknowledged = window.acknowledge(view.wrap(receivedPacket).getBlock());
+					if (acknowledged < 0) {
+						error_code = 4;
+						errorMessage = "Invalid block number.";
+						log.message(threadNumber, "wrong block number" + view.wrap(receivedPacket).getBlock() + ", last block sent: " + ((window.getLastAcknowledged() + window.size()) & 0xFFFF));
+					}
 				}
 
 				if (error_code != -1) {
 					if (error_code == 4) {
 						/* We need to send the error packet, and terminate communication in the case of Error Code 4. */
 						sendErrorPacket(error_code, errorMessage, receivedPacket.getAddress(), receivedPacket.getPort());
+						reader.close();
 						return;
 					} else {
-						sendErrorPacket(error_code, errorMessage, receivedPacket.getAddress(), receivedPacket.getPort());
+						/* Error Code 5 was already sent to the stranger; keep waiting for our client. */
+						continue;
 					}
 				}
 
@@ -684,16 +859,30 @@ public class TFTPClientConnection extends Thread {
 
 				 */
 
+				if (acknowledged == 0 && window.getWindowSize() == 1) {
+					/* A repeat of the previous ACK; the lock-step transfer ignores it. */
+					continue;
+				}
 
-				if(packetNumber == 65535){
-					packetNumber = 0;
-				} else{
-					packetNumber++;
+				/*
+                    Slide the window past the acknowledged blocks and send it. When the ACK
+                    was for a block in the middle of the window this resends the rest of it.
+				 */
+				boolean resend = window.size() > 0;
+				if (acknowledged > 0) {
+					timer.stop();
+					reaper.arm(IDLE_LIMIT);
 				}
-				/* Clear data from block. */
-				fileData = new byte[TFTP_DATA_PACKET_SIZE];
+				window.fill();
+				sendWindow(socket, window);
+				if (resend) {
+					timer.resend();
+				} else {
+					timer.start();
+				}
+				metrics.addBlockService(System.nanoTime() - arrived);
 			}
-			in.close();
+			reader.close();
 		} catch (FileNotFoundException ace) {
 			/*
             java.io.FileNotFoundException: ServerOutput\tux.png (Access is denied)
@@ -703,100 +892,189 @@ public class TFTPClientConnection extends Thread {
                 at TFTPClientConnection.sendFile(TFTPClientConnection.java:477)
                 at TFTPClientConnection.run(TFTPClientConnection.java:236)
 			 */
-			System.out.println("Error Code 2 - Access Violation.");
+			log.message(threadNumber, "Error Code 2 - Access Violation.");
 			sendErrorPacket(2, "Access Violation.", receivedPacket.getAddress(), receivedPacket.getPort());
 			return;
 		}catch(IOException ioe) {
+			if (reaped) {
+				metrics.addTimedOut();
+				log.message(threadNumber, "Error with transfer: No progress in " + (IDLE_LIMIT / 1000) + " seconds.");
+				return;
+			}
 			ioe.printStackTrace();
-			System.out.println("Issue with transfer" + "File transfer could not be completed.");
+			log.message(threadNumber, "Issue with transfer" + "File transfer could not be completed.");
 			return;
 		}
 
-		/* If last packet was 516 bytes, send one more. */
-		if((sendPacket.getLength() == 516) || empty) {
+		completed = true;
+		log.message(threadNumber, "File transfer completed successfully");
+		printStats();
 
-			/* Build a byte array to properly format packets. */
-			ByteArrayOutputStream stream = new ByteArrayOutputStream();
-			stream.reset();
+	}
 
-			/* Packet number is an int, need to turn into 2 bytes. Shift first one 8 bits right. */
-			byte byteA = (byte) (packetNumber >>> 8);
-			byte byteB = (byte) (packetNumber);
-			stream.write(0);
-			stream.write(3);
-			stream.write(byteA);
-			stream.write(byteB);
+	/**
+	 * Opens the socket the transfer runs on: an endpoint on the shared socket
+	 * if there is one, or else a new socket on a port of its own. Errors are
+	 * sent from it from then on.
+	 *
+	 * @param sendPort the client's port.
+	 * @return the socket.
+	 */
+	private TFTPSocket openSocket(int sendPort) {
+		if (sharedSocket != null) {
+			transferSocket = sharedSocket.open(new InetSocketAddress(clientAddress, sendPort), options.getWindowSize(), options.getPacketSize());
+		}
+		if (transferSocket == null) {
+			/* Also for a client that already has a transfer on the shared socket from the same port. */
+			transferSocket = new TFTPSocket();
+		}
+		return transferSocket;
+	}
 
-			/* Create byte array to send in packet from stream. */
-			byte packet[] = stream.toByteArray();
-			try {
-				stream.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+	/**
+	 * Sets up the transfer's deadlines on the shared timer wheel, in place of
+	 * a timeout on the socket. The retransmission deadline wakes the socket
+	 * when it expires. The idle deadline is pushed back whenever the transfer
+	 * makes progress; if it expires the socket is closed, which ends the
+	 * transfer wherever it is waiting.
+	 *
+	 * @param socket the transfer's socket.
+	 */
+	private void startTimers(final TFTPSocket socket) {
+		TFTPTimerWheel wheel = TFTPTimerWheel.getShared();
+		retransmission = wheel.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				socket.wakeUp();
 			}
+		});
+		reaper = wheel.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				reaped = true;
+				socket.close();
+			}
+		});
+		reaper.arm(IDLE_LIMIT);
+	}
 
-			sendPacket = new DatagramPacket(packet, 4, clientAddress, sendPort);
-
-			if(isVerbose()){
-				TFTPServer.printPacketData(true, sendPacket, false);
+	/**
+	 * Sends every DATA packet currently in the window, straight from the
+	 * window's buffers.
+	 *
+	 * @param socket the transfer's socket.
+	 * @param window of DATA packets.
+	 */
+	private void sendWindow(TFTPSocket socket, TFTPSendWindow window) {
+		for (int i = 0; i < window.size(); i++) {
+			ByteBuffer packet = window.getBuffer(i);
+			if(isVerbose()) {
+				log.packet(threadNumber, true, packet, dataDestination.getPort());
 			}
+			socket.sendPacket(packet, dataDestination);
+			if (isVerbose()) { log.message(threadNumber, "Server: Packet sent.\n"); }
+		}
+		markFirstData();
+	}
 
-			/* Send the datagram packet to the server via the send/receive socket. */
-			socket.sendPacket(sendPacket);
+	/**
+	 * Records the time from the request to the first DATA packet, sent or
+	 * received, the first time it is called.
+	 */
+	private void markFirstData() {
+		if (!firstData) {
+			firstData = true;
+			metrics.addFirstData(System.nanoTime() - requestTime);
+		}
+	}
 
+	/**
+	 * Builds an ACK packet for the given block.
+	 *
+	 * @param blockNumber to acknowledge.
+	 * @param sendPort the client's port.
+	 */
+	private DatagramPacket createAckPacket(int blockNumber, int sendPort) {
+		byte ack[] = new byte[TFTPPacket.HEADER_SIZE];
+		TFTPPacket.putAck(ack, 0, blockNumber);
+		return new DatagramPacket(ack, ack.length, clientAddress, sendPort);
+	}
 
-			if (isVerbose()) { System.out.println("Server: Packet sent.\n"); }
 
-			/*
-                Construct a DatagramPacket for receiving packets up
-                to 4 bytes long (the length of the byte array).
-			 */
 
-			byte[] data = new byte[TFTP_ACK_PACKET_SIZE];
-			receivedPacket = new DatagramPacket(data, data.length);
-			int attempts = 0;
-			try{ 
-				while(true){
-					if (isVerbose()) { System.out.println("Server: Waiting for packet."); }
-					socket.getDatagramSocket().setSoTimeout(3000);
-					try{
-						socket.getDatagramSocket().receive(receivedPacket);
-						// Ignore duplicate ACKs
-						if((getRequest(receivedPacket.getData()) == Request.ACK) && (getPacketNum(receivedPacket) < blockNumber)){
-							if(isVerbose()){
-								System.out.println("\n Duplicate ACK Packet Received.\n");
-							}
-							continue;
-						}
-					} catch(SocketTimeoutException e){
-						// Send the Data packet via send/receive socket.
-						socket.sendPacket(sendPacket);
-						if(isVerbose()){
-							System.out.println("Server: Timeout. Attempting packet Retransmission.\n");
-							TFTPServer.printPacketData(true, sendPacket, false);
-						}
-						attempts++;
-						if(attempts == 20){
-							System.out.println("Error with transfer: Time out" );
-							System.exit(0);
-						}
-						continue;
-					}
-					break;
+	/**
+	 * Sends an OACK for the negotiated options and waits for the client to
+	 * answer it with ACK 0, retransmitting the OACK if it doesn't.
+	 *
+	 * @param socket the transfer's socket.
+	 * @param sendPort the client's port.
+	 * @return true if the OACK was acknowledged and the transfer may start.
+	 */
+	private boolean sendOACK(TFTPSocket socket, int sendPort) throws IOException {
+		byte[] oack = options.toOACK();
+		sendPacket = new DatagramPacket(oack, oack.length, clientAddress, sendPort);
+		if (isVerbose()) {
+			log.packet(threadNumber, true, sendPacket);
+		}
+		socket.sendPacket(sendPacket);
+		timer.start();
+
+		byte[] data = new byte[TFTP_ACK_PACKET_SIZE];
+		receivedPacket = new DatagramPacket(data, data.length);
+		int attempts = 0;
+		while (true) {
+			if (isVerbose()) { log.message(threadNumber, "Server: Waiting for packet."); }
+			retransmission.arm(timer.getTimeout());
+			try {
+				socket.receivePacket(receivedPacket, retransmission);
+			} catch (SocketTimeoutException e) {
+				timer.retransmit();
+				socket.sendPacket(sendPacket);
+				if (isVerbose()) {
+					log.message(threadNumber, "Server: Timeout. Attempting packet Retransmission.\n");
+					log.packet(threadNumber, true, sendPacket);
+				}
+				attempts++;
+				if (attempts == 20) {
+					metrics.addTimedOut();
+					log.message(threadNumber, "Error with transfer: Time out");
+					printStats();
+					return false;
 				}
-			} catch(IOException e){
-				e.printStackTrace();
+				continue;
 			}
-			if(isVerbose()){
-				TFTPServer.printPacketData(false, receivedPacket, false);
+			if (code5(receivedPacket)) {
+				continue;
 			}
+			break;
 		}
+		remember(receivedPacket);
 
-		System.out.println("File transfer completed successfully");
-
+		if (isVerbose()) {
+			log.packet(threadNumber, false, receivedPacket);
+		}
+		if (isErrorPacket(receivedPacket)) {
+			/* Error Code 8 means the client refused our options. */
+			parseErrorPacket(receivedPacket);
+			return false;
+		}
+		if (getRequest(data) != Request.ACK || view.wrap(receivedPacket).getBlock() != 0) {
+			sendErrorPacket(4, "Expected ACK 0 for OACK.", receivedPacket.getAddress(), receivedPacket.getPort());
+			return false;
+		}
+		timer.stop();
+		return true;
 	}
 
-
+	/**
+	 * Ends the transfer's statistics and prints them, in verbose mode.
+	 */
+	private void printStats() {
+		stats.finish();
+		if (isVerbose()) {
+			log.message(threadNumber, "Server: " + stats);
+		}
+	}
 
 	/*
 	 *
@@ -807,79 +1085,6 @@ public class TFTPClientConnection extends Thread {
 	 *
 	 */
 
-	private boolean isOpcodeValid(byte[] data, int validOpCode) {
-		boolean valid = false;
-
-		if (data[1] == validOpCode) {
-			valid = true;
-		}
-
-		return valid;
-	}
-
-
-
-	private boolean isFilenameValid(byte[] data, int length) {
-		boolean valid = true;
-
-		String filename = "";
-		int j = 0;
-		for(j = 2; j < length; j++) {
-			if (data[j] == 0) break;
-		}
-
-		filename = new String(data, 2, j - 2);
-
-		/* Check to see if the string is empty. */
-		if (!(filename.trim().length() > 0)) {
-			valid = false;
-		}
-
-		/* Check to see if the string contains Windows' invalid characters for filenames. */
-		for (int i = 0; i < filename.length(); i++) {
-			if (filename.charAt(i) == '/' ||
-					filename.charAt(i) == '/' ||
-					filename.charAt(i) == '\\' ||
-					filename.charAt(i) == ':' ||
-					filename.charAt(i) == '*' ||
-					filename.charAt(i) == '?' ||
-					filename.charAt(i) == '\"' ||
-					filename.charAt(i) == '<' ||
-					filename.charAt(i) == '>' ||
-					filename.charAt(i) == '|') {
-				valid = false;
-			}
-
-		}
-
-		return valid;
-
-	}
-
-	private boolean isModeValid(byte[] data, int length) {
-		boolean valid = true;
-
-		String mode = "";
-		int j = 0, k = 0;
-		for (j = 2; j < length; j++) {
-			if (data[j] == 0) { break; }
-		}
-
-		for(k = j+1; k < length; k++) {
-			if (data[k] == 0) { break; }
-		}
-
-		mode = new String(data, j + 1, k - j - 1);
-
-		if ((mode.equals("netascii")) || (mode.equals("octet"))) {
-			valid = true;
-		} else {
-			valid = false;
-		}
-
-		return valid;
-	}
-
 	private void sendErrorPacket(int errorCode, String errorMessage, InetAddress address, int port) {
 
 		/*
@@ -894,27 +1099,26 @@ public class TFTPClientConnection extends Thread {
 		 */
 
 		/* Build byte array for packet. */
-		byte[] errmsg = errorMessage.getBytes();
-		byte[] errorData = new byte[errmsg.length + 5];
+		byte[] errorData = new byte[TFTPPacket.errorLength(errorMessage)];
+		TFTPPacket.putError(errorData, 0, errorCode, errorMessage);
 
-		errorData[0] = 0;
-		errorData[1] = 5;
-		errorData[2] = 0;
-		errorData[3] = (byte) errorCode;
-		System.arraycopy(errmsg, 0, errorData, 4, errmsg.length);
-		errorData[errorData.length - 1] = 0;
-
-		if (isVerbose()) { System.out.println("Formulating error packet: " + errorMessage + ", with error code: " + errorCode); }
+		if (isVerbose()) { log.message(threadNumber, "Formulating error packet: " + errorMessage + ", with error code: " + errorCode); }
+		metrics.addErrorSent(errorCode);
 		errorPacket = new DatagramPacket(errorData, errorData.length,
 				address, port);
 
-		if (isVerbose()) { System.out.println("Sending error packet."); }
+		if (isVerbose()) { log.message(threadNumber, "Sending error packet."); }
 		if(isVerbose()){
-			TFTPServer.printPacketData(true, errorPacket, false);
+			log.packet(threadNumber, true, errorPacket);
+		}
+		/* Sent from the transfer's own port once it has one; the client expects nothing from any other. */
+		if (transferSocket != null) {
+			transferSocket.sendPacket(errorPacket);
+		} else {
+			TFTPSocket sendSocket = new TFTPSocket();
+			sendSocket.sendPacket(errorPacket);
+			sendSocket.close();
 		}
-		sendSocket = new TFTPSocket();
-		sendSocket.sendPacket(errorPacket);
-		//sendSocket.close();
 
 	}
 
@@ -924,7 +1128,7 @@ public class TFTPClientConnection extends Thread {
 
 		if (req == Request.ERROR) {
 			isErrorPacket = true;
-			if (isVerbose()) { System.out.println("Error packet received." ); }
+			if (isVerbose()) { log.message(threadNumber, "Error packet received." ); }
 		}
 
 		return isErrorPacket;
@@ -933,23 +1137,26 @@ public class TFTPClientConnection extends Thread {
 	private int parseErrorPacket(DatagramPacket packet) {
 		byte[] data = packet.getData();
 		int errorCode = data[3];
+		metrics.addErrorReceived(errorCode);
 
 		if (errorCode == 0) {
 			/* not required for this iteration. */
 		} else if (errorCode == 1) {
-			if (isVerbose()) { System.out.println("Error code " + errorCode + " received." ); }
+			if (isVerbose()) { log.message(threadNumber, "Error code " + errorCode + " received." ); }
 		} else if (errorCode == 2) {
-			if (isVerbose()) { System.out.println("Error code " + errorCode + " received." ); }
+			if (isVerbose()) { log.message(threadNumber, "Error code " + errorCode + " received." ); }
 		} else if (errorCode == 3) {
-			if (isVerbose()) { System.out.println("Error code " + errorCode + " received." ); }
+			if (isVerbose()) { log.message(threadNumber, "Error code " + errorCode + " received." ); }
 		} else if (errorCode == 4) {
-			if (isVerbose()) { System.out.println("Error code " + errorCode + " received." ); }
+			if (isVerbose()) { log.message(threadNumber, "Error code " + errorCode + " received." ); }
 		} else if (errorCode == 5) {
-			if (isVerbose()) { System.out.println("Error code " + errorCode + " received." ); }
+			if (isVerbose()) { log.message(threadNumber, "Error code " + errorCode + " received." ); }
 		} else if (errorCode == 6) {
-			if (isVerbose()) { System.out.println("Error code " + errorCode + " received." ); }
+			if (isVerbose()) { log.message(threadNumber, "Error code " + errorCode + " received." ); }
 		} else if (errorCode == 7) {
 			/* not required for this iteration. */
+		} else if (errorCode == TFTPOptions.ERROR_CODE) {
+			if (isVerbose()) { log.message(threadNumber, "Error code " + errorCode + " received. Option negotiation refused." ); }
 		}
 
 		return errorCode;
@@ -961,16 +1168,25 @@ public class TFTPClientConnection extends Thread {
 
 
 
+	/**
+	 * Records where a packet accepted from the client came from, without
+	 * holding on to the packet itself (its buffer is reused).
+	 */
+	private void remember(DatagramPacket packet) {
+		lastAddress = packet.getAddress();
+		lastPort = packet.getPort();
+	}
+
 	public boolean code5(DatagramPacket packet) {
 
 
-		if (packet.getPort() != requests.get(requests.size()-1).getPort()){  
+		if (packet.getPort() != lastPort){  
 			String errorMessage =  "The TransferID is different";
 			sendErrorPacket(5, errorMessage, packet.getAddress(), packet.getPort());
 			return true;
 		}
 
-		if(!(packet.getAddress().equals(requests.get(requests.size()-1).getAddress()))){      
+		if(!(packet.getAddress().equals(lastAddress))){      
 			String errorMessage =  "IP address is different";    	
 			sendErrorPacket(5, errorMessage, packet.getAddress(), packet.getPort()); 
 			return true;
@@ -982,16 +1198,6 @@ public class TFTPClientConnection extends Thread {
 		return (req == Request.ERROR);
 	}
 
-	/**
-	 * Method to get packet number of a packet
-	 * 
-	 * @param packet is the packet we need packet number from
-	 * @return is the integer packet number extracted from the packet
-	 */
-	private int getPacketNum(DatagramPacket packet) {
-		return (((int) (packet.getData()[2] & 0xFF)) << 8) + (((int) packet.getData()[3]) & 0xFF);
-	}
-
 	public static void toggleVerbosity() {
 		if (verbose == Verbose.ON) {
 			verbose = Verbose.OFF;
@@ -1005,24 +1211,24 @@ public class TFTPClientConnection extends Thread {
 	}
 
 	private Request getRequest(byte[] data) {
-
-		Request req = null;
-
-
-		if (data[0] != 0)
-			req = Request.ERROR; // bad
-		else if (data[1] == TFTPServerDispatcher.OPCODE.RRQ.value())
-			req = Request.READ; // could be read
-		else if (data[1] == TFTPServerDispatcher.OPCODE.WRQ.value())
-			req = Request.WRITE; // could be write
-		else if (data[1] == TFTPServerDispatcher.OPCODE.DATA.value())
-			req = Request.DATA;  // could be data
-		else if (data[1] == TFTPServerDispatcher.OPCODE.ACK.value())
-			req = Request.ACK; // could be ack
-		else if (data[1] == TFTPServerDispatcher.OPCODE.ERROR.value())
-			req = Request.ERROR;
-
-		return req;
-
+		TFTPPacket.OPCODE type = view.wrap(data, 0, data.length).getType();
+		if (type == null) {
+			/* A packet whose first byte isn't zero is taken for an error. */
+			return (view.getOpcode() > 0xFF) ? Request.ERROR : null;
+		}
+		switch (type) {
+		case RRQ:
+			return Request.READ;
+		case WRQ:
+			return Request.WRITE;
+		case DATA:
+			return Request.DATA;
+		case ACK:
+			return Request.ACK;
+		case ERROR:
+			return Request.ERROR;
+		default:
+			return null;
+		}
 	}
 }
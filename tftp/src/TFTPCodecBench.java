@@ -0,0 +1,239 @@
+/*  TFTPCodecBench.java
+ *
+ *  This class is a microbenchmark of the packet codec
+ *  (TFTPPacket). It decodes and encodes the packets a
+ *  transfer handles in a tight loop on one thread, and
+ *  reports the time and the bytes allocated for each
+ *  operation after a warm-up period:
+ *
+ *  decode ACK / DATA: wrap a packet, read its opcode
+ *  and block number.
+ *  decode RRQ: wrap a request with options, check its
+ *  opcode, mode, filename and options, and walk the
+ *  options for blksize.
+ *  decode RRQ (Strings): the same checks done the way
+ *  the connections did them before the codec, building
+ *  a String for the filename and mode, for comparison.
+ *  encode ACK / DATA header / ERROR / OACK: write the
+ *  packet into a buffer kept for the whole run.
+ *
+ *  Every result is folded into a checksum that is
+ *  printed at the end, so the JIT can't drop the work.
+ *
+ *  Usage: TFTPCodecBench [seconds per operation] [warm-up seconds]
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TFTPCodecBench {
+	/* Operations run between clock checks. */
+	private static final int BATCH = 10000;
+
+	private static long checksum;
+
+	/**
+	 * One operation of the benchmark.
+	 */
+	private static abstract class Operation {
+		private final String name;
+
+		private Operation(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Runs the operation once and returns something that depends on its result.
+		 *
+		 * @param i number of the run, to vary the block numbers so the JIT can't
+		 *        hoist the work out of the loop.
+		 */
+		abstract long run(int i);
+	}
+
+	private static byte[] buildRequest(String filename, String mode, String... options) {
+		int length = 2 + filename.length() + 1 + mode.length() + 1;
+		for (String option : options) {
+			length += option.length() + 1;
+		}
+		byte[] msg = new byte[length];
+		msg[1] = (byte) TFTPPacket.OPCODE.RRQ.value();
+		int offset = TFTPPacket.putString(msg, 2, filename);
+		offset = TFTPPacket.putString(msg, offset, mode);
+		for (String option : options) {
+			offset = TFTPPacket.putString(msg, offset, option);
+		}
+		return msg;
+	}
+
+	/**
+	 * Checks a request the way the connections did before the codec.
+	 */
+	private static long decodeWithStrings(byte[] data, int length) {
+		if (data[0] != 0 || (data[1] != 1 && data[1] != 2)) {
+			return -1;
+		}
+		int j, k;
+		for (j = 2; j < length; j++) {
+			if (data[j] == 0) { break; }
+		}
+		for (k = j + 1; k < length; k++) {
+			if (data[k] == 0) { break; }
+		}
+		String mode = new String(data, j + 1, k - j - 1);
+		if (!mode.equals("netascii") && !mode.equals("octet")) {
+			return -1;
+		}
+		String filename = new String(data, 2, j - 2);
+		if (filename.trim().length() == 0) {
+			return -1;
+		}
+		for (int i = 0; i < filename.length(); i++) {
+			if ("/\\:*?\"<>|".indexOf(filename.charAt(i)) != -1) {
+				return -1;
+			}
+		}
+		Map<String, String> options = TFTPOptions.parse(data, k + 1, length);
+		if (options == null) {
+			return -1;
+		}
+		String blksize = options.get(TFTPOptions.BLKSIZE);
+		return (blksize == null) ? 0 : Long.parseLong(blksize);
+	}
+
+	/**
+	 * Returns the bytes allocated so far by this thread, or -1 if the JVM can't tell.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Runs an operation for a time and returns the number of times it ran.
+	 */
+	private static long loop(Operation operation, long nanos) {
+		long count = 0;
+		long sum = 0;
+		long end = System.nanoTime() + nanos;
+		while (System.nanoTime() < end) {
+			for (int i = 0; i < BATCH; i++) {
+				sum += operation.run(i);
+			}
+			count += BATCH;
+		}
+		checksum += sum;
+		return count;
+	}
+
+	private static void measure(Operation operation, int seconds, int warmUp) {
+		loop(operation, warmUp * 1000000000L);
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		long count = loop(operation, seconds * 1000000000L);
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBytes() - allocatedBefore;
+		if (allocatedBefore >= 0) {
+			System.out.println(String.format("  %-24s %8.1f ns/op %10.1f bytes/op", operation.name, (double) elapsed / count, (double) allocated / count));
+		} else {
+			System.out.println(String.format("  %-24s %8.1f ns/op", operation.name, (double) elapsed / count));
+		}
+	}
+
+	public static void main(String args[]) {
+		int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+		int warmUp = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+
+		final TFTPPacket view = new TFTPPacket();
+		final byte[] request = buildRequest("benchmark-file.bin", "octet", TFTPOptions.BLKSIZE, "1428", TFTPOptions.WINDOWSIZE, "8");
+		final byte[] ack = new byte[TFTPPacket.HEADER_SIZE];
+		TFTPPacket.putAck(ack, 0, 4242);
+		final byte[] data = new byte[TFTPPacket.MAX_PACKET_SIZE];
+		TFTPPacket.putDataHeader(data, 0, 4242);
+		final byte[] out = new byte[TFTPPacket.MAX_PACKET_SIZE];
+		Map<String, String> requested = new HashMap<String, String>();
+		requested.put(TFTPOptions.BLKSIZE, "1428");
+		requested.put(TFTPOptions.WINDOWSIZE, "8");
+		requested.put(TFTPOptions.TSIZE, "1048576");
+		final TFTPOptions options = TFTPOptions.negotiate(requested);
+
+		Operation[] operations = {
+			new Operation("decode ACK") {
+				@Override
+				long run(int i) {
+					ack[3] = (byte) i;
+					view.wrap(ack, 0, ack.length);
+					return view.is(TFTPPacket.OPCODE.ACK) ? view.getBlock() : -1;
+				}
+			},
+			new Operation("decode DATA") {
+				@Override
+				long run(int i) {
+					data[3] = (byte) i;
+					view.wrap(data, 0, data.length);
+					return view.is(TFTPPacket.OPCODE.DATA) ? view.getBlock() + view.length() : -1;
+				}
+			},
+			new Operation("decode RRQ") {
+				@Override
+				long run(int i) {
+					view.wrap(request, 0, request.length);
+					int at = view.getOptionsOffset();
+					if (!view.isRequest() || !view.isModeValid() || !view.isFilenameValid() || !view.hasValidOptions(at)) {
+						return -1;
+					}
+					for (; at < view.length(); at = view.nextOption(at)) {
+						if (view.isOption(at, TFTPOptions.BLKSIZE)) {
+							return view.getOptionValue(at);
+						}
+					}
+					return 0;
+				}
+			},
+			new Operation("decode RRQ (Strings)") {
+				@Override
+				long run(int i) {
+					return decodeWithStrings(request, request.length);
+				}
+			},
+			new Operation("encode ACK") {
+				@Override
+				long run(int i) {
+					return TFTPPacket.putAck(out, 0, i) + out[3];
+				}
+			},
+			new Operation("encode DATA header") {
+				@Override
+				long run(int i) {
+					return TFTPPacket.putDataHeader(out, 0, i) + out[3];
+				}
+			},
+			new Operation("encode ERROR") {
+				@Override
+				long run(int i) {
+					return TFTPPacket.putError(out, 0, i & 7, "Unknown transfer ID.") + out[3];
+				}
+			},
+			new Operation("encode OACK") {
+				@Override
+				long run(int i) {
+					options.setTransferSize(i);
+					return TFTPPacket.putOack(out, 0, options) + out[8];
+				}
+			},
+		};
+
+		System.out.println("Measured for " + seconds + " s per operation after " + warmUp + " s of warm-up");
+		for (Operation operation : operations) {
+			measure(operation, seconds, warmUp);
+		}
+		System.out.println("Checksum: " + checksum);
+	}
+}
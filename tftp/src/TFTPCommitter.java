@@ -0,0 +1,218 @@
+/*  TFTPCommitter.java
+ *
+ *  This class commits finished uploads according to
+ *  the server's Durability mode, before their last
+ *  block is acknowledged (see TFTPWriteBehind).
+ *
+ *  In GROUP_COMMIT mode the uploads are handed to a
+ *  single committer thread shared by the whole server.
+ *  The committer takes the first upload waiting, waits
+ *  a few milliseconds (the group window) for others to
+ *  finish, and then commits the whole batch: each file
+ *  is fsynced and renamed into place, each directory
+ *  they were renamed in is fsynced once, and only then
+ *  are the final ACKs of every upload in the batch
+ *  released. Concurrent uploads so share the wait for
+ *  the disk instead of queueing behind each other's
+ *  fsyncs, and the directory is synced once per batch
+ *  rather than once per file.
+ *
+ *  In PER_FILE and NONE modes the upload is committed
+ *  straight away by the transfer itself. The mode and
+ *  the group window can be changed with the DURABILITY
+ *  console command of the server.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class TFTPCommitter extends Thread {
+	/* Default time the committer waits for more uploads to join a batch, in milliseconds. */
+	public static final int DEFAULT_GROUP_WINDOW = 5;
+
+	private static volatile Durability durability = Durability.GROUP_COMMIT;
+	private static volatile int groupWindow = DEFAULT_GROUP_WINDOW;
+
+	private static TFTPCommitter shared;
+
+	private LinkedBlockingQueue<Upload> queue = new LinkedBlockingQueue<Upload>();
+
+	/* Uploads committed and batches they were committed in. */
+	private volatile long uploads;
+	private volatile long batches;
+
+	private TFTPCommitter() {
+		super("TFTPCommitter");
+		setDaemon(true);
+	}
+
+	/**
+	 * Returns the committer thread shared by every transfer of the server,
+	 * starting it the first time it is needed.
+	 */
+	public static synchronized TFTPCommitter getShared() {
+		if (shared == null) {
+			shared = new TFTPCommitter();
+			shared.start();
+		}
+		return shared;
+	}
+
+	/**
+	 * Commits a finished upload as the durability mode asks. In GROUP_COMMIT
+	 * mode the upload is committed by the committer thread; otherwise it is
+	 * committed before this returns.
+	 *
+	 * @param out upload whose last block has been staged.
+	 * @return completed once the upload is committed and its last block can be acknowledged.
+	 */
+	public static CompletableFuture<Void> commit(TFTPWriteBehind out) {
+		Durability mode = durability;
+		if (mode == Durability.GROUP_COMMIT) {
+			return getShared().submit(out);
+		}
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		try {
+			out.commit(mode == Durability.PER_FILE);
+			if (mode == Durability.PER_FILE) {
+				syncDirectory(out.getTarget().getParentFile());
+			}
+			done.complete(null);
+		} catch (IOException e) {
+			done.completeExceptionally(e);
+		}
+		return done;
+	}
+
+	/**
+	 * Commits a finished upload and waits until it is committed.
+	 *
+	 * @param out upload whose last block has been staged.
+	 * @throws java.nio.file.FileAlreadyExistsException if a file of the same name turned up during the upload.
+	 * @throws IOException if the upload couldn't be committed.
+	 */
+	public static void commitAndWait(TFTPWriteBehind out) throws IOException {
+		try {
+			commit(out).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the upload to be committed.", e);
+		}
+	}
+
+	private CompletableFuture<Void> submit(TFTPWriteBehind out) {
+		Upload upload = new Upload(out);
+		queue.add(upload);
+		return upload.done;
+	}
+
+	@Override
+	public void run() {
+		List<Upload> batch = new ArrayList<Upload>();
+		Set<File> directories = new LinkedHashSet<File>();
+		while (true) {
+			try {
+				/* The first upload opens a batch, and the others that finish within the window join it. */
+				batch.add(queue.take());
+				long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupWindow);
+				long remaining;
+				while ((remaining = end - System.nanoTime()) > 0) {
+					Upload upload = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (upload == null) {
+						break;
+					}
+					batch.add(upload);
+				}
+			} catch (InterruptedException e) {
+				/* Only a daemon; carry on with what we have. */
+			}
+
+			for (Upload upload : batch) {
+				try {
+					upload.out.commit(true);
+					directories.add(upload.out.getTarget().getParentFile());
+				} catch (IOException e) {
+					upload.done.completeExceptionally(e);
+				}
+			}
+			for (File directory : directories) {
+				syncDirectory(directory);
+			}
+			for (Upload upload : batch) {
+				upload.done.complete(null);
+			}
+			uploads += batch.size();
+			batches++;
+			batch.clear();
+			directories.clear();
+		}
+	}
+
+	/**
+	 * Fsyncs a directory, so that files renamed into it stay renamed.
+	 *
+	 * @param directory to sync.
+	 */
+	private static void syncDirectory(File directory) {
+		try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			/* Not every platform can open a directory to sync it; the rename is still atomic. */
+		}
+	}
+
+	public static void setDurability(Durability mode) {
+		durability = mode;
+	}
+
+	public static Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Sets how long the committer waits for more uploads to join a batch.
+	 *
+	 * @param window in milliseconds.
+	 */
+	public static void setGroupWindow(int window) {
+		groupWindow = window;
+	}
+
+	public static int getGroupWindow() {
+		return groupWindow;
+	}
+
+	@Override
+	public String toString() {
+		long b = batches;
+		return uploads + " uploads in " + b + " batches" + ((b > 0) ? String.format(", %.1f per batch", (double) uploads / b) : "");
+	}
+
+	/* An upload waiting to be committed. */
+	private static class Upload {
+		private final TFTPWriteBehind out;
+		private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		private Upload(TFTPWriteBehind out) {
+			this.out = out;
+		}
+	}
+}
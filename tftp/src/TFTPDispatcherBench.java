@@ -0,0 +1,199 @@
+/*  TFTPDispatcherBench.java
+ *
+ *  This class is a microbenchmark of the server's
+ *  request port. It starts a server dispatcher in the
+ *  same JVM, opens one held RRQ session per sender
+ *  (the first DATA packet is never acknowledged) and
+ *  then has every sender retransmit its RRQ to port
+ *  6900 as fast as it can. Each of those requests is
+ *  received, looked up and dropped as a duplicate by
+ *  the dispatcher, so the count of dropped requests
+ *  is the number of requests the listener accepted,
+ *  without the cost of starting a transfer for each.
+ *
+ *  The benchmark reports the requests accepted per
+ *  second, and the bytes allocated by the listener
+ *  threads per request, after a warm-up period. With
+ *  a number of listeners given, it is run once for
+ *  each number of listeners from 1 up to it (sharing
+ *  the port with SO_REUSEPORT), to show how the
+ *  request rate scales with them. The kernel spreads
+ *  the senders between the listeners by address and
+ *  port, so there should be a few senders for each.
+ *
+ *  Usage: TFTPDispatcherBench [seconds] [senders] [warm-up seconds] [listeners]
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+public class TFTPDispatcherBench {
+	/* Main server port. */
+	private static final int SERVER_RECV_PORT = 6900;
+
+	/* File every held session reads; one DATA packet long. */
+	private static final String BENCH_FILE = "dispatcherbench.bin";
+
+	/* How long to wait for a held session's first DATA packet. */
+	private static final int ESTABLISH_TIMEOUT = 5000;
+
+	private static InetSocketAddress server = new InetSocketAddress("127.0.0.1", SERVER_RECV_PORT);
+
+	private static volatile boolean sending;
+
+	/**
+	 * Opens a session and keeps retransmitting its RRQ until told to stop.
+	 */
+	private static class Sender extends Thread {
+		private DatagramChannel channel;
+		private ByteBuffer rrq;
+		private volatile long sent;
+
+		private Sender(int number) throws IOException {
+			super("TFTPDispatcherBench-" + number);
+			setDaemon(true);
+			channel = DatagramChannel.open();
+			channel.bind(null);
+			rrq = ByteBuffer.wrap(buildRequest(BENCH_FILE));
+		}
+
+		/**
+		 * Sends the RRQ and waits for the first DATA packet, which holds the
+		 * session open until the benchmark is over.
+		 */
+		private void establish() throws IOException {
+			channel.configureBlocking(false);
+			ByteBuffer buffer = ByteBuffer.allocate(TFTPOptions.MAX_PACKET_SIZE);
+			long deadline = System.currentTimeMillis() + ESTABLISH_TIMEOUT;
+			channel.send(rrq.duplicate(), server);
+			while (channel.receive(buffer) == null) {
+				if (System.currentTimeMillis() > deadline) {
+					throw new IOException("No DATA packet from the server.");
+				}
+				Thread.yield();
+			}
+			channel.configureBlocking(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (sending) {
+					rrq.rewind();
+					channel.send(rrq, server);
+					sent++;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static byte[] buildRequest(String filename) {
+		byte[] fn = filename.getBytes();
+		byte[] md = "octet".getBytes();
+		byte[] msg = new byte[fn.length + md.length + 4];
+		msg[1] = 1;
+		System.arraycopy(fn, 0, msg, 2, fn.length);
+		System.arraycopy(md, 0, msg, fn.length + 3, md.length);
+		return msg;
+	}
+
+	/**
+	 * Returns the bytes allocated so far by some threads, or -1 if the JVM can't tell.
+	 */
+	private static long allocatedBytes(Thread[] listening) {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		long allocated = 0;
+		for (Thread thread : listening) {
+			allocated += ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(thread.getId());
+		}
+		return allocated;
+	}
+
+	/**
+	 * Measures the request rate of the dispatcher with its listeners as they are.
+	 */
+	private static void measure(TFTPServerDispatcher dispatcher, Sender[] threads, int listeners, int seconds, int warmUp)
+			throws InterruptedException {
+		Thread.sleep(warmUp * 1000L);
+		Thread[] listening = dispatcher.getListeners();
+		long sentBefore = 0;
+		for (Sender sender : threads) {
+			sentBefore += sender.sent;
+		}
+		long acceptedBefore = dispatcher.getDuplicateRequests();
+		long allocatedBefore = allocatedBytes(listening);
+		long start = System.nanoTime();
+
+		Thread.sleep(seconds * 1000L);
+
+		long accepted = dispatcher.getDuplicateRequests() - acceptedBefore;
+		long allocated = allocatedBytes(listening) - allocatedBefore;
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long sent = -sentBefore;
+		for (Sender sender : threads) {
+			sent += sender.sent;
+		}
+
+		System.out.println("Listeners: " + listeners + ", requests received by each: " + Arrays.toString(dispatcher.getListenerRequests()));
+		System.out.println(String.format("  Requests sent:     %12d (%.0f/s)", sent, sent / elapsed));
+		System.out.println(String.format("  Requests accepted: %12d (%.0f/s)", accepted, accepted / elapsed));
+		if (allocatedBefore >= 0 && accepted > 0) {
+			System.out.println(String.format("  Listener threads:  %12.1f bytes allocated per request", (double) allocated / accepted));
+		}
+	}
+
+	public static void main(String args[]) throws IOException, InterruptedException {
+		int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+		int senders = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+		int warmUp = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+		int maxListeners = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+
+		TFTPServer server = TFTPServer.builder().build();
+		File file = new File(server.getRoot(), BENCH_FILE);
+		file.getParentFile().mkdirs();
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(new byte[100]);
+		}
+
+		server.start();
+		TFTPServerDispatcher dispatcher = server.getDispatcher();
+
+		Sender[] threads = new Sender[senders];
+		for (int i = 0; i < senders; i++) {
+			threads[i] = new Sender(i);
+			threads[i].establish();
+		}
+		sending = true;
+		for (Sender sender : threads) {
+			sender.start();
+		}
+
+		System.out.println("Senders: " + senders + ", measured for " + seconds + " s after " + warmUp + " s of warm-up");
+		for (int listeners = 1; listeners <= maxListeners; listeners++) {
+			if (!dispatcher.setListeners(listeners)) {
+				System.out.println("More than one listener needs SO_REUSEPORT, which this platform doesn't have.");
+				break;
+			}
+			measure(dispatcher, threads, listeners, seconds, warmUp);
+		}
+		sending = false;
+
+		dispatcher.killThread();
+		file.delete();
+		System.exit(0);
+	}
+}
@@ -1,9 +1,11 @@
 /*  TFTPSim.java
  *  This class is an error simulator for a TFTP 
- *  server based on UDP/IP. One socket (23) is
- *  used to receive from the client, and another 
- *  to send/receive from the server.  A new socket 
- *  is used for each communication back to the client.
+ *  server based on UDP/IP. Clients send to one
+ *  socket (2300) and are answered from it. Each
+ *  client TID (address and port) gets a session of
+ *  its own, with a socket of its own to send to and
+ *  receive from the server, so many transfers can be
+ *  passed on at once.
  *  
  *  Once started the simulator will ask the user if 
  *  they would like to simulate an error. The user 
@@ -25,7 +27,7 @@
  *  from either the client or the server, the simulator
  *  will check the packet number and check if there is 
  *  an alteration with that number at the beginning of
- *  the queue. It will then ensure that the packet 
+ *  the session's queue. It will then ensure that the packet 
  *  alteration in the queue specifies the same direction 
  *  it is intercepting (server to client vs. client to 
  *  server). This is all checked in the checkForAlterations
@@ -45,6 +47,19 @@
  *  the next packet. Another possible simulation would be 
  *  sending a duplicate packet. In this case the simulator
  *  will send the unaltered packet twice. 
+ *  
+ *  Packets are passed on as they arrive, in either
+ *  direction and for any session, by one thread
+ *  waiting on all the sockets with a Selector. A
+ *  session doesn't wait for the server to answer
+ *  before passing on the client's next packet, so
+ *  windows of DATA packets (RFC 7440) go through.
+ *  Each session works through its own copy of the
+ *  alterations entered, so every transfer gets the
+ *  same errors. A delayed packet, or the second copy
+ *  of a duplicate, is sent later by the TFTPTimerWheel
+ *  rather than holding the other packets up. A session
+ *  with no packets for two minutes is forgotten.
  *   
  *  To restart the simulator, you must close the simulator
  *  and follow the prompts to specify any errors one would
@@ -61,7 +76,12 @@
  */
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 
 public class TFTPErrorSimulator {
@@ -87,24 +107,69 @@ public class TFTPErrorSimulator {
 	//Verbose flag
 	public static Verbose verbose = Verbose.ON;
 
-	// UDP datagram packets and sockets used to send / receive
-	private DatagramPacket sendPacket, receivePacket;
-	private TFTPSocket receiveSocket, sendReceiveSocket;
+	/* View the packets are read through. */
+	private final TFTPPacket view = new TFTPPacket();
+
+	/* A session with no packet either way for this long is forgotten, in milliseconds. */
+	private static final int SESSION_IDLE_LIMIT = TFTPClientConnection.IDLE_LIMIT;
+
+	// Socket the clients send to and are answered from, and the selector it and the sessions' sockets are registered with
+	private TFTPSocket receiveSocket;
+	private DatagramChannel clientChannel;
+	private Selector selector;
+
+	/* Sessions by the address and port (TID) of their client, and tasks handed back by the timer wheel. */
+	private HashMap<InetSocketAddress, Session> sessions = new HashMap<InetSocketAddress, Session>();
+	private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private int sessionCount;
+
+	/* Shared by every session, as only one packet is handled at a time. Sized for the largest blksize. */
+	private ByteBuffer receiveBuffer = ByteBuffer.allocate(TFTPOptions.MAX_PACKET_SIZE);
 
 	private Scanner responseScanner = new Scanner( System.in );
 
-	// Holds the current port number for the server's communication thread.
-	private int serverCommunicationPort;
-	private int clientPort;
-	private InetAddress clientAddress;
 	private InetAddress serverAddress;
 	private AlterationPriority altPriority = new AlterationPriority();
 	private PriorityQueue<PacketAlteration> alterationQueue = new PriorityQueue<PacketAlteration>(altPriority);
 
+	/**
+	 * A transfer being passed on, from one client TID to the server and back.
+	 */
+	private class Session {
+		private final int number;
+		private final InetSocketAddress client;
+
+		/* Socket the session's packets are sent to the server from and answered on. */
+		private DatagramChannel channel;
+		private SelectionKey key;
+
+		/* Port of the server's side of the transfer, or -1 until it answers the request. */
+		private int serverPort = -1;
+
+		/* This session's copy of the alterations. */
+		private PriorityQueue<PacketAlteration> alterations;
+
+		/* Forgets the session once it has been idle for SESSION_IDLE_LIMIT. */
+		private TFTPTimerWheel.Timeout reaper;
+
+		private Session(int number, InetSocketAddress client) {
+			this.number = number;
+			this.client = client;
+			alterations = new PriorityQueue<PacketAlteration>(alterationQueue);
+		}
+
+		/**
+		 * Records that a packet was passed on, pushing the idle deadline back.
+		 */
+		private void touch() {
+			reaper.arm(SESSION_IDLE_LIMIT);
+		}
+	}
+
 	//ErrorSim is singleton. Private to defeat instantiation
 	private TFTPErrorSimulator() {
 		receiveSocket = new TFTPSocket(CLIENT_RECV_PORT);
-		sendReceiveSocket = new TFTPSocket();
+		clientChannel = receiveSocket.getChannel();
 	}
 
 	/**
@@ -124,164 +189,313 @@ public class TFTPErrorSimulator {
 	}
 
 	/**
-	 * Handles the Server/Client logic of the TFTPErrorSimulator
+	 * Handles the Server/Client logic of the TFTPErrorSimulator. Waits for
+	 * a packet from any client or from the server on any session, and passes
+	 * each on as it arrives.
 	 * 
 	 */
 	public void passOnTFTP() {
 		System.out.println("Error Simulator started.");
-		//variables for handling client connection
-		byte[] data;
 
 		try {
 			serverAddress = InetAddress.getLocalHost();
 		} catch (UnknownHostException e) {
 			e.printStackTrace();
 		}
+		try {
+			selector = Selector.open();
+			clientChannel.configureBlocking(false);
+			clientChannel.register(selector, SelectionKey.OP_READ, null);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
 		System.out.println("Error Simulator running.");
 
-		//Create new packet to receive data
-		data = new byte[1000];
-		receivePacket = new DatagramPacket(data, 1000);
-
 		if (isVerbose())
 			System.out.println("\nSimulator: Waiting for packet.");
 
-		// Block until a datagram packet is received from receiveSocket.
-
-		// CLIENT PACKET RECEIVE
-		receiveSocket.receivePacket(receivePacket);
-		clientPort = receivePacket.getPort();
-		clientAddress = receivePacket.getAddress();
-		// Output packet information
-		if (isVerbose()) {
-			printPacketData(false, receivePacket);
-		}
-
-		if (checkForAlteration(receivePacket, true)){
-			simulateErrors(receivePacket);
-		}
-		else{	
-			sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(), serverAddress, SERVER_RECV_PORT);
-
-			// Print packet information
-			if (isVerbose()) {
-				printPacketData(true, sendPacket);
+		while (true) {
+			/* Run the delayed sends and expired sessions handed back by the timer wheel. */
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
 			}
 
-			// SEND PACKET TO SERVER
-			sendReceiveSocket.sendPacket(sendPacket);
-		}
-
-		//Construct a DatagramPacket for receiving packets
-		data = new byte[1000];
-		receivePacket = new DatagramPacket(data, 1000);
-
-		if (isVerbose()){
-			System.out.println("\nSimulator: Waiting for packet.");
-		}
-
-		// SERVER PACKET RECEIVE
-		sendReceiveSocket.receivePacket(receivePacket);
+			// Block until a packet arrives on any socket, or a task is handed to us
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
 
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid() || !key.isReadable()) {
+					continue;
+				}
+				if (key.attachment() == null) {
+					// CLIENT PACKET RECEIVE
+					receiveFromClients();
+				} else {
+					// SERVER PACKET RECEIVE
+					receiveFromServer((Session) key.attachment());
+				}
+			}
+		} // Outer while
+	}
 
-		// This is the port number for the ClientCommunicationThread that the server created.
-		serverCommunicationPort = receivePacket.getPort();
+	/**
+	 * Passes every packet waiting on the client port on to the server, from
+	 * the socket of the session of the client it came from. A client not
+	 * seen before starts a new session.
+	 */
+	private void receiveFromClients() {
+		while (true) {
+			InetSocketAddress source = receive(clientChannel);
+			if (source == null) {
+				return;
+			}
+			Session session = sessions.get(source);
+			if (session == null) {
+				session = openSession(source);
+				if (session == null) {
+					continue;
+				}
+			}
+			DatagramPacket packet = copyPacket(source);
+			session.touch();
 
-		// Process the received datagram.
-		if (isVerbose()) {
-			printPacketData(false, receivePacket);
-		}
+			// Output packet information
+			if (isVerbose()) {
+				printPacketData(session.number, false, packet);
+			}
 
-		if (checkForAlteration(receivePacket, false)){
-			simulateErrors(receivePacket);
-		} else{
-			//Construct new packet to send in response to client
-			sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(), clientAddress, clientPort);
+			if (view.wrap(packet).isRequest()) {
+				/* Requests go to the server port; whoever answers is the server's side of the transfer from then on. */
+				session.serverPort = -1;
+			}
 
-			if (isVerbose()) {
-				printPacketData(true, receivePacket);
+			if (checkForAlteration(session, packet, true)){
+				simulateErrors(session, packet, true);
+			} else {
+				// SEND PACKET TO SERVER
+				packet.setSocketAddress(destination(session, true));
+				send(session, packet, true);
 			}
-			// SEND PACKET TO CLIENT
-			receiveSocket.sendPacket(sendPacket);
 		}
+	}
 
-		while (true) { 
-			data = new byte[1000];
-			if (isVerbose()){
-				System.out.println("\nSimulator: Waiting for packet.");
+	/**
+	 * Passes every packet waiting on a session's socket on to its client,
+	 * from the client port.
+	 *
+	 * @param session the packets arrived for.
+	 */
+	private void receiveFromServer(Session session) {
+		while (sessions.get(session.client) == session) {
+			InetSocketAddress source = receive(session.channel);
+			if (source == null) {
+				return;
 			}
+			DatagramPacket packet = copyPacket(source);
+			session.touch();
 
-			receivePacket = new DatagramPacket(data, 1000);
-
-			// CLIENT PACKET RECEIVE
-			receiveSocket.receivePacket(receivePacket);
+			// This is the port number for the ClientCommunicationThread that the server created.
+			if (session.serverPort < 0) {
+				session.serverPort = source.getPort();
+			}
 
-			//Output packet information 
+			// Process the received datagram.
 			if (isVerbose()) {
-				printPacketData(false, receivePacket);
+				printPacketData(session.number, false, packet);
 			}
 
-			if (checkForAlteration(receivePacket, true)){
-				simulateErrors(receivePacket);
+			if (checkForAlteration(session, packet, false)){
+				simulateErrors(session, packet, false);
+			} else {
+				// SEND PACKET TO CLIENT
+				packet.setSocketAddress(session.client);
+				send(session, packet, false);
 			}
-			else{
-				//Create new packet to send
-				sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(), serverAddress, serverCommunicationPort);
-
-				//Print packet information
-				if (isVerbose()) {
-					printPacketData(true, sendPacket);
-				}
+		}
+	}
 
-				// SEND PACKET TO SERVER
-				sendReceiveSocket.sendPacket(sendPacket);
+	/**
+	 * Starts a session for a client, with a socket of its own towards the
+	 * server and a copy of the alterations.
+	 *
+	 * @param client address and port of the client.
+	 * @return the session, or null if its socket couldn't be opened.
+	 */
+	private Session openSession(InetSocketAddress client) {
+		final Session session = new Session(++sessionCount, client);
+		try {
+			session.channel = DatagramChannel.open();
+			session.channel.bind(null);
+			session.channel.configureBlocking(false);
+			session.key = session.channel.register(selector, SelectionKey.OP_READ, session);
+		} catch (IOException e) {
+			e.printStackTrace();
+			closeSession(session);
+			return null;
+		}
+		session.reaper = TFTPTimerWheel.getShared().newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						/* Armed again since it expired, by a packet that got here first. */
+						if (!session.reaper.isArmed()) {
+							closeSession(session);
+						}
+					}
+				});
 			}
+		});
+		sessions.put(client, session);
+		if (isVerbose()) {
+			System.out.println("\nSimulator: Session " + session.number + " started for " + client
+					+ " (" + sessions.size() + " open)");
+		}
+		return session;
+	}
 
-			//Construct a DatagramPacket for receiving packets
-			data = new byte[1000];
-			receivePacket = new DatagramPacket(data, 1000);
-
-			if (isVerbose()){
-				System.out.println("\nSimulator: Waiting for packet.");
+	/**
+	 * Forgets a session and closes its socket.
+	 */
+	private void closeSession(Session session) {
+		sessions.remove(session.client, session);
+		if (session.reaper != null) {
+			session.reaper.cancel();
+		}
+		if (session.key != null) {
+			session.key.cancel();
+		}
+		try {
+			if (session.channel != null) {
+				session.channel.close();
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (isVerbose()) {
+			System.out.println("\nSimulator: Session " + session.number + " ended (" + sessions.size() + " open)");
+		}
+	}
 
-			// RECEIVE PACKET FROM SERVER
-			sendReceiveSocket.receivePacket(receivePacket);
+	/**
+	 * Runs a task on the simulator's thread. Safe to call from any thread.
+	 *
+	 * @param task to run.
+	 */
+	private void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
 
-			// Process the received datagram.
-			if (isVerbose()) {
-				printPacketData(false, receivePacket);
+	/**
+	 * Runs a task on the simulator's thread after a delay, without holding
+	 * up the packets of any session in the meantime.
+	 *
+	 * @param delay in milliseconds.
+	 * @param task to run.
+	 */
+	private void later(int delay, final Runnable task) {
+		TFTPTimerWheel.getShared().newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				execute(task);
 			}
+		}).arm(delay);
+	}
 
-			if (checkForAlteration(receivePacket, false)){
-				simulateErrors(receivePacket);
-			} else{	
+	/**
+	 * Receives a packet into the shared buffer, if one is waiting.
+	 *
+	 * @param channel to receive from.
+	 * @return where the packet came from, or null if none was waiting.
+	 */
+	private InetSocketAddress receive(DatagramChannel channel) {
+		receiveBuffer.clear();
+		InetSocketAddress source;
+		try {
+			source = (InetSocketAddress) channel.receive(receiveBuffer);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		receiveBuffer.flip();
+		return source;
+	}
 
-				//Construct new packet to send in response to client
-				sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(), clientAddress, clientPort);
+	/**
+	 * Copies the packet in the shared buffer out, so that it can be held
+	 * back or sent twice. The copy has zeros after the packet, so that a
+	 * short or malformed one can still be printed.
+	 */
+	private DatagramPacket copyPacket(InetSocketAddress source) {
+		int length = receiveBuffer.remaining();
+		byte[] data = new byte[Math.max(TFTPPacket.HEADER_SIZE, length + 2)];
+		receiveBuffer.get(data, 0, length);
+		return new DatagramPacket(data, length, source);
+	}
 
-				if (isVerbose()) {
-					printPacketData(true, receivePacket);
-				}
-				// SEND PACKET TO CLIENT
-				receiveSocket.sendPacket(sendPacket);
+	/**
+	 * Returns where a session's packets are passed on to.
+	 *
+	 * @param session of the packet.
+	 * @param toServer true for a packet from the client, false for one from the server.
+	 */
+	private InetSocketAddress destination(Session session, boolean toServer) {
+		if (!toServer) {
+			return session.client;
+		}
+		return new InetSocketAddress(serverAddress, (session.serverPort < 0) ? SERVER_RECV_PORT : session.serverPort);
+	}
+
+	/**
+	 * Sends a packet to its address, from the session's socket to the server
+	 * or from the client port to the client.
+	 *
+	 * @param session of the packet.
+	 * @param packet to send.
+	 * @param toServer true to send it to the server, false to the client.
+	 */
+	private void send(Session session, DatagramPacket packet, boolean toServer) {
+		// Print packet information
+		if (isVerbose()) {
+			printPacketData(session.number, true, packet);
+		}
+		DatagramChannel channel = toServer ? session.channel : clientChannel;
+		try {
+			channel.send(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()), packet.getSocketAddress());
+		} catch (IOException e) {
+			/* The session may have ended while the packet was held back. */
+			if (channel.isOpen()) {
+				e.printStackTrace();
 			}
-		} // Outer while
+		}
 	}
 
 	/**
 	 * Prints the TFTP packet information of a provided DatagramPacket to standard output.
 	 * 
+	 * @param session number of the session the packet belongs to.
 	 * @param send flag of whether or not the packet is a send packet.
 	 * @param packet to be print.
 	 */
-	private void printPacketData(boolean send, DatagramPacket packet) {
+	private void printPacketData(int session, boolean send, DatagramPacket packet) {
 		//If send packet is sendPacket, else is recvPacket
 		if(send){
-			System.out.println("\nSimulator: Sending packet");
+			System.out.println("\nSimulator: Session " + session + ": Sending packet");
 			System.out.println("To host: " + packet.getAddress());
 		} else{
-			System.out.println("Simulator: Packet received");
+			System.out.println("Simulator: Session " + session + ": Packet received");
 			System.out.println("From host: " + packet.getAddress());
 		}
 
@@ -296,6 +510,8 @@ public class TFTPErrorSimulator {
 			System.out.println("Packet Type: DATA");
 		} else if(req == Request.ACK){
 			System.out.println("Packet Type: ACK");
+		} else if(packet.getData()[1] == TFTPOptions.OACK){
+			System.out.println("Packet Type: OACK");
 		}
 
 
@@ -323,13 +539,18 @@ public class TFTPErrorSimulator {
 				j++;
 			}
 			System.out.println(new String(mode));
+			System.out.println("Options: " + TFTPOptions.describe(packet.getData(), i + 1, packet.getLength()));
+		}
+
+		if(packet.getData()[1] == TFTPOptions.OACK){
+			System.out.println("Options: " + TFTPOptions.describe(packet.getData(), 2, packet.getLength()));
 		}
 
 		if((req == Request.DATA) || (req == Request.ACK)){
 			System.out.print("Packet Number: ");
 			// Extracts and prints packet number 
 			// Takes second 2 bytes of packet, shift MSB 8 bits left, bitmask then add.
-			System.out.println(((packet.getData()[2] & 0xFF) << 8) + packet.getData()[3]);
+			System.out.println(view.wrap(packet).getBlock());
 		}
 
 		if(req == Request.DATA){
@@ -362,28 +583,33 @@ public class TFTPErrorSimulator {
 			} else if(packet.getData()[3] == 7){
 				System.out.println("Error code: 7");
 				System.out.println("No such user.");
+			} else if(packet.getData()[3] == TFTPOptions.ERROR_CODE){
+				System.out.println("Error code: 8");
+				System.out.println("Option negotiation refused.");
 			}
 		}
 	}
 
 	/**
-	 * Method to check if packet is one of the packets in our list of 
-	 * alterations. It also ensures we are altering it in the correct
+	 * Method to check if packet is one of the packets in a session's list
+	 * of alterations. It also ensures we are altering it in the correct
 	 * direction (client to server vs. server to client).
 	 * 
+	 * @param session of the packet
 	 * @param packet is the packet we are checking
 	 * @param direction True if client to server, false if server to client
 	 * @return true if the packet needs to be altered, false if not.
 	 */
-	public boolean checkForAlteration(DatagramPacket packet, boolean direction){
-		if(alterationQueue.isEmpty()){
+	private boolean checkForAlteration(Session session, DatagramPacket packet, boolean direction){
+		PriorityQueue<PacketAlteration> alterations = session.alterations;
+		if(alterations.isEmpty()){
 			return false;
 		}
 		// If we are altering an RRQ/WRQ, packetNumber is -1
-		if((alterationQueue.peek().getPacketNumber() == -1) && (direction == alterationQueue.peek().getDirection())){
+		if((alterations.peek().getPacketNumber() == -1) && (direction == alterations.peek().getDirection())){
 			return true;
 		}
-		if((getPacketNum(packet) == alterationQueue.peek().getPacketNumber()) && (direction == alterationQueue.peek().getDirection())){
+		if((view.wrap(packet).getBlock() == alterations.peek().getPacketNumber()) && (direction == alterations.peek().getDirection())){
 			return true;
 		} 
 		return false;
@@ -391,31 +617,23 @@ public class TFTPErrorSimulator {
 
 	/**
 	 * Method to simulate possible errors. Pulls instructions for the 
-	 * error from the queue and acts accordingly. Creates packets, alters
-	 * them and sends them on. Can do things such changing opcodes, 
-	 * sending duplicates etc. 
+	 * error from the session's queue and acts accordingly. Creates packets,
+	 * alters them and sends them on. Can do things such changing opcodes, 
+	 * sending duplicates etc. A packet that is delayed, or the second copy
+	 * of a duplicate, is sent later by the timer wheel, and packets of
+	 * this and other sessions carry on being passed on in the meantime.
 	 * 
+	 * @param session of the packet
 	 * @param packet is the packet we will alter
+	 * @param direction True if client to server, false if server to client
 	 */
-	public void simulateErrors(DatagramPacket packet){
-		// This is the first alteration in Queue
-		PacketAlteration alteration = alterationQueue.remove();
-		int port;
-		if((alteration.getPacketNumber() == -1) && (alteration.getDirection() == true)){
-			port = SERVER_RECV_PORT; 
-		} else if(alteration.getDirection() == true){
-			// Send alteration to server
-			port = serverCommunicationPort;
-		} else{
-			// Send alteration to client
-			port = clientPort;
-		}
-		if(alteration.getDirection()){
-			sendPacket = new DatagramPacket(packet.getData(), packet.getLength(), serverAddress, port);
-		} else{
-			sendPacket = new DatagramPacket(packet.getData(), packet.getLength(), clientAddress, port);
-		}
-		
+	private void simulateErrors(final Session session, DatagramPacket packet, final boolean direction){
+		// This is the first alteration in the session's queue
+		final PacketAlteration alteration = session.alterations.remove();
+
+		// Altered in a copy with room to grow, as a packet can be made larger
+		byte[] data = Arrays.copyOf(packet.getData(), TFTPOptions.MAX_PACKET_SIZE);
+		final DatagramPacket sendPacket = new DatagramPacket(data, packet.getLength(), destination(session, direction));
 
 		// Check if we need to change a specific byte
 		if ((alteration.getByteNumber() != -1) && (alteration.getByteValue() != -1)) { 
@@ -444,98 +662,71 @@ public class TFTPErrorSimulator {
 		
 		// End of packet construction
 
-		if (isVerbose()) {
-			printPacketData(true, sendPacket);
-		}
-
 		// Creates new temporary socket with desired TID
 		if(alteration.getTid() != -1){
+			if (isVerbose()) {
+				printPacketData(session.number, true, sendPacket);
+			}
 			TFTPSocket tempSocket = new TFTPSocket(alteration.getTid());
 			tempSocket.sendPacket(sendPacket);
+			tempSocket.close();
 			return;
 		}
 
 		// Creates new temporary socket with desired InetAddress
 		if(alteration.getAddress() != null){
-			TFTPSocket tempSocket = new TFTPSocket(sendReceiveSocket.getPort(), alteration.getAddress());
+			if (isVerbose()) {
+				printPacketData(session.number, true, sendPacket);
+			}
+			TFTPSocket tempSocket = new TFTPSocket(session.channel.socket().getLocalPort(), alteration.getAddress());
 			tempSocket.sendPacket(sendPacket);
+			tempSocket.close();
 			return;
 		}
 
-		// Delay the packet
-		if(alteration.getDelay() != -1){
-			try {
-				System.out.println("Delaying for: " + alteration.getDelay() + " milliseconds");
-				Thread.sleep(alteration.getDelay());
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
-
-		// Lose the packet
+		// Lose the packet; the next one is passed on as usual
 		if(alteration.getLosePacket()){
 			System.out.println("Sending Cancelled, lost the packet.");
-			//Construct a DatagramPacket for receiving packets
-			byte data[] = new byte[1000];
-			receivePacket = new DatagramPacket(data, 1000);
-
-			if (isVerbose()){
-				System.out.println("\nSimulator: Waiting for packet.");
-			}
-
-			if(alteration.getDirection()){
-				// RECEIVE PACKET FROM Client
-				receiveSocket.receivePacket(receivePacket);
-			} else{ // Server
-				sendReceiveSocket.receivePacket(receivePacket);
-			}
-			if (isVerbose()) {
-				printPacketData(false, receivePacket);
-			}
-			if(alteration.getDirection()){
-				// Send packet for server
-				sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(), serverAddress, port);
-			} else{ // Client
-				sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(), clientAddress, port);
-			}
-			
-			
-			if (isVerbose()) {
-				printPacketData(true, sendPacket);
-			}
+			return;
 		}
 
-		// SEND PACKET
-		if(alteration.getDirection()){
-			// To server
-			sendReceiveSocket.sendPacket(sendPacket);
-		} else{ // Client
-			receiveSocket.sendPacket(sendPacket);
+		// Delay the packet
+		if(alteration.getDelay() != -1){
+			System.out.println("Delaying for: " + alteration.getDelay() + " milliseconds");
+			later(alteration.getDelay(), new Runnable() {
+				@Override
+				public void run() {
+					sendAltered(session, sendPacket, direction, alteration);
+				}
+			});
+			return;
 		}
 
+		sendAltered(session, sendPacket, direction, alteration);
+	}
+
+	/**
+	 * Sends an altered packet, and its duplicate later if the alteration
+	 * asks for one.
+	 */
+	private void sendAltered(final Session session, final DatagramPacket sendPacket, final boolean direction, PacketAlteration alteration) {
+		// SEND PACKET
+		send(session, sendPacket, direction);
 
 		if(alteration.getDuplicate()){
-			try {
-				System.out.println("Delaying for: " + alteration.getDuplicateDelay() + " milliseconds");
-				Thread.sleep(alteration.getDuplicateDelay());
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-			if (isVerbose()){
-				System.out.println("Sending Duplicate Packet");
-				printPacketData(true, sendPacket);
-			}
-			// SEND PACKET
-			if(alteration.getDirection()){
-				// server
-				sendReceiveSocket.sendPacket(sendPacket);
-			} else{ // client
-				receiveSocket.sendPacket(sendPacket);
-			}
+			System.out.println("Delaying for: " + alteration.getDuplicateDelay() + " milliseconds");
+			later(alteration.getDuplicateDelay(), new Runnable() {
+				@Override
+				public void run() {
+					if (isVerbose()){
+						System.out.println("Sending Duplicate Packet");
+					}
+					send(session, sendPacket, direction);
+				}
+			});
 		}
 	}
 
-
 	/**
 	 * Checks if verbose flag is set.
 	 * 
@@ -552,22 +743,18 @@ public class TFTPErrorSimulator {
 	 * @return
 	 */
 	private Request getRequest(byte[] data) {
-		Request req;
-
-		if (data[0] != 0) 
-			req = Request.ERROR; // bad
-		else if (data[1] == OPCODE.RRQ.getValue()) 
-			req = Request.READ; // could be read
-		else if (data[1] == OPCODE.WRQ.getValue()) 
-			req = Request.WRITE; // could be write
-		else if (data[1] == OPCODE.DATA.getValue())
-			req = Request.DATA;  // could be data
-		else if (data[1] == OPCODE.ACK.getValue())
-			req = Request.ACK; // could be ack
-		else 
-			req = Request.ERROR;
-
-		return req;
+		TFTPPacket.OPCODE type = view.wrap(data, 0, data.length).getType();
+		if (type == TFTPPacket.OPCODE.RRQ) {
+			return Request.READ;
+		} else if (type == TFTPPacket.OPCODE.WRQ) {
+			return Request.WRITE;
+		} else if (type == TFTPPacket.OPCODE.DATA) {
+			return Request.DATA;
+		} else if (type == TFTPPacket.OPCODE.ACK) {
+			return Request.ACK;
+		}
+		/* Anything else, a bad one included, is taken for an error. */
+		return Request.ERROR;
 	}
 
 	/**
@@ -1209,16 +1396,6 @@ public class TFTPErrorSimulator {
 		packet.setData(data, packet.getOffset(), packet.getLength()); 
 	}
 
-	/**
-	 * Method to get packet number of a packet
-	 * 
-	 * @param packet is the packet we need packet number from
-	 * @return is the integer packet number extracted from the packet
-	 */
-	private int getPacketNum(DatagramPacket packet) {
-		return (((int) (packet.getData()[2] & 0xFF)) << 8) + (((int) packet.getData()[3]) & 0xFF);
-	}
-
 	/**
 	 * Main method of error simulator
 	 * Creates an instance of error simulator and
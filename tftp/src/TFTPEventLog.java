@@ -0,0 +1,322 @@
+/*  TFTPEventLog.java
+ *
+ *  This class is the server's verbose log. The
+ *  connections, sessions and listeners used to print
+ *  every packet with a handful of System.out.println
+ *  calls, each taking the lock on System.out and
+ *  building Strings, on the thread that was moving the
+ *  packets. With verbose on, that was most of the cost
+ *  of a transfer.
+ *
+ *  Now they record each packet as a small fixed event
+ *  (time, session number, sent or received, opcode,
+ *  block number or error code, length, the peer's
+ *  port) in a ring buffer, which takes a few stores
+ *  and no lock. Messages are recorded the same way,
+ *  with the String they give. Only requests, OACKs and
+ *  errors, a few per transfer, are described with a
+ *  String when they are recorded. The log thread takes
+ *  the events out in order, formats them and prints
+ *  them a batch at a time.
+ *
+ *  The ring buffer holds CAPACITY events. If the log
+ *  thread falls that far behind, new events are
+ *  dropped and counted rather than holding up the
+ *  transfers. The LOG console command of the server
+ *  shows the counts and sets the sampling: the log
+ *  keeps the events of every session, of one session
+ *  in n, or of none. Events of the server itself are
+ *  always kept. TFTPAsyncClient records its verbose
+ *  printouts here too, numbered by transfer.
+ *
+ *  The status and error lines of a transfer (the file
+ *  transfer completed, an error packet sent, a time
+ *  out) are recorded here whether verbose is on or
+ *  not, under the transfer's number, rather than
+ *  printed straight away. They are printed like the
+ *  rest, and a program embedding the server can keep
+ *  them out of its own output by setting the sampling
+ *  to none, as the benchmarks do.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class TFTPEventLog extends Thread {
+	/* Events the ring buffer holds, a power of two. */
+	private static final int CAPACITY = 8192;
+	private static final int MASK = CAPACITY - 1;
+
+	/* How long the log thread sleeps when there is nothing to print, in milliseconds. */
+	private static final int POLL = 5;
+
+	/* Session number of the events of the server itself. */
+	public static final int SERVER = 0;
+
+	/* Kinds of event. */
+	private static final int MESSAGE = 0;
+	private static final int SENT = 1;
+	private static final int RECEIVED = 2;
+
+	private static TFTPEventLog shared;
+
+	/* The events, a field per array, in slot seq & MASK. */
+	private final long[] times = new long[CAPACITY];
+	private final int[] sessions = new int[CAPACITY];
+	private final int[] kinds = new int[CAPACITY];
+	private final int[] opcodes = new int[CAPACITY];
+	private final int[] numbers = new int[CAPACITY];
+	private final int[] lengths = new int[CAPACITY];
+	private final int[] ports = new int[CAPACITY];
+	private final String[] texts = new String[CAPACITY];
+
+	/* Sequence number of the event in each slot once it is complete. */
+	private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+
+	/* Next sequence number to hand out, and the next one the log thread will print. */
+	private final AtomicLong next = new AtomicLong();
+	private volatile long printed;
+
+	private final AtomicLong dropped = new AtomicLong();
+	private final long start = System.nanoTime();
+
+	/* Sessions whose events are kept: one in sampling, or none if 0. */
+	private volatile int sampling = 1;
+
+	private TFTPEventLog() {
+		super("TFTPEventLog");
+		setDaemon(true);
+		for (int i = 0; i < CAPACITY; i++) {
+			published.set(i, -1);
+		}
+	}
+
+	/**
+	 * Returns the log shared by the whole server, starting it the first time
+	 * it is needed.
+	 */
+	public static synchronized TFTPEventLog getShared() {
+		if (shared == null) {
+			shared = new TFTPEventLog();
+			shared.start();
+		}
+		return shared;
+	}
+
+	/**
+	 * Returns true if the events of a session are kept.
+	 */
+	public boolean isLogged(int session) {
+		int every = sampling;
+		return session == SERVER || (every > 0 && session % every == 0);
+	}
+
+	/**
+	 * Records a packet sent or received.
+	 *
+	 * @param session number of the connection or session.
+	 * @param sent true for a packet sent, false for one received.
+	 * @param packet whose address is the peer's.
+	 */
+	public void packet(int session, boolean sent, DatagramPacket packet) {
+		if (!isLogged(session)) {
+			return;
+		}
+		byte[] data = packet.getData();
+		int offset = packet.getOffset();
+		int length = packet.getLength();
+		int opcode = (length < 2) ? -1 : ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+		int number = (length < 4) ? -1 : ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+		String text = isDescribed(opcode) ? describe(new TFTPPacket().wrap(packet)) : null;
+		record(session, sent ? SENT : RECEIVED, opcode, number, length, packet.getPort(), text);
+	}
+
+	/**
+	 * Records a packet sent or received, from its position to its limit.
+	 *
+	 * @param session number of the connection or session.
+	 * @param sent true for a packet sent, false for one received.
+	 * @param packet which isn't moved.
+	 * @param port of the peer.
+	 */
+	public void packet(int session, boolean sent, ByteBuffer packet, int port) {
+		if (!isLogged(session)) {
+			return;
+		}
+		int position = packet.position();
+		int length = packet.remaining();
+		int opcode = (length < 2) ? -1 : ((packet.get(position) & 0xFF) << 8) | (packet.get(position + 1) & 0xFF);
+		int number = (length < 4) ? -1 : ((packet.get(position + 2) & 0xFF) << 8) | (packet.get(position + 3) & 0xFF);
+		String text = isDescribed(opcode) ? describe(new TFTPPacket().wrap(packet)) : null;
+		record(session, sent ? SENT : RECEIVED, opcode, number, length, port, text);
+	}
+
+	/**
+	 * Records a message. A constant String costs nothing to record.
+	 *
+	 * @param session number of the connection or session, or SERVER.
+	 * @param text of the message.
+	 */
+	public void message(int session, String text) {
+		if (!isLogged(session)) {
+			return;
+		}
+		record(session, MESSAGE, 0, 0, 0, 0, text);
+	}
+
+	private void record(int session, int kind, int opcode, int number, int length, int port, String text) {
+		long seq;
+		do {
+			seq = next.get();
+			if (seq - printed >= CAPACITY) {
+				/* The log thread is a whole ring behind; the transfer doesn't wait for it. */
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!next.compareAndSet(seq, seq + 1));
+
+		int slot = (int) (seq & MASK);
+		times[slot] = System.nanoTime();
+		sessions[slot] = session;
+		kinds[slot] = kind;
+		opcodes[slot] = opcode;
+		numbers[slot] = number;
+		lengths[slot] = length;
+		ports[slot] = port;
+		texts[slot] = text;
+		/* Publishes the fields above to the log thread. */
+		published.lazySet(slot, seq);
+	}
+
+	@Override
+	public void run() {
+		StringBuilder out = new StringBuilder();
+		while (true) {
+			long seq = printed;
+			while (published.get((int) (seq & MASK)) == seq) {
+				format(out, (int) (seq & MASK));
+				seq++;
+			}
+			if (seq == printed) {
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(POLL));
+				continue;
+			}
+			printed = seq;
+			System.out.print(out);
+			System.out.flush();
+			out.setLength(0);
+		}
+	}
+
+	private void format(StringBuilder out, int slot) {
+		long millis = (times[slot] - start) / 1000000;
+		out.append('[').append(millis / 1000).append('.');
+		long fraction = millis % 1000;
+		if (fraction < 100) { out.append('0'); }
+		if (fraction < 10) { out.append('0'); }
+		out.append(fraction).append("] ");
+		out.append(sessions[slot] == SERVER ? "server" : "#" + sessions[slot]).append(' ');
+		String text = texts[slot];
+		texts[slot] = null;
+
+		if (kinds[slot] == MESSAGE) {
+			out.append(text.trim()).append('\n');
+			return;
+		}
+		out.append(kinds[slot] == SENT ? "sent " : "received ");
+		int opcode = opcodes[slot];
+		int number = numbers[slot];
+		int length = lengths[slot];
+		if (opcode == TFTPPacket.OPCODE.DATA.value()) {
+			out.append("DATA ").append(number).append(", ").append(length - TFTPPacket.HEADER_SIZE).append(" bytes of data");
+		} else if (opcode == TFTPPacket.OPCODE.ACK.value()) {
+			out.append("ACK ").append(number);
+		} else if (text != null) {
+			out.append(text);
+		} else {
+			out.append("packet with unknown opcode ").append(opcode).append(", ").append(length).append(" bytes");
+		}
+		out.append(kinds[slot] == SENT ? ", to port " : ", from port ").append(ports[slot]).append('\n');
+	}
+
+	/**
+	 * Returns true for the packets described with a String when they are
+	 * recorded: requests, OACKs and errors.
+	 */
+	private static boolean isDescribed(int opcode) {
+		return opcode == TFTPPacket.OPCODE.RRQ.value() || opcode == TFTPPacket.OPCODE.WRQ.value()
+				|| opcode == TFTPPacket.OPCODE.OACK.value() || opcode == TFTPPacket.OPCODE.ERROR.value();
+	}
+
+	private static String describe(TFTPPacket packet) {
+		TFTPPacket.OPCODE type = packet.getType();
+		if (type == TFTPPacket.OPCODE.ERROR) {
+			return "ERROR " + packet.getErrorCode() + " (" + packet.getErrorMessage() + ")";
+		}
+		byte[] data = new byte[packet.length()];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) packet.get(i);
+		}
+		if (type == TFTPPacket.OPCODE.OACK) {
+			return "OACK, options: " + TFTPOptions.describe(data, 2, data.length);
+		}
+		int modeEnd = packet.getModeEnd();
+		String mode = (modeEnd < 0) ? "?" : new String(data, packet.getFilenameEnd() + 1, modeEnd - packet.getFilenameEnd() - 1);
+		String options = (modeEnd < 0) ? "none" : TFTPOptions.describe(data, modeEnd + 1, data.length);
+		return type + " " + packet.getFilename() + ", mode " + mode + ", options: " + options;
+	}
+
+	/**
+	 * Waits until the log thread has printed every event recorded so far.
+	 *
+	 * @param timeout longest to wait, in milliseconds.
+	 */
+	public void flush(long timeout) {
+		long target = next.get();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (printed < target && System.nanoTime() < deadline) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	/**
+	 * Keeps the events of one session in every so many, or of none.
+	 *
+	 * @param every 1 for every session, n for one in n, 0 for none.
+	 */
+	public void setSampling(int every) {
+		sampling = every;
+	}
+
+	public int getSampling() {
+		return sampling;
+	}
+
+	/**
+	 * Returns the number of events recorded so far, dropped ones aside.
+	 */
+	public long getRecorded() {
+		return next.get();
+	}
+
+	/**
+	 * Returns the number of events dropped because the log thread was a whole
+	 * ring buffer behind.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public String toString() {
+		return getRecorded() + " events logged, " + getDropped() + " dropped, "
+				+ (sampling == 0 ? "no sessions" : sampling == 1 ? "every session" : "one session in " + sampling);
+	}
+}
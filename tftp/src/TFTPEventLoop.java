@@ -0,0 +1,239 @@
+/*  TFTPEventLoop.java
+ *
+ *  The event loop multiplexes many TFTPNioSessions
+ *  onto a single thread. Each session owns a
+ *  non-blocking DatagramChannel on an ephemeral port
+ *  which is registered with the loop's Selector. The
+ *  loop waits until either a channel has a packet
+ *  waiting or a task has been handed to it, and hands
+ *  the event to the session concerned. The sessions'
+ *  deadlines are kept on the TFTPTimerWheel, which
+ *  hands an expired one to the loop as a task, so the
+ *  loop never has to look through its sessions for
+ *  the ones that are due.
+ *
+ *  With shared sockets on, the sessions don't open a
+ *  channel each; the loop opens one channel when it is
+ *  first needed and the sessions are attached to it.
+ *  The loop reads what arrives on it and hands each
+ *  packet to the session of the client it came from,
+ *  looked up by address and port, or answers it with
+ *  an Error Code 5 if there is none, as
+ *  TFTPSharedSocket does for the threaded modes. The
+ *  channel asks for as large a receive buffer as a
+ *  TFTPSharedSocket does.
+ *
+ *  The server dispatcher creates one event loop per
+ *  core when the server runs in EVENT_LOOP mode and
+ *  spreads new connections across them.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class TFTPEventLoop extends Thread {
+	private Selector selector;
+	private ConcurrentLinkedQueue<TFTPNioSession> pending = new ConcurrentLinkedQueue<TFTPNioSession>();
+	private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private HashSet<TFTPNioSession> sessions = new HashSet<TFTPNioSession>();
+
+	/* Shared by every session on this loop, as only one runs at a time. Sized for the largest blksize. */
+	private ByteBuffer receiveBuffer = ByteBuffer.allocate(TFTPOptions.MAX_PACKET_SIZE);
+
+	/* Channel shared by the sessions attached to it, opened when first needed, and those sessions by client. */
+	private volatile DatagramChannel sharedChannel;
+	private HashMap<InetSocketAddress, TFTPNioSession> attached = new HashMap<InetSocketAddress, TFTPNioSession>();
+	private volatile int sharedTransfers;
+	private volatile long strays;
+
+	private volatile boolean running;
+
+	/**
+	 * @param number of the loop, for the name of its thread.
+	 * @throws IOException if the loop's selector can't be opened.
+	 */
+	public TFTPEventLoop(int number) throws IOException {
+		super("TFTPEventLoop-" + number);
+		selector = Selector.open();
+		running = true;
+	}
+
+	/**
+	 * Hands a new session to this loop. Safe to call from any thread; the
+	 * session is opened on the loop thread.
+	 *
+	 * @param session to run on this loop.
+	 */
+	public void addSession(TFTPNioSession session) {
+		pending.add(session);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs a task on the loop thread, for a session waiting on another
+	 * thread or whose deadline has expired. Safe to call from any thread.
+	 *
+	 * @param task to run.
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (running || !sessions.isEmpty() || !pending.isEmpty()) {
+			/* Open sessions handed to us since the last pass. */
+			TFTPNioSession session;
+			while ((session = pending.poll()) != null) {
+				if (session.open(this, selector)) {
+					sessions.add(session);
+				}
+			}
+
+			/* Run tasks handed back by other threads and the timer wheel. */
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+
+			/* A task may have ended the last session after stopping was asked for, and used up the wakeup. */
+			if (!running && sessions.isEmpty() && pending.isEmpty()) {
+				break;
+			}
+
+			/* Sleep until a packet arrives or a task is handed to us. */
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (key.isValid() && key.isReadable()) {
+					if (key.attachment() == null) {
+						handleShared();
+					} else {
+						((TFTPNioSession) key.attachment()).handleReadable(receiveBuffer);
+					}
+				}
+			}
+		}
+
+		try {
+			if (sharedChannel != null) { sharedChannel.close(); }
+			selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Drains every datagram waiting on the shared channel, handing each to
+	 * the session of the client it came from.
+	 */
+	private void handleShared() {
+		while (true) {
+			receiveBuffer.clear();
+			InetSocketAddress source;
+			try {
+				source = (InetSocketAddress) sharedChannel.receive(receiveBuffer);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			if (source == null) { return; }
+			receiveBuffer.flip();
+			TFTPNioSession session = attached.get(source);
+			if (session != null) {
+				session.handlePacket(receiveBuffer, source);
+			} else {
+				strays++;
+				TFTPSharedSocket.sendUnknownTransfer(sharedChannel, receiveBuffer, source);
+			}
+		}
+	}
+
+	/**
+	 * Attaches a session to the loop's shared channel, opening the channel
+	 * the first time. Called by the session on the loop thread.
+	 *
+	 * @param client of the session, whose packets are handed to it.
+	 * @param session to attach.
+	 * @return the shared channel, or null if the client already has a session on it.
+	 * @throws IOException if the shared channel can't be opened.
+	 */
+	DatagramChannel attach(InetSocketAddress client, TFTPNioSession session) throws IOException {
+		if (sharedChannel == null) {
+			DatagramChannel channel = DatagramChannel.open();
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, TFTPSharedSocket.RECEIVE_BUFFER);
+			channel.bind(null);
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, null);
+			sharedChannel = channel;
+		}
+		if (attached.containsKey(client)) {
+			return null;
+		}
+		attached.put(client, session);
+		sharedTransfers = attached.size();
+		return sharedChannel;
+	}
+
+	/**
+	 * Takes a session off the shared channel. Called by the session on the loop thread.
+	 */
+	void detach(InetSocketAddress client, TFTPNioSession session) {
+		attached.remove(client, session);
+		sharedTransfers = attached.size();
+	}
+
+	/**
+	 * Forgets a session that has finished. Called by the session on the loop thread.
+	 *
+	 * @param session that has closed.
+	 */
+	void removeSession(TFTPNioSession session) {
+		sessions.remove(session);
+	}
+
+	/**
+	 * Returns true if the loop has opened its shared channel.
+	 */
+	public boolean hasSharedChannel() {
+		return sharedChannel != null;
+	}
+
+	@Override
+	public String toString() {
+		DatagramChannel channel = sharedChannel;
+		if (channel == null) {
+			return getName() + ": no shared channel";
+		}
+		return getName() + ": port " + channel.socket().getLocalPort() + ": " + sharedTransfers + " transfers, " + strays + " stray packets";
+	}
+
+	/**
+	 * Stops the loop once its current sessions have completed.
+	 */
+	public void killThread() {
+		running = false;
+		selector.wakeup();
+	}
+}
@@ -0,0 +1,227 @@
+/*  TFTPFileCache.java
+ *
+ *  This class keeps the contents of recently read
+ *  files in memory, shared by every transfer of the
+ *  server. When many clients read the same few files
+ *  at once (a network boot, for example), the blocks
+ *  are served from memory instead of every transfer
+ *  reading the file from disk on its own.
+ *
+ *  Files are kept by path, and an entry is only used
+ *  while the file still has the size and modification
+ *  time it was read with. When several transfers miss
+ *  on the same file at the same time, the first one
+ *  reads it and the others wait for that read, so the
+ *  file is read from disk once.
+ *
+ *  The total size of the cached files is kept under a
+ *  capacity by dropping the least recently used files.
+ *  Files larger than the capacity are not cached. The
+ *  capacity can be changed, and the hits, misses and
+ *  cached bytes shown, with the CACHE console command
+ *  of the server.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+public class TFTPFileCache {
+	/* Default capacity, in bytes. */
+	public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+	private static final TFTPFileCache shared = new TFTPFileCache(DEFAULT_CAPACITY);
+
+	/* Entries by path, least recently used first. Guarded by this. */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long capacity;
+	private long residentBytes;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * @param capacity largest total size of the cached files in bytes, 0 to cache nothing.
+	 */
+	public TFTPFileCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the cache shared by every transfer of the server.
+	 */
+	public static TFTPFileCache getShared() {
+		return shared;
+	}
+
+	/**
+	 * Returns the contents of a file, reading it into the cache if it isn't
+	 * there yet.
+	 *
+	 * @param file to read.
+	 * @return the contents of the file, or null if it is too large to cache.
+	 * @throws IOException if the file can't be read.
+	 */
+	public byte[] get(File file) throws IOException {
+		final File source = file.getCanonicalFile();
+		final long size = source.length();
+		long modified = source.lastModified();
+		String path = source.getPath();
+
+		Entry entry;
+		boolean load = false;
+		synchronized (this) {
+			if (size > capacity || size > Integer.MAX_VALUE) {
+				return null;
+			}
+			entry = entries.get(path);
+			if (entry != null && (entry.size != size || entry.modified != modified)) {
+				/* The file has changed since it was read. */
+				remove(path);
+				entry = null;
+			}
+			if (entry == null) {
+				entry = new Entry(size, modified, new FutureTask<byte[]>(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws IOException {
+						return readFile(source, size);
+					}
+				}));
+				entries.put(path, entry);
+				residentBytes += size;
+				evict();
+				misses++;
+				load = true;
+			} else {
+				hits++;
+			}
+		}
+
+		/* Only the first transfer to miss reads the file; the others wait for it. */
+		if (load) {
+			entry.contents.run();
+		}
+		try {
+			return entry.contents.get();
+		} catch (ExecutionException e) {
+			synchronized (this) {
+				if (entries.get(path) == entry) {
+					remove(path);
+				}
+			}
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the file to be read.", e);
+		}
+	}
+
+	private static byte[] readFile(File file, long size) throws IOException {
+		byte[] contents = new byte[(int) size];
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.readFully(contents);
+		} finally {
+			in.close();
+		}
+		return contents;
+	}
+
+	private void remove(String path) {
+		Entry entry = entries.remove(path);
+		if (entry != null) {
+			residentBytes -= entry.size;
+		}
+	}
+
+	/**
+	 * Drops the least recently used files until the cache fits its capacity.
+	 * Transfers already using a dropped file keep their copy.
+	 */
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (residentBytes > capacity && it.hasNext()) {
+			Entry entry = it.next();
+			it.remove();
+			residentBytes -= entry.size;
+			evictions++;
+		}
+	}
+
+	/**
+	 * Sets the largest total size of the cached files, dropping files if the
+	 * cache no longer fits.
+	 *
+	 * @param capacity in bytes, 0 to cache nothing.
+	 */
+	public synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+		evict();
+	}
+
+	public synchronized long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the total size of the cached files, in bytes.
+	 */
+	public synchronized long getResidentBytes() {
+		return residentBytes;
+	}
+
+	public synchronized int getFileCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Returns the fraction of reads served from the cache, or 0 before any.
+	 */
+	public synchronized double getHitRate() {
+		long total = hits + misses;
+		return (total == 0) ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d files, %d of %d bytes, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+				entries.size(), residentBytes, capacity, hits, misses, getHitRate() * 100, evictions);
+	}
+
+	/* A cached file, or one still being read. */
+	private static class Entry {
+		private final long size;
+		private final long modified;
+		private final FutureTask<byte[]> contents;
+
+		private Entry(long size, long modified, FutureTask<byte[]> contents) {
+			this.size = size;
+			this.modified = modified;
+			this.contents = contents;
+		}
+	}
+}
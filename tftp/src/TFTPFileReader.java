@@ -0,0 +1,290 @@
+/*  TFTPFileReader.java
+ *
+ *  This class reads the blocks of a file being sent,
+ *  by the server for an RRQ and by the client for a
+ *  WRQ. Blocks are read by their position in the file
+ *  (block count - 1) * block size, instead of from a
+ *  stream, so a block can be read again for a
+ *  retransmission or from anywhere in a window without
+ *  the reader keeping track of where it is.
+ *
+ *  The server reads files through the shared
+ *  TFTPFileCache, so the blocks of a file that many
+ *  clients are reading are served from memory. A file
+ *  pinned in TFTPPacketImages is sent from its
+ *  pre-framed image instead (see TFTPSendWindow). Files
+ *  that aren't cached and are at least as large as the
+ *  map threshold are read from a memory-mapped buffer. The mapping is
+ *  shared by every transfer reading the same file at
+ *  the same time, so the file's pages are only mapped
+ *  once. Smaller files are read with positional
+ *  FileChannel reads. The threshold can be changed
+ *  with the MAP console command of the server.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TFTPFileReader {
+	/* Smallest file read from a mapped buffer, in bytes. */
+	public static final long DEFAULT_MAP_THRESHOLD = 1024 * 1024;
+
+	private static volatile long mapThreshold = DEFAULT_MAP_THRESHOLD;
+
+	/* Mappings in use, by path. Guarded by the map itself. */
+	private static final Map<String, Mapping> mappings = new HashMap<String, Mapping>();
+
+	private FileChannel channel;
+	private long size;
+
+	/* Shared mapping of the file, or null. */
+	private Mapping mapping;
+	private boolean cached;
+
+	/* This reader's own view of the cached or mapped contents, or null. */
+	private ByteBuffer view;
+
+	/* Pre-framed image of the file and this reader's own view of it, or null. */
+	private TFTPPacketImages.Image image;
+	private ByteBuffer imageView;
+
+	/**
+	 * Opens the file, and maps it if it is large enough.
+	 *
+	 * @param file to read.
+	 * @throws java.io.FileNotFoundException if the file can't be opened for reading.
+	 */
+	public TFTPFileReader(File file) throws IOException {
+		this(file, null);
+	}
+
+	/**
+	 * Reads the file from a cache if it fits, otherwise opens it, and maps it
+	 * if it is large enough.
+	 *
+	 * @param file to read.
+	 * @param cache to read the file through, or null.
+	 * @throws java.io.FileNotFoundException if the file can't be opened for reading.
+	 */
+	public TFTPFileReader(File file, TFTPFileCache cache) throws IOException {
+		this(file, cache, null, 0);
+	}
+
+	/**
+	 * Reads the file from its packet image if it is pinned, otherwise as above.
+	 *
+	 * @param file to read.
+	 * @param cache to read the file through, or null.
+	 * @param images to look for the file's image in, or null.
+	 * @param blockSize negotiated for the transfer.
+	 * @throws java.io.FileNotFoundException if the file can't be opened for reading.
+	 */
+	public TFTPFileReader(File file, TFTPFileCache cache, TFTPPacketImages images, int blockSize) throws IOException {
+		if (images != null) {
+			image = images.get(file, blockSize);
+			if (image != null) {
+				size = image.getFileSize();
+				imageView = image.view();
+				return;
+			}
+		}
+		if (cache != null) {
+			byte[] contents = cache.get(file);
+			if (contents != null) {
+				size = contents.length;
+				view = ByteBuffer.wrap(contents);
+				cached = true;
+				return;
+			}
+		}
+		channel = new FileInputStream(file).getChannel();
+		try {
+			size = channel.size();
+			if (size >= mapThreshold && size <= Integer.MAX_VALUE) {
+				try {
+					mapping = acquire(file, channel, size);
+					view = mapping.buffer.duplicate();
+				} catch (IOException e) {
+					/* Out of address space or not mappable; positional reads still work. */
+					mapping = null;
+				}
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the bytes at a position in the file into the remaining space of a
+	 * buffer, stopping early only at the end of the file.
+	 *
+	 * @param position in the file.
+	 * @param buffer to read into, from its position to its limit.
+	 * @return the number of bytes read, 0 at the end of the file.
+	 * @throws IOException if the file can't be read.
+	 */
+	public int read(long position, ByteBuffer buffer) throws IOException {
+		int length = (int) Math.max(0, Math.min(buffer.remaining(), size - position));
+		if (image != null) {
+			/* Copy the data out of each packet the bytes span. */
+			int blockSize = image.getBlockSize();
+			int total = 0;
+			while (total < length) {
+				long at = position + total;
+				int offset = (int) (at % blockSize);
+				int start = image.getOffset(at / blockSize + 1) + 4 + offset;
+				int n = Math.min(length - total, blockSize - offset);
+				imageView.limit(start + n);
+				imageView.position(start);
+				buffer.put(imageView);
+				total += n;
+			}
+			return total;
+		}
+		if (view != null) {
+			try {
+				view.limit((int) (position + length));
+				view.position((int) position);
+				buffer.put(view);
+			} catch (InternalError e) {
+				/* The file was cut short under the mapping. */
+				throw new IOException("Mapped file could not be read.", e);
+			}
+			return length;
+		}
+		int total = 0;
+		while (total < length) {
+			int n = channel.read(buffer, position + total);
+			if (n < 0) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the size of the file when it was opened.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns true if the file is read from a memory-mapped buffer.
+	 */
+	public boolean isMapped() {
+		return mapping != null;
+	}
+
+	/**
+	 * Returns the file's pre-framed packet image, or null if it has none.
+	 */
+	public TFTPPacketImages.Image getImage() {
+		return image;
+	}
+
+	/**
+	 * Returns true if the file is read from a cache.
+	 */
+	public boolean isCached() {
+		return cached;
+	}
+
+	/**
+	 * Describes where the blocks come from, for example "from the file cache".
+	 */
+	public String describeSource() {
+		if (image != null) {
+			return "from its pinned packet image";
+		}
+		if (cached) {
+			return "from the file cache";
+		}
+		return (mapping != null) ? "from a memory-mapped buffer" : "with positional reads";
+	}
+
+	/**
+	 * Closes the file and lets go of its mapping, cached contents or image. Safe to call more than once.
+	 */
+	public void close() throws IOException {
+		if (mapping != null) {
+			release(mapping);
+			mapping = null;
+		}
+		view = null;
+		image = null;
+		imageView = null;
+		if (channel != null) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Returns the mapping of the file shared by every reader, mapping it if
+	 * no reader has it or the file has changed since it was mapped.
+	 */
+	private static Mapping acquire(File file, FileChannel channel, long size) throws IOException {
+		String path = file.getCanonicalPath();
+		long modified = file.lastModified();
+		synchronized (mappings) {
+			Mapping mapping = mappings.get(path);
+			if (mapping == null || mapping.size != size || mapping.modified != modified) {
+				mapping = new Mapping(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, size), size, modified);
+				mappings.put(path, mapping);
+			}
+			mapping.readers++;
+			return mapping;
+		}
+	}
+
+	private static void release(Mapping mapping) {
+		synchronized (mappings) {
+			mapping.readers--;
+			/* The buffer is unmapped once the last reference to it is gone. */
+			if (mapping.readers == 0 && mappings.get(mapping.path) == mapping) {
+				mappings.remove(mapping.path);
+			}
+		}
+	}
+
+	/**
+	 * Sets the smallest file read from a mapped buffer, for files opened from
+	 * now on.
+	 *
+	 * @param threshold in bytes, 0 to map every file.
+	 */
+	public static void setMapThreshold(long threshold) {
+		mapThreshold = threshold;
+	}
+
+	public static long getMapThreshold() {
+		return mapThreshold;
+	}
+
+	/* A mapped file and the number of readers using it. */
+	private static class Mapping {
+		private final String path;
+		private final MappedByteBuffer buffer;
+		private final long size;
+		private final long modified;
+		private int readers;
+
+		private Mapping(String path, MappedByteBuffer buffer, long size, long modified) {
+			this.path = path;
+			this.buffer = buffer;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+}
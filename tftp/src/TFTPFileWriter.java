@@ -0,0 +1,115 @@
+/*  TFTPFileWriter.java
+ *
+ *  This class writes the blocks of a file being
+ *  received by the client for an RRQ. The server
+ *  writes uploads with TFTPWriteBehind. When the
+ *  sender has told us the size of the file with the
+ *  tsize option (RFC 2349), the file is given its full length
+ *  before the first block is written, so it is
+ *  allocated once instead of growing block by block,
+ *  and a transfer that runs past the declared size
+ *  can be stopped with an Error Code 3. If the
+ *  transfer ends short of the declared size, the file
+ *  is cut back to the bytes actually received.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class TFTPFileWriter {
+	private RandomAccessFile file;
+	private BufferedOutputStream out;
+	private long expectedSize;
+	private long written;
+
+	/**
+	 * Creates (or empties) the file.
+	 *
+	 * @param file to write.
+	 * @throws java.io.FileNotFoundException if the file can't be opened for writing.
+	 */
+	public TFTPFileWriter(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		try {
+			this.file.setLength(0);
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+		out = new BufferedOutputStream(new FileOutputStream(this.file.getFD()));
+		expectedSize = -1;
+		written = 0;
+	}
+
+	/**
+	 * Gives the file the size declared by the sender. Must be called before
+	 * anything is written.
+	 *
+	 * @param size in bytes.
+	 * @throws IOException if the space can't be allocated.
+	 */
+	public void allocate(long size) throws IOException {
+		file.setLength(size);
+		expectedSize = size;
+	}
+
+	/**
+	 * Returns false if writing the given number of bytes would take the file
+	 * past its declared size.
+	 *
+	 * @param length of the next block.
+	 */
+	public boolean fits(int length) {
+		return expectedSize < 0 || written + length <= expectedSize;
+	}
+
+	/**
+	 * Writes the next block of the file.
+	 */
+	public void write(byte[] data, int offset, int length) throws IOException {
+		out.write(data, offset, length);
+		written += length;
+	}
+
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * Flushes the file and trims it to the bytes written. Safe to call on a
+	 * transfer that failed.
+	 */
+	public void close() throws IOException {
+		try {
+			out.flush();
+			if (file.length() != written) {
+				file.setLength(written);
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Returns false if the filesystem holding the file is known not to have
+	 * room for the given number of bytes.
+	 *
+	 * @param file to be written.
+	 * @param size in bytes.
+	 */
+	public static boolean hasSpace(File file, long size) {
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (directory == null) {
+			return true;
+		}
+		/* 0 means the space could not be determined. */
+		long usable = directory.getUsableSpace();
+		return usable == 0 || size <= usable;
+	}
+}
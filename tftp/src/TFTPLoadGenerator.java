@@ -0,0 +1,408 @@
+/*  TFTPLoadGenerator.java
+ *
+ *  This class is a load generator for sizing the
+ *  server for a boot storm. It simulates thousands of
+ *  TFTP clients against a server given as host:port,
+ *  which should run on another machine so that it
+ *  doesn't compete with the clients for the CPUs. With
+ *  none given it starts a server in the same JVM, on a
+ *  port selected by the host and with verbose off, and
+ *  stops it again at the end.
+ *  Each simulated client runs its transfers through
+ *  one TFTPAsyncClient, the same state machine as
+ *  TFTPClient, and starts its next transfer as soon as
+ *  one ends, each from a new port as RFC 1350 asks.
+ *  The clients share the few selector threads of the
+ *  TFTPAsyncClient, not a thread or a process each.
+ *
+ *  The number of clients is ramped up, doubling from
+ *  the first step to the maximum. Each step runs for a
+ *  number of seconds, and the generator reports what
+ *  the transfers started in it did, as recorded in the
+ *  TFTPMetrics the TFTPAsyncClient is given for it:
+ *
+ *  success: transfers completed out of those ended;
+ *  the others got an error, or no reply after every
+ *  attempt.
+ *  MB/s and transfers/s: aggregate over the clients.
+ *  first block p50 / p99: the time from the request to
+ *  the first DATA packet, received for an RRQ or sent
+ *  for a WRQ.
+ *  timeouts: the waits of the clients that ran out and
+ *  had them send again, and the transfers the server
+ *  itself gave up on as timed out (from the server's
+ *  TFTPMetrics, so only for a server in the same JVM).
+ *
+ *  At the end it prints the first step where the
+ *  clients started timing out, which is where the
+ *  server stops keeping up. The ramp stops early once
+ *  fewer than half the transfers of a step succeed.
+ *  Every client reads the same file, created in the
+ *  server directory, or first written to a server
+ *  elsewhere with a WRQ; a share of them can write it
+ *  back instead, under a new name each time. Those
+ *  files are deleted after each step from the server
+ *  in the same JVM, and left on a server elsewhere for
+ *  its owner to clear up. A client whose transfer
+ *  fails on this side rather than at the server (with
+ *  no socket left, say) stops, and the first such
+ *  failure is printed. The transfers running at the
+ *  end are given STOP_TIMEOUT to finish, and cancelled
+ *  if they haven't by then.
+ *
+ *  Usage: TFTPLoadGenerator [max clients] [first step] [seconds per step]
+ *         [file size in KB] [percent RRQ] [block size] [window size] [mode P/V/E]
+ *         [server host:port]
+ *
+ *  Each simulated client holds a socket, so the limit
+ *  on open files (ulimit -n) must be above the largest
+ *  step.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+public class TFTPLoadGenerator {
+	/* Prefix of every file the generator puts in the server directory. */
+	private static final String PREFIX = "loadgen-";
+	private static final String BOOT_FILE = PREFIX + "boot.bin";
+
+	/* Selector threads the simulated clients are spread over. */
+	private static final int SELECTORS = 4;
+
+	/* The ramp stops after a step where fewer transfers than this succeed. */
+	private static final double STOP_SUCCESS = 0.5;
+
+	/* Longest wait for the transfers running at the end to finish, on each side, in milliseconds. */
+	private static final int STOP_TIMEOUT = 10000;
+
+	/* What the clients read is thrown away. */
+	private static final OutputStream DISCARD = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	/* Where the requests go, the server's directory (null for a server elsewhere), and the local copy of the file read and written. */
+	private final InetSocketAddress server;
+	private final File directory;
+	private final File boot;
+	private final int percentRead;
+
+	/* Runs the transfers of every simulated client. */
+	private final TFTPAsyncClient client;
+
+	private final List<SimulatedClient> clients = new ArrayList<SimulatedClient>();
+
+	/* The simulated clients start a new transfer when one ends while this is on. */
+	private volatile boolean running = true;
+
+	/* Uploads completed, to be deleted at the end of the step, and the number of the next one. */
+	private final ConcurrentLinkedQueue<String> uploads = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger nextUpload = new AtomicInteger();
+
+	/* Set once a client has stopped on a failure of its own. */
+	private final AtomicBoolean stopped = new AtomicBoolean();
+
+	/**
+	 * What the transfers started in one step of the ramp did.
+	 */
+	private static class Step {
+		private final int clients;
+		private final TFTPMetrics metrics = new TFTPMetrics();
+
+		/* Client timeouts when the step ended, and the transfers the server gave up on in it, or -1 if that can't be told. */
+		private long timeouts;
+		private long serverTimedOut;
+		private double seconds;
+
+		private Step(int clients) {
+			this.clients = clients;
+		}
+
+		private long getEnded() {
+			return metrics.getTransfersCompleted() + metrics.getTransfersFailed();
+		}
+
+		private double getSuccessRate() {
+			long ended = getEnded();
+			return (ended == 0) ? 0 : metrics.getTransfersCompleted() / (double) ended;
+		}
+	}
+
+	/**
+	 * A simulated client, starting one transfer after another on the
+	 * TFTPAsyncClient.
+	 */
+	private class SimulatedClient {
+		private final Random random;
+		private volatile TFTPAsyncClient.Transfer transfer;
+
+		private SimulatedClient(long seed) {
+			random = new Random(seed);
+		}
+
+		/**
+		 * Starts a transfer, and the next one once it ends.
+		 */
+		private void start() {
+			boolean read = random.nextInt(100) < percentRead;
+			final String upload = read ? null : PREFIX + "upload-" + nextUpload.getAndIncrement() + ".bin";
+			TFTPAsyncClient.Transfer next = read ? client.get(server, BOOT_FILE, DISCARD) : client.put(server, boot, upload);
+			transfer = next;
+			next.whenComplete(new BiConsumer<TFTPTransferStats, Throwable>() {
+				@Override
+				public void accept(TFTPTransferStats stats, Throwable error) {
+					if (error == null && upload != null && directory != null) {
+						uploads.add(upload);
+					}
+					if (!running) {
+						return;
+					}
+					if (error != null && !(error instanceof TFTPAsyncClient.TransferError) && !(error instanceof SocketTimeoutException)) {
+						/* Failed here, not at the server; trying again would fail the same way. */
+						if (stopped.compareAndSet(false, true)) {
+							System.out.println("A client stopped: " + error.getMessage());
+						}
+						return;
+					}
+					start();
+				}
+			});
+		}
+	}
+
+	/**
+	 * @param server to send the requests to.
+	 * @param directory of the server if it runs in this JVM, or null.
+	 * @param boot local copy of the file every RRQ reads.
+	 */
+	private TFTPLoadGenerator(InetSocketAddress server, File directory, File boot, int percentRead, int blockSize, int windowSize)
+			throws IOException {
+		this.server = server;
+		this.directory = directory;
+		this.boot = boot;
+		this.percentRead = percentRead;
+		client = new TFTPAsyncClient(SELECTORS);
+		client.setOptions(blockSize, windowSize, 0);
+	}
+
+	/**
+	 * Writes the file every RRQ reads to the server. Not counted in any step.
+	 *
+	 * @throws IOException if the server doesn't take it.
+	 */
+	private void upload() throws IOException, InterruptedException {
+		try {
+			client.put(server, boot, BOOT_FILE).get();
+		} catch (ExecutionException e) {
+			throw new IOException("Can't write " + BOOT_FILE + " to " + server + ": " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Runs the ramp, printing a line per step.
+	 *
+	 * @param metrics of the server if it runs in this JVM, or null.
+	 * @return the first step where the clients timed out, or 0 if none did.
+	 */
+	private int ramp(int first, int max, int seconds, TFTPMetrics metrics) throws InterruptedException {
+		int timingOut = 0;
+
+		System.out.println("  clients    ended  success     MB/s  transfers/s  first block p50 ms  p99 ms  client timeouts  server timeouts");
+		for (int target = first; target <= max; target *= 2) {
+			Step current = new Step(target);
+			long serverTimedOut = (metrics != null) ? metrics.getTransfersTimedOut() : 0;
+			long start = System.nanoTime();
+			client.setMetrics(current.metrics);
+			while (clients.size() < target) {
+				SimulatedClient simulated = new SimulatedClient(clients.size());
+				clients.add(simulated);
+				simulated.start();
+			}
+			Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+			current.seconds = (System.nanoTime() - start) / 1e9;
+			current.timeouts = current.metrics.getTimeouts();
+			current.serverTimedOut = (metrics != null) ? metrics.getTransfersTimedOut() - serverTimedOut : -1;
+			print(current);
+
+			String upload;
+			while ((upload = uploads.poll()) != null) {
+				new File(directory, upload).delete();
+			}
+			if (timingOut == 0 && (current.timeouts > 0 || current.serverTimedOut > 0)) {
+				timingOut = target;
+			}
+			if (current.getSuccessRate() < STOP_SUCCESS) {
+				System.out.println("Fewer than " + (int) (STOP_SUCCESS * 100) + "% of the transfers succeeded; the ramp stops here.");
+				break;
+			}
+		}
+
+		/* Let the last transfers finish rather than leave the server answering ports that have closed. */
+		running = false;
+		long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+		for (SimulatedClient simulated : clients) {
+			TFTPAsyncClient.Transfer transfer = simulated.transfer;
+			if (transfer == null) {
+				continue;
+			}
+			try {
+				transfer.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+			} catch (ExecutionException e) {
+				/* Counted in its step. */
+			} catch (TimeoutException e) {
+				transfer.cancel(true);
+			}
+		}
+		client.close();
+		return timingOut;
+	}
+
+	private static void print(Step step) {
+		TFTPMetrics metrics = step.metrics;
+		System.out.println(String.format("%9d %8d %7.1f%% %8.2f %12.1f %19.3f %7.3f %16d %16s",
+				step.clients, step.getEnded(), step.getSuccessRate() * 100,
+				(metrics.getBytesSent() + metrics.getBytesReceived()) / 1048576.0 / step.seconds,
+				metrics.getTransfersCompleted() / step.seconds,
+				metrics.getFirstData().getPercentile50() / 1000.0, metrics.getFirstData().getPercentile99() / 1000.0,
+				step.timeouts, (step.serverTimedOut < 0) ? "-" : String.valueOf(step.serverTimedOut)));
+	}
+
+	/**
+	 * Returns the address of a server given as host:port, or [address]:port
+	 * for IPv6.
+	 *
+	 * @throws IllegalArgumentException if it can't be read or resolved.
+	 */
+	private static InetSocketAddress parseServer(String target) {
+		int colon = target.lastIndexOf(':');
+		if (colon <= 0) {
+			throw new IllegalArgumentException("The server must be given as host:port, not " + target + ".");
+		}
+		String host = target.substring(0, colon);
+		if (host.startsWith("[") && host.endsWith("]")) {
+			host = host.substring(1, host.length() - 1);
+		}
+		InetSocketAddress address = new InetSocketAddress(host, Integer.parseInt(target.substring(colon + 1)));
+		if (address.isUnresolved()) {
+			throw new IllegalArgumentException("Unknown host " + host + ".");
+		}
+		return address;
+	}
+
+	public static void main(String args[]) throws IOException, InterruptedException {
+		int max = (args.length > 0) ? Integer.parseInt(args[0]) : 4000;
+		int first = (args.length > 1) ? Integer.parseInt(args[1]) : 125;
+		int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+		int kilobytes = (args.length > 3) ? Integer.parseInt(args[3]) : 256;
+		int percentRead = (args.length > 4) ? Integer.parseInt(args[4]) : 100;
+		int blockSize = (args.length > 5) ? Integer.parseInt(args[5]) : TFTPOptions.DEFAULT_BLOCK_SIZE;
+		int windowSize = (args.length > 6) ? Integer.parseInt(args[6]) : TFTPOptions.DEFAULT_WINDOW_SIZE;
+		String modeName = (args.length > 7) ? args[7].toUpperCase() : "P";
+		String target = (args.length > 8) ? args[8] : null;
+
+		/* Only the server's own events are logged; thousands of transfers would drown the results. */
+		TFTPEventLog.getShared().setSampling(0);
+
+		TFTPServer server = null;
+		InetSocketAddress address;
+		File directory = null;
+		File boot;
+		String where;
+		if (target != null) {
+			try {
+				address = parseServer(target);
+			} catch (IllegalArgumentException e) {
+				System.out.println(e.getMessage());
+				System.exit(1);
+				return;
+			}
+			/* Sent to the server first, and by every WRQ. */
+			boot = File.createTempFile(PREFIX, ".bin");
+			boot.deleteOnExit();
+			where = "server " + address;
+		} else {
+			ServerMode mode = modeName.equals("E") ? ServerMode.EVENT_LOOP : modeName.equals("V") ? ServerMode.VIRTUAL_THREAD : ServerMode.THREAD;
+			server = TFTPServer.builder().port(0).mode(mode).build();
+			try {
+				server.start();
+			} catch (UnsupportedOperationException e) {
+				System.out.println(e.getMessage());
+				System.exit(1);
+			}
+			address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+			directory = server.getRoot();
+			boot = new File(directory, BOOT_FILE);
+			where = "mode " + mode + " in this JVM";
+		}
+
+		/* Create the file every RRQ reads. */
+		byte[] data = new byte[kilobytes * 1024];
+		new Random(kilobytes).nextBytes(data);
+		try (FileOutputStream out = new FileOutputStream(boot)) {
+			out.write(data);
+		}
+
+		System.out.println("Server " + where + ", " + kilobytes + " KB file, " + percentRead + "% RRQ, block size " + blockSize
+				+ ", window size " + windowSize + ", " + seconds + " s per step, " + SELECTORS + " selector threads");
+		TFTPLoadGenerator generator = new TFTPLoadGenerator(address, directory, boot, percentRead, blockSize, windowSize);
+		int timingOut = 0;
+		try {
+			if (server == null) {
+				generator.upload();
+			}
+			timingOut = generator.ramp(first, max, seconds, (server != null) ? TFTPMetrics.getShared() : null);
+			System.out.println(timingOut == 0 ? "No timeouts up to the last step."
+					: "Timeouts started at " + timingOut + " clients.");
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			generator.client.close();
+		}
+
+		boot.delete();
+		if (server == null) {
+			return;
+		}
+		/* The clients' transfers are over or cancelled, so the server only has to see them off. */
+		try {
+			if (!server.stop(STOP_TIMEOUT)) {
+				System.out.println("The server still had transfers running after " + (STOP_TIMEOUT / 1000) + " s.");
+			}
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+		}
+		File[] left = directory.listFiles();
+		if (left != null) {
+			for (File file : left) {
+				/* Uploads cut off by the end of the run leave their temporary files. */
+				String name = file.getName();
+				if (name.startsWith(PREFIX + "upload-") || name.startsWith("." + PREFIX + "upload-")) {
+					file.delete();
+				}
+			}
+		}
+	}
+}
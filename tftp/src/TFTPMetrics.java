@@ -0,0 +1,566 @@
+/*  TFTPMetrics.java
+ *
+ *  This class keeps the server-wide counts of what the
+ *  transfers have done since the server started: the
+ *  requests and transfers, the bytes and blocks moved,
+ *  the retransmissions and timeouts, and the error
+ *  packets sent and received by code. It also keeps
+ *  histograms of the round trip times, of the time the
+ *  server takes over each block (from the DATA or ACK
+ *  arriving to the server being done with it), of the
+ *  time from a request to its first DATA packet, and of
+ *  the length of the transfers.
+ *
+ *  Every transfer updates the same counters at once,
+ *  so they are LongAdders, which spread concurrent
+ *  updates over cells of their own instead of making
+ *  the transfers take turns at a single value, and only
+ *  add them up when they are read. The histograms have
+ *  fixed log-linear buckets, each a LongAdder too: one
+ *  per microsecond up to 16, then 16 to each doubling,
+ *  so no bucket is wider than a sixteenth of the times
+ *  in it. Recording a time works out its bucket from
+ *  the time's highest bits and adds to it: nothing is
+ *  searched, allocated or locked. Percentiles are
+ *  interpolated within their bucket.
+ *
+ *  Each transfer's TFTPTransferStats passes on what it
+ *  records (see setMetrics()); the connections and
+ *  sessions record the rest. A TFTPAsyncClient can be
+ *  given metrics of its own to record its transfers
+ *  the same way, from the client's side: the first
+ *  DATA is the one received for an RRQ or sent for a
+ *  WRQ, and the errors are those the client sent and
+ *  received. Only the server's metrics, getShared(),
+ *  are published to JMX: the counts as the MBean
+ *  TFTPServer:type=Metrics, and the histograms as
+ *  TFTPServer:type=Histogram,name=..., so jconsole and
+ *  the like can watch a running server. The STATS
+ *  console command of the server prints them.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+public class TFTPMetrics implements TFTPMetricsMBean {
+	/* Error codes counted one by one; anything above is counted with the last. */
+	private static final int ERROR_CODES = TFTPOptions.ERROR_CODE + 1;
+
+	private static TFTPMetrics shared;
+
+	private final LongAdder readRequests = new LongAdder();
+	private final LongAdder writeRequests = new LongAdder();
+	private final LongAdder invalidRequests = new LongAdder();
+	private final LongAdder started = new LongAdder();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder timedOut = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LongAdder blocks = new LongAdder();
+	private final LongAdder retransmissions = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder[] errorsSent = newAdders(ERROR_CODES);
+	private final LongAdder[] errorsReceived = newAdders(ERROR_CODES);
+
+	private final Histogram roundTrip = new Histogram("RoundTrip");
+	private final Histogram blockService = new Histogram("BlockService");
+	private final Histogram firstData = new Histogram("FirstData");
+	private final Histogram duration = new Histogram("Duration");
+
+	/**
+	 * Creates metrics of their own, not published to JMX, for a client or a
+	 * benchmark that counts its transfers apart from the server's (see
+	 * TFTPAsyncClient.setMetrics()).
+	 */
+	public TFTPMetrics() {
+	}
+
+	/**
+	 * Returns the metrics of the whole server, creating them and publishing
+	 * them to JMX the first time they are needed.
+	 */
+	public static synchronized TFTPMetrics getShared() {
+		if (shared == null) {
+			shared = new TFTPMetrics();
+			shared.register();
+		}
+		return shared;
+	}
+
+	/**
+	 * Publishes the metrics and histograms to the platform MBean server. The
+	 * server runs just the same without them if it can't.
+	 */
+	private void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(new StandardMBean(this, TFTPMetricsMBean.class), new ObjectName("TFTPServer:type=Metrics"));
+			for (Histogram histogram : getHistograms()) {
+				server.registerMBean(new StandardMBean(histogram, HistogramMBean.class),
+						new ObjectName("TFTPServer:type=Histogram,name=" + histogram.name));
+			}
+		} catch (JMException e) {
+			e.printStackTrace();
+		} catch (SecurityException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static LongAdder[] newAdders(int count) {
+		LongAdder[] adders = new LongAdder[count];
+		for (int i = 0; i < count; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+	private static long[] sums(LongAdder[] adders) {
+		long[] sums = new long[adders.length];
+		for (int i = 0; i < adders.length; i++) {
+			sums[i] = adders[i].sum();
+		}
+		return sums;
+	}
+
+	/**
+	 * Records a valid request received, whether it leads to a transfer or not.
+	 *
+	 * @param read true for an RRQ, false for a WRQ.
+	 */
+	public void addRequest(boolean read) {
+		if (read) {
+			readRequests.increment();
+		} else {
+			writeRequests.increment();
+		}
+	}
+
+	/**
+	 * Records a request refused as malformed.
+	 */
+	public void addInvalidRequest() {
+		invalidRequests.increment();
+	}
+
+	/**
+	 * Records a transfer starting. Called by TFTPTransferStats.setMetrics().
+	 */
+	void addTransfer() {
+		started.increment();
+	}
+
+	/**
+	 * Records a transfer ending, however it ended.
+	 *
+	 * @param stats of the transfer, finished.
+	 * @param success true if the whole file was moved.
+	 */
+	public void endTransfer(TFTPTransferStats stats, boolean success) {
+		if (success) {
+			completed.increment();
+		} else {
+			failed.increment();
+		}
+		duration.record(stats.getDuration() * 1000);
+	}
+
+	/**
+	 * Records a transfer given up because its client stopped answering.
+	 */
+	public void addTimedOut() {
+		timedOut.increment();
+	}
+
+	/**
+	 * Records blocks of data moved. Called by TFTPTransferStats.
+	 *
+	 * @param sent true for blocks the server sent, false for blocks it received.
+	 */
+	void addBlocks(int count, long dataBytes, boolean sent) {
+		blocks.add(count);
+		if (sent) {
+			bytesSent.add(dataBytes);
+		} else {
+			bytesReceived.add(dataBytes);
+		}
+	}
+
+	/**
+	 * Records a round trip time. Called by TFTPTransferStats.
+	 */
+	void addRoundTrip(long micros) {
+		roundTrip.record(micros);
+	}
+
+	/**
+	 * Records packets sent again. Called by TFTPTransferStats.
+	 *
+	 * @param timeout true if the wait for a reply timed out, false if the
+	 *        other side asked for them.
+	 */
+	void addRetransmission(boolean timeout) {
+		retransmissions.increment();
+		if (timeout) {
+			timeouts.increment();
+		}
+	}
+
+	/**
+	 * Records the time the server took over a block, from the DATA or ACK
+	 * arriving to the server being done with it.
+	 *
+	 * @param nanos from System.nanoTime() differences.
+	 */
+	public void addBlockService(long nanos) {
+		blockService.record(nanos / 1000);
+	}
+
+	/**
+	 * Records the time from a request to its first DATA packet, sent for an
+	 * RRQ or received for a WRQ.
+	 *
+	 * @param nanos from System.nanoTime() differences.
+	 */
+	public void addFirstData(long nanos) {
+		firstData.record(nanos / 1000);
+	}
+
+	/**
+	 * Records an error packet sent.
+	 */
+	public void addErrorSent(int code) {
+		errorsSent[Math.max(0, Math.min(code, ERROR_CODES - 1))].increment();
+	}
+
+	/**
+	 * Records an error packet received.
+	 */
+	public void addErrorReceived(int code) {
+		errorsReceived[Math.max(0, Math.min(code, ERROR_CODES - 1))].increment();
+	}
+
+	public Histogram getRoundTrip() {
+		return roundTrip;
+	}
+
+	public Histogram getBlockService() {
+		return blockService;
+	}
+
+	public Histogram getFirstData() {
+		return firstData;
+	}
+
+	public Histogram getDuration() {
+		return duration;
+	}
+
+	private Histogram[] getHistograms() {
+		return new Histogram[] {roundTrip, blockService, firstData, duration};
+	}
+
+	@Override
+	public long getReadRequests() {
+		return readRequests.sum();
+	}
+
+	@Override
+	public long getWriteRequests() {
+		return writeRequests.sum();
+	}
+
+	@Override
+	public long getInvalidRequests() {
+		return invalidRequests.sum();
+	}
+
+	@Override
+	public long getTransfersStarted() {
+		return started.sum();
+	}
+
+	@Override
+	public long getTransfersCompleted() {
+		return completed.sum();
+	}
+
+	@Override
+	public long getTransfersFailed() {
+		return failed.sum();
+	}
+
+	@Override
+	public long getTransfersTimedOut() {
+		return timedOut.sum();
+	}
+
+	@Override
+	public long getTransfersActive() {
+		/* Read in this order, a transfer that ends meanwhile can't make the count negative. */
+		long ended = completed.sum() + failed.sum();
+		return Math.max(0, started.sum() - ended);
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	@Override
+	public long getBlocks() {
+		return blocks.sum();
+	}
+
+	@Override
+	public long getRetransmissions() {
+		return retransmissions.sum();
+	}
+
+	@Override
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	@Override
+	public long[] getErrorsSent() {
+		return sums(errorsSent);
+	}
+
+	@Override
+	public long[] getErrorsReceived() {
+		return sums(errorsReceived);
+	}
+
+	/**
+	 * Describes the metrics for the STATS console command, a line each.
+	 */
+	public String[] describe() {
+		List<String> lines = new ArrayList<String>();
+		lines.add("Requests: " + getReadRequests() + " RRQ, " + getWriteRequests() + " WRQ, " + getInvalidRequests() + " invalid");
+		lines.add("Transfers: " + getTransfersStarted() + " started, " + getTransfersActive() + " active, "
+				+ getTransfersCompleted() + " completed, " + getTransfersFailed() + " failed (" + getTransfersTimedOut() + " timed out)");
+		lines.add("Data: " + getBytesSent() + " bytes sent, " + getBytesReceived() + " bytes received, " + getBlocks() + " blocks");
+		lines.add("Retransmissions: " + getRetransmissions() + " (" + getTimeouts() + " on timeout)");
+		lines.add("Errors sent by code: " + describeCodes(getErrorsSent()));
+		lines.add("Errors received by code: " + describeCodes(getErrorsReceived()));
+		for (Histogram histogram : getHistograms()) {
+			lines.add(histogram.toString());
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	private static String describeCodes(long[] counts) {
+		StringBuilder sb = new StringBuilder();
+		for (int code = 0; code < counts.length; code++) {
+			if (counts[code] > 0) {
+				if (sb.length() > 0) { sb.append(", "); }
+				sb.append(code).append(": ").append(counts[code]);
+			}
+		}
+		return (sb.length() == 0) ? "none" : sb.toString();
+	}
+
+	/**
+	 * What the JMX clients see of a histogram. Times are in microseconds.
+	 */
+	public interface HistogramMBean {
+		long getCount();
+		double getMean();
+		long getMax();
+		long getPercentile50();
+		long getPercentile90();
+		long getPercentile99();
+
+		/* Upper bound of each bucket but the last, which has none. */
+		long[] getBucketBounds();
+		long[] getBucketCounts();
+	}
+
+	/**
+	 * A histogram of times in microseconds, with log-linear buckets: one per
+	 * microsecond below 16, then 16 buckets to each doubling, up to about 36
+	 * minutes, so a bucket is never wider than a sixteenth of the times in it.
+	 * Percentiles are interpolated within the bucket they fall in. Safe to
+	 * record into from any thread.
+	 */
+	public static class Histogram implements HistogramMBean {
+		/* Buckets to each doubling, as a power of two, and the times they are exact below. */
+		private static final int SUB_BITS = 4;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+		/* Largest doubling with buckets of its own; anything longer goes in the last bucket. */
+		private static final int MAX_EXPONENT = 30;
+
+		private static final long[] BOUNDS = newBounds();
+
+		private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+			@Override
+			public long applyAsLong(long left, long right) {
+				return Math.max(left, right);
+			}
+		};
+
+		private final String name;
+		private final LongAdder[] counts = newAdders(BOUNDS.length + 1);
+		private final LongAdder total = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(MAX, 0);
+
+		Histogram(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Returns the largest time of each bucket but the last.
+		 */
+		private static long[] newBounds() {
+			long[] bounds = new long[SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS];
+			for (int i = 0; i < bounds.length; i++) {
+				bounds[i] = lowest(i + 1) - 1;
+			}
+			return bounds;
+		}
+
+		/**
+		 * Returns the bucket a time goes in. No search: the exponent and the
+		 * next SUB_BITS bits of the time pick it.
+		 */
+		private static int bucket(long micros) {
+			if (micros < SUB_BUCKETS) {
+				return (int) Math.max(0, micros);
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(micros);
+			if (exponent > MAX_EXPONENT) {
+				return BOUNDS.length;
+			}
+			int shift = exponent - SUB_BITS;
+			return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+		}
+
+		/**
+		 * Returns the smallest time that goes in a bucket.
+		 */
+		private static long lowest(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+			int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+			return (long) (SUB_BUCKETS + sub) << shift;
+		}
+
+		/**
+		 * Records a time.
+		 *
+		 * @param micros the time, in microseconds.
+		 */
+		public void record(long micros) {
+			counts[bucket(micros)].increment();
+			total.add(micros);
+			max.accumulate(micros);
+		}
+
+		@Override
+		public long getCount() {
+			long count = 0;
+			for (LongAdder adder : counts) {
+				count += adder.sum();
+			}
+			return count;
+		}
+
+		@Override
+		public double getMean() {
+			long count = getCount();
+			return (count == 0) ? 0 : (double) total.sum() / count;
+		}
+
+		@Override
+		public long getMax() {
+			return max.get();
+		}
+
+		@Override
+		public long getPercentile50() {
+			return getPercentile(50);
+		}
+
+		@Override
+		public long getPercentile90() {
+			return getPercentile(90);
+		}
+
+		@Override
+		public long getPercentile99() {
+			return getPercentile(99);
+		}
+
+		/**
+		 * Returns the given percentile, interpolated between the smallest and
+		 * largest times of the bucket it falls in as if the times in the
+		 * bucket were spread evenly. It is never above the largest time
+		 * recorded, which is also what it is if it falls in the last bucket.
+		 * Returns 0 if nothing has been recorded.
+		 *
+		 * @param percent from 0 to 100.
+		 */
+		public long getPercentile(double percent) {
+			long[] buckets = getBucketCounts();
+			long count = 0;
+			for (long bucket : buckets) {
+				count += bucket;
+			}
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(count * percent / 100));
+			long seen = 0;
+			for (int i = 0; i < BOUNDS.length; i++) {
+				if (seen + buckets[i] >= rank) {
+					long lowest = lowest(i);
+					double spread = (double) (BOUNDS[i] - lowest) * (rank - seen) / buckets[i];
+					return Math.min(lowest + Math.round(spread), getMax());
+				}
+				seen += buckets[i];
+			}
+			return getMax();
+		}
+
+		@Override
+		public long[] getBucketBounds() {
+			return BOUNDS.clone();
+		}
+
+		@Override
+		public long[] getBucketCounts() {
+			return sums(counts);
+		}
+
+		@Override
+		public String toString() {
+			long count = getCount();
+			if (count == 0) {
+				return name + ": no samples";
+			}
+			return String.format("%s: %d samples, mean %.3f ms, p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms", name, count,
+					getMean() / 1000, getPercentile50() / 1000.0, getPercentile90() / 1000.0, getPercentile99() / 1000.0, getMax() / 1000.0);
+		}
+	}
+}
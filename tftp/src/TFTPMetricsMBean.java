@@ -0,0 +1,33 @@
+/*  TFTPMetricsMBean.java
+ *
+ *  This interface is what JMX clients see of the
+ *  server-wide counts kept by TFTPMetrics, published as
+ *  the MBean TFTPServer:type=Metrics. The histograms
+ *  are published as MBeans of their own.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+public interface TFTPMetricsMBean {
+	long getReadRequests();
+	long getWriteRequests();
+	long getInvalidRequests();
+
+	long getTransfersStarted();
+	long getTransfersActive();
+	long getTransfersCompleted();
+	long getTransfersFailed();
+	long getTransfersTimedOut();
+
+	long getBytesSent();
+	long getBytesReceived();
+	long getBlocks();
+
+	long getRetransmissions();
+	long getTimeouts();
+
+	/* Error packets by error code; codes above 8 are counted with 8. */
+	long[] getErrorsSent();
+	long[] getErrorsReceived();
+}
@@ -0,0 +1,848 @@
+/*  TFTPNioSession.java
+ *
+ *  The NioSession class is the event loop counterpart
+ *  of TFTPClientConnection. It holds the state of a
+ *  single RRQ or WRQ transfer, but instead of blocking
+ *  on its own socket with a timeout it is driven by a
+ *  TFTPEventLoop. The loop tells the session when a
+ *  packet has arrived on its channel and when its
+ *  retransmission deadline has passed, and the session
+ *  advances its DATA/ACK state machine without ever
+ *  blocking. Windows of DATA packets (RFC 7440) are
+ *  kept in a TFTPSendWindow or TFTPReceiveWindow, as
+ *  in TFTPClientConnection, and the deadline
+ *  comes from a TFTPRetransmitTimer. The deadlines are
+ *  kept on the shared TFTPTimerWheel, which hands an
+ *  expired one back to the session's loop.
+ *
+ *  Error handling follows the same 3 level system as
+ *  TFTPClientConnection:
+ *
+ *  Level 1: Processing the RRQ / WRQ Packet
+ *  Level 2: Processing the packets received during a Write Request
+ *  Level 3: Processing the packets received during a Read Request
+ *
+ *  With shared sockets on, the session is attached to
+ *  the shared channel of its loop instead of opening
+ *  a channel of its own, and the loop hands it the
+ *  packets from its client.
+ *
+ *  A session that runs out of retransmission attempts,
+ *  or makes no progress for IDLE_LIMIT, is closed on
+ *  its own. Other sessions on the same loop are not
+ *  affected.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+
+public class TFTPNioSession {
+	/* States a transfer moves through. */
+	private static enum State {SENDING, RECEIVING, DONE};
+
+	/* Retransmission attempts and idle limit, matching TFTPClientConnection. */
+	private static final int DATA_ATTEMPTS = 20;
+	private static final int ACK_ATTEMPTS = 10;
+	private static final int IDLE_LIMIT = TFTPClientConnection.IDLE_LIMIT;
+
+	/* How often a session holding its ACK back checks for room in its staging buffer, in milliseconds. */
+	private static final int STALL_POLL = 10;
+
+	/* Creates verbose initialized to 'ON'. */
+	private static Verbose verbose = Verbose.ON;
+
+	/* Session attributes. */
+	private int sessionNumber;
+	private byte[] request;
+	private int requestLength;
+	private InetSocketAddress client;
+	private DatagramChannel channel;
+	private TFTPEventLoop loop;
+
+	/* View the packets are read through. */
+	private final TFTPPacket view = new TFTPPacket();
+
+	/* Where the verbose printouts are recorded. */
+	private final TFTPEventLog log = TFTPEventLog.getShared();
+
+	/* Server-wide metrics, when the request arrived, and how the transfer is going. */
+	private final TFTPMetrics metrics = TFTPMetrics.getShared();
+	private final long requestTime = System.nanoTime();
+	private boolean started;
+	private boolean firstData;
+	private boolean completed;
+
+	/* Run on the loop's shared channel rather than one of its own, and attached to it. */
+	private boolean shared;
+	private boolean attached;
+
+	/* Run once the session is over, or null. */
+	private Runnable onFinish;
+
+	/* Directory the files are served from and written to, and the bounds of the RTO. */
+	private File directory = new File(TFTPServer.DEFAULT_DIRECTORY);
+	private int minTimeout = TFTPRetransmitTimer.DEFAULT_MIN_TIMEOUT;
+	private int maxTimeout = TFTPRetransmitTimer.DEFAULT_MAX_TIMEOUT;
+	private int initialTimeout = TFTPRetransmitTimer.DEFAULT_INITIAL_TIMEOUT;
+	private SelectionKey key;
+	private State state;
+	private TFTPOptions options;
+
+	/* Transfer attributes. */
+	private File file;
+	private TFTPFileReader in;
+	private TFTPWriteBehind out;
+	private ByteBuffer sendBuffer;
+	private TFTPSendWindow sendWindow;
+	private TFTPReceiveWindow receiveWindow;
+	private boolean negotiating;
+	private boolean stalled;
+	private boolean committing;
+	private int attempts;
+	private TFTPTransferStats stats;
+	private TFTPRetransmitTimer timer;
+
+	/* Retransmission and idle deadlines, on the shared timer wheel. */
+	private TFTPTimerWheel.Timeout retransmission;
+	private TFTPTimerWheel.Timeout reaper;
+
+	/* The request, in a buffer borrowed from the dispatcher until the session is opened. */
+	private ByteBuffer requestBuffer;
+	private TFTPBufferPool requestBuffers;
+
+	/**
+	 * @param number of the session.
+	 * @param request received on the server port, from its position to its limit.
+	 * @param source the request came from.
+	 * @param pool the request buffer is given back to once it has been copied.
+	 */
+	public TFTPNioSession(int number, ByteBuffer request, InetSocketAddress source, TFTPBufferPool pool) {
+		sessionNumber = number;
+		requestBuffer = request;
+		requestBuffers = pool;
+		client = source;
+	}
+
+	/**
+	 * Sets something to run once the session is over, however it ends,
+	 * after its file and channel have been released.
+	 *
+	 * @param task to run on the event loop thread.
+	 */
+	public void setOnFinish(Runnable task) {
+		onFinish = task;
+	}
+
+	/**
+	 * Sets the directory the session's file is read from or written to.
+	 *
+	 * @param directory of the server.
+	 */
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Sets the bounds of the session's RTO, those of its server.
+	 *
+	 * @param min smallest RTO in milliseconds.
+	 * @param max largest RTO in milliseconds.
+	 * @param initial RTO in milliseconds, until there is a measurement.
+	 */
+	public void setTimeouts(int min, int max, int initial) {
+		minTimeout = min;
+		maxTimeout = max;
+		initialTimeout = initial;
+	}
+
+	/**
+	 * Has the session run on the shared channel of its event loop rather
+	 * than a channel of its own. Must be called before the session is opened.
+	 *
+	 * @param shared true to run on the loop's shared channel.
+	 */
+	public void setShared(boolean shared) {
+		this.shared = shared;
+	}
+
+	/**
+	 * Opens the session's channel on an ephemeral port, registers it with the
+	 * given selector (or attaches the session to the loop's shared channel)
+	 * and processes the RRQ / WRQ. Must be called on the event
+	 * loop thread that owns the selector.
+	 *
+	 * @param loop driving this session.
+	 * @param selector of the event loop.
+	 * @return false if the session finished straight away (bad request, missing file, ...).
+	 */
+	public boolean open(final TFTPEventLoop loop, Selector selector) {
+		this.loop = loop;
+
+		/* The wheel only hands an expired deadline to the loop; the session deals with it there. */
+		final Runnable expired = new Runnable() {
+			@Override
+			public void run() {
+				/* Armed again since it expired, by a packet that got here first. */
+				if (!retransmission.isArmed()) {
+					handleTimeout();
+				}
+			}
+		};
+		final Runnable idle = new Runnable() {
+			@Override
+			public void run() {
+				if (!reaper.isArmed() && state != State.DONE) {
+					metrics.addTimedOut();
+					log.message(sessionNumber, "Error with transfer: No progress in " + (IDLE_LIMIT / 1000) + " seconds.");
+					finish(false);
+				}
+			}
+		};
+		TFTPTimerWheel wheel = TFTPTimerWheel.getShared();
+		retransmission = wheel.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				loop.execute(expired);
+			}
+		});
+		reaper = wheel.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				loop.execute(idle);
+			}
+		});
+		reaper.arm(IDLE_LIMIT);
+
+		/* Copy the request out on the loop and give the dispatcher its buffer back. */
+		requestLength = requestBuffer.remaining();
+		request = new byte[requestLength];
+		requestBuffer.get(request);
+		requestBuffers.release(requestBuffer);
+		requestBuffer = null;
+
+		try {
+			if (shared) {
+				/* A client with a transfer on the shared channel already gets a channel of its own for this one. */
+				channel = loop.attach(client, this);
+				attached = (channel != null);
+			}
+			if (!attached) {
+				channel = DatagramChannel.open();
+				channel.bind(null);
+				channel.configureBlocking(false);
+				key = channel.register(selector, SelectionKey.OP_READ, this);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			close();
+			return false;
+		}
+
+		if (isVerbose()) { log.message(sessionNumber, "NioSession number: " + sessionNumber + " processing request."); }
+
+		/* Error Checking Level 1: Processing the RRQ / WRQ Packet */
+
+		view.wrap(request, 0, requestLength);
+		if (view.is(TFTPPacket.OPCODE.ERROR)) {
+			close();
+			return false;
+		}
+
+		String errorMessage = null;
+		if (!view.isRequest()) {
+			errorMessage = "Invalid opcode.";
+		} else if (!view.isModeValid() || !view.hasValidOptions(view.getOptionsOffset())) {
+			/* The mode is either the last field or followed by well formed options. */
+			errorMessage = "Invalid mode.";
+		} else if (!view.isFilenameValid()) {
+			errorMessage = "Invalid filename.";
+		}
+		if (errorMessage != null) {
+			metrics.addInvalidRequest();
+			sendErrorPacket(4, errorMessage, client);
+			close();
+			return false;
+		}
+
+		/* We've finished with the error checking. Proceed with processing the request. */
+
+		options = TFTPOptions.negotiate(TFTPOptions.parse(request, view.getOptionsOffset(), requestLength));
+		if (isVerbose() && options.hasOptions()) { log.message(sessionNumber, "NioSession: Options accepted: " + options); }
+
+		String filename = view.getFilename();
+
+		if (isVerbose()) {
+			log.packet(sessionNumber, false, new DatagramPacket(request, requestLength, client));
+		}
+
+		file = new File(directory, filename);
+		boolean read = view.is(TFTPPacket.OPCODE.RRQ);
+		metrics.addRequest(read);
+		stats = new TFTPTransferStats((read ? "RRQ " : "WRQ ") + filename);
+		timer = new TFTPRetransmitTimer(stats, minTimeout, maxTimeout, initialTimeout);
+		if (options.getTimeout() > 0) {
+			timer.fix(options.getTimeout() * 1000);
+		}
+		if (read && options.getTransferSize() >= 0) {
+			/* The client asks for the file's size with tsize 0. */
+			options.setTransferSize(file.length());
+		}
+		sendBuffer = ByteBuffer.allocate(Math.max(4, 2 + options.length()));
+		if (read) {
+			if (isVerbose()) { log.message(sessionNumber, "\nNioSession: Read Request."); }
+			if (!file.exists() || file.isDirectory()) {
+				log.message(sessionNumber, "Error Code 1: Can't read file. Does not exist on server.");
+				sendErrorPacket(1, "Can't read file. Does not exist on server.", client);
+				close();
+				return false;
+			}
+			try {
+				in = new TFTPFileReader(file, TFTPFileCache.getShared(), TFTPPacketImages.getShared(), options.getBlockSize());
+			} catch (IOException e) {
+				log.message(sessionNumber, "Error Code 2 - Access Violation.");
+				sendErrorPacket(2, "Access Violation.", client);
+				close();
+				return false;
+			}
+			sendWindow = new TFTPSendWindow(in, options.getBlockSize(), options.getWindowSize(), stats);
+			state = State.SENDING;
+			stats.setMetrics(metrics, true);
+			started = true;
+			if (options.hasOptions()) {
+				/* The client answers the OACK with ACK 0, which starts the transfer. */
+				negotiating = true;
+				sendOACK();
+			} else {
+				sendNextWindow();
+			}
+		} else {
+			if (isVerbose()) { log.message(sessionNumber, "\nNioSession: Write Request."); }
+			if (file.exists()) {
+				log.message(sessionNumber, "NioSession: Error Code 6 - File already exists.");
+				sendErrorPacket(6, "File already exists", client);
+				close();
+				return false;
+			}
+			long transferSize = options.getTransferSize();
+			if (transferSize > 0 && !TFTPFileWriter.hasSpace(file, transferSize)) {
+				/* Refuse an upload the disk can't hold before it starts. */
+				log.message(sessionNumber, "Error Code 3 Occurred: There is not enough space on the disk.");
+				sendErrorPacket(3, "Disk full.", client);
+				close();
+				return false;
+			}
+			try {
+				out = new TFTPWriteBehind(file, options.getBlockSize());
+			} catch (IOException | SecurityException e) {
+				log.message(sessionNumber, "Error Code 2 - Access Violation.");
+				sendErrorPacket(2, "Access Violation.", client);
+				close();
+				return false;
+			}
+			if (transferSize >= 0) {
+				/* The file is allocated at its declared size up front. */
+				try {
+					out.allocate(transferSize);
+				} catch (IOException e) {
+					log.message(sessionNumber, "Error Code 3 Occurred: There is not enough space on the disk.");
+					sendErrorPacket(3, "Disk full.", client);
+					close();
+					return false;
+				}
+			}
+			receiveWindow = new TFTPReceiveWindow(options.getPacketSize(), options.getWindowSize(), stats);
+			state = State.RECEIVING;
+			stats.setMetrics(metrics, false);
+			started = true;
+			if (options.hasOptions()) {
+				/* The OACK takes the place of ACK 0. */
+				sendOACK();
+			} else {
+				sendAck(0);
+				timer.start();
+			}
+		}
+		return state != State.DONE;
+	}
+
+	/**
+	 * Drains every datagram waiting on the session's channel.
+	 *
+	 * @param buffer scratch receive buffer owned by the event loop.
+	 */
+	public void handleReadable(ByteBuffer buffer) {
+		while (state != State.DONE) {
+			buffer.clear();
+			InetSocketAddress source;
+			try {
+				source = (InetSocketAddress) channel.receive(buffer);
+			} catch (IOException e) {
+				e.printStackTrace();
+				finish(false);
+				return;
+			}
+			if (source == null) { return; }
+			buffer.flip();
+			handlePacket(buffer, source);
+		}
+	}
+
+	/**
+	 * Handles a datagram received on the session's channel, or handed over
+	 * by the loop from its shared channel.
+	 *
+	 * @param buffer holding the datagram, flipped.
+	 * @param source the datagram came from.
+	 */
+	void handlePacket(ByteBuffer buffer, InetSocketAddress source) {
+		long arrived = System.nanoTime();
+		if (isVerbose()) {
+			log.packet(sessionNumber, false, buffer, source.getPort());
+		}
+
+		/* A packet from anyone but our client gets an Error Code 5, and the transfer carries on. */
+		if (!source.equals(client)) {
+			sendErrorPacket(5, "The TransferID is different", source);
+			return;
+		}
+
+		if (buffer.limit() < 4) {
+			sendErrorPacket(4, "Invalid packet.", client);
+			finish(false);
+			return;
+		}
+
+		if (buffer.get(1) == TFTPServerDispatcher.OPCODE.ERROR.value()) {
+			metrics.addErrorReceived(view.wrap(buffer).getErrorCode());
+			if (isVerbose()) {
+				log.message(sessionNumber, "Error code " + buffer.get(3) + " received.");
+				if (buffer.get(3) == TFTPOptions.ERROR_CODE) { log.message(sessionNumber, "Option negotiation refused."); }
+			}
+			finish(false);
+			return;
+		}
+
+		if (state == State.SENDING) {
+			handleAck(buffer);
+		} else {
+			handleData(buffer);
+		}
+		metrics.addBlockService(System.nanoTime() - arrived);
+	}
+
+	/**
+	 * Error Checking Level 3: Processing the packets received during a Read Request.
+	 */
+	private void handleAck(ByteBuffer buffer) {
+		int number = view.wrap(buffer).getBlock();
+		if (!view.is(TFTPPacket.OPCODE.ACK)) {
+			sendErrorPacket(4, "Invalid packet type.", client);
+			finish(false);
+			return;
+		}
+
+		if (negotiating) {
+			/* The OACK is answered with ACK 0. */
+			if (number != 0) {
+				sendErrorPacket(4, "Expected ACK 0 for OACK.", client);
+				finish(false);
+				return;
+			}
+			negotiating = false;
+			timer.stop();
+			reaper.arm(IDLE_LIMIT);
+			sendNextWindow();
+			return;
+		}
+
+		int acknowledged = sendWindow.acknowledge(number);
+		if (acknowledged < 0) {
+			if (sendWindow.isStale(number)) {
+				/* Duplicate ACK, ignore it. */
+				if (isVerbose()) { log.message(sessionNumber, "\n Duplicate ACK Packet Received."); }
+				return;
+			}
+			sendErrorPacket(4, "Invalid block number.", client);
+			finish(false);
+			return;
+		}
+		if (acknowledged == 0 && sendWindow.getWindowSize() == 1) {
+			/* A repeat of the previous ACK; the lock-step transfer ignores it. */
+			if (isVerbose()) { log.message(sessionNumber, "\n Duplicate ACK Packet Received."); }
+			return;
+		}
+		if (acknowledged > 0) {
+			timer.stop();
+			reaper.arm(IDLE_LIMIT);
+		}
+
+		if (sendWindow.isComplete()) {
+			finish(true);
+		} else {
+			/* Slides the window on, or resends the rest of it after a block the client missed. */
+			sendNextWindow();
+		}
+	}
+
+	/**
+	 * Error Checking Level 2: Processing the packets received during a Write Request.
+	 */
+	private void handleData(ByteBuffer buffer) {
+		int number = view.wrap(buffer).getBlock();
+		if (!view.is(TFTPPacket.OPCODE.DATA)) {
+			sendErrorPacket(4, "Invalid opCode.", client);
+			finish(false);
+			return;
+		}
+		if (buffer.limit() > options.getPacketSize()) {
+			sendErrorPacket(4, "DATA packet larger than the negotiated block size.", client);
+			finish(false);
+			return;
+		}
+		if (committing) {
+			/* The last block is in; this is a resend while the upload is committed. */
+			return;
+		}
+		TFTPReceiveWindow.Block block = receiveWindow.classify(number);
+		if (block == TFTPReceiveWindow.Block.OUT_OF_ORDER) {
+			/* Duplicate or out of order DATA, ACK the last block received in order. */
+			if (!stalled && receiveWindow.acknowledgeGap()) {
+				if (isVerbose()) { log.message(sessionNumber, "\n Duplicate or out of order DATA Packet Received. Sending ACK\n"); }
+				sendAck(receiveWindow.getLastInOrder());
+				timer.resend();
+			}
+			return;
+		}
+		if (block == TFTPReceiveWindow.Block.INVALID) {
+			sendErrorPacket(4, "Invalid block number.", client);
+			finish(false);
+			return;
+		}
+
+		if (!out.fits(buffer.limit() - 4)) {
+			log.message(sessionNumber, "Error Code 3 Occurred: The file is larger than its declared size.");
+			sendErrorPacket(3, "Allocation exceeded.", client);
+			finish(false);
+			return;
+		}
+
+		/* The first new DATA packet answers our last ACK. */
+		timer.stop();
+		markFirstData();
+
+		try {
+			if (!out.offer(buffer.array(), 4, buffer.limit() - 4)) {
+				/* The disk is behind. Drop the block and hold the ACK back until it has caught up. */
+				if (!stalled && isVerbose()) { log.message(sessionNumber, "NioSession: Staging buffer full. Holding the ACK back."); }
+				stalled = true;
+				retransmission.arm(STALL_POLL);
+				return;
+			}
+			stalled = false;
+			reaper.arm(IDLE_LIMIT);
+		} catch (IOException ioe) {
+			log.message(sessionNumber, "Error Code 3 Occurred: There is not enough space on the disk.");
+			sendErrorPacket(3, "Disk full.", client);
+			finish(false);
+			return;
+		}
+		boolean acknowledge = receiveWindow.accept(buffer.limit());
+
+		/* This means it's the last packet. */
+		if (receiveWindow.isComplete()) {
+			commit(number);
+			return;
+		}
+
+		if (acknowledge) {
+			sendAck(number);
+			timer.start();
+		} else {
+			/* Mid-window; the client is still sending, so push the timeout back. */
+			attempts = 0;
+			retransmission.arm(timer.getReceiveTimeout());
+		}
+	}
+
+	/**
+	 * Commits the upload, as durably as the server is set to, and then
+	 * acknowledges the last block. The loop carries on with other sessions
+	 * while this one waits for the committer.
+	 *
+	 * @param number of the last block.
+	 */
+	private void commit(final int number) {
+		committing = true;
+		retransmission.cancel();
+		reaper.cancel();
+		TFTPCommitter.commit(out).whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, final Throwable error) {
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						committed(number, error);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Runs on the loop once the upload has been committed, or has failed to be.
+	 */
+	private void committed(int number, Throwable error) {
+		if (state == State.DONE) { return; }
+		if (error instanceof CompletionException) {
+			error = error.getCause();
+		}
+		if (error instanceof FileAlreadyExistsException) {
+			log.message(sessionNumber, "NioSession: Error Code 6 - File already exists.");
+			sendErrorPacket(6, "File already exists", client);
+			finish(false);
+		} else if (error != null) {
+			log.message(sessionNumber, "Error Code 3 Occurred: There is not enough space on the disk.");
+			sendErrorPacket(3, "Disk full.", client);
+			finish(false);
+		} else {
+			sendAck(number);
+			finish(true);
+		}
+	}
+
+	/**
+	 * Called on the event loop once the session's deadline has passed.
+	 * Retransmits the last packet or gives up on the transfer.
+	 */
+	private void handleTimeout() {
+		if (state == State.DONE || committing) { return; }
+		if (stalled) {
+			if (!out.hasRoom(options.getPacketSize())) {
+				retransmission.arm(STALL_POLL);
+				return;
+			}
+			/* Room again; the ACK of the last block we kept has the client resend the one we dropped. */
+			stalled = false;
+			receiveWindow.acknowledgeTimeout();
+			sendAck(receiveWindow.getLastInOrder());
+			timer.resend();
+			return;
+		}
+		attempts++;
+		if ((state == State.SENDING && attempts == DATA_ATTEMPTS) || (state == State.RECEIVING && attempts == ACK_ATTEMPTS)) {
+			metrics.addTimedOut();
+			log.message(sessionNumber, "Error with transfer: Time out");
+			finish(false);
+			return;
+		}
+		if (isVerbose()) { log.message(sessionNumber, "NioSession: Timeout. Attempting packet Retransmission.\n"); }
+		timer.retransmit();
+		if (state == State.SENDING && !negotiating) {
+			sendWindow();
+		} else if (state == State.RECEIVING && receiveWindow.isStarted()) {
+			/* ACK the last block received in order; the client resends the window from there. */
+			receiveWindow.acknowledgeTimeout();
+			putAck(receiveWindow.getLastInOrder());
+			transmit();
+		} else {
+			resend();
+		}
+	}
+
+	/**
+	 * Fills the send window from the file and sends every block in it.
+	 */
+	private void sendNextWindow() {
+		/* Blocks still in the window are being sent again. */
+		boolean resend = sendWindow.size() > 0;
+		try {
+			sendWindow.fill();
+		} catch (IOException e) {
+			e.printStackTrace();
+			log.message(sessionNumber, "Issue with transfer" + "File transfer could not be completed.");
+			finish(false);
+			return;
+		}
+		attempts = 0;
+		sendWindow();
+		if (resend) {
+			timer.resend();
+		} else {
+			timer.start();
+		}
+	}
+
+	/**
+	 * Sends every block in the send window and arms the retransmission deadline.
+	 */
+	private void sendWindow() {
+		for (int i = 0; i < sendWindow.size() && state != State.DONE; i++) {
+			send(sendWindow.getBuffer(i));
+		}
+		markFirstData();
+		retransmission.arm(timer.getTimeout());
+	}
+
+	/**
+	 * Records the time from the request to the first DATA packet, sent or
+	 * received, the first time it is called.
+	 */
+	private void markFirstData() {
+		if (!firstData) {
+			firstData = true;
+			metrics.addFirstData(System.nanoTime() - requestTime);
+		}
+	}
+
+	private void sendOACK() {
+		sendBuffer.clear();
+		sendBuffer.limit(TFTPPacket.putOack(sendBuffer.array(), 0, options));
+
+		attempts = 0;
+		transmit();
+		timer.start();
+	}
+
+	private void sendAck(int number) {
+		putAck(number);
+		attempts = 0;
+		transmit();
+	}
+
+	private void putAck(int number) {
+		sendBuffer.clear();
+		TFTPPacket.putAck(sendBuffer, number);
+		sendBuffer.flip();
+	}
+
+	private void resend() {
+		sendBuffer.rewind();
+		transmit();
+	}
+
+	/**
+	 * Sends the send buffer to the client and arms the retransmission deadline.
+	 */
+	private void transmit() {
+		send(sendBuffer);
+		int timeout = (state == State.SENDING) ? timer.getTimeout() : timer.getReceiveTimeout();
+		retransmission.arm(timeout);
+	}
+
+	private void send(ByteBuffer packet) {
+		if (isVerbose()) {
+			log.packet(sessionNumber, true, packet, client.getPort());
+		}
+		try {
+			channel.send(packet, client);
+		} catch (IOException e) {
+			e.printStackTrace();
+			finish(false);
+		}
+	}
+
+	private void sendErrorPacket(int errorCode, String errorMessage, InetSocketAddress address) {
+		/* Build byte array for packet. */
+		byte[] errorData = new byte[TFTPPacket.errorLength(errorMessage)];
+		TFTPPacket.putError(errorData, 0, errorCode, errorMessage);
+		metrics.addErrorSent(errorCode);
+
+		if (isVerbose()) {
+			log.message(sessionNumber, "Formulating error packet: " + errorMessage + ", with error code: " + errorCode);
+			log.packet(sessionNumber, true, new DatagramPacket(errorData, errorData.length, address));
+		}
+		try {
+			channel.send(ByteBuffer.wrap(errorData), address);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void finish(boolean success) {
+		boolean receiving = (state == State.RECEIVING);
+		completed = success;
+		close();
+		stats.finish();
+		if (isVerbose()) { log.message(sessionNumber, "NioSession: " + stats); }
+		if (success) {
+			log.message(sessionNumber, "File transfer completed successfully");
+		} else if (receiving) {
+			/* close() has deleted the partial upload. */
+			log.message(sessionNumber, "NioSession: Issue with transfer. File transfer could not be completed.");
+		}
+	}
+
+	/**
+	 * Releases the session's file and channel, or takes it off the loop's
+	 * shared channel. Safe to call more than once.
+	 */
+	public void close() {
+		if (state == State.DONE) { return; }
+		state = State.DONE;
+		if (retransmission != null) {
+			retransmission.cancel();
+			reaper.cancel();
+		}
+		if (started) {
+			stats.finish();
+			metrics.endTransfer(stats, completed);
+		}
+		if (loop != null) {
+			loop.removeSession(this);
+		}
+		/* Apart, so a reader that fails to close can't leave a partial upload behind. */
+		try {
+			if (in != null) { in.close(); in = null; }
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		try {
+			if (out != null) { out.close(); out = null; }
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		if (attached) {
+			/* The shared channel stays open for the other sessions on it. */
+			loop.detach(client, this);
+		} else {
+			if (key != null) { key.cancel(); }
+			try {
+				if (channel != null) { channel.close(); }
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		/* Last: whoever waits for the session to end finds its files closed and a failed upload's temporary file gone. */
+		if (onFinish != null) {
+			onFinish.run();
+		}
+	}
+
+	public boolean isDone() {
+		return state == State.DONE;
+	}
+
+	public static void toggleVerbosity() {
+		if (verbose == Verbose.ON) {
+			verbose = Verbose.OFF;
+		} else {
+			verbose = Verbose.ON;
+		}
+	}
+
+	public static boolean isVerbose() {
+		return (verbose == Verbose.ON);
+	}
+}
@@ -0,0 +1,419 @@
+/*  TFTPOptions.java
+ *
+ *  This class holds the options negotiated for a
+ *  transfer (RFC 2347). Options follow the mode
+ *  string of an RRQ / WRQ as pairs of null terminated
+ *  strings:
+ *
+ *   string   1 byte  string  1 byte  string  1 byte
+ *  ------------------------------------------------
+ *  |  mode  |  0  |  opt1  |  0  | value1 |  0  | ...
+ *  ------------------------------------------------
+ *
+ *  The server answers the options it accepts with an
+ *  OACK (opcode 6) in place of the first ACK / DATA,
+ *  and the client then uses the acknowledged values.
+ *  Unknown options are ignored, as the RFC requires.
+ *
+ *  Supported options:
+ *
+ *  blksize (RFC 2348): number of data bytes in each
+ *  DATA packet, from 8 up to 65464. The server may
+ *  answer with a smaller size than was asked for.
+ *
+ *  windowsize (RFC 7440): number of DATA packets the
+ *  sender may have in flight before it needs an ACK,
+ *  from 1 up to 65535. The server lowers requests
+ *  above 64, as the sender keeps a whole window of
+ *  blocks in memory for retransmission.
+ *
+ *  tsize (RFC 2349): size of the file in bytes. A
+ *  client sends 0 with an RRQ and the server answers
+ *  with the length of the file; with a WRQ the client
+ *  declares the length and the server echoes it. The
+ *  receiver uses it to check for space and
+ *  preallocate the file before the transfer starts.
+ *
+ *  timeout (RFC 2349): number of seconds, from 1 to
+ *  255, to wait before retransmitting. The server
+ *  either accepts the value as it is or ignores it.
+ *  Once agreed, it replaces the adaptive timeout of
+ *  TFTPRetransmitTimer for both sides.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class TFTPOptions {
+	/* Option names. */
+	public static final String BLKSIZE = "blksize";
+	public static final String WINDOWSIZE = "windowsize";
+	public static final String TSIZE = "tsize";
+	public static final String TIMEOUT = "timeout";
+
+	/* Block size limits. */
+	public static final int DEFAULT_BLOCK_SIZE = 512;
+	public static final int MIN_BLOCK_SIZE = 8;
+	public static final int MAX_BLOCK_SIZE = 65464;
+
+	/* Window size limits; the server never accepts more than MAX_ACCEPTED_WINDOW_SIZE. */
+	public static final int DEFAULT_WINDOW_SIZE = 1;
+	public static final int MAX_WINDOW_SIZE = 65535;
+	public static final int MAX_ACCEPTED_WINDOW_SIZE = 64;
+
+	/* Timeout limits, in seconds. */
+	public static final int MIN_TIMEOUT = 1;
+	public static final int MAX_TIMEOUT = 255;
+
+	/* Largest packet any transfer can produce (DATA header plus largest block). */
+	public static final int MAX_PACKET_SIZE = MAX_BLOCK_SIZE + 4;
+
+	/* Opcode of an option acknowledgement, and the error code for a refused negotiation. */
+	public static final int OACK = 6;
+	public static final int ERROR_CODE = 8;
+
+	private int blockSize;
+	private boolean blockSizeSet;
+	private int windowSize;
+	private boolean windowSizeSet;
+	private long transferSize;
+	private boolean transferSizeSet;
+	private int timeout;
+	private boolean timeoutSet;
+
+	/**
+	 * Creates a set of options with every value at its RFC 1350 default and
+	 * nothing to negotiate.
+	 */
+	public TFTPOptions() {
+		blockSize = DEFAULT_BLOCK_SIZE;
+		blockSizeSet = false;
+		windowSize = DEFAULT_WINDOW_SIZE;
+		windowSizeSet = false;
+		transferSize = -1;
+		transferSizeSet = false;
+		timeout = 0;
+		timeoutSet = false;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Sets the block size to request or acknowledge. A size equal to the
+	 * default is not negotiated at all.
+	 *
+	 * @param blockSize between MIN_BLOCK_SIZE and MAX_BLOCK_SIZE.
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+		blockSizeSet = (blockSize != DEFAULT_BLOCK_SIZE);
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Sets the window size to request or acknowledge. A window of one block
+	 * is plain RFC 1350 lock-step and is not negotiated at all.
+	 *
+	 * @param windowSize between 1 and MAX_WINDOW_SIZE.
+	 */
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+		windowSizeSet = (windowSize != DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Returns the size of the file in bytes, or -1 if it is not known.
+	 */
+	public long getTransferSize() {
+		return transferSize;
+	}
+
+	/**
+	 * Sets the file size to request or acknowledge: 0 in an RRQ, the length
+	 * of the file in a WRQ or in the server's OACK for an RRQ.
+	 *
+	 * @param transferSize in bytes, or -1 to not negotiate it.
+	 */
+	public void setTransferSize(long transferSize) {
+		this.transferSize = transferSize;
+		transferSizeSet = (transferSize >= 0);
+	}
+
+	/**
+	 * Returns the agreed retransmission timeout in seconds, or 0 if there is
+	 * none and the timeout is adaptive.
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Sets the retransmission timeout to request or acknowledge.
+	 *
+	 * @param timeout between MIN_TIMEOUT and MAX_TIMEOUT seconds, or 0 to not negotiate it.
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+		timeoutSet = (timeout != 0);
+	}
+
+	/**
+	 * Returns the size of a full DATA packet (header plus block).
+	 */
+	public int getPacketSize() {
+		return blockSize + 4;
+	}
+
+	/**
+	 * Returns true if any option needs to be sent (in a request) or
+	 * acknowledged (in an OACK).
+	 */
+	public boolean hasOptions() {
+		return blockSizeSet || windowSizeSet || transferSizeSet || timeoutSet;
+	}
+
+	/**
+	 * Returns the index just past the mode string of an RRQ / WRQ, which is
+	 * where its options start, or -1 if the filename or mode is not null
+	 * terminated.
+	 *
+	 * @param data of the request packet.
+	 * @param length of the request packet.
+	 */
+	public static int optionsOffset(byte[] data, int length) {
+		int zeros = 0;
+		for (int i = 2; i < length; i++) {
+			if (data[i] == 0 && ++zeros == 2) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses option / value pairs. Option names are not case sensitive and
+	 * are returned in lower case.
+	 *
+	 * @param data of the packet.
+	 * @param offset index of the first option name.
+	 * @param length of the packet.
+	 * @return the options in the order they were given, or null if they are malformed.
+	 */
+	public static Map<String, String> parse(byte[] data, int offset, int length) {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		int i = offset;
+		while (i < length) {
+			int nameEnd = i;
+			while (nameEnd < length && data[nameEnd] != 0) { nameEnd++; }
+			int valueEnd = nameEnd + 1;
+			while (valueEnd < length && data[valueEnd] != 0) { valueEnd++; }
+			if (nameEnd == i || valueEnd >= length) {
+				return null;
+			}
+			String name = new String(data, i, nameEnd - i).toLowerCase();
+			options.put(name, new String(data, nameEnd + 1, valueEnd - nameEnd - 1));
+			i = valueEnd + 1;
+		}
+		return options;
+	}
+
+	/**
+	 * Describes the options in a packet for the verbose printouts.
+	 *
+	 * @param data of the packet.
+	 * @param offset index of the first option name.
+	 * @param length of the packet.
+	 */
+	public static String describe(byte[] data, int offset, int length) {
+		if (offset >= length) {
+			return "none";
+		}
+		Map<String, String> options = parse(data, offset, length);
+		if (options == null) {
+			return "malformed";
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			if (sb.length() > 0) { sb.append(", "); }
+			sb.append(option.getKey()).append('=').append(option.getValue());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Server side: decides which of the options a client requested are
+	 * accepted. Values the server can't honour are lowered or ignored.
+	 *
+	 * @param requested options parsed from the RRQ / WRQ.
+	 * @return the options to acknowledge and use for the transfer.
+	 */
+	public static TFTPOptions negotiate(Map<String, String> requested) {
+		TFTPOptions options = new TFTPOptions();
+		if (requested.containsKey(BLKSIZE)) {
+			int size = parseNumber(requested.get(BLKSIZE));
+			if (size >= MIN_BLOCK_SIZE) {
+				options.setBlockSize(Math.min(size, MAX_BLOCK_SIZE));
+				options.blockSizeSet = true;
+			}
+		}
+		if (requested.containsKey(WINDOWSIZE)) {
+			int size = parseNumber(requested.get(WINDOWSIZE));
+			if (size >= 1 && size <= MAX_WINDOW_SIZE) {
+				options.setWindowSize(Math.min(size, MAX_ACCEPTED_WINDOW_SIZE));
+				options.windowSizeSet = true;
+			}
+		}
+		if (requested.containsKey(TSIZE)) {
+			/* The declared length of a WRQ; the server replaces it with the file's length for an RRQ. */
+			options.setTransferSize(parseLong(requested.get(TSIZE)));
+		}
+		if (requested.containsKey(TIMEOUT)) {
+			int seconds = parseNumber(requested.get(TIMEOUT));
+			if (seconds >= MIN_TIMEOUT && seconds <= MAX_TIMEOUT) {
+				options.setTimeout(seconds);
+			}
+		}
+		return options;
+	}
+
+	/**
+	 * Client side: checks a server's OACK against what was requested. A
+	 * server may only acknowledge options that were asked for, may only
+	 * lower the block and window sizes, and must not change the timeout.
+	 *
+	 * @param acknowledged options parsed from the OACK.
+	 * @param requested options sent in the RRQ / WRQ.
+	 * @return the options to use for the transfer, or null if the OACK is invalid.
+	 */
+	public static TFTPOptions accept(Map<String, String> acknowledged, TFTPOptions requested) {
+		TFTPOptions options = new TFTPOptions();
+		for (Map.Entry<String, String> option : acknowledged.entrySet()) {
+			if (option.getKey().equals(BLKSIZE) && requested.blockSizeSet) {
+				int size = parseNumber(option.getValue());
+				if (size < MIN_BLOCK_SIZE || size > requested.blockSize) {
+					return null;
+				}
+				options.setBlockSize(size);
+			} else if (option.getKey().equals(WINDOWSIZE) && requested.windowSizeSet) {
+				int size = parseNumber(option.getValue());
+				if (size < 1 || size > requested.windowSize) {
+					return null;
+				}
+				options.setWindowSize(size);
+			} else if (option.getKey().equals(TSIZE) && requested.transferSizeSet) {
+				long size = parseLong(option.getValue());
+				if (size < 0) {
+					return null;
+				}
+				options.setTransferSize(size);
+			} else if (option.getKey().equals(TIMEOUT) && requested.timeoutSet) {
+				if (parseNumber(option.getValue()) != requested.timeout) {
+					return null;
+				}
+				options.setTimeout(requested.timeout);
+			} else {
+				return null;
+			}
+		}
+		return options;
+	}
+
+	/**
+	 * Writes the options as name / value pairs.
+	 *
+	 * @param msg to write into, which must have room for the options.
+	 * @param offset to start writing at.
+	 * @return the index just past the last option written.
+	 */
+	public int write(byte[] msg, int offset) {
+		if (blockSizeSet) {
+			offset = writePair(msg, offset, BLKSIZE, blockSize);
+		}
+		if (windowSizeSet) {
+			offset = writePair(msg, offset, WINDOWSIZE, windowSize);
+		}
+		if (transferSizeSet) {
+			offset = writePair(msg, offset, TSIZE, transferSize);
+		}
+		if (timeoutSet) {
+			offset = writePair(msg, offset, TIMEOUT, timeout);
+		}
+		return offset;
+	}
+
+	/**
+	 * Builds an OACK packet acknowledging these options.
+	 *
+	 * @return the bytes of the OACK packet.
+	 */
+	public byte[] toOACK() {
+		byte[] msg = new byte[2 + length()];
+		TFTPPacket.putOack(msg, 0, this);
+		return msg;
+	}
+
+	/**
+	 * Returns the number of bytes write() will produce.
+	 */
+	public int length() {
+		int length = 0;
+		if (blockSizeSet) {
+			length += BLKSIZE.length() + TFTPPacket.digits(blockSize) + 2;
+		}
+		if (windowSizeSet) {
+			length += WINDOWSIZE.length() + TFTPPacket.digits(windowSize) + 2;
+		}
+		if (transferSizeSet) {
+			length += TSIZE.length() + TFTPPacket.digits(transferSize) + 2;
+		}
+		if (timeoutSet) {
+			length += TIMEOUT.length() + TFTPPacket.digits(timeout) + 2;
+		}
+		return length;
+	}
+
+	private static int writePair(byte[] msg, int offset, String name, long value) {
+		offset = TFTPPacket.putString(msg, offset, name);
+		return TFTPPacket.putNumber(msg, offset, value);
+	}
+
+	private static int parseNumber(String value) {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static long parseLong(String value) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public String toString() {
+		if (!hasOptions()) {
+			return "none";
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(BLKSIZE).append('=').append(blockSize).append(", ").append(WINDOWSIZE).append('=').append(windowSize);
+		if (transferSizeSet) {
+			sb.append(", ").append(TSIZE).append('=').append(transferSize);
+		}
+		if (timeoutSet) {
+			sb.append(", ").append(TIMEOUT).append('=').append(timeout);
+		}
+		return sb.toString();
+	}
+}
@@ -1,19 +1,37 @@
 /*  TFTPPacket.java
- *  
- *  This class is used to create data packets for 
- *  transfers. It will store details of the packet and
- *  can be used to print data contained in the packet.
- *  
+ *
+ *  This class is the packet codec shared by the
+ *  client, the server and the error simulator.
+ *
+ *  A TFTPPacket is a view over a packet that is
+ *  already in a byte array, a DatagramPacket or a
+ *  ByteBuffer. It reads the opcode, block number,
+ *  error code, filename, mode and options in place,
+ *  without copying the packet or building Strings, so
+ *  one view can be kept per connection and wrapped
+ *  around every packet it receives. Only the methods
+ *  that return a String (getFilename(),
+ *  getErrorMessage(), toString()) allocate.
+ *
+ *  The static put methods write DATA headers, ACK,
+ *  ERROR and OACK packets into a buffer supplied by
+ *  the caller, and return where they stopped, so a
+ *  connection can build its packets in buffers it
+ *  keeps for the whole transfer.
+ *
+ *  A view is not safe to share between threads; each
+ *  thread keeps its own.
+ *
  *  Author:         Team 12 (Group Project - SYSC3303)
  *  Date:           5/19/2017
  */
 
 import java.net.DatagramPacket;
-import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class TFTPPacket {
 	public static enum OPCODE {
-		RRQ(1), WRQ(2), DATA(3), ACK(4), ERROR(5);
+		RRQ(1), WRQ(2), DATA(3), ACK(4), ERROR(5), OACK(6);
 
 		private final int id;
 		OPCODE(int id) {this.id = id;}
@@ -24,103 +42,480 @@ public class TFTPPacket {
 	public static final int MAX_PACKET_SIZE = 516;
 	public static final int MAX_SEGMENT_SIZE = 512;
 
-	private DatagramPacket packet;
+	/* Opcode and block number (or error code) at the start of DATA, ACK and ERROR packets. */
+	public static final int HEADER_SIZE = 4;
 
+	/* Opcodes by value, less one; values() would copy the array on every call. */
+	private static final OPCODE[] TYPES = OPCODE.values();
 
-	public TFTPPacket(byte[] data, int len) {
-		packet = new DatagramPacket(data, len);
+	/* Transfer modes of RFC 1350 that the server accepts. */
+	private static final String NETASCII = "netascii";
+	private static final String OCTET = "octet";
+
+	/* Characters a filename may not contain. */
+	private static final String INVALID_FILENAME_CHARACTERS = "/\\:*?\"<>|";
+
+	/* The packet viewed: either an array or a buffer, from offset for length bytes. */
+	private byte[] array;
+	private ByteBuffer buffer;
+	private int offset;
+	private int length;
+
+	/* Where the filename and mode of a request end, found the first time they are needed. */
+	private static final int UNKNOWN = -2;
+	private int filenameEnd;
+	private int modeEnd;
+
+	/**
+	 * Creates a view that isn't over any packet yet; wrap() one before reading.
+	 */
+	public TFTPPacket() {
+	}
+
+	/**
+	 * Views length bytes of an array, from offset.
+	 *
+	 * @return this view.
+	 */
+	public TFTPPacket wrap(byte[] data, int offset, int length) {
+		array = data;
+		buffer = null;
+		this.offset = offset;
+		this.length = length;
+		filenameEnd = UNKNOWN;
+		modeEnd = UNKNOWN;
+		return this;
+	}
+
+	/**
+	 * Views the data of a received or built DatagramPacket.
+	 *
+	 * @return this view.
+	 */
+	public TFTPPacket wrap(DatagramPacket packet) {
+		return wrap(packet.getData(), packet.getOffset(), packet.getLength());
+	}
+
+	/**
+	 * Views a buffer from its position to its limit. The buffer's position
+	 * isn't moved, and it may be direct.
+	 *
+	 * @return this view.
+	 */
+	public TFTPPacket wrap(ByteBuffer packet) {
+		array = null;
+		buffer = packet;
+		offset = packet.position();
+		length = packet.remaining();
+		filenameEnd = UNKNOWN;
+		modeEnd = UNKNOWN;
+		return this;
+	}
+
+	/**
+	 * Returns the length of the packet in bytes.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Returns the unsigned byte at an index of the packet.
+	 */
+	public int get(int index) {
+		return (array != null ? array[offset + index] : buffer.get(offset + index)) & 0xFF;
+	}
+
+	/**
+	 * Returns the two byte opcode, or -1 if the packet is too short to have one.
+	 */
+	public int getOpcode() {
+		if (length < 2) {
+			return -1;
+		}
+		return (get(0) << 8) | get(1);
+	}
+
+	/**
+	 * Returns the opcode as an OPCODE, or null if it isn't one.
+	 */
+	public OPCODE getType() {
+		int opcode = getOpcode();
+		return (opcode >= 1 && opcode <= TYPES.length) ? TYPES[opcode - 1] : null;
+	}
+
+	public boolean is(OPCODE type) {
+		return getOpcode() == type.value();
+	}
+
+	/**
+	 * Returns true for an RRQ or WRQ.
+	 */
+	public boolean isRequest() {
+		int opcode = getOpcode();
+		return opcode == OPCODE.RRQ.value() || opcode == OPCODE.WRQ.value();
+	}
+
+	/**
+	 * Returns the block number of a DATA or ACK packet, or -1 if the packet is
+	 * too short to have one.
+	 */
+	public int getBlock() {
+		if (length < HEADER_SIZE) {
+			return -1;
+		}
+		return (get(2) << 8) | get(3);
+	}
+
+	/**
+	 * Returns the error code of an ERROR packet, or -1 if the packet is too
+	 * short to have one.
+	 */
+	public int getErrorCode() {
+		return getBlock();
+	}
+
+	/**
+	 * Returns the message of an ERROR packet, up to its terminating zero or
+	 * the end of the packet.
+	 */
+	public String getErrorMessage() {
+		if (length <= HEADER_SIZE) {
+			return "";
+		}
+		int end = find(HEADER_SIZE);
+		return string(HEADER_SIZE, (end < 0 ? length : end) - HEADER_SIZE);
+	}
+
+	/**
+	 * Returns the index of the first zero at or after an index, or -1 if the
+	 * rest of the packet has none.
+	 */
+	private int find(int from) {
+		for (int i = from; i < length; i++) {
+			if (get(i) == 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the zero that ends the filename of an RRQ / WRQ,
+	 * or -1 if there is none.
+	 */
+	public int getFilenameEnd() {
+		if (filenameEnd == UNKNOWN) {
+			filenameEnd = find(2);
+		}
+		return filenameEnd;
+	}
+
+	/**
+	 * Returns the index of the zero that ends the mode of an RRQ / WRQ, or -1
+	 * if the filename or mode isn't terminated.
+	 */
+	public int getModeEnd() {
+		if (modeEnd == UNKNOWN) {
+			int filenameEnd = getFilenameEnd();
+			modeEnd = (filenameEnd < 0) ? -1 : find(filenameEnd + 1);
+		}
+		return modeEnd;
+	}
+
+	/**
+	 * Returns the index just past the mode of an RRQ / WRQ, where its options
+	 * start, or -1 if the filename or mode isn't terminated.
+	 */
+	public int getOptionsOffset() {
+		int modeEnd = getModeEnd();
+		return (modeEnd < 0) ? -1 : modeEnd + 1;
+	}
+
+	/**
+	 * Returns the filename of an RRQ / WRQ, up to its terminating zero or the
+	 * end of the packet.
+	 */
+	public String getFilename() {
+		int end = getFilenameEnd();
+		return string(2, (end < 0 ? length : end) - 2);
+	}
+
+	/**
+	 * Returns true if the filename of an RRQ / WRQ isn't blank and has none of
+	 * the characters Windows doesn't allow in filenames.
+	 */
+	public boolean isFilenameValid() {
+		int end = getFilenameEnd();
+		if (end < 0) {
+			end = length;
+		}
+		boolean blank = true;
+		for (int i = 2; i < end; i++) {
+			int c = get(i);
+			if (c > ' ') {
+				blank = false;
+			}
+			if (INVALID_FILENAME_CHARACTERS.indexOf(c) != -1) {
+				return false;
+			}
+		}
+		return !blank;
+	}
+
+	/**
+	 * Returns true if the mode of an RRQ / WRQ is terminated and is netascii
+	 * or octet.
+	 */
+	public boolean isModeValid() {
+		int filenameEnd = getFilenameEnd();
+		int modeEnd = getModeEnd();
+		if (modeEnd < 0) {
+			return false;
+		}
+		return equals(filenameEnd + 1, modeEnd, NETASCII, false) || equals(filenameEnd + 1, modeEnd, OCTET, false);
 	}
 
-	public TFTPPacket(byte[] data, int len, InetAddress addr, int port) {
-		packet = new DatagramPacket(data, len, addr, port);
+	/**
+	 * Returns true if everything after the mode of an RRQ / WRQ (or after
+	 * the opcode of an OACK) is well formed option / value pairs, none empty.
+	 *
+	 * @param from index of the first option name.
+	 */
+	public boolean hasValidOptions(int from) {
+		if (from < 0) {
+			return false;
+		}
+		for (int at = from; at < length; at = nextOption(at)) {
+			if (at < 0 || get(at) == 0) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
-	 * Function to print details of a packet
+	 * Returns the index of the option name after the option / value pair at
+	 * an index, which is the length of the packet after the last pair, or -1
+	 * if the pair isn't terminated.
 	 *
+	 * @param at index of an option name.
 	 */
-	@SuppressWarnings("unused")
-	private void printPacketData(){
-		int op = packet.getData()[1];
-
-		if(op == OPCODE.RRQ.value()){
-			System.out.println("Packet Type: RRQ");
-		} else if(op == OPCODE.WRQ.value()){
-			System.out.println("Packet Type: WRQ");
-		} else if(op == OPCODE.DATA.value()){
-			System.out.println("Packet Type: DATA");
-		} else if(op == OPCODE.ACK.value()){
-			System.out.println("Packet Type: ACK");
-		} else if(op == OPCODE.ERROR.value()){
-			System.out.println("Packet Type: ERROR");
-		} else {
-			System.out.println("ERROR: packet sent with unknown opcode");
-		}
-
-		System.out.println("Host port: " + packet.getPort());
-		System.out.println("Length: " + packet.getLength());
-
-		if((op == OPCODE.RRQ.value()) || (op == OPCODE.WRQ.value())){
-			System.out.print("Filename: ");
-			int i = 2;
-			byte fName[] = new byte[packet.getLength()];
-			byte mode[] = new byte[packet.getLength()];
-			while(packet.getData()[i] != 0){
-				fName[i-2] = packet.getData()[i];
-				i++;
+	public int nextOption(int at) {
+		int nameEnd = find(at);
+		if (nameEnd < 0) {
+			return -1;
+		}
+		int valueEnd = find(nameEnd + 1);
+		return (valueEnd < 0) ? -1 : valueEnd + 1;
+	}
+
+	/**
+	 * Returns true if the option name at an index is the given one, which
+	 * must be in lower case. Option names are not case sensitive.
+	 *
+	 * @param at index of an option name.
+	 */
+	public boolean isOption(int at, String name) {
+		int nameEnd = find(at);
+		return nameEnd >= 0 && equals(at, nameEnd, name, true);
+	}
+
+	/**
+	 * Returns the value of the option at an index as a number, or -1 if it
+	 * isn't one.
+	 *
+	 * @param at index of an option name.
+	 */
+	public long getOptionValue(int at) {
+		int nameEnd = find(at);
+		if (nameEnd < 0) {
+			return -1;
+		}
+		int valueEnd = find(nameEnd + 1);
+		if (valueEnd < 0 || valueEnd == nameEnd + 1 || valueEnd - nameEnd - 1 > 18) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = nameEnd + 1; i < valueEnd; i++) {
+			int c = get(i);
+			if (c < '0' || c > '9') {
+				return -1;
 			}
-			System.out.println(new String(fName));
-			System.out.print("Mode: ");
-			i++;
-			int j = 0;
-			while(packet.getData()[i] != 0){
-				mode[j] = packet.getData()[i];
-				i++;
-				j++;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Compares the bytes from an index up to another with a String of ASCII
+	 * characters.
+	 *
+	 * @param ignoreCase true to compare letters in either case with the
+	 *        lower case letters of the String.
+	 */
+	private boolean equals(int from, int to, String s, boolean ignoreCase) {
+		if (to - from != s.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			int c = get(from + i);
+			if (ignoreCase && c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
 			}
-			System.out.println(new String(mode));
-		}
-
-		if((op == OPCODE.ACK.value()) || (op == OPCODE.DATA.value())){
-			System.out.print("Packet Number: ");
-			// Extracts and prints packet number
-			// Takes second 2 bytes of packet, shift MSB 8 bits left, bitmask then add.
-			System.out.println((((int) (packet.getData()[2] & 0xFF)) << 8) + (((int) packet.getData()[3]) & 0xFF));
-		}
-
-		if(op == OPCODE.DATA.value()){
-			System.out.println("Number of byte of data: " + (packet.getLength()-4));
-		}
-
-
-		if(op == OPCODE.ERROR.value()) {
-			// TODO are these codes correct?
-			System.out.println("Error code information: ");
-			if(packet.getData()[3] == 0){
-				System.out.println("Error code: 0");
-				System.out.println("Not defined, see error message (if any).");
-			} else if(packet.getData()[3] == 1){
-				System.out.println("Error code: 1");
-				System.out.println("File not found.");
-			} else if(packet.getData()[3] == 2){
-				System.out.println("Error code: 2");
-				System.out.println("Access violation.");
-			} else if(packet.getData()[3] == 3){
-				System.out.println("Error code: 3");
-				System.out.println("Disk full or allocation exceeded.");
-			} else if(packet.getData()[3] == 4){
-				System.out.println("Error code: 4");
-				System.out.println("Illegal TFTP operation.");
-			} else if(packet.getData()[3] == 5){
-				System.out.println("Error code: 5");
-				System.out.println("Unknown transfer ID.");
-			} else if(packet.getData()[3] == 6){
-				System.out.println("Error code: 6");
-				System.out.println("File already exists.");
-			} else if(packet.getData()[3] == 7){
-				System.out.println("Error code: 7");
-				System.out.println("No such user.");
+			if (c != s.charAt(i)) {
+				return false;
 			}
-		}	
+		}
+		return true;
+	}
+
+	private String string(int from, int count) {
+		if (array != null) {
+			return new String(array, offset + from, count);
+		}
+		byte[] copy = new byte[count];
+		for (int i = 0; i < count; i++) {
+			copy[i] = buffer.get(offset + from + i);
+		}
+		return new String(copy);
+	}
+
+	/**
+	 * Describes the packet for the verbose printouts.
+	 */
+	@Override
+	public String toString() {
+		OPCODE type = getType();
+		if (type == null) {
+			return "unknown packet, opcode " + getOpcode() + ", " + length + " bytes";
+		}
+		switch (type) {
+		case RRQ:
+		case WRQ:
+			return type + " " + getFilename() + ", " + length + " bytes";
+		case DATA:
+			return "DATA " + getBlock() + ", " + (length - HEADER_SIZE) + " bytes of data";
+		case ACK:
+			return "ACK " + getBlock();
+		case ERROR:
+			return "ERROR " + getErrorCode() + ": " + getErrorMessage();
+		default:
+			return type + ", " + length + " bytes";
+		}
+	}
+
+	/**
+	 * Writes the header of a DATA packet. The data goes after it, at offset + HEADER_SIZE.
+	 *
+	 * @return the index just past the header.
+	 */
+	public static int putDataHeader(byte[] packet, int offset, int block) {
+		return putHeader(packet, offset, OPCODE.DATA.value(), block);
+	}
+
+	/**
+	 * Writes an ACK packet.
+	 *
+	 * @return the index just past the packet.
+	 */
+	public static int putAck(byte[] packet, int offset, int block) {
+		return putHeader(packet, offset, OPCODE.ACK.value(), block);
+	}
+
+	/**
+	 * Writes an ACK packet at the buffer's position, moving it past the packet.
+	 */
+	public static void putAck(ByteBuffer packet, int block) {
+		packet.put((byte) 0).put((byte) OPCODE.ACK.value()).put((byte) (block >>> 8)).put((byte) block);
+	}
+
+	/**
+	 * Writes an ERROR packet. The message must be ASCII.
+	 *
+	 * @return the index just past the packet.
+	 */
+	public static int putError(byte[] packet, int offset, int code, String message) {
+		offset = putHeader(packet, offset, OPCODE.ERROR.value(), code);
+		return putString(packet, offset, message);
+	}
+
+	/**
+	 * Writes an ERROR packet at the buffer's position, moving it past the
+	 * packet. The message must be ASCII.
+	 */
+	public static void putError(ByteBuffer packet, int code, String message) {
+		packet.put((byte) 0).put((byte) OPCODE.ERROR.value()).put((byte) (code >>> 8)).put((byte) code);
+		for (int i = 0; i < message.length(); i++) {
+			packet.put((byte) message.charAt(i));
+		}
+		packet.put((byte) 0);
+	}
+
+	/**
+	 * Returns the length of an ERROR packet with the given message.
+	 */
+	public static int errorLength(String message) {
+		return HEADER_SIZE + message.length() + 1;
+	}
+
+	/**
+	 * Writes an OACK packet acknowledging some options.
+	 *
+	 * @param packet with room for 2 + options.length() bytes from offset.
+	 * @return the index just past the packet.
+	 */
+	public static int putOack(byte[] packet, int offset, TFTPOptions options) {
+		packet[offset] = 0;
+		packet[offset + 1] = (byte) OPCODE.OACK.value();
+		return options.write(packet, offset + 2);
+	}
+
+	/**
+	 * Writes a String of ASCII characters and the zero that ends it.
+	 *
+	 * @return the index just past the zero.
+	 */
+	public static int putString(byte[] packet, int offset, String s) {
+		for (int i = 0; i < s.length(); i++) {
+			packet[offset++] = (byte) s.charAt(i);
+		}
+		packet[offset++] = 0;
+		return offset;
+	}
+
+	/**
+	 * Writes a number that isn't negative in decimal, and the zero that ends it.
+	 *
+	 * @return the index just past the zero.
+	 */
+	public static int putNumber(byte[] packet, int offset, long n) {
+		int end = offset + digits(n);
+		for (int i = end - 1; i >= offset; i--) {
+			packet[i] = (byte) ('0' + n % 10);
+			n /= 10;
+		}
+		packet[end] = 0;
+		return end + 1;
+	}
+
+	/**
+	 * Returns the number of decimal digits of a number that isn't negative.
+	 */
+	public static int digits(long n) {
+		int digits = 1;
+		while (n >= 10) {
+			n /= 10;
+			digits++;
+		}
+		return digits;
+	}
+
+	private static int putHeader(byte[] packet, int offset, int opcode, int number) {
+		packet[offset] = (byte) (opcode >>> 8);
+		packet[offset + 1] = (byte) opcode;
+		packet[offset + 2] = (byte) (number >>> 8);
+		packet[offset + 3] = (byte) number;
+		return offset + HEADER_SIZE;
 	}
 }
@@ -0,0 +1,295 @@
+/*  TFTPPacketImages.java
+ *
+ *  This class keeps ready-to-send copies of pinned
+ *  files in direct (off-heap) memory. An image of a
+ *  file is laid out as the file's DATA packets for one
+ *  block size, one after the other, each with its
+ *  opcode and block number already written. Sending a
+ *  block is then a slice of the image, with no copy
+ *  and nothing allocated, and the images stay out of
+ *  the garbage collected heap however large they are.
+ *
+ *  Files are pinned and unpinned with the PIN and
+ *  UNPIN console commands of the server. The image of
+ *  a pinned file for a block size is built the first
+ *  time a client reads it with that block size; when
+ *  many clients ask for it at once, it is built once
+ *  and the others wait for it. An image is rebuilt if
+ *  the file's size or modification time changes.
+ *
+ *  The images together are kept under a budget, which
+ *  can be changed with the IMAGES console command. A
+ *  pinned file that doesn't fit is sent the usual way.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+public class TFTPPacketImages {
+	/* Default budget, in bytes. */
+	public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+
+	private static final TFTPPacketImages shared = new TFTPPacketImages(DEFAULT_BUDGET);
+
+	/* Pinned paths, each with its images by block size. Guarded by this. */
+	private final Map<String, Map<Integer, Entry>> pinned = new HashMap<String, Map<Integer, Entry>>();
+	private long budget;
+	private long usedBytes;
+
+	/**
+	 * @param budget largest total size of the images in bytes.
+	 */
+	public TFTPPacketImages(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Returns the images shared by every transfer of the server.
+	 */
+	public static TFTPPacketImages getShared() {
+		return shared;
+	}
+
+	/**
+	 * Pins a file, so that it is sent from an image from now on.
+	 *
+	 * @param file to pin.
+	 * @return false if the file was already pinned.
+	 * @throws IOException if the file's path can't be resolved.
+	 */
+	public synchronized boolean pin(File file) throws IOException {
+		String path = file.getCanonicalPath();
+		if (pinned.containsKey(path)) {
+			return false;
+		}
+		pinned.put(path, new HashMap<Integer, Entry>());
+		return true;
+	}
+
+	/**
+	 * Unpins a file and drops its images. Transfers already sending from an
+	 * image finish with it; its memory is freed once they are done.
+	 *
+	 * @param file to unpin.
+	 * @return false if the file wasn't pinned.
+	 * @throws IOException if the file's path can't be resolved.
+	 */
+	public synchronized boolean unpin(File file) throws IOException {
+		Map<Integer, Entry> images = pinned.remove(file.getCanonicalPath());
+		if (images == null) {
+			return false;
+		}
+		for (Entry entry : images.values()) {
+			usedBytes -= entry.bytes;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the image of a pinned file for a block size, building it if
+	 * there isn't one yet.
+	 *
+	 * @param file to send.
+	 * @param blockSize negotiated for the transfer.
+	 * @return the image, or null if the file isn't pinned or its image doesn't fit the budget.
+	 * @throws IOException if the file can't be read.
+	 */
+	public Image get(File file, final int blockSize) throws IOException {
+		final File source = file.getCanonicalFile();
+		String path = source.getPath();
+		final long size = source.length();
+		final long modified = source.lastModified();
+
+		Entry entry;
+		boolean build = false;
+		synchronized (this) {
+			Map<Integer, Entry> images = pinned.get(path);
+			if (images == null) {
+				return null;
+			}
+			entry = images.get(blockSize);
+			if (entry != null && (entry.size != size || entry.modified != modified)) {
+				/* The file has changed since the image was built. */
+				images.remove(blockSize);
+				usedBytes -= entry.bytes;
+				entry = null;
+			}
+			if (entry == null) {
+				long bytes = Image.length(size, blockSize);
+				if (bytes > Integer.MAX_VALUE || usedBytes + bytes > budget) {
+					return null;
+				}
+				entry = new Entry(size, modified, bytes, new FutureTask<Image>(new Callable<Image>() {
+					@Override
+					public Image call() throws IOException {
+						return new Image(source, size, blockSize);
+					}
+				}));
+				images.put(blockSize, entry);
+				usedBytes += bytes;
+				build = true;
+			}
+		}
+
+		/* Only the first transfer to ask builds the image; the others wait for it. */
+		if (build) {
+			entry.image.run();
+		}
+		try {
+			return entry.image.get();
+		} catch (ExecutionException e) {
+			synchronized (this) {
+				Map<Integer, Entry> images = pinned.get(path);
+				if (images != null && images.get(blockSize) == entry) {
+					images.remove(blockSize);
+					usedBytes -= entry.bytes;
+				}
+			}
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the image to be built.", e);
+		}
+	}
+
+	/**
+	 * Sets the largest total size of the images. Images already built are
+	 * kept; new ones are only built while they fit.
+	 *
+	 * @param budget in bytes.
+	 */
+	public synchronized void setBudget(long budget) {
+		this.budget = budget;
+	}
+
+	public synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Returns the total size of the images, including any being built, in bytes.
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(pinned.size()).append(" pinned files, ").append(usedBytes).append(" of ").append(budget).append(" bytes");
+		for (Map.Entry<String, Map<Integer, Entry>> file : pinned.entrySet()) {
+			sb.append("\n  ").append(file.getKey()).append(", block sizes ").append(file.getValue().keySet());
+		}
+		return sb.toString();
+	}
+
+	/* An image, or one still being built, and the file it was built from. */
+	private static class Entry {
+		private final long size;
+		private final long modified;
+		private final long bytes;
+		private final FutureTask<Image> image;
+
+		private Entry(long size, long modified, long bytes, FutureTask<Image> image) {
+			this.size = size;
+			this.modified = modified;
+			this.bytes = bytes;
+			this.image = image;
+		}
+	}
+
+	/**
+	 * The DATA packets of a file for one block size, in direct memory. Block
+	 * n (counting from 1) starts at (n - 1) * (block size + 4). A file that
+	 * ends on a block boundary gets a final, empty block.
+	 */
+	public static class Image {
+		private final ByteBuffer packets;
+		private final long fileSize;
+		private final int blockSize;
+		private final long blocks;
+
+		private Image(File file, long fileSize, int blockSize) throws IOException {
+			this.fileSize = fileSize;
+			this.blockSize = blockSize;
+			blocks = fileSize / blockSize + 1;
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int) length(fileSize, blockSize));
+			FileChannel channel = new FileInputStream(file).getChannel();
+			try {
+				for (long block = 1; block <= blocks; block++) {
+					int start = getOffset(block);
+					int length = getLength(block);
+					buffer.put(start, (byte) 0);
+					buffer.put(start + 1, (byte) 3);
+					buffer.put(start + 2, (byte) (block >>> 8));
+					buffer.put(start + 3, (byte) block);
+					buffer.limit(start + length);
+					buffer.position(start + 4);
+					while (buffer.hasRemaining()) {
+						if (channel.read(buffer, (block - 1) * blockSize + buffer.position() - start - 4) < 0) {
+							throw new IOException("File ended before its image was built.");
+						}
+					}
+					buffer.clear();
+				}
+			} finally {
+				channel.close();
+			}
+			packets = buffer.asReadOnlyBuffer();
+		}
+
+		/**
+		 * Returns the size of the image of a file.
+		 */
+		private static long length(long fileSize, int blockSize) {
+			return (fileSize / blockSize) * (blockSize + 4) + fileSize % blockSize + 4;
+		}
+
+		/**
+		 * Returns a view of the whole image, with its own position and limit.
+		 */
+		public ByteBuffer view() {
+			return packets.duplicate();
+		}
+
+		/**
+		 * Returns where the DATA packet of a block starts in the image.
+		 *
+		 * @param block count, from 1.
+		 */
+		public int getOffset(long block) {
+			return (int) ((block - 1) * (blockSize + 4));
+		}
+
+		/**
+		 * Returns the length of the DATA packet of a block.
+		 *
+		 * @param block count, from 1.
+		 */
+		public int getLength(long block) {
+			return (block < blocks) ? blockSize + 4 : (int) (fileSize % blockSize) + 4;
+		}
+
+		public long getFileSize() {
+			return fileSize;
+		}
+
+		public int getBlockSize() {
+			return blockSize;
+		}
+	}
+}
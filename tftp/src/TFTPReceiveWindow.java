@@ -0,0 +1,154 @@
+/*  TFTPReceiveWindow.java
+ *
+ *  This class is used by the receiving side of a
+ *  transfer (the client for an RRQ, the server for a
+ *  WRQ) to decide when DATA packets are acknowledged
+ *  (RFC 7440). Blocks are only written in order. The
+ *  receiver sends one ACK per window, after the last
+ *  block of the window or the last block of the file.
+ *
+ *  A block from further on in the window means an
+ *  earlier one was lost. The receiver then ACKs the
+ *  last block it got in order, and the sender goes
+ *  back and sends the window again from the block
+ *  after it (go-back-N). Blocks that were already
+ *  written are answered the same way. When a window is
+ *  in use, only the first out-of-order block after an
+ *  in-order one is answered, so a resent window
+ *  doesn't produce a burst of ACKs (and a burst of
+ *  resent windows in reply).
+ *
+ *  With a window size of 1 every block is ACKed and
+ *  every duplicate is answered, as in RFC 1350.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+public class TFTPReceiveWindow {
+	/* How an incoming DATA packet relates to the blocks already received. */
+	public static enum Block {IN_ORDER, OUT_OF_ORDER, INVALID};
+
+	private int windowSize;
+	private int packetSize;
+
+	/* Block number of the next block to write. */
+	private int expected;
+
+	/* Blocks written since the last ACK. */
+	private int received;
+
+	private boolean started;
+	private boolean gapAcknowledged;
+	private boolean complete;
+
+	private TFTPTransferStats stats;
+
+	/**
+	 * @param packetSize negotiated size of a full DATA packet.
+	 * @param windowSize negotiated number of DATA packets per window.
+	 * @param stats of the transfer, which counts the blocks as they are written.
+	 */
+	public TFTPReceiveWindow(int packetSize, int windowSize, TFTPTransferStats stats) {
+		this.packetSize = packetSize;
+		this.stats = stats;
+		this.windowSize = windowSize;
+		expected = 1;
+		received = 0;
+		started = false;
+		gapAcknowledged = false;
+		complete = false;
+	}
+
+	/**
+	 * Classifies a DATA packet by its block number.
+	 *
+	 * @param blockNumber of the DATA packet.
+	 * @return IN_ORDER if it is the next block to write, OUT_OF_ORDER if it is
+	 *         a duplicate or arrived after a lost block, INVALID otherwise.
+	 */
+	public Block classify(int blockNumber) {
+		if (blockNumber == expected) {
+			return Block.IN_ORDER;
+		}
+		int ahead = (blockNumber - expected) & 0xFFFF;
+		int behind = (expected - blockNumber) & 0xFFFF;
+		if (ahead < windowSize || behind < 0x8000) {
+			return Block.OUT_OF_ORDER;
+		}
+		return Block.INVALID;
+	}
+
+	/**
+	 * Records the next block as written.
+	 *
+	 * @param length of the DATA packet.
+	 * @return true if the block must be acknowledged now.
+	 */
+	public boolean accept(int length) {
+		expected = (expected + 1) & 0xFFFF;
+		started = true;
+		gapAcknowledged = false;
+		complete = length < packetSize;
+		stats.addBlocks(1, length - 4);
+		received++;
+		if (received == windowSize || complete) {
+			received = 0;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Called for an OUT_OF_ORDER block.
+	 *
+	 * @return true if it should be answered with an ACK of the last block
+	 *         received in order.
+	 */
+	public boolean acknowledgeGap() {
+		if (windowSize > 1 && gapAcknowledged) {
+			return false;
+		}
+		gapAcknowledged = true;
+		received = 0;
+		return true;
+	}
+
+	/**
+	 * Called when the receiver times out waiting for a block. The ACK it sends
+	 * starts a new window at the next block.
+	 */
+	public void acknowledgeTimeout() {
+		received = 0;
+	}
+
+	/**
+	 * Returns the block number of the last block received in order.
+	 */
+	public int getLastInOrder() {
+		return (expected - 1) & 0xFFFF;
+	}
+
+	/**
+	 * Returns the block number of the next block to write.
+	 */
+	public int getExpected() {
+		return expected;
+	}
+
+	/**
+	 * Returns true once the first block has been written. Until then the
+	 * receiver's timeouts resend its last packet (the request, the OACK or
+	 * ACK 0) instead of an ACK of the last block.
+	 */
+	public boolean isStarted() {
+		return started;
+	}
+
+	/**
+	 * Returns true once the last block of the file has been written.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+}
@@ -0,0 +1,217 @@
+/*  TFTPRetransmitTimer.java
+ *
+ *  This class works out how long one side of a
+ *  transfer waits for a reply before it retransmits.
+ *  Instead of a fixed timeout, each transfer measures
+ *  the round trip time from sending a packet (or a
+ *  window of packets) to getting the reply to it, and
+ *  keeps a smoothed estimate the same way TCP does
+ *  (RFC 6298):
+ *
+ *  SRTT   = 7/8 SRTT + 1/8 R
+ *  RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|
+ *  RTO    = SRTT + 4 RTTVAR
+ *
+ *  Packets that had to be retransmitted are not
+ *  measured, since the reply could belong to either
+ *  copy (Karn's rule). Every timeout doubles the RTO
+ *  until a packet gets through without a
+ *  retransmission.
+ *
+ *  The sender of the DATA packets waits RTO. The
+ *  receiver waits twice as long, so that normally the
+ *  sender is the one that retransmits.
+ *
+ *  The RTO is kept between a minimum and a maximum.
+ *  The client's transfers share the ones set with its
+ *  RTO console command; a server's transfers use the
+ *  ones the server was built with, which its own RTO
+ *  console command changes. Transfers start at the
+ *  initial RTO until they have a measurement.
+ *
+ *  A timeout agreed with the RFC 2349 timeout option
+ *  fixes the RTO at that value for the transfer, with
+ *  no adaptation or backoff.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+public class TFTPRetransmitTimer {
+	/* Default bounds, in milliseconds. */
+	public static final int DEFAULT_MIN_TIMEOUT = 100;
+	public static final int DEFAULT_MAX_TIMEOUT = 10000;
+	public static final int DEFAULT_INITIAL_TIMEOUT = 1000;
+
+	/* Largest value any of the bounds may be set to, in milliseconds. */
+	public static final int TIMEOUT_LIMIT = 60000;
+
+	/* Configured bounds, in milliseconds. */
+	private static volatile int minTimeout = DEFAULT_MIN_TIMEOUT;
+	private static volatile int maxTimeout = DEFAULT_MAX_TIMEOUT;
+	private static volatile int initialTimeout = DEFAULT_INITIAL_TIMEOUT;
+
+	/* Bounds of this transfer, in milliseconds. */
+	private int min;
+	private int max;
+
+	/* Smoothed round trip time and its variation, in milliseconds. */
+	private double srtt;
+	private double rttvar;
+	private boolean measured;
+
+	/* Current timeout including any backoff, in milliseconds. */
+	private int rto;
+
+	/* When the packet being timed was sent, or -1 if none is. */
+	private long sentAt;
+	private boolean retransmitted;
+
+	private TFTPTransferStats stats;
+
+	/**
+	 * @param stats of the transfer, which records every measurement and retransmission.
+	 */
+	public TFTPRetransmitTimer(TFTPTransferStats stats) {
+		this(stats, minTimeout, maxTimeout, initialTimeout);
+	}
+
+	/**
+	 * Uses bounds of its own rather than the shared ones, for a server
+	 * configured with its own timeouts.
+	 *
+	 * @param stats of the transfer, which records every measurement and retransmission.
+	 * @param minTimeout in milliseconds.
+	 * @param maxTimeout in milliseconds.
+	 * @param initialTimeout in milliseconds, until there is a measurement.
+	 */
+	public TFTPRetransmitTimer(TFTPTransferStats stats, int minTimeout, int maxTimeout, int initialTimeout) {
+		this.stats = stats;
+		min = minTimeout;
+		max = maxTimeout;
+		rto = clamp(initialTimeout);
+		stats.setInitialTimeout(rto);
+		sentAt = -1;
+		retransmitted = false;
+	}
+
+	/**
+	 * Fixes the RTO of this transfer at a timeout agreed with the other side.
+	 *
+	 * @param timeout in milliseconds.
+	 */
+	public void fix(int timeout) {
+		min = timeout;
+		max = timeout;
+		rto = timeout;
+		stats.setInitialTimeout(rto);
+	}
+
+	/**
+	 * Called when a new packet (or window) is sent for the first time. Starts
+	 * timing the round trip.
+	 */
+	public void start() {
+		sentAt = System.nanoTime();
+		retransmitted = false;
+	}
+
+	/**
+	 * Called when the reply to the timed packet arrives. Updates the estimate,
+	 * unless the packet was retransmitted. Later calls before the next start()
+	 * are ignored.
+	 */
+	public void stop() {
+		if (sentAt < 0) {
+			return;
+		}
+		long micros = (System.nanoTime() - sentAt) / 1000;
+		sentAt = -1;
+		if (retransmitted) {
+			return;
+		}
+
+		double r = micros / 1000.0;
+		if (!measured) {
+			srtt = r;
+			rttvar = r / 2;
+			measured = true;
+		} else {
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - r);
+			srtt = 0.875 * srtt + 0.125 * r;
+		}
+		rto = clamp((int) Math.ceil(srtt + Math.max(1, 4 * rttvar)));
+		stats.addRoundTrip(micros, srtt, rto);
+	}
+
+	/**
+	 * Called when the wait for a reply timed out and the packet is about to be
+	 * sent again. Backs the timeout off.
+	 */
+	public void retransmit() {
+		retransmitted = true;
+		rto = clamp(rto * 2);
+		stats.addTimeout(rto);
+	}
+
+	/**
+	 * Called when packets are sent again before the timeout because the other
+	 * side asked for them (a repeated or partial ACK). Keeps the timeout, but
+	 * the reply is not measured.
+	 */
+	public void resend() {
+		sentAt = System.nanoTime();
+		retransmitted = true;
+		stats.addRetransmission();
+	}
+
+	/**
+	 * Returns how long the sender of the DATA packets waits for an ACK.
+	 */
+	public int getTimeout() {
+		return rto;
+	}
+
+	/**
+	 * Returns how long the receiver of the DATA packets waits for the next one.
+	 */
+	public int getReceiveTimeout() {
+		return clamp(rto * 2);
+	}
+
+	private int clamp(int timeout) {
+		return Math.max(min, Math.min(max, timeout));
+	}
+
+	/**
+	 * Sets the bounds of the RTO for transfers started from now on.
+	 *
+	 * @param min smallest RTO in milliseconds, at least 1.
+	 * @param max largest RTO in milliseconds, at least min.
+	 */
+	public static void setBounds(int min, int max) {
+		minTimeout = min;
+		maxTimeout = max;
+	}
+
+	/**
+	 * Sets the RTO a transfer starts with, before it has measured anything.
+	 *
+	 * @param initial RTO in milliseconds.
+	 */
+	public static void setInitialTimeout(int initial) {
+		initialTimeout = initial;
+	}
+
+	public static int getMinTimeout() {
+		return minTimeout;
+	}
+
+	public static int getMaxTimeout() {
+		return maxTimeout;
+	}
+
+	public static int getInitialTimeout() {
+		return initialTimeout;
+	}
+}
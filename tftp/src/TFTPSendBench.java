@@ -0,0 +1,195 @@
+/*  TFTPSendBench.java
+ *
+ *  This class checks that the server sends the DATA
+ *  packets of an RRQ without allocating. It starts a
+ *  server in the same JVM, in thread-per-transfer mode
+ *  on a port selected by the host, and reads a file
+ *  from it with a TFTPAsyncClient, with the block size
+ *  and window size given. Once the transfer has sent a
+ *  number of blocks to warm up, it counts the bytes
+ *  allocated by the connection's thread over the next
+ *  blocks, and divides them by the blocks the server
+ *  sent meanwhile (from TFTPMetrics).
+ *
+ *  The file is read twice: with positional FileChannel
+ *  reads, and from a memory-mapped buffer (see
+ *  TFTPFileReader). Each run passes if the connection
+ *  allocated less than LIMIT bytes per block, which
+ *  leaves room for the odd allocation of the JDK but
+ *  not for anything done on every block. The
+ *  benchmark exits with status 1 if a run failed, or
+ *  if the JVM can't count the bytes a thread
+ *  allocates.
+ *
+ *  Usage: TFTPSendBench [measured blocks] [warm-up blocks] [block size] [window size]
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+
+public class TFTPSendBench {
+	/* File the transfers read, in the server directory. */
+	private static final String BENCH_FILE = "sendbench.bin";
+
+	/* Most bytes a connection may allocate per block sent for a run to pass. */
+	private static final double LIMIT = 1.0;
+
+	/* How often the blocks sent are looked at, in milliseconds. */
+	private static final int POLL = 1;
+
+	/* Longest wait for the transfer to get to a count of blocks, in milliseconds. */
+	private static final int STALL_LIMIT = 10000;
+
+	/* The downloaded file is thrown away. */
+	private static final OutputStream DISCARD = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	/**
+	 * Returns the bytes allocated so far by a thread, or -1 if the JVM can't tell.
+	 */
+	private static long allocatedBytes(Thread thread) {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(thread.getId());
+	}
+
+	/**
+	 * Returns the thread of the connection running, or null if there is none.
+	 */
+	private static Thread findConnection() {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread instanceof TFTPClientConnection && thread.isAlive()) {
+				return thread;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Waits until the server has sent a number of blocks, counted from the
+	 * server-wide metrics.
+	 *
+	 * @throws IOException if the transfer ends or stalls first.
+	 */
+	private static void awaitBlocks(TFTPAsyncClient.Transfer transfer, long blocks) throws IOException, InterruptedException {
+		TFTPMetrics metrics = TFTPMetrics.getShared();
+		long deadline = System.currentTimeMillis() + STALL_LIMIT;
+		long last = metrics.getBlocks();
+		while (last < blocks) {
+			if (transfer.isDone()) {
+				throw new IOException("The transfer ended after " + last + " blocks.");
+			}
+			Thread.sleep(POLL);
+			long now = metrics.getBlocks();
+			if (now != last) {
+				last = now;
+				deadline = System.currentTimeMillis() + STALL_LIMIT;
+			} else if (System.currentTimeMillis() > deadline) {
+				throw new IOException("The transfer stalled after " + last + " blocks.");
+			}
+		}
+	}
+
+	/**
+	 * Reads the file once and measures the connection's allocations.
+	 *
+	 * @return true if the run passed.
+	 */
+	private static boolean measure(String name, TFTPAsyncClient client, InetSocketAddress server, long warmUp, long measured)
+			throws IOException, InterruptedException {
+		TFTPMetrics metrics = TFTPMetrics.getShared();
+		long base = metrics.getBlocks();
+		TFTPAsyncClient.Transfer transfer = client.get(server, BENCH_FILE, DISCARD);
+		try {
+			awaitBlocks(transfer, base + warmUp);
+			Thread connection = findConnection();
+			if (connection == null) {
+				throw new IOException("No connection thread found.");
+			}
+			long blocksBefore = metrics.getBlocks();
+			long allocatedBefore = allocatedBytes(connection);
+			awaitBlocks(transfer, blocksBefore + measured);
+			long allocated = allocatedBytes(connection) - allocatedBefore;
+			long blocks = metrics.getBlocks() - blocksBefore;
+
+			double perBlock = (double) allocated / blocks;
+			boolean passed = perBlock < LIMIT;
+			System.out.println(String.format("  %-20s %10d blocks %12d bytes allocated %8.3f bytes/block  %s",
+					name, blocks, allocated, perBlock, passed ? "OK" : "FAILED"));
+
+			/* The rest of the file isn't needed; the connection ends on the Error Code 0. */
+			transfer.cancel(true);
+			connection.join(STALL_LIMIT);
+			return passed;
+		} finally {
+			transfer.cancel(true);
+		}
+	}
+
+	public static void main(String args[]) throws IOException, InterruptedException {
+		long measured = (args.length > 0) ? Long.parseLong(args[0]) : 50000;
+		long warmUp = (args.length > 1) ? Long.parseLong(args[1]) : 20000;
+		int blockSize = (args.length > 2) ? Integer.parseInt(args[2]) : TFTPAsyncClient.DEFAULT_BLOCK_SIZE;
+		int windowSize = (args.length > 3) ? Integer.parseInt(args[3]) : TFTPAsyncClient.DEFAULT_WINDOW_SIZE;
+
+		if (allocatedBytes(Thread.currentThread()) < 0) {
+			System.out.println("This JVM can't count the bytes a thread allocates.");
+			System.exit(1);
+		}
+
+		TFTPServer server = TFTPServer.builder().port(0).mode(ServerMode.THREAD).build();
+		server.start();
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+
+		/* Long enough that the transfer is still sending once the measurement is over. */
+		File file = new File(server.getRoot(), BENCH_FILE);
+		long size = (warmUp + measured) * blockSize * 5 / 4;
+		byte[] chunk = new byte[1 << 20];
+		new Random(size).nextBytes(chunk);
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			for (long written = 0; written < size; written += chunk.length) {
+				out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+			}
+		}
+
+		TFTPAsyncClient client = new TFTPAsyncClient(1);
+		client.setOptions(blockSize, windowSize, 0);
+
+		System.out.println("Block size " + blockSize + ", window size " + windowSize + ", " + measured + " blocks measured after "
+				+ warmUp + " blocks of warm-up, " + size + " byte file");
+		boolean passed = true;
+		try {
+			TFTPFileReader.setMapThreshold(Long.MAX_VALUE);
+			passed &= measure("FileChannel reads", client, address, warmUp, measured);
+			TFTPFileReader.setMapThreshold(TFTPFileReader.DEFAULT_MAP_THRESHOLD);
+			passed &= measure("mapped file", client, address, warmUp, measured);
+		} catch (IOException e) {
+			System.out.println("  " + e.getMessage());
+			passed = false;
+		}
+
+		client.close();
+		server.stop(STALL_LIMIT);
+		file.delete();
+		System.out.println(passed ? "Steady-state sending allocates nothing per block." : "Sending allocates per block.");
+		System.exit(passed ? 0 : 1);
+	}
+}
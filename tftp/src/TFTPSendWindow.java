@@ -0,0 +1,228 @@
+/*  TFTPSendWindow.java
+ *
+ *  This class is used by the sending side of a
+ *  transfer (the server for an RRQ, the client for a
+ *  WRQ) to keep track of a window of DATA packets
+ *  (RFC 7440). Blocks are read from the file into a
+ *  ring of ready-to-send DATA packets, one slot per
+ *  block of the window, and stay there until they are
+ *  acknowledged so they can be retransmitted. Each
+ *  block is read by its offset in the file with a
+ *  TFTPFileReader, so the window keeps no stream
+ *  state of its own.
+ *
+ *  The sender sends the whole window and then waits.
+ *  One ACK acknowledges every block up to and
+ *  including its block number, which slides the
+ *  window on. An ACK for a block in the middle of the
+ *  window means the receiver missed the block after
+ *  it, and the rest of the window is sent again
+ *  (go-back-N). With a window size of 1 this is the
+ *  plain RFC 1350 lock-step transfer.
+ *
+ *  Block numbers wrap from 65535 back to 0; the window
+ *  counts blocks internally with a long so it never
+ *  has to care.
+ *
+ *  The packets are framed in place: each block is read
+ *  from the file straight into its slot after the
+ *  4 byte header, and only the block number is
+ *  patched. The slots and their ByteBuffer views are
+ *  allocated once, so sending a file allocates nothing
+ *  per block.
+ *
+ *  When the file has a pre-framed image for the
+ *  block size (see TFTPPacketImages), the slots are
+ *  views of the image instead: filling the window only
+ *  moves each view to its block, and nothing is read
+ *  or copied.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class TFTPSendWindow {
+	private TFTPFileReader reader;
+	private int blockSize;
+	private int windowSize;
+
+	/* DATA packets of the window, indexed by block count modulo the window size. */
+	private byte[][] packets;
+	private ByteBuffer[] buffers;
+	private int[] offsets;
+	private int[] lengths;
+
+	/* Pre-framed image the slots are views of, or null. */
+	private TFTPPacketImages.Image image;
+
+	/* Count of the oldest unacknowledged block, and of the block after the newest one read. */
+	private long first;
+	private long next;
+	private boolean lastRead;
+
+	private TFTPTransferStats stats;
+
+	/**
+	 * @param reader of the file.
+	 * @param blockSize negotiated number of data bytes per DATA packet.
+	 * @param windowSize negotiated number of DATA packets per window.
+	 * @param stats of the transfer, which counts the blocks as they are acknowledged.
+	 */
+	public TFTPSendWindow(TFTPFileReader reader, int blockSize, int windowSize, TFTPTransferStats stats) {
+		this.reader = reader;
+		this.stats = stats;
+		this.blockSize = blockSize;
+		this.windowSize = windowSize;
+		buffers = new ByteBuffer[windowSize];
+		image = reader.getImage();
+		if (image != null && image.getBlockSize() == blockSize) {
+			for (int i = 0; i < windowSize; i++) {
+				buffers[i] = image.view();
+			}
+		} else {
+			image = null;
+			packets = new byte[windowSize][blockSize + 4];
+			for (int i = 0; i < windowSize; i++) {
+				buffers[i] = ByteBuffer.wrap(packets[i]);
+				packets[i][1] = 3;
+			}
+		}
+		offsets = new int[windowSize];
+		lengths = new int[windowSize];
+		first = 1;
+		next = 1;
+		lastRead = false;
+	}
+
+	/**
+	 * Reads blocks from the file until the window is full or the last block
+	 * has been read. A file that ends on a block boundary gets a final, empty
+	 * block.
+	 */
+	public void fill() throws IOException {
+		while (!lastRead && next < first + windowSize) {
+			int slot = (int) (next % windowSize);
+			if (image != null) {
+				/* The packet is already in the image. */
+				offsets[slot] = image.getOffset(next);
+				lengths[slot] = image.getLength(next);
+				lastRead = lengths[slot] - 4 < blockSize;
+				next++;
+				continue;
+			}
+			byte[] packet = packets[slot];
+			ByteBuffer buffer = buffers[slot];
+			buffer.clear();
+			buffer.position(4);
+			buffer.limit(4 + blockSize);
+			int n = reader.read((next - 1) * blockSize, buffer);
+			int blockNumber = (int) (next & 0xFFFF);
+			packet[2] = (byte) (blockNumber >>> 8);
+			packet[3] = (byte) blockNumber;
+			lengths[slot] = n + 4;
+			lastRead = n < blockSize;
+			next++;
+		}
+	}
+
+	/**
+	 * Returns the number of blocks currently in the window.
+	 */
+	public int size() {
+		return (int) (next - first);
+	}
+
+	/**
+	 * Returns the DATA packet of the i-th block of the window.
+	 *
+	 * @param i from 0 to size() - 1.
+	 */
+	public byte[] getPacket(int i) {
+		if (image != null) {
+			/* Copied out of the image; only used to print the packet. */
+			ByteBuffer buffer = getBuffer(i);
+			byte[] packet = new byte[buffer.remaining()];
+			buffer.get(packet);
+			return packet;
+		}
+		return packets[(int) ((first + i) % windowSize)];
+	}
+
+	/**
+	 * Returns the DATA packet of the i-th block of the window as a buffer
+	 * ready to send. The buffer is reused; it is only valid until the next
+	 * call for the same slot.
+	 *
+	 * @param i from 0 to size() - 1.
+	 */
+	public ByteBuffer getBuffer(int i) {
+		int slot = (int) ((first + i) % windowSize);
+		ByteBuffer buffer = buffers[slot];
+		buffer.clear();
+		buffer.limit(offsets[slot] + lengths[slot]);
+		buffer.position(offsets[slot]);
+		return buffer;
+	}
+
+	/**
+	 * Returns the length of the DATA packet of the i-th block of the window.
+	 *
+	 * @param i from 0 to size() - 1.
+	 */
+	public int getLength(int i) {
+		return lengths[(int) ((first + i) % windowSize)];
+	}
+
+	/**
+	 * Returns the block number of the last acknowledged block.
+	 */
+	public int getLastAcknowledged() {
+		return (int) ((first - 1) & 0xFFFF);
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Slides the window on past an acknowledged block.
+	 *
+	 * @param blockNumber of the ACK packet.
+	 * @return the number of blocks newly acknowledged, 0 if the ACK repeats the
+	 *         last one, or -1 if the block number is not in the window.
+	 */
+	public int acknowledge(int blockNumber) {
+		int distance = (blockNumber - getLastAcknowledged()) & 0xFFFF;
+		if (distance > size()) {
+			return -1;
+		}
+		long bytes = 0;
+		for (int i = 0; i < distance; i++) {
+			bytes += getLength(i) - 4;
+		}
+		stats.addBlocks(distance, bytes);
+		first += distance;
+		return distance;
+	}
+
+	/**
+	 * Returns true if an ACK for the given block is a late duplicate of one
+	 * that has already been processed.
+	 *
+	 * @param blockNumber of the ACK packet.
+	 */
+	public boolean isStale(int blockNumber) {
+		int distance = (getLastAcknowledged() - blockNumber) & 0xFFFF;
+		return distance != 0 && distance < 0x8000;
+	}
+
+	/**
+	 * Returns true once the last block of the file has been acknowledged.
+	 */
+	public boolean isComplete() {
+		return lastRead && first == next;
+	}
+}
@@ -16,34 +16,190 @@
  *  The following commands may be entered at any time:
  *  
  *  V or VERBOSE: Toggle verboseness
+ *  M or MODE: Select platform thread, virtual thread or event loop mode
+ *  RTO: Set the minimum, maximum and initial retransmission timeout
+ *  MAP: Set the smallest file served from a memory-mapped buffer
+ *  CACHE: Show the file cache statistics and set its size
+ *  PIN / UNPIN: Send a file from a pre-framed off-heap image, or stop
+ *  IMAGES: Show the pinned files and set the budget of their images
+ *  STAGE: Set the size of the staging buffer of each upload
+ *  DURABILITY: Select how uploads are synced to disk, and the group commit window
+ *  SESSIONS: Show the requests being served, the duplicate requests dropped and request buffer pool misses
+ *  LISTENERS: Set the number of listeners sharing the server port (SO_REUSEPORT)
+ *  SOCKETS: Select a socket per transfer or a few shared sockets, and show the shared sockets
+ *  LOG: Show the verbose log's counts and set which sessions it keeps
+ *  STATS: Show the server-wide metrics (also published to JMX)
  *  Q or QUIT: Quit and shut down server
  *  
+ *  CD: Change the directory files are served from and written to
+ *  
  *  Note that the server will stop any new
  *  connections if it receives a quit command. It
  *  will then wait for all current connections to 
  *  terminate and once that is complete, terminate
  *  the server. 
  *  
+ *  The server can also be embedded in another
+ *  program, such as a benchmark or a test, without
+ *  the console. It is built with a Builder, which
+ *  sets the port (0 for one selected by the host),
+ *  the directory, the mode, the listeners, shared
+ *  sockets, the bounds of the RTO and verbose.
+ *  start() returns once the port is bound and
+ *  requests are being received, and stop() stops
+ *  receiving requests and waits for the transfers
+ *  running to end. Each server has a dispatcher of
+ *  its own, so several can run in one JVM on
+ *  different ports and directories. A server that
+ *  can no longer receive requests stops on its own
+ *  rather than ending the program: getFailure()
+ *  returns the error, and stop() throws it. Verbose, the
+ *  file cache, the packet images, the staging buffers
+ *  and the durability of uploads are shared by every
+ *  server in the JVM. The console is a server built
+ *  with the defaults and verbose on.
+ *  
  *  Author:         Team 12 (Group Project - SYSC3303)
  *  Date:           5/19/2017
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Scanner;
-import java.net.*;
 
 public class TFTPServer {
+	/* Main server port, and the directory files are served from, unless the server is built with others. */
+	public static final int DEFAULT_PORT = 6900;
+	public static final String DEFAULT_DIRECTORY = "ServerOutput";
 
 	private static TFTPServer instance = null;
 
+	/* Settings the server was built with. */
+	private final int port;
+	private final File root;
+	private final ServerMode mode;
+	private final int listeners;
+	private final boolean sharedSockets;
+	private final int minTimeout;
+	private final int maxTimeout;
+	private final int initialTimeout;
+	private final boolean verbose;
+
+	/* Created when the server is started. */
 	private TFTPServerDispatcher serverWaitThread;
-	@SuppressWarnings("unused")
-	private boolean initialized;
-	private static String directory = "ServerOutput";
 
-	/* Creates verbose initialized to 'OFF'. */
-	private static Verbose verbose = Verbose.ON;
+	/**
+	 * Settings of a server to build. Every setting has a default, so
+	 * TFTPServer.builder().build() is the server the console runs, verbose
+	 * aside.
+	 */
+	public static class Builder {
+		private int port = DEFAULT_PORT;
+		private File root = new File(DEFAULT_DIRECTORY);
+		private ServerMode mode = ServerMode.THREAD;
+		private int listeners = 1;
+		private boolean sharedSockets;
+		private int minTimeout = TFTPRetransmitTimer.DEFAULT_MIN_TIMEOUT;
+		private int maxTimeout = TFTPRetransmitTimer.DEFAULT_MAX_TIMEOUT;
+		private int initialTimeout = TFTPRetransmitTimer.DEFAULT_INITIAL_TIMEOUT;
+		private boolean verbose;
+
+		private Builder() {}
+
+		/**
+		 * @param port to receive requests on, or 0 for one selected by the host.
+		 */
+		public Builder port(int port) {
+			if (port < 0 || port > 65535) {
+				throw new IllegalArgumentException("Invalid port " + port + ".");
+			}
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * @param root directory the files are read from and written to, created if need be.
+		 */
+		public Builder root(File root) {
+			this.root = root;
+			return this;
+		}
+
+		public Builder root(String root) {
+			return root(new File(root));
+		}
+
+		/**
+		 * @param mode how transfers are run; VIRTUAL_THREAD needs Java 21.
+		 */
+		public Builder mode(ServerMode mode) {
+			this.mode = mode;
+			return this;
+		}
+
+		/**
+		 * @param count of listeners sharing the port; more than one needs SO_REUSEPORT.
+		 */
+		public Builder listeners(int count) {
+			if (count < 1) {
+				throw new IllegalArgumentException("There must be at least one listener.");
+			}
+			listeners = count;
+			return this;
+		}
+
+		/**
+		 * @param shared true for transfers to share a socket per core.
+		 */
+		public Builder sharedSockets(boolean shared) {
+			sharedSockets = shared;
+			return this;
+		}
+
+		/**
+		 * @param min smallest RTO in milliseconds.
+		 * @param max largest RTO in milliseconds.
+		 * @param initial RTO in milliseconds, until there is a measurement.
+		 */
+		public Builder timeouts(int min, int max, int initial) {
+			if (min < 1 || min > max || max > TFTPRetransmitTimer.TIMEOUT_LIMIT) {
+				throw new IllegalArgumentException("Timeouts must satisfy 1 <= minimum <= maximum <= " + TFTPRetransmitTimer.TIMEOUT_LIMIT + ".");
+			}
+			minTimeout = min;
+			maxTimeout = max;
+			initialTimeout = initial;
+			return this;
+		}
+
+		/**
+		 * @param verbose true for the verbose printouts, of every server in the JVM.
+		 */
+		public Builder verbose(boolean verbose) {
+			this.verbose = verbose;
+			return this;
+		}
+
+		public TFTPServer build() {
+			return new TFTPServer(this);
+		}
+	}
 
-	private TFTPServer() { initialized = false; }
+	private TFTPServer(Builder builder) {
+		port = builder.port;
+		root = builder.root;
+		mode = builder.mode;
+		listeners = builder.listeners;
+		sharedSockets = builder.sharedSockets;
+		minTimeout = builder.minTimeout;
+		maxTimeout = builder.maxTimeout;
+		initialTimeout = builder.initialTimeout;
+		verbose = builder.verbose;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
 
 	/**
 	 * Returns the singleton instance of the TFTPErrorSimulator. If the 
@@ -55,24 +211,146 @@ public class TFTPServer {
 	public static TFTPServer instanceOf() {
 		//If instance not instantiated, instantiate.
 		if (instance == null)
-			instance = new TFTPServer();
+			instance = builder().verbose(true).build();
 
 		//Return reference to singleton instance.
 		return instance;
 	}
 
+	/**
+	 * Starts the server: binds the port and starts receiving requests.
+	 * 
+	 * @throws IOException if the port can't be bound.
+	 * @throws UnsupportedOperationException if the mode isn't supported by
+	 *         this JVM (virtual threads need Java 21 or later).
+	 * @throws IllegalStateException if the server was already started.
+	 */
+	public synchronized void start() throws IOException {
+		if (serverWaitThread != null) {
+			throw new IllegalStateException("The server was already started.");
+		}
+		root.mkdirs();
+		TFTPServerDispatcher dispatcher = new TFTPServerDispatcher(port, root);
+		dispatcher.setTimeouts(minTimeout, maxTimeout, initialTimeout);
+		dispatcher.setSharedSockets(sharedSockets);
+		if (TFTPServerDispatcher.isVerbose() != verbose) {
+			dispatcher.toggleVerbosity();
+		}
+		if (!dispatcher.setListeners(listeners)) {
+			throw new UnsupportedOperationException("More than one listener needs SO_REUSEPORT, which this platform doesn't have.");
+		}
+		if (!dispatcher.setMode(mode)) {
+			dispatcher.killThread();
+			throw new UnsupportedOperationException("Virtual threads need Java 21 or later.");
+		}
+		dispatcher.start();
+		serverWaitThread = dispatcher;
+
+		/* Published to JMX from the start, rather than from the first transfer. */
+		TFTPMetrics.getShared();
+	}
+
+	/**
+	 * Stops receiving requests and waits for the transfers running to end.
+	 * The server can't be started again.
+	 * 
+	 * @throws IOException if the server had already stopped on its own (see
+	 *         getFailure()); it is shut down all the same.
+	 */
+	public void stop() throws InterruptedException, IOException {
+		stop(0);
+	}
+
+	/**
+	 * Stops receiving requests and waits for the transfers running to end,
+	 * or for the timeout. Transfers still running then carry on until they
+	 * end or time out.
+	 * 
+	 * @param timeout longest to wait in milliseconds, 0 for no limit.
+	 * @return false if transfers were still running at the timeout; true
+	 *         once they have ended and the server's threads, event loops
+	 *         included, have exited.
+	 * @throws IOException if the server had already stopped on its own (see
+	 *         getFailure()); it is shut down all the same.
+	 */
+	public boolean stop(long timeout) throws InterruptedException, IOException {
+		TFTPServerDispatcher dispatcher;
+		synchronized (this) {
+			dispatcher = serverWaitThread;
+		}
+		if (dispatcher == null) {
+			return true;
+		}
+		dispatcher.killThread();
+		boolean ended = dispatcher.awaitSessions(timeout);
+		if (ended) {
+			dispatcher.join();
+		}
+		IOException failure = dispatcher.getFailure();
+		if (failure != null) {
+			throw new IOException("The server on port " + dispatcher.getPort() + " had stopped: " + failure, failure);
+		}
+		return ended;
+	}
+
+	/**
+	 * Returns what stopped the server on its own, such as its port failing
+	 * under it, or null if nothing has. A server that stopped this way
+	 * receives no more requests; the transfers it was running carry on, and
+	 * the other servers in the JVM are not affected.
+	 */
+	public synchronized IOException getFailure() {
+		return (serverWaitThread == null) ? null : serverWaitThread.getFailure();
+	}
+
+	/**
+	 * Returns the port the server receives requests on: the one it was
+	 * built with, or the one selected by the host once it is started.
+	 */
+	public synchronized int getPort() {
+		return (serverWaitThread == null) ? port : serverWaitThread.getPort();
+	}
+
+	/**
+	 * Returns the directory new transfers read and write.
+	 */
+	public synchronized File getRoot() {
+		return (serverWaitThread == null) ? root : serverWaitThread.getDirectory();
+	}
+
+	/**
+	 * Returns the server's dispatcher, for its counts and settings, or null
+	 * before the server is started.
+	 */
+	public synchronized TFTPServerDispatcher getDispatcher() {
+		return serverWaitThread;
+	}
+
+	/**
+	 * Runs the server from the console, until it is told to quit.
+	 */
 	public void receiveAndSendTFTP() {
+		try {
+			start();
+		} catch (IOException e) {
+			System.out.println("Server: Can't receive on port " + port + ": " + e.getMessage());
+			return;
+		}
 		System.out.println("Server Started.");
 		Scanner scanner = new Scanner(System.in);
-		serverWaitThread = new TFTPServerDispatcher();
-		serverWaitThread.start();
-		initialized = true;
 
 		while (scanner.hasNextLine()) {
 			String command = scanner.nextLine().toUpperCase();
 			if (command.equals("SHUTDOWN") || command.equals("Q")) {
 				System.out.println("Server: Shutdown command received. Completing remaining connection threads and shutting down.");
-				serverWaitThread.killThread();
+				try {
+					stop();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (IOException e) {
+					System.out.println("Server: " + e.getMessage());
+				}
+				TFTPEventLog.getShared().flush(1000);
 				scanner.close();
 				return; 
 			} else if (command.equals("VERBOSE") || command.equals("V")) {
@@ -83,9 +361,215 @@ public class TFTPServer {
 					System.out.println("Server: Verbose mode on.");
 					toggleVerbosity();
 				}
+			} else if (command.equals("MODE") || command.equals("M")) {
+				System.out.println("Platform thread, Virtual thread or Event loop mode? (P/V/E)");
+				String response = scanner.nextLine().toUpperCase();
+				if (response.equals("P")) {
+					serverWaitThread.setMode(ServerMode.THREAD);
+					System.out.println("Server: Platform thread mode selected.");
+				} else if (response.equals("V")) {
+					if (serverWaitThread.setMode(ServerMode.VIRTUAL_THREAD)) {
+						System.out.println("Server: Virtual thread mode selected.");
+					} else {
+						System.out.println("Server: Virtual threads need Java 21 or later. Mode unchanged (" + serverWaitThread.getMode() + ").");
+					}
+				} else if (response.equals("E")) {
+					serverWaitThread.setMode(ServerMode.EVENT_LOOP);
+					System.out.println("Server: Event loop mode selected.");
+				} else {
+					System.out.println("Server: Mode unchanged (" + serverWaitThread.getMode() + ").");
+				}
+			} else if (command.equals("RTO")) {
+				System.out.println("Minimum, maximum and initial retransmission timeout in ms? (currently "
+						+ serverWaitThread.getMinTimeout() + " " + serverWaitThread.getMaxTimeout() + " "
+						+ serverWaitThread.getInitialTimeout() + ")");
+				String[] response = scanner.nextLine().trim().split("\\s+");
+				try {
+					int min = Integer.parseInt(response[0]);
+					int max = Integer.parseInt(response[1]);
+					int initial = Integer.parseInt(response[2]);
+					if (min < 1 || min > max || max > TFTPRetransmitTimer.TIMEOUT_LIMIT) {
+						System.out.println("Server: Timeouts must satisfy 1 <= minimum <= maximum <= " + TFTPRetransmitTimer.TIMEOUT_LIMIT + ". Unchanged.");
+					} else {
+						serverWaitThread.setTimeouts(min, max, initial);
+						System.out.println("Server: Retransmission timeout set for new transfers.");
+					}
+				} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+					System.out.println("Server: Please enter three numbers. Unchanged.");
+				}
+			} else if (command.equals("MAP")) {
+				System.out.println("Smallest file in bytes served from a memory-mapped buffer? (currently "
+						+ TFTPFileReader.getMapThreshold() + ")");
+				try {
+					long threshold = Long.parseLong(scanner.nextLine().trim());
+					if (threshold < 0) {
+						System.out.println("Server: The size can't be negative. Unchanged.");
+					} else {
+						TFTPFileReader.setMapThreshold(threshold);
+						System.out.println("Server: Map threshold set for new transfers.");
+					}
+				} catch (NumberFormatException e) {
+					System.out.println("Server: Please enter a number. Unchanged.");
+				}
+			} else if (command.equals("CACHE")) {
+				TFTPFileCache cache = TFTPFileCache.getShared();
+				System.out.println("Server: File cache: " + cache);
+				System.out.println("Largest total size in bytes of the cached files, 0 to turn the cache off? (blank to keep "
+						+ cache.getCapacity() + ")");
+				String response = scanner.nextLine().trim();
+				if (!response.isEmpty()) {
+					try {
+						long capacity = Long.parseLong(response);
+						if (capacity < 0) {
+							System.out.println("Server: The size can't be negative. Unchanged.");
+						} else {
+							cache.setCapacity(capacity);
+							System.out.println("Server: File cache size set.");
+						}
+					} catch (NumberFormatException e) {
+						System.out.println("Server: Please enter a number. Unchanged.");
+					}
+				}
+			} else if (command.equals("PIN") || command.equals("UNPIN")) {
+				boolean pin = command.equals("PIN");
+				System.out.println("Name of the file to " + (pin ? "pin" : "unpin") + "?");
+				File file = new File(getRoot(), scanner.nextLine().trim());
+				try {
+					if (pin && (!file.isFile() || !file.canRead())) {
+						System.out.println("Server: " + file.getName() + " is not a readable file in " + getRoot() + ". Unchanged.");
+					} else if (pin) {
+						System.out.println(TFTPPacketImages.getShared().pin(file)
+								? "Server: " + file.getName() + " pinned. Its images are built as clients read it."
+								: "Server: " + file.getName() + " is already pinned.");
+					} else {
+						System.out.println(TFTPPacketImages.getShared().unpin(file)
+								? "Server: " + file.getName() + " unpinned."
+								: "Server: " + file.getName() + " is not pinned.");
+					}
+				} catch (IOException e) {
+					System.out.println("Server: " + e.getMessage() + ". Unchanged.");
+				}
+			} else if (command.equals("IMAGES")) {
+				TFTPPacketImages images = TFTPPacketImages.getShared();
+				System.out.println("Server: Packet images: " + images);
+				System.out.println("Largest total size in bytes of the packet images? (blank to keep " + images.getBudget() + ")");
+				String response = scanner.nextLine().trim();
+				if (!response.isEmpty()) {
+					try {
+						long budget = Long.parseLong(response);
+						if (budget < 0) {
+							System.out.println("Server: The size can't be negative. Unchanged.");
+						} else {
+							images.setBudget(budget);
+							System.out.println("Server: Packet image budget set.");
+						}
+					} catch (NumberFormatException e) {
+						System.out.println("Server: Please enter a number. Unchanged.");
+					}
+				}
+			} else if (command.equals("STAGE")) {
+				System.out.println("Size in bytes of the staging buffer of each upload? (currently "
+						+ TFTPWriteBehind.getStagingSize() + ")");
+				try {
+					int size = Integer.parseInt(scanner.nextLine().trim());
+					if (size < 0) {
+						System.out.println("Server: The size can't be negative. Unchanged.");
+					} else {
+						TFTPWriteBehind.setStagingSize(size);
+						System.out.println("Server: Staging buffer size set for new uploads.");
+					}
+				} catch (NumberFormatException e) {
+					System.out.println("Server: Please enter a number. Unchanged.");
+				}
+			} else if (command.equals("DURABILITY")) {
+				System.out.println("Server: Committer: " + TFTPCommitter.getShared());
+				System.out.println("No sync, Per-file sync or Group commit? (N/F/G, currently " + TFTPCommitter.getDurability() + ")");
+				String response = scanner.nextLine().trim().toUpperCase();
+				if (response.equals("N")) {
+					TFTPCommitter.setDurability(Durability.NONE);
+					System.out.println("Server: Uploads are renamed into place without a sync.");
+				} else if (response.equals("F")) {
+					TFTPCommitter.setDurability(Durability.PER_FILE);
+					System.out.println("Server: Each upload is synced on its own.");
+				} else if (response.equals("G")) {
+					System.out.println("Group commit window in ms? (blank to keep " + TFTPCommitter.getGroupWindow() + ")");
+					String window = scanner.nextLine().trim();
+					try {
+						int ms = window.isEmpty() ? TFTPCommitter.getGroupWindow() : Integer.parseInt(window);
+						if (ms < 0) {
+							System.out.println("Server: The window can't be negative. Unchanged.");
+						} else {
+							TFTPCommitter.setGroupWindow(ms);
+							TFTPCommitter.setDurability(Durability.GROUP_COMMIT);
+							System.out.println("Server: Uploads are synced in groups.");
+						}
+					} catch (NumberFormatException e) {
+						System.out.println("Server: Please enter a number. Unchanged.");
+					}
+				} else {
+					System.out.println("Server: Durability unchanged (" + TFTPCommitter.getDurability() + ").");
+				}
+			} else if (command.equals("SESSIONS")) {
+				System.out.println("Server: " + serverWaitThread.getActiveRequests() + " requests being served, "
+						+ serverWaitThread.getDuplicateRequests() + " duplicate requests dropped, "
+						+ serverWaitThread.getRequestBuffers().getMisses() + " request buffers allocated outside the pool.");
+			} else if (command.equals("LISTENERS")) {
+				System.out.println("Server: Requests received by each listener: " + Arrays.toString(serverWaitThread.getListenerRequests()));
+				System.out.println("Number of listeners on the server port? (currently " + serverWaitThread.getListeners().length + ")");
+				try {
+					int count = Integer.parseInt(scanner.nextLine().trim());
+					if (count < 1) {
+						System.out.println("Server: There must be at least one listener. Unchanged.");
+					} else if (serverWaitThread.setListeners(count)) {
+						System.out.println("Server: " + count + " listener(s) on the server port.");
+					} else {
+						System.out.println("Server: More than one listener needs SO_REUSEPORT, which this platform doesn't have. Unchanged.");
+					}
+				} catch (NumberFormatException e) {
+					System.out.println("Server: Please enter a number. Unchanged.");
+				} catch (IOException e) {
+					System.out.println("Server: Can't bind the server port again: " + e.getMessage() + ". No requests are being received.");
+				}
+			} else if (command.equals("SOCKETS")) {
+				for (String line : serverWaitThread.describeSharedSockets()) {
+					System.out.println("Server: " + line);
+				}
+				System.out.println("Socket per transfer or Shared sockets? (P/S, currently " + (serverWaitThread.isSharedSockets() ? "S" : "P") + ")");
+				String response = scanner.nextLine().trim().toUpperCase();
+				if (response.equals("P")) {
+					serverWaitThread.setSharedSockets(false);
+					System.out.println("Server: Each new transfer opens a socket of its own.");
+				} else if (response.equals("S")) {
+					serverWaitThread.setSharedSockets(true);
+					System.out.println("Server: New transfers share a socket per core.");
+				} else {
+					System.out.println("Server: Sockets unchanged.");
+				}
+			} else if (command.equals("LOG")) {
+				TFTPEventLog log = TFTPEventLog.getShared();
+				System.out.println("Server: Verbose log: " + log);
+				System.out.println("Keep the verbose printouts of one session in how many, 0 for none? (blank to keep " + log.getSampling() + ")");
+				String response = scanner.nextLine().trim();
+				if (!response.isEmpty()) {
+					try {
+						int every = Integer.parseInt(response);
+						if (every < 0) {
+							System.out.println("Server: The number can't be negative. Unchanged.");
+						} else {
+							log.setSampling(every);
+							System.out.println("Server: Verbose log sampling set.");
+						}
+					} catch (NumberFormatException e) {
+						System.out.println("Server: Please enter a number. Unchanged.");
+					}
+				}
+			} else if (command.equals("STATS")) {
+				for (String line : TFTPMetrics.getShared().describe()) {
+					System.out.println("Server: " + line);
+				}
 			} else if(command.equals("CD")){
 				System.out.println("Please enter the directory you would like to change to");
-				directory = scanner.nextLine();
+				serverWaitThread.setDirectory(new File(scanner.nextLine()));
 				System.out.println("Directory changed.");
 			}
 		}
@@ -93,117 +577,12 @@ public class TFTPServer {
 		scanner.close();
 	}
 	
-	public static String getDirectory(){
-		return directory;
-	}
-	
 	public void toggleVerbosity() {
-		if (verbose == Verbose.ON) {
-			verbose = Verbose.OFF;
-			serverWaitThread.toggleVerbosity();
-		} else {
-			verbose = Verbose.ON;
-			serverWaitThread.toggleVerbosity();
-		}
+		serverWaitThread.toggleVerbosity();
 	}
 
 	public static boolean isVerbose() {
-		return (verbose == Verbose.ON);
-	}
-
-	/**
-	 * Function to print details of a packet
-	 * 
-	 * @param send: True if it is a packet to be sent, false if received
-	 * @param packet: Datagram packet of which you want information
-	 * @param printContents: Extensively prints byte contents of packet (For testing)
-	 */
-	public static void printPacketData(boolean send, DatagramPacket packet, boolean printContents){
-		if(send){
-			System.out.println("\nServer: Sending packet");
-			System.out.println("To Host: " + packet.getAddress());
-		} else{
-			System.out.println("Server: Packet received");
-			System.out.println("From Host: " + packet.getAddress());
-		}
-
-		if(packet.getData()[1] == 1){
-			System.out.println("Packet Type: RRQ");
-		} else if(packet.getData()[1] == 2){
-			System.out.println("Packet Type: WRQ");
-		} else if(packet.getData()[1] == 3){
-			System.out.println("Packet Type: DATA");
-		} else if(packet.getData()[1] == 4){
-			System.out.println("Packet Type: ACK");
-		} else if(packet.getData()[1] == 5){
-			System.out.println("Packet Type: ERROR");
-		} else {
-			System.out.println("ERROR: packet sent with unknown opcode");
-		}
-
-		System.out.println("Host port: " + packet.getPort());
-		System.out.println("Length: " + packet.getLength());
-
-		if((packet.getData()[1] == 1) || (packet.getData()[1] == 2)){			
-			System.out.print("Filename: ");
-			int i = 2;
-			byte fName[] = new byte[packet.getLength()];
-			byte mode[] = new byte[packet.getLength()];
-			while(packet.getData()[i] != 0){
-				fName[i-2] = packet.getData()[i];
-				i++;
-			}
-			System.out.println(new String(fName));
-			System.out.print("Mode: ");
-			i++;
-			int j = 0;
-			while(packet.getData()[i] != 0){
-				mode[j] = packet.getData()[i];
-				i++;
-				j++;
-			}
-			System.out.println(new String(mode));
-		}
-
-		if((packet.getData()[1] == 3) || (packet.getData()[1] == 4)){
-			System.out.print("Packet Number: ");
-			// Extracts and prints packet number 
-			// Takes second 2 bytes of packet, shift MSB 8 bits left, bitmask then add.
-			System.out.println((((int) (packet.getData()[2] & 0xFF)) << 8) + (((int) packet.getData()[3]) & 0xFF));
-		}
-
-		if(packet.getData()[1] == 3){
-			System.out.println("Number of byte of data: " + (packet.getLength()-4));
-		}
-
-		if(packet.getData()[1] == 5){
-			System.out.println("Error code information: ");
-			if(packet.getData()[3] == 0){
-				System.out.println("Error code: 0");
-				System.out.println("Not defined, see error message (if any).");
-			} else if(packet.getData()[3] == 1){
-				System.out.println("Error code: 1");
-				System.out.println("File not found.");
-			} else if(packet.getData()[3] == 2){
-				System.out.println("Error code: 2");
-				System.out.println("Access violation.");
-			} else if(packet.getData()[3] == 3){
-				System.out.println("Error code: 3");
-				System.out.println("Disk full or allocation exceeded.");
-			} else if(packet.getData()[3] == 4){
-				System.out.println("Error code: 4");
-				System.out.println("Illegal TFTP operation.");
-			} else if(packet.getData()[3] == 5){
-				System.out.println("Error code: 5");
-				System.out.println("Unknown transfer ID.");
-			} else if(packet.getData()[3] == 6){
-				System.out.println("Error code: 6");
-				System.out.println("File already exists.");
-			} else if(packet.getData()[3] == 7){
-				System.out.println("Error code: 7");
-				System.out.println("No such user.");
-			}
-		}
+		return TFTPServerDispatcher.isVerbose();
 	}
 
 	public static void main(String args[]) {
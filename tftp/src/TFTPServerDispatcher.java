@@ -7,15 +7,82 @@
  *  it receives. All communications are then 
  *  dealt with by the client connection thread. 
  *  
- *  The dispatcher is created once the server is
- *  started. There is only one instance of the server
- *  dispatcher that is created. 
+ *  In VIRTUAL_THREAD mode the client connection 
+ *  runs on a virtual thread rather than a platform 
+ *  thread of its own. In EVENT_LOOP mode the 
+ *  dispatcher instead hands each new connection to 
+ *  one of its event loops (one per core), which 
+ *  runs the transfer without a thread of its own. 
+ *  
+ *  A client that hears nothing back retransmits its
+ *  RRQ / WRQ, and that copy reaches the dispatcher
+ *  too. The dispatcher keeps a table of the requests
+ *  being served, by client address and port, opcode
+ *  and filename, and drops any request that is
+ *  already in it; the transfer that is running
+ *  answers the client. The number of requests dropped
+ *  this way is shown with the SESSIONS console command
+ *  of the server.
+ *  
+ *  Requests are received into direct buffers borrowed
+ *  from a TFTPBufferPool rather than a new packet per
+ *  request. The buffer is handed to the connection
+ *  along with the request, and the connection gives
+ *  it back once it has copied the request out on its
+ *  own thread, so the dispatcher's receive loop
+ *  allocates next to nothing however fast requests
+ *  come in. The duplicate check reuses one lookup key
+ *  and only copies it for a request that is new.
+ *  
+ *  The requests are received by listener threads.
+ *  There is one by default. With the LISTENERS
+ *  console command of the server there can be more,
+ *  each with a socket of its own bound to the server
+ *  port with SO_REUSEPORT (where the platform has it),
+ *  and the kernel spreads the clients between them,
+ *  so a flood of requests isn't held up by a single
+ *  receive loop. The listeners share the table of
+ *  requests being served and the buffer pool.
+ *  
+ *  Each transfer normally answers from a socket of
+ *  its own on a new port, its transfer ID as RFC 1350
+ *  describes. With the SOCKETS console command of the
+ *  server the transfers can share a few sockets
+ *  instead (one per core, a TFTPSharedSocket in the
+ *  thread modes and the shared channel of its loop in
+ *  EVENT_LOOP mode), each telling its transfers apart
+ *  by the client's address and port, so the server
+ *  doesn't open and close a socket for every transfer.
+ *  
+ *  Each TFTPServer has a dispatcher of its own,
+ *  created when the server is started, with the port,
+ *  directory and timeouts the server was built with,
+ *  so several servers can run in one JVM. Stopping the
+ *  dispatcher stops its listeners at once; the
+ *  transfers running carry on, and the dispatcher
+ *  waits for the last of them to end before it stops
+ *  its event loops and closes its shared sockets. If
+ *  a listener can't receive on the port any more, or
+ *  the event loops can't be started, the dispatcher
+ *  records the error (see getFailure()) and stops the
+ *  same way, without ending the program.
  *  
  *  Author:         Team 12 (Group Project - SYSC3303)
  *  Date:           5/19/2017
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TFTPServerDispatcher extends Thread {
 	/* Responses for valid requests. */
@@ -33,35 +100,89 @@ public class TFTPServerDispatcher extends Thread {
     public static final byte[] READ_RESP = {0, 3, 0, 1};
     public static final byte[] WRITE_RESP = {0, 4, 0, 0};
 
-    /* Main server port. */
-    private static final int SERVER_RECV_PORT = 6900;
-
 	/* Constants for packet sizes. */
     private static final int TFTP_DATA_SIZE = 516;
     
+    /* Request buffers kept in the pool. */
+    private static final int REQUEST_BUFFERS = 256;
+    
     /* Creates verbose initialized to 'OFF'. */
     private static Verbose verbose = Verbose.ON;
 
-    /* UDP datagram packets and sockets used to send / receive. */
-    private DatagramPacket receivePacket;
-    private TFTPSocket receiveSocket;
-    //private DatagramSocket receiveSocket;
+    /* How new connections are handled, thread-per-transfer by default. */
+    private volatile ServerMode mode = ServerMode.THREAD;
+
+    /* Threads receiving requests on the server port, and the buffers they are received into. */
+    private Listener[] listeners = new Listener[0];
+    private TFTPBufferPool requestBuffers = new TFTPBufferPool(REQUEST_BUFFERS, TFTP_DATA_SIZE);
+    
+    private final AtomicInteger threadNumber = new AtomicInteger();
+    private ExecutorService virtualThreads;
+    private TFTPEventLoop[] eventLoops;
+    private int nextEventLoop;
+    private final Object eventLoopLock = new Object();
     
-    private int threadNumber;
-    private TFTPClientConnection clientConnection;
+    /* Whether new transfers share a few sockets rather than open one each, and the sockets of the thread modes. */
+    private volatile boolean sharedSockets;
+    private TFTPSharedSocket[] sockets;
+    private int nextSocket;
+    private final Object socketLock = new Object();
     private boolean running;
     
+    /* Port asked for, 0 for one selected by the host, and the port the listeners are bound to. */
+    private final int port;
+    private volatile int boundPort;
+    
+    /* Directory the transfers read and write, and the bounds of their RTO, for transfers started from now on. */
+    private volatile File directory;
+    private volatile int minTimeout = TFTPRetransmitTimer.DEFAULT_MIN_TIMEOUT;
+    private volatile int maxTimeout = TFTPRetransmitTimer.DEFAULT_MAX_TIMEOUT;
+    private volatile int initialTimeout = TFTPRetransmitTimer.DEFAULT_INITIAL_TIMEOUT;
+    
+    /* Connections and sessions started and not yet over, waited for when the server stops. */
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final Object sessionLock = new Object();
     
-    public TFTPServerDispatcher() {
+    /* Requests being served, by client and request, with the number of the connection serving each. */
+    private final ConcurrentHashMap<RequestKey, Integer> active = new ConcurrentHashMap<RequestKey, Integer>();
+
+    /* Where the verbose printouts of the listeners are recorded. */
+    private final TFTPEventLog log = TFTPEventLog.getShared();
+
+    private final AtomicLong duplicates = new AtomicLong();
+    
+    /* What stopped the server on its own, if anything did. */
+    private volatile IOException failure;
+    private final Object failureLock = new Object();
+    
+    
+    /**
+     * Creates the dispatcher of a server on the default port and directory,
+     * with one listener bound to the port.
+     * 
+     * @throws IOException if the port can't be bound.
+     */
+    public TFTPServerDispatcher() throws IOException {
+        this(TFTPServer.DEFAULT_PORT, new File(TFTPServer.DEFAULT_DIRECTORY));
         /* 
             Construct a datagram socket and bind it to port serverReceivePort
             on the local host machine. This socket will be used to
             receive UDP Datagram packets.
         */
-    	receiveSocket = new TFTPSocket(SERVER_RECV_PORT);
-        
-        threadNumber = 0;
+        setListeners(1);
+    }
+    
+    /**
+     * Creates the dispatcher of a server. Nothing is bound until the
+     * listeners are set with setListeners().
+     * 
+     * @param port to receive requests on, or 0 for one selected by the host.
+     * @param directory the files are read from and written to.
+     */
+    public TFTPServerDispatcher(int port, File directory) {
         running = true;
+        this.port = port;
+        this.directory = directory;
     }
     
     @Override
@@ -69,41 +190,423 @@ public class TFTPServerDispatcher extends Thread {
      
         if (isVerbose()) { System.out.println("Server's Wait Thread: initializing."); }
         
-        while (running) {
-            /*
-                Construct a DatagramPacket for receiving packets up
-                to 100 bytes long (the length of the byte array).
-            */
-            
-            byte[] data;
-            data = new byte[TFTP_DATA_SIZE];
-            receivePacket = new DatagramPacket(data, data.length);
+        /* The listeners receive the requests; this thread only waits to shut the server down. */
+        synchronized (this) {
+            while (running && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    /* Only killThread() stops the server, or a failure (see fail()). */
+                }
+            }
+        }
+        if (failure != null) {
+            killThread();
+        }
+        
+        if (eventLoops != null) {
+            for (TFTPEventLoop loop : eventLoops) {
+                loop.killThread();
+            }
+        }
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+        }
+        
+        /* The transfers on the shared sockets need them until they are over. */
+        try {
+            awaitSessions(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (socketLock) {
+            if (sockets != null) {
+                for (TFTPSharedSocket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+        
+        /* The loops end once their sessions have; stop() only reports the server stopped after they have. */
+        TFTPEventLoop[] loops;
+        synchronized (eventLoopLock) {
+            loops = eventLoops;
+        }
+        if (loops != null) {
+            for (TFTPEventLoop loop : loops) {
+                try {
+                    loop.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Receives requests on one listener's socket and starts a connection for
+     * each new one, until the listener is stopped.
+     * 
+     * @param listener whose socket to receive on.
+     */
+    private void listen(Listener listener) {
+        TFTPSocket receiveSocket = listener.socket;
+        RequestKey probe = listener.probe;
+        TFTPPacket view = listener.view;
+        
+        while (listener.listening) {
+            /* Requests are received into a pooled buffer, which the session serving it gives back. */
+            ByteBuffer request = requestBuffers.acquire();
+            InetSocketAddress client = null;
             
-            if (isVerbose()) { System.out.println("Server: Waiting for packet."); }
+            if (isVerbose()) { log.message(TFTPEventLog.SERVER, "Server: Waiting for packet."); }
 
             /* Block until a datagram packet is received from receiveSocket. */
             try {
-                receiveSocket.getDatagramSocket().receive(receivePacket);
+                client = (InetSocketAddress) receiveSocket.getChannel().receive(request);
             } catch (Exception se) {
-                if (!running) {
-                    /* This means the server received a shutdown request. We can safely ignore the exception. */
+                if (!listener.listening) {
+                    /* This means the server received a shutdown request, or the listener was stopped. We can safely ignore the exception. */
                 } else {
                     /*  This means that the exception was thrown while the server was running. In other words,
-                        an unexpected exception. */
-                        se.printStackTrace();
-                        System.exit(1);
+                        an unexpected exception. This server stops; the rest of the program carries on. */
+                    fail((se instanceof IOException) ? (IOException) se : new IOException(se));
+                    requestBuffers.release(request);
+                    break;
                 }
             }
             
-            if (!running) {
+            if (!listener.listening) {
+                requestBuffers.release(request);
                 break;
             }
+            request.flip();
+            listener.received++;
             
-            threadNumber++;
-            clientConnection = new TFTPClientConnection(threadNumber, receivePacket, data, verbose);
-            clientConnection.start();
+            /* A retransmitted request is already being answered by its transfer. */
+            final RequestKey key;
+            if (probe.set(view.wrap(request), client)) {
+                /* Look the probe up first, so a duplicate costs no copy of the key. */
+                if (active.containsKey(probe) || active.putIfAbsent(key = probe.copy(), threadNumber.get() + 1) != null) {
+                    requestBuffers.release(request);
+                    long dropped = duplicates.incrementAndGet();
+                    if (isVerbose()) { log.message(TFTPEventLog.SERVER, "Server: Duplicate request dropped, " + probe + " is already being served (" + dropped + " dropped so far)."); }
+                    continue;
+                }
+            } else {
+                key = null;
+            }
+            sessions.incrementAndGet();
+            Runnable release = new Runnable() {
+                @Override
+                public void run() {
+                    if (key != null) {
+                        active.remove(key);
+                    }
+                    endSession();
+                }
+            };
+            
+            int number = threadNumber.incrementAndGet();
+            if (mode == ServerMode.EVENT_LOOP) {
+                TFTPEventLoop loop;
+                try {
+                    loop = nextEventLoop();
+                } catch (IOException e) {
+                    requestBuffers.release(request);
+                    release.run();
+                    fail(e);
+                    break;
+                }
+                TFTPNioSession session = new TFTPNioSession(number, request, client, requestBuffers);
+                session.setOnFinish(release);
+                session.setShared(sharedSockets);
+                session.setDirectory(directory);
+                session.setTimeouts(minTimeout, maxTimeout, initialTimeout);
+                loop.addSession(session);
+            } else if (mode == ServerMode.VIRTUAL_THREAD) {
+                /* The connection is only used as a Runnable here, its own (platform) thread is never started. */
+                TFTPClientConnection clientConnection = new TFTPClientConnection(number, request, client, requestBuffers, verbose);
+                clientConnection.setOnFinish(release);
+                clientConnection.setDirectory(directory);
+                clientConnection.setTimeouts(minTimeout, maxTimeout, initialTimeout);
+                if (sharedSockets) { clientConnection.setSharedSocket(nextSharedSocket()); }
+                virtualThreads.execute(clientConnection);
+            } else {
+                TFTPClientConnection clientConnection = new TFTPClientConnection(number, request, client, requestBuffers, verbose);
+                clientConnection.setOnFinish(release);
+                clientConnection.setDirectory(directory);
+                clientConnection.setTimeouts(minTimeout, maxTimeout, initialTimeout);
+                if (sharedSockets) { clientConnection.setSharedSocket(nextSharedSocket()); }
+                clientConnection.start();
+            }
+        }
+    }
+    
+    /**
+     * Changes the number of threads receiving requests on the server port.
+     * More than one needs SO_REUSEPORT: every listener then has a socket of
+     * its own bound to the port, and the kernel spreads the clients between
+     * them. The listeners running are stopped and the port is bound again,
+     * so a request arriving in between is lost and the client retransmits it.
+     * 
+     * @param count of listeners, at least one.
+     * @return false if more than one listener was asked for and the platform
+     *         has no SO_REUSEPORT, in which case the listeners are left unchanged.
+     * @throws IOException if the port can't be bound, in which case there are
+     *         no listeners left.
+     */
+    public synchronized boolean setListeners(int count) throws IOException {
+        if (count > 1 && !TFTPSocket.canReusePort()) {
+            return false;
+        }
+        if (!running) {
+            return true;
         }
+        for (Listener listener : listeners) {
+            listener.stopListening();
+        }
+        listeners = new Listener[0];
         
+        /* A port selected by the host is kept once it has been bound, for the listeners after the first. */
+        TFTPSocket[] bound = new TFTPSocket[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                /* A single listener binds the port alone, so a second server can't share it by mistake. */
+                bound[i] = TFTPSocket.open((boundPort != 0) ? boundPort : port, count > 1);
+                boundPort = bound[i].getPort();
+            }
+        } catch (IOException e) {
+            for (TFTPSocket socket : bound) {
+                if (socket != null) { socket.close(); }
+            }
+            throw e;
+        }
+        Listener[] started = new Listener[count];
+        for (int i = 0; i < count; i++) {
+            started[i] = new Listener(i, bound[i]);
+            started[i].start();
+        }
+        listeners = started;
+        if (isVerbose()) { System.out.println("Server: " + count + " listener(s) on port " + boundPort + "."); }
+        return true;
+    }
+    
+    /**
+     * Returns the port the listeners are bound to, or 0 before they are.
+     */
+    public int getPort() {
+        return boundPort;
+    }
+    
+    /**
+     * Returns the threads receiving requests on the server port.
+     */
+    public synchronized Thread[] getListeners() {
+        return listeners.clone();
+    }
+    
+    /**
+     * Returns the number of requests each listener has received, duplicates
+     * included, since it was started.
+     */
+    public synchronized long[] getListenerRequests() {
+        long[] received = new long[listeners.length];
+        for (int i = 0; i < listeners.length; i++) {
+            received[i] = listeners[i].received;
+        }
+        return received;
+    }
+    
+    /**
+     * Returns the number of requests being served.
+     */
+    public int getActiveRequests() {
+        return active.size();
+    }
+    
+    /**
+     * Returns the number of connections and sessions started that are not
+     * over yet.
+     */
+    public int getSessions() {
+        return sessions.get();
+    }
+    
+    private void endSession() {
+        synchronized (sessionLock) {
+            if (sessions.decrementAndGet() == 0) {
+                sessionLock.notifyAll();
+            }
+        }
+    }
+    
+    /**
+     * Waits for every connection and session started to be over.
+     * 
+     * @param timeout longest to wait in milliseconds, 0 for no limit.
+     * @return false if some were still running at the timeout.
+     */
+    public boolean awaitSessions(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (sessionLock) {
+            while (sessions.get() > 0) {
+                long left = deadline - System.currentTimeMillis();
+                if (timeout > 0 && left <= 0) {
+                    return false;
+                }
+                sessionLock.wait((timeout > 0) ? left : 0);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Changes the directory new transfers read and write. Transfers already
+     * running are not affected.
+     * 
+     * @param directory of the server.
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+    
+    public File getDirectory() {
+        return directory;
+    }
+    
+    /**
+     * Sets the bounds of the RTO for transfers started from now on.
+     * 
+     * @param min smallest RTO in milliseconds, at least 1.
+     * @param max largest RTO in milliseconds, at least min.
+     * @param initial RTO in milliseconds, until there is a measurement.
+     */
+    public void setTimeouts(int min, int max, int initial) {
+        minTimeout = min;
+        maxTimeout = max;
+        initialTimeout = initial;
+    }
+    
+    public int getMinTimeout() {
+        return minTimeout;
+    }
+    
+    public int getMaxTimeout() {
+        return maxTimeout;
+    }
+    
+    public int getInitialTimeout() {
+        return initialTimeout;
+    }
+    
+    /**
+     * Returns the number of retransmitted requests dropped because their
+     * transfer was already running.
+     */
+    public long getDuplicateRequests() {
+        return duplicates.get();
+    }
+    
+    /**
+     * Returns the event loop the next connection should run on, starting
+     * one loop per core the first time it is needed.
+     * 
+     * @return event loop to hand the connection to.
+     * @throws IOException if the loops can't be started.
+     */
+    private TFTPEventLoop nextEventLoop() throws IOException {
+        /* Not the dispatcher's own lock, which is held while the listeners are stopped. */
+        synchronized (eventLoopLock) {
+            if (eventLoops == null) {
+                TFTPEventLoop[] started = new TFTPEventLoop[Runtime.getRuntime().availableProcessors()];
+                try {
+                    for (int i = 0; i < started.length; i++) {
+                        started[i] = new TFTPEventLoop(i);
+                        started[i].start();
+                    }
+                } catch (IOException e) {
+                    for (TFTPEventLoop loop : started) {
+                        if (loop != null) { loop.killThread(); }
+                    }
+                    throw e;
+                }
+                eventLoops = started;
+                if (isVerbose()) { System.out.println("Server: Started " + eventLoops.length + " event loop(s)."); }
+            }
+            nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+            return eventLoops[nextEventLoop];
+        }
+    }
+    
+    /**
+     * Returns the shared socket the next connection should run on, opening
+     * one per core the first time it is needed.
+     * 
+     * @return shared socket to hand the connection to, or null if they can't be opened.
+     */
+    private TFTPSharedSocket nextSharedSocket() {
+        synchronized (socketLock) {
+            if (sockets == null) {
+                TFTPSharedSocket[] opened = new TFTPSharedSocket[Runtime.getRuntime().availableProcessors()];
+                try {
+                    for (int i = 0; i < opened.length; i++) {
+                        opened[i] = new TFTPSharedSocket(i);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    for (TFTPSharedSocket socket : opened) {
+                        if (socket != null) { socket.close(); }
+                    }
+                    /* The connection opens a socket of its own instead. */
+                    return null;
+                }
+                sockets = opened;
+                if (isVerbose()) { System.out.println("Server: Opened " + sockets.length + " shared socket(s)."); }
+            }
+            nextSocket = (nextSocket + 1) % sockets.length;
+            return sockets[nextSocket];
+        }
+    }
+    
+    /**
+     * Changes whether new transfers share a few sockets, told apart by the
+     * client's address and port, or each open a socket of its own on a new
+     * port (the transfer ID of RFC 1350). Transfers already running are not
+     * affected.
+     * 
+     * @param shared true to share sockets.
+     */
+    public void setSharedSockets(boolean shared) {
+        sharedSockets = shared;
+    }
+    
+    public boolean isSharedSockets() {
+        return sharedSockets;
+    }
+    
+    /**
+     * Returns a line on each shared socket opened so far: its port, the
+     * transfers on it and the packets it had no transfer for.
+     */
+    public String[] describeSharedSockets() {
+        ArrayList<String> lines = new ArrayList<String>();
+        synchronized (socketLock) {
+            if (sockets != null) {
+                for (TFTPSharedSocket socket : sockets) {
+                    lines.add(socket.getName() + ": " + socket);
+                }
+            }
+        }
+        synchronized (eventLoopLock) {
+            if (eventLoops != null) {
+                for (TFTPEventLoop loop : eventLoops) {
+                    if (loop.hasSharedChannel()) { lines.add(loop.toString()); }
+                }
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
     }
     
 	public static boolean isVerbose() {
@@ -114,14 +617,210 @@ public class TFTPServerDispatcher extends Thread {
         if (verbose == Verbose.ON) {
             verbose = Verbose.OFF;
             TFTPClientConnection.toggleVerbosity();
+            TFTPNioSession.toggleVerbosity();
         } else {
             verbose = Verbose.ON;
             TFTPClientConnection.toggleVerbosity();
+            TFTPNioSession.toggleVerbosity();
+        }
+    }
+    
+    /**
+     * Changes how new connections are handled. Connections already running
+     * are not affected.
+     * 
+     * @param mode to use for new connections.
+     * @return false if the mode is not supported by this JVM (virtual threads
+     *         need Java 21), in which case the mode is left unchanged.
+     */
+    public boolean setMode(ServerMode mode) {
+        if (mode == ServerMode.VIRTUAL_THREAD && virtualThreads == null) {
+            virtualThreads = newVirtualThreadExecutor();
+            if (virtualThreads == null) {
+                return false;
+            }
+        }
+        this.mode = mode;
+        return true;
+    }
+    
+    public ServerMode getMode() {
+        return mode;
+    }
+    
+    /**
+     * Returns an executor that starts a new virtual thread for every task,
+     * or null if the running JVM has no virtual threads. Looked up
+     * reflectively so the server still builds and runs on Java 8.
+     * 
+     * @return virtual thread per task executor, or null.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
         }
     }
     
+    /**
+     * Returns the pool the requests are received into.
+     */
+    public TFTPBufferPool getRequestBuffers() {
+        return requestBuffers;
+    }
+    
+    /**
+     * Stops the server after a failure that leaves it unable to serve
+     * requests, such as its port failing under a listener. Only the first
+     * failure is kept. The listener that failed calls this; the dispatcher's
+     * own thread stops the other listeners, as they can't be stopped from
+     * one of them while it holds the dispatcher's lock.
+     * 
+     * @param e the failure.
+     */
+    private void fail(IOException e) {
+        synchronized (failureLock) {
+            if (failure != null) {
+                return;
+            }
+            failure = e;
+        }
+        log.message(TFTPEventLog.SERVER, "Server: Can't serve requests any more, stopping: " + e);
+        interrupt();
+    }
+    
+    /**
+     * Returns the failure that stopped the server on its own, or null if
+     * there was none.
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+    
     public void killThread() {
-        running = false;
-        receiveSocket.close();
+        synchronized (this) {
+            running = false;
+            for (Listener listener : listeners) {
+                listener.stopListening();
+            }
+            notifyAll();
+        }
+    }
+    
+    /**
+     * A thread receiving requests on a socket of its own bound to the
+     * server port.
+     */
+    private class Listener extends Thread {
+        private final TFTPSocket socket;
+        
+        /* Reused to look each request up in 'active'; only copied when a new request is added. */
+        private final RequestKey probe = new RequestKey();
+        private final TFTPPacket view = new TFTPPacket();
+        
+        private volatile boolean listening = true;
+        private volatile long received;
+        
+        private Listener(int number, TFTPSocket socket) {
+            super("TFTPServerListener-" + number);
+            this.socket = socket;
+        }
+        
+        @Override
+        public void run() {
+            listen(this);
+        }
+        
+        /**
+         * Stops the listener and waits for it to finish with its socket, so
+         * the port can be bound again.
+         */
+        private void stopListening() {
+            listening = false;
+            socket.close();
+            if (Thread.currentThread() != this) {
+                try {
+                    join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+    
+    /**
+     * What a request is kept under while it is served: the client's address
+     * and port, the opcode and the filename. Filled in place from a received
+     * request, so looking one up doesn't allocate.
+     */
+    private static class RequestKey {
+        private InetSocketAddress client;
+        private byte opcode;
+        private byte[] filename = new byte[TFTP_DATA_SIZE];
+        private int length;
+        private int hash;
+        
+        /**
+         * Fills the key from a request.
+         * 
+         * @param request viewed.
+         * @param client the request came from.
+         * @return false if the packet isn't an RRQ / WRQ with a filename.
+         */
+        private boolean set(TFTPPacket request, InetSocketAddress client) {
+            int end = request.getFilenameEnd();
+            if (request.length() < 4 || !request.isRequest() || end < 0) {
+                return false;
+            }
+            this.client = client;
+            opcode = (byte) request.getOpcode();
+            length = end - 2;
+            hash = client.hashCode() * 31 + opcode;
+            for (int i = 0; i < length; i++) {
+                filename[i] = (byte) request.get(2 + i);
+                hash = hash * 31 + filename[i];
+            }
+            return true;
+        }
+        
+        private RequestKey copy() {
+            RequestKey key = new RequestKey();
+            key.client = client;
+            key.opcode = opcode;
+            key.filename = Arrays.copyOf(filename, length);
+            key.length = length;
+            key.hash = hash;
+            return key;
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof RequestKey)) {
+                return false;
+            }
+            RequestKey key = (RequestKey) other;
+            if (key.hash != hash || key.opcode != opcode || key.length != length || !key.client.equals(client)) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (key.filename[i] != filename[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        @Override
+        public String toString() {
+            return client.getAddress().getHostAddress() + ":" + client.getPort()
+                    + ((opcode == OPCODE.RRQ.value()) ? " RRQ " : " WRQ ") + new String(filename, 0, length);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,269 @@
+/*  TFTPSessionLoadTest.java
+ *
+ *  This class is a load test for the server's
+ *  connection handling modes (see ServerMode). It
+ *  starts a server dispatcher in the same JVM and
+ *  then opens a growing number of slow RRQ sessions
+ *  against it: each simulated client sends an RRQ,
+ *  receives the first DATA packet and then holds the
+ *  session open by not acknowledging it. While all
+ *  sessions are held, the test records how many were
+ *  established, how many threads the JVM is running
+ *  and how much heap and resident memory the held
+ *  sessions cost. It then acknowledges every session
+ *  so the transfers complete, and doubles the load.
+ *
+ *  The ramp stops at the first step where not every
+ *  session could be established, or at the maximum
+ *  given on the command line.
+ *
+ *  Usage: TFTPSessionLoadTest <THREAD|VIRTUAL_THREAD|EVENT_LOOP> [max sessions] [first step]
+ *
+ *  Run each mode in its own JVM so the memory figures
+ *  are not mixed up. The simulated clients run on a
+ *  single selector thread and their channels are
+ *  opened before the baseline is taken, so they are
+ *  not counted against the server.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+public class TFTPSessionLoadTest {
+	/* Main server port. */
+	private static final int SERVER_RECV_PORT = 6900;
+
+	/* File served to every session; small enough to fit in one DATA packet. */
+	private static final String LOAD_FILE = "loadtest.bin";
+	private static final int LOAD_FILE_SIZE = 100;
+
+	/* How long to wait for every session to receive its first DATA packet. */
+	private static final int ESTABLISH_TIMEOUT = 20000;
+
+	/* How long to wait for the server to finish the acknowledged sessions. */
+	private static final int DRAIN_TIME = 3000;
+
+	/* Same RRQ retransmission interval as TFTPClient. */
+	private static final int RRQ_TIMEOUT = 1500;
+
+	/* Acknowledges the single block of the load file. */
+	private static final byte[] ACK = {0, 4, 0, 1};
+
+	private Selector selector;
+	private ByteBuffer buffer = ByteBuffer.allocate(516);
+	private InetSocketAddress server = new InetSocketAddress("127.0.0.1", SERVER_RECV_PORT);
+
+	public TFTPSessionLoadTest() throws IOException {
+		selector = Selector.open();
+	}
+
+	/**
+	 * Runs one step of the ramp: opens the given number of sessions, holds
+	 * them, measures, then releases them.
+	 *
+	 * @param sessions number of concurrent sessions to open.
+	 * @return number of sessions that received their first DATA packet.
+	 */
+	private int runStep(int sessions) throws IOException {
+		DatagramChannel[] channels = new DatagramChannel[sessions];
+		InetSocketAddress[] tids = new InetSocketAddress[sessions];
+		for (int i = 0; i < sessions; i++) {
+			channels[i] = DatagramChannel.open();
+			channels[i].bind(null);
+			channels[i].configureBlocking(false);
+			channels[i].register(selector, SelectionKey.OP_READ, Integer.valueOf(i));
+		}
+
+		long heapBefore = usedHeap();
+		long rssBefore = residentMemory();
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		/* Send every RRQ at once, as in a boot storm. */
+		byte[] rrq = buildRequest(LOAD_FILE);
+		long start = System.nanoTime();
+		for (int i = 0; i < sessions; i++) {
+			channels[i].send(ByteBuffer.wrap(rrq), server);
+		}
+
+		/* Wait for the first DATA packet of every session, resending lost RRQs like a real client. */
+		int established = 0;
+		long deadline = System.currentTimeMillis() + ESTABLISH_TIMEOUT;
+		long resend = System.currentTimeMillis() + RRQ_TIMEOUT;
+		while (established < sessions && System.currentTimeMillis() < deadline) {
+			established += poll(channels, tids, false);
+			if (System.currentTimeMillis() >= resend) {
+				for (int i = 0; i < sessions; i++) {
+					if (tids[i] == null) {
+						channels[i].send(ByteBuffer.wrap(rrq), server);
+					}
+				}
+				resend = System.currentTimeMillis() + RRQ_TIMEOUT;
+			}
+		}
+		long establishTime = (System.nanoTime() - start) / 1000000;
+
+		int threadsHeld = ManagementFactory.getThreadMXBean().getThreadCount();
+		long heapHeld = usedHeap();
+		long rssHeld = residentMemory();
+
+		/*
+			Release the sessions by acknowledging their only block. Keep answering
+			for a while, as a resent RRQ may have started a second transfer.
+		*/
+		for (int i = 0; i < sessions; i++) {
+			if (tids[i] != null) {
+				channels[i].send(ByteBuffer.wrap(ACK), tids[i]);
+			}
+		}
+		long drained = System.currentTimeMillis() + DRAIN_TIME;
+		while (System.currentTimeMillis() < drained) {
+			poll(channels, tids, true);
+		}
+		for (int i = 0; i < sessions; i++) {
+			channels[i].close();
+		}
+		selector.selectNow();
+
+		int perSession = Math.max(established, 1);
+		System.out.println(String.format("%9d %12d %8d %10d %14.1f %13s %9d",
+				sessions, established, threadsHeld - threadsBefore,
+				(heapHeld - heapBefore) / 1024,
+				(heapHeld - heapBefore) / 1024.0 / perSession,
+				rssBefore < 0 ? "n/a" : String.format("%.1f", (rssHeld - rssBefore) / 1024.0 / perSession),
+				establishTime));
+		return established;
+	}
+
+	/**
+	 * Reads whatever DATA packets are waiting on the simulated clients' channels.
+	 *
+	 * @param channels of the simulated clients.
+	 * @param tids server transfer ID of each established session.
+	 * @param release true to acknowledge every DATA packet so its transfer completes.
+	 * @return number of sessions newly established.
+	 */
+	private int poll(DatagramChannel[] channels, InetSocketAddress[] tids, boolean release) throws IOException {
+		int established = 0;
+		selector.select(100);
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			int i = (Integer) key.attachment();
+			buffer.clear();
+			InetSocketAddress source;
+			while ((source = (InetSocketAddress) channels[i].receive(buffer)) != null) {
+				if (buffer.position() >= 4 && buffer.get(1) == 3) {
+					if (tids[i] == null) {
+						tids[i] = source;
+						established++;
+					}
+					if (release || !source.equals(tids[i])) {
+						channels[i].send(ByteBuffer.wrap(ACK), source);
+					}
+				}
+				buffer.clear();
+			}
+		}
+		return established;
+	}
+
+	private static byte[] buildRequest(String filename) {
+		byte[] fn = filename.getBytes();
+		byte[] md = "octet".getBytes();
+		byte[] msg = new byte[fn.length + md.length + 4];
+		msg[1] = 1;
+		System.arraycopy(fn, 0, msg, 2, fn.length);
+		System.arraycopy(md, 0, msg, fn.length + 3, md.length);
+		return msg;
+	}
+
+	private static long usedHeap() {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Returns the resident set size of this process in bytes, or -1 if it
+	 * can't be read (only available on Linux).
+	 */
+	private static long residentMemory() {
+		File status = new File("/proc/self/status");
+		if (!status.exists()) {
+			return -1;
+		}
+		try (BufferedReader reader = new BufferedReader(new FileReader(status))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return -1;
+	}
+
+	public static void main(String args[]) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: TFTPSessionLoadTest <THREAD|VIRTUAL_THREAD|EVENT_LOOP> [max sessions] [first step]");
+			return;
+		}
+		ServerMode mode = ServerMode.valueOf(args[0].toUpperCase());
+		int max = (args.length > 1) ? Integer.parseInt(args[1]) : 16000;
+		int step = (args.length > 2) ? Integer.parseInt(args[2]) : 250;
+
+		TFTPServer server = TFTPServer.builder().mode(mode).build();
+		try {
+			server.start();
+		} catch (UnsupportedOperationException e) {
+			System.out.println(mode + " is not supported by this JVM (virtual threads need Java 21 or later).");
+			return;
+		}
+
+		/* Create the file every session reads. */
+		File file = new File(server.getRoot(), LOAD_FILE);
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(new byte[LOAD_FILE_SIZE]);
+		}
+
+		System.out.println("Server mode: " + mode);
+		System.out.println("Max heap: " + (Runtime.getRuntime().maxMemory() / (1024 * 1024)) + " MB");
+		System.out.println(" sessions  established  threads  heap (KB)  heap/session KB  rss/session KB  setup ms");
+
+		TFTPSessionLoadTest test = new TFTPSessionLoadTest();
+		int sustained = 0;
+		try {
+			for (int sessions = step; sessions <= max; sessions *= 2) {
+				int established = test.runStep(sessions);
+				if (established < sessions) {
+					break;
+				}
+				sustained = sessions;
+			}
+		} catch (IOException e) {
+			/* Most likely out of file descriptors for the simulated clients. */
+			System.out.println("Load test stopped: " + e);
+		}
+		System.out.println("Highest step fully sustained: " + sustained + " sessions");
+
+		server.getDispatcher().killThread();
+		file.delete();
+		System.exit(0);
+	}
+}
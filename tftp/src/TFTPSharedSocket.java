@@ -0,0 +1,346 @@
+/*  TFTPSharedSocket.java
+ *
+ *  This class is one of the few sockets that carry
+ *  every transfer of the server when it runs with
+ *  shared sockets (see the SOCKETS console command of
+ *  the server), instead of each transfer opening a
+ *  socket of its own on a new port.
+ *
+ *  Each transfer on the shared socket gets an Endpoint:
+ *  a TFTPSocket that sends through the shared socket
+ *  and receives only the packets that come from its
+ *  own client. A receiver thread reads everything that
+ *  arrives on the shared socket and hands each packet
+ *  to the endpoint of the client it came from, looked
+ *  up by address and port. A packet from a client
+ *  with no transfer on the socket is answered with an
+ *  Error Code 5, as a packet for an unknown transfer
+ *  ID would be.
+ *
+ *  The packets an endpoint hasn't taken yet wait in a
+ *  bounded queue, in buffers of the endpoint's own
+ *  that go back to it once the transfer has copied the
+ *  packet out, so the receiver thread doesn't allocate
+ *  per packet. An endpoint has room for QUEUE_WINDOWS
+ *  windows of the transfer's packets, and no more than
+ *  QUEUE_BYTES of them, its buffers allocated as they
+ *  are first needed. If a client sends faster than its
+ *  transfer takes the packets, or the transfer has
+ *  stalled, new packets are dropped and counted rather
+ *  than queued; the client sends them again like any
+ *  other packet lost on the way. The socket itself
+ *  asks the host for a receive buffer of RECEIVE_BUFFER
+ *  bytes, as it holds the packets of every transfer
+ *  on it until the receiver thread gets to them.
+ *
+ *  The transfer ID the client sees is the port of the
+ *  shared socket, which the clients of the other
+ *  transfers on it see as well. That is fine for
+ *  clients that tell transfers apart by their own
+ *  port, but not what RFC 1350 describes, so the
+ *  server opens a socket per transfer unless told
+ *  otherwise.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TFTPSharedSocket extends Thread {
+	/* Packets an endpoint can queue: this many windows, but no more than QUEUE_BYTES of them. */
+	private static final int QUEUE_WINDOWS = 2;
+	private static final int QUEUE_BYTES = 4 * 1024 * 1024;
+
+	/* Socket receive buffer asked for; one socket takes the packets of every transfer on it. Event loops ask the same. */
+	static final int RECEIVE_BUFFER = 4 * 1024 * 1024;
+
+	/* Put in an endpoint's queue to wake its receiver. */
+	private static final ByteBuffer WAKE_UP = ByteBuffer.allocate(0);
+
+	private static final String UNKNOWN_TRANSFER = "Unknown transfer ID.";
+
+	private DatagramChannel channel;
+
+	/* Endpoints of the transfers on this socket, by client address and port. */
+	private final ConcurrentHashMap<InetSocketAddress, Endpoint> endpoints = new ConcurrentHashMap<InetSocketAddress, Endpoint>();
+
+	/* Packets from clients with no transfer on this socket, and packets dropped because their endpoint's queue was full. */
+	private volatile long strays;
+	private volatile long dropped;
+
+	/**
+	 * Opens the socket on a port selected by the host and starts its
+	 * receiver thread.
+	 *
+	 * @param number of the socket, for the name of its thread.
+	 * @throws IOException if the socket can't be opened.
+	 */
+	public TFTPSharedSocket(int number) throws IOException {
+		super("TFTPSharedSocket-" + number);
+		setDaemon(true);
+		channel = DatagramChannel.open();
+		/* The host may give less than asked; whatever doesn't fit is lost on the way, and sent again. */
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER);
+		channel.bind(null);
+		start();
+	}
+
+	/**
+	 * Opens an endpoint for a transfer with a client.
+	 *
+	 * @param client address and port of the client.
+	 * @param windowSize of the transfer, which sizes the endpoint's queue.
+	 * @param packetSize largest packet of the transfer; longer ones are cut short.
+	 * @return the endpoint, or null if the client already has a transfer on this socket.
+	 */
+	public Endpoint open(InetSocketAddress client, int windowSize, int packetSize) {
+		Endpoint endpoint = new Endpoint(client, windowSize, packetSize);
+		if (endpoints.putIfAbsent(client, endpoint) != null) {
+			return null;
+		}
+		return endpoint;
+	}
+
+	@Override
+	public void run() {
+		ByteBuffer buffer = ByteBuffer.allocate(TFTPOptions.MAX_PACKET_SIZE);
+		while (channel.isOpen()) {
+			InetSocketAddress source;
+			buffer.clear();
+			try {
+				source = (InetSocketAddress) channel.receive(buffer);
+			} catch (IOException e) {
+				if (channel.isOpen()) {
+					e.printStackTrace();
+				}
+				return;
+			}
+			buffer.flip();
+			if (!buffer.hasRemaining()) {
+				/* No TFTP packet is empty, and the endpoints are woken through their queues, not by datagrams. */
+				continue;
+			}
+			Endpoint endpoint = endpoints.get(source);
+			if (endpoint != null) {
+				if (!endpoint.deliver(buffer)) {
+					dropped++;
+				}
+			} else {
+				strays++;
+				sendUnknownTransfer(channel, buffer, source);
+			}
+		}
+	}
+
+	/**
+	 * Answers a packet from a client with no transfer on a shared socket
+	 * with an Error Code 5, unless the packet is an error itself.
+	 *
+	 * @param channel the packet arrived on.
+	 * @param packet received, flipped.
+	 * @param address the packet came from.
+	 */
+	static void sendUnknownTransfer(DatagramChannel channel, ByteBuffer packet, InetSocketAddress address) {
+		/* An error is never answered with an error. */
+		if (new TFTPPacket().wrap(packet).is(TFTPPacket.OPCODE.ERROR)) {
+			return;
+		}
+		ByteBuffer error = ByteBuffer.allocate(TFTPPacket.errorLength(UNKNOWN_TRANSFER));
+		TFTPPacket.putError(error, 5, UNKNOWN_TRANSFER);
+		error.flip();
+		try {
+			channel.send(error, address);
+		} catch (IOException e) {
+			/* Only a courtesy to a stranger. */
+		}
+	}
+
+	/**
+	 * Returns the port the socket is bound to, which is the transfer ID of
+	 * every transfer on it.
+	 */
+	public int getPort() {
+		return channel.socket().getLocalPort();
+	}
+
+	/**
+	 * Returns the number of transfers on the socket.
+	 */
+	public int getTransfers() {
+		return endpoints.size();
+	}
+
+	/**
+	 * Returns the number of packets that came from a client with no transfer
+	 * on the socket.
+	 */
+	public long getStrays() {
+		return strays;
+	}
+
+	/**
+	 * Returns the number of packets dropped because the queue of the
+	 * transfer they were for was full.
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Closes the socket. Transfers still on it fail.
+	 */
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (Endpoint endpoint : endpoints.values()) {
+			endpoint.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "port " + getPort() + ": " + getTransfers() + " transfers, " + strays + " stray packets, " + dropped + " dropped";
+	}
+
+	/**
+	 * A transfer's view of the shared socket. Sends go straight out through
+	 * the shared socket; receives take the packets the receiver thread has
+	 * queued from this endpoint's client.
+	 */
+	public class Endpoint extends TFTPSocket {
+		private final InetSocketAddress client;
+		private final int packetSize;
+
+		/* Most packets queued at once, and the buffers allocated so far to hold them (by the receiver thread only). */
+		private final int capacity;
+		private int allocated;
+
+		/* Buffers not holding a packet, and the packets waiting to be taken, with room for one wake-up. */
+		private final ArrayBlockingQueue<ByteBuffer> free;
+		private final ArrayBlockingQueue<ByteBuffer> received;
+		private final AtomicBoolean wakeUpQueued = new AtomicBoolean();
+		private volatile boolean closed;
+
+		private Endpoint(InetSocketAddress client, int windowSize, int packetSize) {
+			super(channel);
+			this.client = client;
+			this.packetSize = packetSize;
+			capacity = (int) Math.max(1, Math.min((long) windowSize * QUEUE_WINDOWS, QUEUE_BYTES / packetSize));
+			free = new ArrayBlockingQueue<ByteBuffer>(capacity);
+			received = new ArrayBlockingQueue<ByteBuffer>(capacity + 1);
+		}
+
+		/**
+		 * Queues a packet from the client. Called by the receiver thread only.
+		 *
+		 * @param packet received, flipped; consumed.
+		 * @return false if the queue was full and the packet was dropped.
+		 */
+		private boolean deliver(ByteBuffer packet) {
+			ByteBuffer buffer = free.poll();
+			if (buffer == null) {
+				if (allocated == capacity) {
+					return false;
+				}
+				buffer = ByteBuffer.allocate(packetSize);
+				allocated++;
+			}
+			buffer.clear();
+			if (packet.remaining() > buffer.remaining()) {
+				/* Cut short, as a datagram too long for the receive buffer would be. */
+				packet.limit(packet.position() + buffer.remaining());
+			}
+			buffer.put(packet);
+			buffer.flip();
+			/* There is always room: every buffer and a wake-up fit in the queue. */
+			received.offer(buffer);
+			return true;
+		}
+
+		@Override
+		public void receivePacket(DatagramPacket packet) {
+			try {
+				take(packet, null);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void receivePacket(DatagramPacket packet, TFTPTimerWheel.Timeout deadline) throws IOException {
+			take(packet, deadline);
+		}
+
+		/**
+		 * Copies the next packet from the client into the given packet.
+		 *
+		 * @param deadline armed for this wait, or null to wait for as long as it takes.
+		 */
+		private void take(DatagramPacket packet, TFTPTimerWheel.Timeout deadline) throws IOException {
+			while (true) {
+				if (closed) {
+					throw new SocketException("Socket closed");
+				}
+				ByteBuffer data;
+				try {
+					data = received.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SocketException("Interrupted while waiting for a packet.");
+				}
+				if (data == WAKE_UP) {
+					wakeUpQueued.set(false);
+					/* It may be left over from a deadline that has been armed again since. */
+					if (deadline != null && !deadline.isArmed()) {
+						throw new SocketTimeoutException("Deadline expired.");
+					}
+					continue;
+				}
+				/* Up to the end of the packet's array, as a DatagramSocket would, not the length of the last packet received into it. */
+				int length = Math.min(data.remaining(), packet.getData().length - packet.getOffset());
+				data.get(packet.getData(), packet.getOffset(), length);
+				packet.setLength(length);
+				packet.setSocketAddress(client);
+				free.offer(data);
+				return;
+			}
+		}
+
+		@Override
+		public void wakeUp() {
+			/* One queued wake-up is enough, and leaves the rest of the queue to the packets. */
+			if (wakeUpQueued.compareAndSet(false, true)) {
+				received.offer(WAKE_UP);
+			}
+		}
+
+		/**
+		 * Takes the transfer off the shared socket, which stays open for the
+		 * others. Safe to call more than once, from any thread.
+		 */
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			endpoints.remove(client, this);
+			wakeUp();
+		}
+	}
+}
@@ -4,6 +4,28 @@
  *  transfers. It will bind socket and is also used
  *  to send and receive packets. It contains methods
  *  to retrieve information from sockets as well. 
+ *  A socket that can't be bound, or fails under a
+ *  send or receive, throws an UncheckedIOException
+ *  rather than ending the program, so in the server
+ *  only the transfer using it ends.
+ *  
+ *  Sockets bound to a port selected by the host (the
+ *  ones used for transfers) are opened through a
+ *  DatagramChannel, so that DATA packets can be sent
+ *  straight from a ByteBuffer. DatagramSocket.send
+ *  allocates on every call on recent JVMs, the channel
+ *  does not. Sockets bound to a given port are opened
+ *  the same way, so the server port can receive
+ *  requests into a ByteBuffer too, and can be bound
+ *  with SO_REUSEPORT so that several listeners of the
+ *  server share it.
+ *  
+ *  A transfer waiting for a packet can be woken by
+ *  its deadline on the TFTPTimerWheel: the wheel sends
+ *  the socket an empty datagram from itself, which no
+ *  TFTP packet can be. Every empty datagram is ignored,
+ *  whoever sent it, and the wait only returns without
+ *  a packet once the deadline has expired.
  *  
  *  Author:         Team 12 (Group Project - SYSC3303)
  *  Date:           5/19/2017
@@ -11,22 +33,49 @@
 
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 
 public class TFTPSocket {
 	private DatagramSocket socket;
+	private DatagramChannel channel;
 	
 	public TFTPSocket() {
 		socket = bind();
 	}
 	
 	public TFTPSocket(int port) {
-		socket = bind(port);
+		socket = bind(port, false);
+	}
+	
+	/**
+	 * Wraps a channel that is already bound, for a socket that shares it
+	 * with others (see TFTPSharedSocket).
+	 * 
+	 * @param channel to send and receive through.
+	 */
+	protected TFTPSocket(DatagramChannel channel) {
+		this.channel = channel;
+		socket = channel.socket();
+	}
+	
+	/**
+	 * @param port number to bind to socket.
+	 * @param reusePort true to let other sockets with SO_REUSEPORT bind the same port.
+	 */
+	public TFTPSocket(int port, boolean reusePort) {
+		socket = bind(port, reusePort);
 	}
 	
 	public TFTPSocket(int port, String address) {
@@ -41,27 +90,54 @@ public class TFTPSocket {
 	
 	/**
 	 * Sends a given DatagramPacket to a host through a provided DatagramSocket.
-	 * Terminates TFTPErrorSimulator if IOException occurs.
 	 * 
 	 * @param socket to send through.
 	 * @param packet to send.
+	 * @throws UncheckedIOException if the socket fails.
 	 */
 	public void sendPacket(DatagramPacket packet) {
 		try {
 			socket.send(packet);
 		} 
 		catch (IOException e) {
-			e.printStackTrace();
-			System.exit(1);
+			if (socket.isClosed()) {
+				/* Closed under a transfer that was given up; there is nobody to send to. */
+				return;
+			}
+			throw new UncheckedIOException(e);
 		}
 	}
 	   
+	/**
+	 * Sends a packet held in a ByteBuffer to a host, without allocating.
+	 * Throws if the socket fails, like sendPacket.
+	 *
+	 * @param packet to send, from its position to its limit.
+	 * @param address to send it to.
+	 */
+	public void sendPacket(ByteBuffer packet, InetSocketAddress address) {
+		try {
+			if (channel != null) {
+				channel.send(packet, address);
+			} else {
+				socket.send(new DatagramPacket(packet.array(), packet.arrayOffset() + packet.position(), packet.remaining(), address));
+			}
+		}
+		catch (IOException e) {
+			if (socket.isClosed()) {
+				/* Closed under a transfer that was given up; there is nobody to send to. */
+				return;
+			}
+			throw new UncheckedIOException(e);
+		}
+	}
+
 	/**
 	 * Receives a DatagramPacket from a host through a provided DatagramSocket.
-	 * Terminates TFTPErrorSimulator if an exception occurs.
 	 * 
 	 * @param socket to receive the packet on.
 	 * @param packet to receive.
+	 * @throws UncheckedIOException if the socket fails or is closed while waiting.
 	 */
 	public void receivePacket(DatagramPacket packet) {
 		//Block until packet receives
@@ -69,8 +145,54 @@ public class TFTPSocket {
 			socket.receive(packet);
 		} 
 		catch (IOException e) {
-			e.printStackTrace();
-			System.exit(1);
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Receives a packet, like receivePacket, but stops waiting once a
+	 * deadline on the timer wheel has expired. The deadline's task must call
+	 * wakeUp() on this socket.
+	 * 
+	 * @param packet to receive.
+	 * @param deadline armed for this wait.
+	 * @throws SocketTimeoutException if the deadline expired before a packet arrived.
+	 * @throws IOException if the socket fails or is closed while waiting.
+	 */
+	public void receivePacket(DatagramPacket packet, TFTPTimerWheel.Timeout deadline) throws IOException {
+		int capacity = packet.getLength();
+		while (true) {
+			socket.receive(packet);
+			if (packet.getLength() > 0) {
+				return;
+			}
+			/* No TFTP packet is empty: our own wake-up, maybe left over from a deadline armed again since, or junk from anyone else. */
+			packet.setLength(capacity);
+			if (!deadline.isArmed()) {
+				throw new SocketTimeoutException("Deadline expired.");
+			}
+		}
+	}
+	
+	/**
+	 * Wakes a thread waiting in receivePacket(packet, deadline) by sending
+	 * the socket an empty datagram from itself. Safe to call from any
+	 * thread, and after the socket is closed.
+	 */
+	public void wakeUp() {
+		int port = socket.getLocalPort();
+		if (port < 1) {
+			return;
+		}
+		try {
+			InetSocketAddress self = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+			if (channel != null) {
+				channel.send(ByteBuffer.allocate(0), self);
+			} else {
+				socket.send(new DatagramPacket(new byte[0], 0, self));
+			}
+		} catch (IOException e) {
+			/* Closed; nobody is waiting any more. */
 		}
 	}
 	
@@ -81,10 +203,17 @@ public class TFTPSocket {
 	public DatagramSocket getDatagramSocket() { return socket;}
 	
 	/**
-     * Returns a DatagramSocket bound to port selected by the host. Terminates
-     * the TFTPErrorSimulator if a SocketException occurs.
+	 * Returns the channel the socket was opened through, or null if it
+	 * was bound to a given address.
+	 */
+	public DatagramChannel getChannel() { return channel; }
+	
+	/**
+     * Returns the DatagramSocket of a channel bound to a port selected by
+     * the host.
      * 
      * @return DatagramSocket bound to a port.
+     * @throws UncheckedIOException if no port can be bound.
      */
 	private DatagramSocket bind() {
 		//Create new socket reference
@@ -92,11 +221,12 @@ public class TFTPSocket {
 		   
 		//Attempt to bind socket
 		try {
-			socket = new DatagramSocket();
+			channel = DatagramChannel.open();
+			channel.bind(null);
+			socket = channel.socket();
 		} 
-		catch (SocketException se) {
-			se.printStackTrace();
-			System.exit(1);
+		catch (IOException se) {
+			throw new UncheckedIOException(se);
 		}
 		   
 		//Return bound socket
@@ -104,37 +234,65 @@ public class TFTPSocket {
 	}
 
 	/**
-	 * Returns a DatagramSocket bound to a provided port. Terminates
-	 * the TFTPErrorSimulator if a SocketException occurs.
+	 * Returns the DatagramSocket of a channel bound to a provided port.
 	 * 
 	 * @param port number to bind to socket.
+	 * @param reusePort true to set SO_REUSEPORT before binding.
 	 * @return DatagramSocket bound to a port.
+	 * @throws UncheckedIOException if the port can't be bound.
 	 */
-	private DatagramSocket bind(int port) {
+	private DatagramSocket bind(int port, boolean reusePort) {
 		//Create new socket reference
 		DatagramSocket socket = null;
 		
 		//Attempt to bind socket to port
 		try {
-			socket = new DatagramSocket(port);
+			channel = DatagramChannel.open();
+			if (reusePort) {
+				channel.setOption(reusePortOption(), true);
+			}
+			channel.bind(new InetSocketAddress(port));
+			socket = channel.socket();
 		} 
-		catch (SocketException se) {
-			se.printStackTrace();
-			System.exit(1);
+		catch (IOException se) {
+			throw new UncheckedIOException(se);
 		}
 		   
 		//Return bound socket
 		return socket;
 	}
 	
+	/**
+	 * Opens a socket bound to a provided port, throwing a checked exception
+	 * if the port can't be bound, for a server embedded in another program.
+	 *
+	 * @param port number to bind to socket, or 0 for one selected by the host.
+	 * @param reusePort true to set SO_REUSEPORT before binding.
+	 * @return socket bound to the port.
+	 * @throws IOException if the port can't be bound.
+	 */
+	public static TFTPSocket open(int port, boolean reusePort) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			if (reusePort) {
+				channel.setOption(reusePortOption(), true);
+			}
+			channel.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new TFTPSocket(channel);
+	}
+
 	/**
 	 * Returns a DatagramSocket bound to a provided port
-	 * and Inet Address. Terminates
-	 * the TFTPErrorSimulator if a SocketException occurs.
+	 * and Inet Address.
 	 * 
 	 * @param port number to bind to socket.
 	 * @param address to bind socket to
 	 * @return DatagramSocket bound to a port.
+	 * @throws UncheckedIOException if the port can't be bound.
 	 */
 	private DatagramSocket bind(int port, InetAddress address) {
 		//Create new socket reference
@@ -145,8 +303,7 @@ public class TFTPSocket {
 			socket = new DatagramSocket(port, address);
 		} 
 		catch (SocketException se) {
-			se.printStackTrace();
-			System.exit(1);
+			throw new UncheckedIOException(se);
 		}
 		   
 		//Return bound socket
@@ -162,4 +319,34 @@ public class TFTPSocket {
 	public int getPort(){
 		return socket.getLocalPort();
 	}
+
+	/**
+	 * Returns true if sockets can share a port with SO_REUSEPORT on this
+	 * platform (Linux, macOS and the BSDs, on Java 9 or later).
+	 */
+	public static boolean canReusePort() {
+		SocketOption<Boolean> option = reusePortOption();
+		if (option == null) {
+			return false;
+		}
+		try (DatagramChannel probe = DatagramChannel.open()) {
+			return probe.supportedOptions().contains(option);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns StandardSocketOptions.SO_REUSEPORT, or null if the running JVM
+	 * doesn't have it. Looked up reflectively so this still builds and runs
+	 * on Java 8.
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> reusePortOption() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
 }
@@ -0,0 +1,300 @@
+/*  TFTPThroughputBench.java
+ *
+ *  This class is an end-to-end benchmark of whole
+ *  transfers. It starts a server in the same JVM, on a
+ *  port selected by the host and with verbose off, and
+ *  runs transfers against it on loopback, one at a
+ *  time, from a TFTPAsyncClient with a single thread:
+ *  an RRQ and then a WRQ of each file in "test files",
+ *  and of synthetic files of 1 MB, 100 MB and 1 GB
+ *  (those up to the largest size asked for).
+ *
+ *  The client keeps out of the way of the measurement:
+ *  it doesn't write what it downloads anywhere, and
+ *  each transfer records into a TFTPMetrics of its
+ *  own. The embedded server's event log keeps none of
+ *  the transfers' events, so nothing is printed while
+ *  they run. For each transfer the benchmark reports:
+ *
+ *  MB/s: data bytes moved per second, from the request
+ *  to the last ACK.
+ *  packets/s: packets, both ways, per second, as the
+ *  client counted them.
+ *  p50 / p99 block latency: the round trip times the
+ *  client's TFTPRetransmitTimer measured, from sending
+ *  a packet that asks for more (the request, an ACK,
+ *  or the last DATA packet of a window) to the reply
+ *  arriving, which is the latency of each block when
+ *  the window is one block. Packets sent again aren't
+ *  timed.
+ *
+ *  The results are printed, and written as JSON with
+ *  the settings and the Java version of the run, so the
+ *  runs before and after a change can be compared. The
+ *  files the benchmark puts in the server directory are
+ *  deleted again at the end.
+ *
+ *  Usage: TFTPThroughputBench [largest synthetic file in MB] [block size]
+ *         [window size] [mode P/V/E] [JSON file]
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+public class TFTPThroughputBench {
+	/* Where the files of "test files" are, from the directory the server runs in. */
+	private static final String TEST_FILES = "test files";
+
+	/* Prefix of every file the benchmark puts in the server directory. */
+	private static final String PREFIX = "throughputbench-";
+
+	/* Sizes of the synthetic files, in MB. */
+	private static final int[] SYNTHETIC_SIZES = {1, 100, 1024};
+
+	/* Longest wait for the server's transfers to end once the benchmark is done, in milliseconds. */
+	private static final int STOP_TIMEOUT = 10000;
+
+	/* The downloaded files are thrown away. */
+	private static final OutputStream DISCARD = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	/**
+	 * What one transfer did.
+	 */
+	private static class Result {
+		private String file;
+		private String request;
+		private long bytes;
+		private long packets;
+		private long retransmissions;
+		private long nanos;
+		private TFTPMetrics.Histogram latency;
+
+		private double getSeconds() {
+			return nanos / 1e9;
+		}
+
+		private double getMegabytesPerSecond() {
+			return bytes / 1048576.0 / getSeconds();
+		}
+
+		private double getPacketsPerSecond() {
+			return packets / getSeconds();
+		}
+	}
+
+	/**
+	 * Reads a file from the server, throwing the data away, or writes a local
+	 * file to it, and waits for the transfer to end.
+	 *
+	 * @param source of a WRQ, or null for an RRQ.
+	 * @param remote name of the file on the server.
+	 */
+	private static Result transfer(TFTPAsyncClient client, InetSocketAddress server, File source, String remote)
+			throws IOException, InterruptedException {
+		TFTPMetrics metrics = new TFTPMetrics();
+		client.setMetrics(metrics);
+		long start = System.nanoTime();
+		TFTPAsyncClient.Transfer transfer = (source == null) ? client.get(server, remote, DISCARD) : client.put(server, source, remote);
+		TFTPTransferStats stats;
+		try {
+			stats = transfer.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+		}
+
+		Result result = new Result();
+		result.nanos = System.nanoTime() - start;
+		result.request = (source == null) ? "RRQ" : "WRQ";
+		result.bytes = stats.getBytes();
+		result.packets = stats.getPackets();
+		result.retransmissions = stats.getRetransmissions();
+		result.latency = metrics.getRoundTrip();
+		return result;
+	}
+
+	/**
+	 * Writes a file of pseudo-random data, so nothing along the way can
+	 * make it smaller.
+	 */
+	private static void createFile(File file, long size) throws IOException {
+		byte[] chunk = new byte[1 << 20];
+		new Random(size).nextBytes(chunk);
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			for (long written = 0; written < size; written += chunk.length) {
+				out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+			}
+		}
+	}
+
+	private static void copyFile(File from, File to) throws IOException {
+		byte[] buffer = new byte[1 << 16];
+		try (FileInputStream in = new FileInputStream(from); FileOutputStream out = new FileOutputStream(to)) {
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+		}
+	}
+
+	/**
+	 * Runs an RRQ and a WRQ of a file in the server directory.
+	 */
+	private static void run(TFTPAsyncClient client, InetSocketAddress server, File directory, String name, File file, List<Result> results)
+			throws InterruptedException {
+		String upload = PREFIX + "upload-" + name;
+		try {
+			Result read = transfer(client, server, null, file.getName());
+			read.file = name;
+			print(read);
+			results.add(read);
+
+			Result write = transfer(client, server, file, upload);
+			write.file = name;
+			print(write);
+			results.add(write);
+		} catch (IOException e) {
+			System.out.println(String.format("  %-28s failed: %s", name, e.getMessage()));
+		} finally {
+			new File(directory, upload).delete();
+		}
+	}
+
+	private static void print(Result result) {
+		System.out.println(String.format("  %-28s %s %12d bytes %9.2f MB/s %10.0f packets/s  p50 %8.3f ms  p99 %8.3f ms  %d retransmitted",
+				result.file, result.request, result.bytes, result.getMegabytesPerSecond(), result.getPacketsPerSecond(),
+				result.latency.getPercentile50() / 1000.0, result.latency.getPercentile99() / 1000.0, result.retransmissions));
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static void writeJson(File file, String started, ServerMode mode, int blockSize, int windowSize, List<Result> results)
+			throws IOException {
+		try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+			out.println("{");
+			out.println("  \"started\": " + quote(started) + ",");
+			out.println("  \"java\": " + quote(System.getProperty("java.version")) + ",");
+			out.println("  \"processors\": " + Runtime.getRuntime().availableProcessors() + ",");
+			out.println("  \"mode\": " + quote(mode.toString()) + ",");
+			out.println("  \"blockSize\": " + blockSize + ",");
+			out.println("  \"windowSize\": " + windowSize + ",");
+			out.println("  \"results\": [");
+			for (int i = 0; i < results.size(); i++) {
+				Result result = results.get(i);
+				out.print(String.format("    {\"file\": %s, \"request\": %s, \"bytes\": %d, \"seconds\": %.6f, "
+						+ "\"megabytesPerSecond\": %.3f, \"packetsPerSecond\": %.1f, \"packets\": %d, \"retransmissions\": %d, "
+						+ "\"latencyP50Micros\": %d, \"latencyP99Micros\": %d, \"latencyMaxMicros\": %d}",
+						quote(result.file), quote(result.request), result.bytes, result.getSeconds(),
+						result.getMegabytesPerSecond(), result.getPacketsPerSecond(), result.packets, result.retransmissions,
+						result.latency.getPercentile50(), result.latency.getPercentile99(), result.latency.getMax()));
+				out.println(i < results.size() - 1 ? "," : "");
+			}
+			out.println("  ]");
+			out.println("}");
+		}
+	}
+
+	public static void main(String args[]) throws IOException, InterruptedException {
+		int largest = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+		int blockSize = (args.length > 1) ? Integer.parseInt(args[1]) : TFTPOptions.DEFAULT_BLOCK_SIZE;
+		int windowSize = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+		String modeName = (args.length > 3) ? args[3].toUpperCase() : "P";
+
+		/* Keep the server's messages about each transfer out of the results. */
+		TFTPEventLog.getShared().setSampling(0);
+		String started = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date());
+		File json = new File((args.length > 4) ? args[4] : "throughput-" + started.replace(":", "") + ".json");
+
+		ServerMode mode = modeName.equals("E") ? ServerMode.EVENT_LOOP : modeName.equals("V") ? ServerMode.VIRTUAL_THREAD : ServerMode.THREAD;
+		TFTPServer server = TFTPServer.builder().port(0).mode(mode).build();
+		try {
+			server.start();
+		} catch (UnsupportedOperationException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+
+		File directory = server.getRoot();
+		List<File> created = new ArrayList<File>();
+		List<Result> results = new ArrayList<Result>();
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+		TFTPAsyncClient client = new TFTPAsyncClient(1);
+		client.setOptions(blockSize, windowSize, 0);
+
+		System.out.println("Mode " + mode + ", block size " + blockSize + ", window size " + windowSize);
+		File[] tests = new File(TEST_FILES).listFiles();
+		if (tests != null) {
+			for (File test : tests) {
+				if (!test.isFile()) {
+					continue;
+				}
+				File copy = new File(directory, PREFIX + test.getName());
+				copyFile(test, copy);
+				created.add(copy);
+				run(client, address, directory, test.getName(), copy, results);
+			}
+		} else {
+			System.out.println("No \"" + TEST_FILES + "\" directory here; only the synthetic files are transferred.");
+		}
+		for (int size : SYNTHETIC_SIZES) {
+			if (size > largest) {
+				continue;
+			}
+			String name = (size >= 1024) ? (size / 1024) + "GB.bin" : size + "MB.bin";
+			File file = new File(directory, PREFIX + name);
+			createFile(file, size * 1048576L);
+			created.add(file);
+			run(client, address, directory, name, file, results);
+		}
+
+		client.close();
+		try {
+			server.stop(STOP_TIMEOUT);
+		} catch (IOException e) {
+			/* The results are still worth keeping. */
+			System.out.println(e.getMessage());
+		}
+		for (File file : created) {
+			file.delete();
+		}
+		writeJson(json, started, mode, blockSize, windowSize, results);
+		System.out.println("Results written to " + json.getPath());
+		System.exit(0);
+	}
+}
@@ -0,0 +1,302 @@
+/*  TFTPTimerWheel.java
+ *
+ *  This class keeps the deadlines of every transfer of
+ *  the server (when to retransmit, and when to give up
+ *  on a transfer that has been idle for too long) on a
+ *  single thread, instead of each transfer blocking on
+ *  its socket with a timeout of its own.
+ *
+ *  It is a hashed timing wheel: a ring of slots, one
+ *  per tick of TICK milliseconds. A deadline is kept in
+ *  the slot of the tick it falls on, and the wheel
+ *  thread visits one slot per tick and runs the tasks
+ *  of the deadlines that have passed. A deadline more
+ *  than one turn of the wheel away waits in its slot
+ *  for the turns in between. Setting, moving and
+ *  cancelling a deadline take the same time however
+ *  many transfers are running.
+ *
+ *  Each transfer keeps its Timeouts for its whole life
+ *  and re-arms them as it goes. Most of the time a
+ *  deadline only moves later (every ACK pushes the
+ *  retransmission back), which is just a write to the
+ *  Timeout: the wheel moves it on to its new slot when
+ *  it comes across it in the old one. Cancelling is the
+ *  same. Only a deadline moving earlier than its slot
+ *  is handed to the wheel thread again.
+ *
+ *  The tasks run on the wheel thread, so they only
+ *  hand the event to the transfer (wake its socket, or
+ *  queue it on its event loop) and return. A transfer
+ *  that expires is cleaned up by its own thread or
+ *  loop; nothing else is affected.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class TFTPTimerWheel extends Thread {
+	/* Length of a tick, in milliseconds. Deadlines are met to within a tick. */
+	public static final int TICK = 10;
+
+	/* Slots in the wheel, a power of two. One turn is SLOTS * TICK milliseconds. */
+	private static final int SLOTS = 512;
+
+	/* Deadline of a Timeout that isn't armed. */
+	private static final long NEVER = Long.MAX_VALUE;
+
+	private static TFTPTimerWheel shared;
+
+	/* Heads of the list of Timeouts in each slot. Only touched by the wheel thread. */
+	private final Timeout[] slots = new Timeout[SLOTS];
+
+	/* Timeouts to (re)place in the wheel, handed over by other threads. */
+	private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+
+	/* Next tick to visit, and the number of Timeouts in the slots. Wheel thread only. */
+	private long tick;
+	private int linked;
+
+	/* True while the wheel is parked with nothing in it. */
+	private volatile boolean idle;
+
+	/* Timeouts that have fired. */
+	private volatile long fired;
+
+	private TFTPTimerWheel() {
+		super("TFTPTimerWheel");
+		setDaemon(true);
+	}
+
+	/**
+	 * Returns the timer wheel shared by every transfer of the server,
+	 * starting it the first time it is needed.
+	 */
+	public static synchronized TFTPTimerWheel getShared() {
+		if (shared == null) {
+			shared = new TFTPTimerWheel();
+			shared.start();
+		}
+		return shared;
+	}
+
+	/**
+	 * Creates a Timeout that runs a task on the wheel thread each time it
+	 * expires. It isn't armed until arm() is called.
+	 *
+	 * @param task to run; must be short, as it holds up every other deadline.
+	 */
+	public Timeout newTimeout(Runnable task) {
+		return new Timeout(this, task);
+	}
+
+	/**
+	 * Hands a Timeout to the wheel thread to be placed in its slot.
+	 */
+	private void submit(Timeout timeout) {
+		pending.add(timeout);
+		if (idle) {
+			LockSupport.unpark(this);
+		}
+	}
+
+	@Override
+	public void run() {
+		tick = now() / TICK;
+		while (true) {
+			if (linked == 0 && pending.isEmpty()) {
+				/* Nothing to wait for; park until a Timeout is armed. */
+				idle = true;
+				if (pending.isEmpty()) {
+					LockSupport.park(this);
+				}
+				idle = false;
+				tick = now() / TICK;
+			}
+
+			Timeout timeout;
+			while ((timeout = pending.poll()) != null) {
+				link(timeout, tick);
+			}
+
+			/* Visit every slot up to the current time, catching up after a late wake-up. */
+			long current = now() / TICK;
+			while (tick <= current) {
+				expire(tick);
+				tick++;
+			}
+
+			long sleep = tick * TICK - now();
+			if (sleep > 0) {
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(sleep));
+			}
+		}
+	}
+
+	/**
+	 * Runs the tasks of the Timeouts in a slot whose deadlines have passed,
+	 * and moves the others on to the slots of their deadlines.
+	 *
+	 * @param now the tick being visited.
+	 */
+	private void expire(long now) {
+		int slot = (int) (now & (SLOTS - 1));
+		Timeout timeout = slots[slot];
+		slots[slot] = null;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			timeout.next = null;
+			timeout.prev = null;
+			timeout.slot = -1;
+			linked--;
+
+			long deadline = timeout.deadline.get();
+			if (deadline == NEVER) {
+				/* Cancelled. */
+				unlinked(timeout, now);
+			} else if (ticks(deadline) > now) {
+				/* Moved later, or a turn or more away. */
+				link(timeout, now + 1);
+			} else if (timeout.deadline.compareAndSet(deadline, NEVER)) {
+				unlinked(timeout, now);
+				fired++;
+				try {
+					timeout.task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			} else {
+				/* Re-armed as it expired. */
+				link(timeout, now + 1);
+			}
+			timeout = next;
+		}
+	}
+
+	/**
+	 * Marks a Timeout as out of the wheel, and puts it back if it was armed
+	 * again in the meantime without being handed over.
+	 */
+	private void unlinked(Timeout timeout, long now) {
+		timeout.linkedTick = NEVER;
+		if (timeout.deadline.get() != NEVER) {
+			link(timeout, now + 1);
+		}
+	}
+
+	/**
+	 * Places a Timeout in the slot of its deadline, taking it out of the one
+	 * it is in first.
+	 *
+	 * @param earliest tick the Timeout may be placed at.
+	 */
+	private void link(Timeout timeout, long earliest) {
+		long deadline = timeout.deadline.get();
+		if (timeout.slot >= 0) {
+			unlink(timeout);
+		}
+		if (deadline == NEVER) {
+			timeout.linkedTick = NEVER;
+			return;
+		}
+		long at = Math.max(ticks(deadline), earliest);
+		int slot = (int) (at & (SLOTS - 1));
+		timeout.slot = slot;
+		timeout.next = slots[slot];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		slots[slot] = timeout;
+		timeout.linkedTick = at;
+		linked++;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			slots[timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.next = null;
+		timeout.prev = null;
+		timeout.slot = -1;
+		linked--;
+	}
+
+	/**
+	 * Returns the tick a deadline falls on, rounded up so it never expires early.
+	 */
+	private static long ticks(long deadline) {
+		return (deadline + TICK - 1) / TICK;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	@Override
+	public String toString() {
+		return fired + " deadlines expired";
+	}
+
+	/**
+	 * A deadline kept on the wheel, which can be armed again and again.
+	 * Safe to use from any thread.
+	 */
+	public static class Timeout {
+		private final TFTPTimerWheel wheel;
+		private final Runnable task;
+
+		/* When the task is due, in milliseconds, or NEVER. */
+		private final AtomicLong deadline = new AtomicLong(NEVER);
+
+		/* Tick of the slot the Timeout is in, or NEVER. Written by the wheel thread. */
+		private volatile long linkedTick = NEVER;
+
+		/* Place in the wheel. Wheel thread only. */
+		private Timeout prev;
+		private Timeout next;
+		private int slot = -1;
+
+		private Timeout(TFTPTimerWheel wheel, Runnable task) {
+			this.wheel = wheel;
+			this.task = task;
+		}
+
+		/**
+		 * Sets the deadline, replacing any earlier one.
+		 *
+		 * @param delay from now, in milliseconds.
+		 */
+		public void arm(long delay) {
+			long due = now() + delay;
+			deadline.set(due);
+			/* Later than its slot, the wheel finds it there; earlier, the wheel must move it. */
+			if (ticks(due) < linkedTick) {
+				wheel.submit(this);
+			}
+		}
+
+		/**
+		 * Cancels the deadline. The task doesn't run unless it is armed again.
+		 */
+		public void cancel() {
+			deadline.set(NEVER);
+		}
+
+		/**
+		 * Returns true if the deadline is set and hasn't expired yet.
+		 */
+		public boolean isArmed() {
+			return deadline.get() != NEVER;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+/*  TFTPTransferStats.java
+ *
+ *  This class records what happened during one
+ *  transfer: how many data bytes and blocks were
+ *  moved, how long it took, how many times a packet
+ *  had to be retransmitted, and the round trip times
+ *  and retransmission timeouts worked out by its
+ *  TFTPRetransmitTimer. The summary is printed when
+ *  the transfer ends, in verbose mode.
+ *
+ *  When the size of the file is known (the file being
+ *  sent, or the tsize option of RFC 2349), it also
+ *  reports how far along the transfer is and how long
+ *  the rest should take at the rate so far.
+ *
+ *  On the server, each transfer's stats also pass what
+ *  they record on to the server-wide TFTPMetrics. The
+ *  transfers of a TFTPAsyncClient pass theirs on to
+ *  the client's metrics, if it has been given any, and
+ *  count the packets sent and received as well.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+public class TFTPTransferStats {
+	private String name;
+	private long startTime;
+	private long endTime;
+
+	private long bytes;
+	private long expectedBytes;
+	private long blocks;
+	private long packets;
+	private int retransmissions;
+	private int timeouts;
+
+	/* Server-wide metrics to pass everything on to, or null, and the direction of the data. */
+	private TFTPMetrics metrics;
+	private boolean sending;
+
+	/* Round trip times in microseconds. */
+	private int samples;
+	private long rttTotal;
+	private long rttMin;
+	private long rttMax;
+
+	/* Latest estimate and timeout, in milliseconds. */
+	private double srtt;
+	private int rto;
+	private int maxRto;
+
+	/**
+	 * @param name of the transfer, for example "RRQ sample.txt".
+	 */
+	public TFTPTransferStats(String name) {
+		this.name = name;
+		startTime = System.nanoTime();
+		endTime = -1;
+		expectedBytes = -1;
+		rttMin = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Passes everything recorded from now on to the server-wide metrics too,
+	 * and counts the transfer there.
+	 *
+	 * @param metrics of the server.
+	 * @param sending true if the server sends the data, false if it receives it.
+	 */
+	public void setMetrics(TFTPMetrics metrics, boolean sending) {
+		this.metrics = metrics;
+		this.sending = sending;
+		metrics.addTransfer();
+	}
+
+	/**
+	 * Records blocks of data moved, either written by the receiver or
+	 * acknowledged to the sender.
+	 *
+	 * @param count number of blocks.
+	 * @param dataBytes number of data bytes in them.
+	 */
+	public void addBlocks(int count, long dataBytes) {
+		blocks += count;
+		bytes += dataBytes;
+		if (metrics != null) {
+			metrics.addBlocks(count, dataBytes, sending);
+		}
+	}
+
+	/**
+	 * Records a packet sent or received. Only TFTPAsyncClient counts them.
+	 */
+	public void addPacket() {
+		packets++;
+	}
+
+	/**
+	 * Records a round trip time measurement.
+	 *
+	 * @param micros measured round trip time.
+	 * @param srtt smoothed round trip time after the measurement, in milliseconds.
+	 * @param rto timeout after the measurement, in milliseconds.
+	 */
+	public void addRoundTrip(long micros, double srtt, int rto) {
+		samples++;
+		rttTotal += micros;
+		rttMin = Math.min(rttMin, micros);
+		rttMax = Math.max(rttMax, micros);
+		this.srtt = srtt;
+		this.rto = rto;
+		maxRto = Math.max(maxRto, rto);
+		if (metrics != null) {
+			metrics.addRoundTrip(micros);
+		}
+	}
+
+	/**
+	 * Records the timeout a transfer starts with.
+	 *
+	 * @param rto initial timeout, in milliseconds.
+	 */
+	public void setInitialTimeout(int rto) {
+		this.rto = rto;
+		maxRto = rto;
+	}
+
+	/**
+	 * Records a timeout that led to a retransmission.
+	 *
+	 * @param rto backed off timeout, in milliseconds.
+	 */
+	public void addTimeout(int rto) {
+		timeouts++;
+		retransmissions++;
+		this.rto = rto;
+		maxRto = Math.max(maxRto, rto);
+		if (metrics != null) {
+			metrics.addRetransmission(true);
+		}
+	}
+
+	/**
+	 * Records packets sent again before the timeout, because the other side
+	 * asked for them.
+	 */
+	public void addRetransmission() {
+		retransmissions++;
+		if (metrics != null) {
+			metrics.addRetransmission(false);
+		}
+	}
+
+	/**
+	 * Marks the end of the transfer, whether it completed or not.
+	 */
+	public void finish() {
+		if (endTime < 0) {
+			endTime = System.nanoTime();
+		}
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Sets the size of the file, once it is known.
+	 *
+	 * @param expectedBytes in bytes.
+	 */
+	public void setExpectedBytes(long expectedBytes) {
+		this.expectedBytes = expectedBytes;
+	}
+
+	/**
+	 * Returns the size of the file, or -1 if it is not known.
+	 */
+	public long getExpectedBytes() {
+		return expectedBytes;
+	}
+
+	/**
+	 * Describes how far along the transfer is, for example
+	 * "RRQ big.bin: 45% (450000 of 1000000 bytes), about 1.2 s left".
+	 */
+	public String describeProgress() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(name).append(": ");
+		if (expectedBytes <= 0) {
+			return sb.append(bytes).append(" bytes").toString();
+		}
+		sb.append(bytes * 100 / expectedBytes).append("% (").append(bytes).append(" of ").append(expectedBytes).append(" bytes)");
+		if (bytes > 0 && bytes < expectedBytes) {
+			double left = getDuration() / 1000.0 * (expectedBytes - bytes) / bytes;
+			sb.append(String.format(", about %.1f s left", left));
+		}
+		return sb.toString();
+	}
+
+	public long getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * Returns the packets sent and received, both ways, or 0 on the server.
+	 */
+	public long getPackets() {
+		return packets;
+	}
+
+	public int getRetransmissions() {
+		return retransmissions;
+	}
+
+	/**
+	 * Returns the retransmissions that followed a timeout.
+	 */
+	public int getTimeouts() {
+		return timeouts;
+	}
+
+	public int getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Returns the mean round trip time in milliseconds, or 0 without measurements.
+	 */
+	public double getMeanRoundTrip() {
+		return (samples == 0) ? 0 : rttTotal / 1000.0 / samples;
+	}
+
+	public double getSmoothedRoundTrip() {
+		return srtt;
+	}
+
+	public int getTimeout() {
+		return rto;
+	}
+
+	/**
+	 * Returns the duration of the transfer in milliseconds, so far if it hasn't ended.
+	 */
+	public long getDuration() {
+		long end = (endTime < 0) ? System.nanoTime() : endTime;
+		return (end - startTime) / 1000000;
+	}
+
+	@Override
+	public String toString() {
+		long duration = getDuration();
+		double rate = (duration == 0) ? 0 : bytes / 1024.0 / (duration / 1000.0);
+		StringBuilder sb = new StringBuilder();
+		sb.append(name).append(": ").append(bytes).append(" bytes in ").append(blocks).append(" blocks, ");
+		sb.append(duration).append(" ms (").append(String.format("%.1f", rate)).append(" KB/s), ");
+		sb.append(retransmissions).append(" retransmissions (").append(timeouts).append(" on timeout)");
+		if (samples > 0) {
+			sb.append(String.format(", RTT min/avg/max %.2f/%.2f/%.2f ms over %d samples, SRTT %.2f ms",
+					rttMin / 1000.0, getMeanRoundTrip(), rttMax / 1000.0, samples, srtt));
+		}
+		sb.append(", RTO ").append(rto).append(" ms (max ").append(maxRto).append(" ms)");
+		return sb.toString();
+	}
+}
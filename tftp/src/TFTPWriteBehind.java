@@ -0,0 +1,340 @@
+/*  TFTPWriteBehind.java
+ *
+ *  This class writes the blocks of a file being
+ *  uploaded to the server (a WRQ) without making the
+ *  transfer wait for the disk. Each block is copied
+ *  into an in-memory staging buffer and can be
+ *  acknowledged straight away; a background writer
+ *  thread then writes the staged blocks to the file
+ *  in large FileChannel writes, many blocks at a
+ *  time, instead of one small write per block.
+ *
+ *  The staging buffer is split in two halves. The
+ *  transfer fills one while the writer writes the
+ *  other, and they swap when the one being filled has
+ *  no room for the next block. If the writer is still
+ *  busy with the other half by then, the disk is
+ *  behind the network and the block can't be staged:
+ *  the connection thread waits for room before it
+ *  ACKs, and an event loop session holds its ACK
+ *  back and polls until there is room. Either way
+ *  the client is slowed down to the speed of the
+ *  disk.
+ *
+ *  An error from the background writer (a full disk,
+ *  for example) is kept and thrown from the next
+ *  write, so it still reaches the client as an Error
+ *  Code 3.
+ *
+ *  The upload is written to a hidden temporary file
+ *  next to the one the client asked for. Once the
+ *  last block has arrived the upload is committed:
+ *  everything staged is written out, the file is
+ *  fsynced if the server's Durability mode asks for
+ *  it (see TFTPCommitter), and it is renamed into
+ *  place in one atomic step. An upload that fails or
+ *  is abandoned is deleted, so a partial file never
+ *  shows up under the real name.
+ *
+ *  As with TFTPFileWriter, a file whose size was
+ *  declared with tsize is allocated up front and
+ *  trimmed to the bytes received when it is committed.
+ *  The size of the staging buffer can be changed with
+ *  the STAGE console command of the server.
+ *
+ *  Author:         Team 12 (Group Project - SYSC3303)
+ *  Date:           5/19/2017
+ */
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class TFTPWriteBehind {
+	/* Default size of the staging buffer of each upload, in bytes. */
+	public static final int DEFAULT_STAGING_SIZE = 256 * 1024;
+
+	/* Background writer threads shared by every upload. */
+	private static final int WRITER_THREADS = 4;
+
+	private static volatile int stagingSize = DEFAULT_STAGING_SIZE;
+
+	private static final ExecutorService writers = Executors.newFixedThreadPool(WRITER_THREADS, new ThreadFactory() {
+		private int count;
+
+		@Override
+		public synchronized Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "TFTPWriteBehind-" + count++);
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/* File the client asked for, and the temporary file written until the upload is committed. */
+	private File target;
+	private File temporary;
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private boolean committed;
+	private boolean closed;
+	private long expectedSize;
+	private long written;
+
+	/* Half being filled by the transfer, and the other half while the writer isn't using it. Guarded by this. */
+	private ByteBuffer filling;
+	private ByteBuffer spare;
+
+	/* Offset in the file of the first byte of 'filling'. */
+	private long fillingOffset;
+
+	/* First error of the background writer. Guarded by this. */
+	private IOException failure;
+
+	/**
+	 * Creates the temporary file the upload is written to.
+	 *
+	 * @param file the upload is committed to.
+	 * @param blockSize negotiated for the transfer; each half of the staging buffer holds at least one block.
+	 * @throws FileNotFoundException if the temporary file can't be created in the file's directory.
+	 */
+	public TFTPWriteBehind(File file, int blockSize) throws IOException {
+		target = file.getAbsoluteFile();
+		try {
+			temporary = File.createTempFile("." + target.getName() + ".", ".part", target.getParentFile());
+		} catch (IOException e) {
+			FileNotFoundException notCreated = new FileNotFoundException(e.getMessage());
+			notCreated.initCause(e);
+			throw notCreated;
+		}
+		try {
+			this.file = new RandomAccessFile(temporary, "rw");
+		} catch (IOException e) {
+			temporary.delete();
+			throw e;
+		}
+		channel = this.file.getChannel();
+		int half = Math.max(stagingSize / 2, blockSize);
+		filling = ByteBuffer.allocate(half);
+		spare = ByteBuffer.allocate(half);
+		expectedSize = -1;
+		written = 0;
+		fillingOffset = 0;
+	}
+
+	/**
+	 * Gives the file the size declared by the sender. Must be called before
+	 * anything is written.
+	 *
+	 * @param size in bytes.
+	 * @throws IOException if the space can't be allocated.
+	 */
+	public void allocate(long size) throws IOException {
+		file.setLength(size);
+		expectedSize = size;
+	}
+
+	/**
+	 * Returns false if writing the given number of bytes would take the file
+	 * past its declared size.
+	 *
+	 * @param length of the next block.
+	 */
+	public boolean fits(int length) {
+		return expectedSize < 0 || written + length <= expectedSize;
+	}
+
+	/**
+	 * Stages the next block of the file, if there is room for it.
+	 *
+	 * @return false if the staging buffer is full; nothing was staged.
+	 * @throws IOException if the background writer failed.
+	 */
+	public synchronized boolean offer(byte[] data, int offset, int length) throws IOException {
+		checkFailure();
+		if (filling.remaining() < length) {
+			if (spare == null) {
+				return false;
+			}
+			handOff();
+		}
+		filling.put(data, offset, length);
+		written += length;
+		return true;
+	}
+
+	/**
+	 * Stages the next block of the file, waiting for room if the staging
+	 * buffer is full.
+	 *
+	 * @throws IOException if the background writer failed.
+	 */
+	public synchronized void write(byte[] data, int offset, int length) throws IOException {
+		while (!offer(data, offset, length)) {
+			awaitWriter();
+		}
+	}
+
+	/**
+	 * Returns true if a block of the given length can be staged without
+	 * waiting, or the background writer has failed.
+	 */
+	public synchronized boolean hasRoom(int length) {
+		return failure != null || spare != null || filling.remaining() >= length;
+	}
+
+	/**
+	 * Writes everything staged so far to the file, waiting for the
+	 * background writer first.
+	 *
+	 * @throws IOException if this or an earlier write failed.
+	 */
+	private void flush() throws IOException {
+		while (spare == null) {
+			awaitWriter();
+		}
+		checkFailure();
+		filling.flip();
+		try {
+			writeFully(filling, fillingOffset);
+		} finally {
+			fillingOffset += filling.limit();
+			filling.clear();
+		}
+	}
+
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * Writes out everything staged, trims the file to the bytes written and
+	 * renames it into place under the name the client asked for.
+	 *
+	 * @param sync true to fsync the file before it is renamed. Syncing the
+	 *        directory, so that the rename itself is durable, is up to the caller.
+	 * @throws FileAlreadyExistsException if a file of the same name turned up during the upload.
+	 * @throws IOException if the file couldn't be written.
+	 */
+	public synchronized void commit(boolean sync) throws IOException {
+		flush();
+		if (file.length() != written) {
+			file.setLength(written);
+		}
+		if (sync) {
+			channel.force(true);
+		}
+		file.close();
+		if (target.exists()) {
+			throw new FileAlreadyExistsException(target.getPath());
+		}
+		Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		committed = true;
+	}
+
+	/**
+	 * Returns the file the upload is committed to.
+	 */
+	public File getTarget() {
+		return target;
+	}
+
+	/**
+	 * Closes the file and, unless the upload was committed, deletes it. Safe
+	 * to call on a transfer that failed, and more than once.
+	 */
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			/* The writer may still be using the file. */
+			while (spare == null) {
+				awaitWriter();
+			}
+		} finally {
+			try {
+				file.close();
+			} finally {
+				if (!committed) {
+					temporary.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hands the full half to a background writer and starts filling the other.
+	 */
+	private void handOff() {
+		final ByteBuffer full = filling;
+		final long offset = fillingOffset;
+		full.flip();
+		fillingOffset += full.limit();
+		filling = spare;
+		spare = null;
+		writers.execute(new Runnable() {
+			@Override
+			public void run() {
+				IOException error = null;
+				try {
+					writeFully(full, offset);
+				} catch (IOException e) {
+					error = e;
+				}
+				synchronized (TFTPWriteBehind.this) {
+					if (error != null && failure == null) {
+						failure = error;
+					}
+					full.clear();
+					spare = full;
+					TFTPWriteBehind.this.notifyAll();
+				}
+			}
+		});
+	}
+
+	private void writeFully(ByteBuffer buffer, long offset) throws IOException {
+		long position = offset;
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private void awaitWriter() throws IOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the file to be written.", e);
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Sets the size of the staging buffer of new uploads.
+	 *
+	 * @param size in bytes, split between the two halves.
+	 */
+	public static void setStagingSize(int size) {
+		stagingSize = size;
+	}
+
+	public static int getStagingSize() {
+		return stagingSize;
+	}
+}